@@ -0,0 +1,37 @@
+package com.systems.fele.memendex_benchmarks;
+
+import org.springframework.boot.convert.DurationStyle;
+
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Command line options of the form {@code --name value}.
+ */
+final class Arguments {
+    private final Map<String, String> values = new HashMap<>();
+
+    Arguments(String[] args) {
+        for (int i = 0; i < args.length; i++) {
+            if (!args[i].startsWith("--") || i + 1 == args.length)
+                throw new IllegalArgumentException("Expected --name value, got " + args[i]);
+            values.put(args[i].substring(2), args[++i]);
+        }
+    }
+
+    String string(String name, String defaultValue) {
+        return values.getOrDefault(name, defaultValue);
+    }
+
+    int integer(String name, int defaultValue) {
+        return values.containsKey(name) ? Integer.parseInt(values.get(name)) : defaultValue;
+    }
+
+    /**
+     * @return the duration, written as Spring properties are, like {@code 30s} or {@code 5m}
+     */
+    Duration duration(String name, Duration defaultValue) {
+        return values.containsKey(name) ? DurationStyle.detectAndParse(values.get(name)) : defaultValue;
+    }
+}
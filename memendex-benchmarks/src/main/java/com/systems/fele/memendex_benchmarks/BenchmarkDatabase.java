@@ -0,0 +1,205 @@
+package com.systems.fele.memendex_benchmarks;
+
+import com.systems.fele.memendex_server.MemendexProperties;
+import com.systems.fele.memendex_server.meme.LibraryGeneration;
+import com.systems.fele.memendex_server.meme.MemeRepository;
+import com.systems.fele.memendex_server.meme.MemeService;
+import com.systems.fele.memendex_server.meme.TagToMemeRepository;
+import com.systems.fele.memendex_server.meme.TagToMemeService;
+import com.systems.fele.memendex_server.migration.SchemaMigrator;
+import com.systems.fele.memendex_server.model.MemePayload;
+import com.systems.fele.memendex_server.model.MemesType;
+import com.systems.fele.memendex_server.search.MemeFullTextIndex;
+import com.systems.fele.memendex_server.search.MemeSearchIndex;
+import com.systems.fele.memendex_server.search.SearchResultCache;
+import com.systems.fele.memendex_server.similarity.PerceptualHashRepository;
+import com.systems.fele.memendex_server.similarity.SimilarityIndex;
+import com.systems.fele.memendex_server.storage.ContentStore;
+import com.systems.fele.memendex_server.tag.TagPostings;
+import com.systems.fele.memendex_server.tag.TagRepository;
+import com.systems.fele.memendex_server.thumbnail.DerivativeCache;
+import com.systems.fele.memendex_server.thumbnail.SpriteSheets;
+import com.systems.fele.memendex_server.thumbnail.ThumbnailPipeline;
+import com.systems.fele.memendex_server.thumbnail.ThumbnailRenderer;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.springframework.boot.autoconfigure.web.servlet.MultipartProperties;
+import org.springframework.core.env.StandardEnvironment;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.DataSourceTransactionManager;
+import org.springframework.jdbc.datasource.DriverManagerDataSource;
+import org.springframework.transaction.support.TransactionTemplate;
+import org.springframework.util.unit.DataSize;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.UUID;
+
+/**
+ * An in-memory H2 database with the real schema, seeded with a deterministic set of memes and
+ * tags, and the repositories and indexes over it wired by hand.
+ * <p></p>
+ * Words are drawn from a skewed distribution, so a few are in most memes and most are rare, as
+ * in real descriptions. About a fifth of the memes have no description, like files imported in bulk.
+ */
+public final class BenchmarkDatabase {
+    private static final String[] WORDS = {
+            "cat", "dog", "when", "you", "me", "bruh", "moment", "reaction", "meme", "funny", "monday",
+            "coffee", "code", "bug", "deploy", "friday", "production", "java", "spring", "atomic", "bomb",
+            "peter", "parker", "excel", "spreadsheet", "boss", "meeting", "vacation", "pizza", "sleep",
+            "gato", "cachorro", "quando", "voce", "segunda", "cafe", "reuniao", "ferias", "xaropinho",
+            "deitar", "surprised", "pikachu", "drake", "distracted", "boyfriend", "galaxy", "brain",
+            "stonks", "doge", "wojak", "chad", "virgin", "pepe", "sad", "happy", "angry", "confused"
+    };
+    private static final String[] SCOPES = { "", "artist", "source", "template", "lang" };
+    private static final int BATCH_SIZE = 1000;
+
+    public final JdbcTemplate jdbcTemplate;
+    public final MemendexProperties properties;
+    public final MemeSearchIndex memeSearchIndex;
+    public final MemeFullTextIndex memeFullTextIndex;
+    public final TagPostings tagPostings;
+    public final MemeRepository memeRepository;
+    public final TagToMemeRepository tagToMemeRepository;
+    public final List<Long> memeIds = new ArrayList<>();
+
+    private BenchmarkDatabase(JdbcTemplate jdbcTemplate, MemendexProperties properties) {
+        this.jdbcTemplate = jdbcTemplate;
+        this.properties = properties;
+        this.memeSearchIndex = new MemeSearchIndex(jdbcTemplate);
+        this.memeFullTextIndex = new MemeFullTextIndex(jdbcTemplate);
+        this.tagPostings = new TagPostings(jdbcTemplate);
+        this.memeRepository = new MemeRepository(jdbcTemplate, properties, memeSearchIndex, memeFullTextIndex, tagPostings, new LibraryGeneration());
+        this.tagToMemeRepository = new TagToMemeRepository(jdbcTemplate, event -> {
+        });
+    }
+
+    /**
+     * Creates and seeds a new database. The indexes are loaded before returning, so the benchmarks
+     * don't measure it.
+     *
+     * @param memes number of memes
+     * @param seed  seed of the random data
+     */
+    public static BenchmarkDatabase create(int memes, long seed) {
+        var dataSource = new DriverManagerDataSource("jdbc:h2:mem:bench-" + UUID.randomUUID() + ";DB_CLOSE_DELAY=-1", "sa", "");
+        var jdbcTemplate = new JdbcTemplate(dataSource);
+        new SchemaMigrator(jdbcTemplate, new StandardEnvironment()).afterSingletonsInstantiated();
+
+        var database = new BenchmarkDatabase(jdbcTemplate, properties(temporaryDirectory()));
+        database.seed(memes, new Random(seed));
+        database.memeSearchIndex.onApplicationReady();
+        database.memeFullTextIndex.onApplicationReady();
+        database.tagPostings.onApplicationReady();
+        return database;
+    }
+
+    /**
+     * A {@link MemeService} over this database, with the rest of its dependencies wired as in the
+     * application. Thumbnails and uploads go to a temporary directory.
+     */
+    public MemeService memeService() {
+        try {
+            var registry = new SimpleMeterRegistry();
+            var tagRepository = new TagRepository(jdbcTemplate, properties, event -> {
+            });
+            var transactionTemplate = new TransactionTemplate(new DataSourceTransactionManager(jdbcTemplate.getDataSource()));
+            var tagToMemeService = new TagToMemeService(tagToMemeRepository, tagRepository, memeRepository, memeSearchIndex, transactionTemplate);
+            var thumbnailRenderer = new ThumbnailRenderer(properties, registry);
+            return new MemeService(properties, memeRepository, tagToMemeRepository, tagToMemeService,
+                    new ThumbnailPipeline(properties), new DerivativeCache(properties), thumbnailRenderer,
+                    new ContentStore(properties, new MultipartProperties(), registry),
+                    new SimilarityIndex(new PerceptualHashRepository(jdbcTemplate)), tagPostings, memeFullTextIndex,
+                    memeSearchIndex, new SearchResultCache(properties, registry), new SpriteSheets(thumbnailRenderer, registry), registry);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * The default settings, with the upload and cache directories in a temporary directory.
+     */
+    public static MemendexProperties properties(Path directory) {
+        return new MemendexProperties(
+                directory.resolve("uploads").toString(),
+                directory.resolve("cache").toString(),
+                new MemendexProperties.Thumbnails(2, 10_000, Duration.ofSeconds(2), DataSize.ofMegabytes(512), 16_000_000),
+                new MemendexProperties.Similarity(10),
+                new MemendexProperties.Ingest(null, Duration.ofSeconds(10), 0, 500),
+                new MemendexProperties.Search(256, Duration.ofMinutes(10)),
+                new MemendexProperties.Reconciliation(false, 10_000));
+    }
+
+    public static Path temporaryDirectory() {
+        try {
+            var directory = Files.createTempDirectory("memendex-bench");
+            directory.toFile().deleteOnExit();
+            return directory;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * @return a query of one to three words, drawn like the descriptions
+     */
+    public static String randomQuery(Random random) {
+        var words = new ArrayList<String>();
+        var count = 1 + random.nextInt(3);
+        for (int i = 0; i < count; i++) words.add(word(random));
+        return String.join(" ", words);
+    }
+
+    private void seed(int memes, Random random) {
+        var tagIds = new ArrayList<Long>();
+        for (var scope : SCOPES) {
+            for (int i = 0; i < (scope.isEmpty() ? 200 : 50); i++) {
+                var name = scope.isEmpty() ? null : scope + "-" + i;
+                jdbcTemplate.update("INSERT INTO tags (scope, name) VALUES (?, ?)", scope.isEmpty() ? WORDS[i % WORDS.length] + i : scope, name);
+            }
+        }
+        tagIds.addAll(jdbcTemplate.queryForList("SELECT id FROM tags ORDER BY id", Long.class));
+
+        for (int start = 0; start < memes; start += BATCH_SIZE) {
+            var payloads = new ArrayList<MemePayload>();
+            for (int i = start; i < Math.min(memes, start + BATCH_SIZE); i++) payloads.add(randomMeme(random, i));
+            for (var meme : memeRepository.insertAll(payloads, Collections.nCopies(payloads.size(), null))) memeIds.add(meme.id());
+        }
+
+        var relations = new ArrayList<Object[]>();
+        for (var memeId : memeIds) {
+            var count = random.nextInt(5);
+            var chosen = new HashSet<Long>();
+            for (int i = 0; i < count; i++) chosen.add(tagIds.get((int) Math.min(tagIds.size() - 1, Math.abs(random.nextGaussian()) * tagIds.size() / 3)));
+            for (var tagId : chosen) relations.add(new Object[] { memeId, tagId });
+        }
+        jdbcTemplate.batchUpdate("INSERT INTO tags_to_memes (meme_id, tag_id) VALUES (?, ?)", relations);
+    }
+
+    private static MemePayload randomMeme(Random random, int index) {
+        var fileName = random.nextInt(3) == 0
+                ? "IMG_%08d.jpg".formatted(index)
+                : "%s_%s_%d.png".formatted(word(random), word(random), index);
+        String description = null;
+        if (random.nextInt(5) != 0) {
+            var words = new ArrayList<String>();
+            var count = 2 + random.nextInt(12);
+            for (int i = 0; i < count; i++) words.add(word(random));
+            description = String.join(" ", words);
+        }
+        return new MemePayload(MemesType.file, fileName, description, fileName.substring(fileName.lastIndexOf('.') + 1));
+    }
+
+    private static String word(Random random) {
+        // Skewed towards the first words
+        var position = random.nextDouble() * random.nextDouble();
+        return WORDS[(int) (position * WORDS.length)];
+    }
+}
@@ -0,0 +1,42 @@
+package com.systems.fele.memendex_benchmarks;
+
+import org.openjdk.jmh.Main;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+
+/**
+ * Runs the benchmarks with the usual JMH options, adding two defaults: the allocation profiler
+ * ({@code -prof gc}), so every result comes with the bytes allocated per operation, and a JSON
+ * result file named after the time of the run, in the results directory, so runs can be compared
+ * later. Either is left alone when given in the command line.
+ */
+public class BenchmarkRunner {
+    private static final Path RESULTS = Path.of("results");
+
+    public static void main(String[] args) throws Exception {
+        var commandLine = new CommandLineOptions(args);
+        if (commandLine.shouldHelp() || commandLine.shouldList() || commandLine.shouldListWithParams()
+                || commandLine.shouldListProfilers() || commandLine.shouldListResultFormats()) {
+            Main.main(args);
+            return;
+        }
+
+        var options = new OptionsBuilder().parent(commandLine);
+        if (commandLine.getProfilers().isEmpty()) options.addProfiler(GCProfiler.class);
+        if (!commandLine.getResult().hasValue()) {
+            Files.createDirectories(RESULTS);
+            var format = commandLine.getResultFormat().orElse(ResultFormatType.JSON);
+            var name = LocalDateTime.now().format(DateTimeFormatter.ofPattern("yyyyMMdd-HHmmss"));
+            options.resultFormat(format).result(RESULTS.resolve(name + "." + format.name().toLowerCase()).toString());
+        }
+        new Runner(options.build()).run();
+    }
+}
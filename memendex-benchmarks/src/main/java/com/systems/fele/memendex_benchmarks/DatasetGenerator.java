@@ -0,0 +1,284 @@
+package com.systems.fele.memendex_benchmarks;
+
+import com.systems.fele.memendex_server.migration.SchemaMigrator;
+import org.springframework.core.env.StandardEnvironment;
+import org.springframework.jdbc.core.ConnectionCallback;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.DriverManagerDataSource;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.*;
+import java.util.stream.IntStream;
+
+/**
+ * Creates a synthetic library: a database, the upload location and the cache directory, with as
+ * many memes, tags and relations as asked for. The same options and seed always create the same
+ * library.
+ * <p></p>
+ * Words of descriptions and file names and tags of memes are drawn from Zipfian distributions, so
+ * a few are everywhere and most are rare. Every meme has a real image file: a pool of images of
+ * several sizes and formats is drawn first, and the files of the memes are hard links to them, as
+ * {@link com.systems.fele.memendex_server.storage.ContentStore} does for uploads with the same content.
+ * <pre>
+ * java -cp target/benchmarks.jar com.systems.fele.memendex_benchmarks.DatasetGenerator \
+ *     --output /tmp/library --memes 500000 --tags 50000
+ * </pre>
+ * Options are {@code --output} (required, must not exist), {@code --memes} (100000), {@code --tags}
+ * (10000), {@code --tags-per-meme} (average, 4), {@code --images} (distinct images, 500) and
+ * {@code --seed} (42).
+ */
+public final class DatasetGenerator {
+    private static final int BATCH_SIZE = 5000;
+
+    private static final String[] SCOPES = { "artist", "source", "template", "character", "lang", "year" };
+
+    /**
+     * Image widths and formats, with how often they're drawn. All images are 4:3.
+     */
+    private static final int[] WIDTHS = { 320, 480, 640, 640, 800, 1080, 1080, 1280, 1920, 2560, 4096 };
+    private static final String[] FORMATS = { "jpeg", "jpeg", "jpeg", "jpeg", "jpeg", "jpeg", "png", "png", "png", "gif" };
+
+    private final JdbcTemplate jdbcTemplate;
+    private final Path output;
+    private final Random random;
+    private final List<String> vocabulary;
+    private final ZipfDistribution words;
+
+    private DatasetGenerator(JdbcTemplate jdbcTemplate, Path output, long seed) {
+        this.jdbcTemplate = jdbcTemplate;
+        this.output = output;
+        this.random = new Random(seed);
+        this.vocabulary = vocabulary(new Random(seed), 20_000);
+        this.words = new ZipfDistribution(vocabulary.size(), 1.0);
+    }
+
+    /**
+     * A pooled image, stored as many memes.
+     */
+    private record Image(Path file, String extension, String sha256) {
+    }
+
+    public static void main(String[] args) throws IOException {
+        var arguments = new Arguments(args);
+        var output = Path.of(Objects.requireNonNull(arguments.string("output", null), "--output is required")).toAbsolutePath();
+        if (Files.exists(output)) throw new IllegalArgumentException(output + " already exists");
+        var memes = arguments.integer("memes", 100_000);
+        var tags = arguments.integer("tags", 10_000);
+        var tagsPerMeme = arguments.integer("tags-per-meme", 4);
+        var images = arguments.integer("images", 500);
+        var seed = arguments.integer("seed", 42);
+
+        Files.createDirectories(output.resolve("uploads"));
+        Files.createDirectories(output.resolve("images"));
+        Files.createDirectories(output.resolve("cache"));
+
+        final var start = System.nanoTime();
+        var dataSource = new DriverManagerDataSource("jdbc:h2:file:" + output.resolve("memendex"), "sa", "password");
+        var jdbcTemplate = new JdbcTemplate(dataSource);
+        new SchemaMigrator(jdbcTemplate, new StandardEnvironment()).afterSingletonsInstantiated();
+
+        var generator = new DatasetGenerator(jdbcTemplate, output, seed);
+        var pool = generator.drawImages(images, seed);
+        System.out.printf("Drew %d images%n", pool.size());
+        var tagIds = generator.insertTags(tags);
+        System.out.printf("Inserted %d tags%n", tagIds.size());
+        var memeIds = generator.insertMemes(memes, pool);
+        System.out.printf("Inserted %d memes%n", memeIds.size());
+        var relations = generator.insertRelations(memeIds, tagIds, tagsPerMeme);
+        System.out.printf("Inserted %d relations%n", relations);
+        generator.updateCounters();
+        jdbcTemplate.execute("SHUTDOWN COMPACT");
+
+        System.out.printf("""
+                Done in %d s. Run the server on it with:
+                  MEMENDEX_DATABASE=%s MEMENDEX_UPLOAD_LOCATION=%s MEMENDEX_CACHE=%s java -jar memendex-server.jar
+                or load it with LoadDriver --dataset %s
+                """, Duration.ofNanos(System.nanoTime() - start).toSeconds(), output.resolve("memendex"),
+                output.resolve("uploads"), output.resolve("cache"), output);
+    }
+
+    /**
+     * Draws the images in parallel. Each one has its own seed, so the result doesn't depend on
+     * the order they're drawn in.
+     */
+    private List<Image> drawImages(int count, long seed) {
+        var sizes = new int[count];
+        var formats = new String[count];
+        for (int i = 0; i < count; i++) {
+            sizes[i] = WIDTHS[random.nextInt(WIDTHS.length)];
+            formats[i] = FORMATS[random.nextInt(FORMATS.length)];
+        }
+
+        return IntStream.range(0, count).parallel().mapToObj(i -> {
+            var extension = formats[i].equals("jpeg") ? "jpg" : formats[i];
+            var file = output.resolve("images").resolve("%05d.%s".formatted(i, extension));
+            try {
+                SyntheticImages.write(SyntheticImages.create(sizes[i], sizes[i] * 3 / 4, seed * 31 + i), formats[i], file.toFile());
+                var digest = MessageDigest.getInstance("SHA-256").digest(Files.readAllBytes(file));
+                return new Image(file, formats[i], HexFormat.of().formatHex(digest));
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException(e);
+            }
+        }).toList();
+    }
+
+    /**
+     * Inserts the tags, most popular first. Half of them have no scope, the rest are spread over
+     * a few scopes.
+     *
+     * @return the ids of the tags, by popularity
+     */
+    private List<Long> insertTags(int count) {
+        var rows = new ArrayList<Object[]>(count);
+        for (int i = 0; i < count; i++) {
+            if (i % 2 == 0) rows.add(new Object[] { vocabulary.get(i / 2 % vocabulary.size()) + (i / 2 < vocabulary.size() ? "" : "-" + i), null });
+            else rows.add(new Object[] { SCOPES[i / 2 % SCOPES.length], vocabulary.get(i / 2 % vocabulary.size()) + "-" + i });
+        }
+        jdbcTemplate.batchUpdate("INSERT INTO tags (scope, name) VALUES (?, ?)", rows);
+        return jdbcTemplate.queryForList("SELECT id FROM tags ORDER BY id", Long.class);
+    }
+
+    /**
+     * Inserts the memes and links their files to the pooled images. They're created over the last
+     * three years, in order.
+     *
+     * @return the ids of the memes
+     */
+    private List<Long> insertMemes(int count, List<Image> pool) throws IOException {
+        var ids = new ArrayList<Long>(count);
+        var uploads = output.resolve("uploads");
+        var firstCreated = Instant.now().minus(Duration.ofDays(3 * 365));
+        var step = Duration.ofDays(3 * 365).dividedBy(Math.max(1, count));
+
+        for (int start = 0; start < count; start += BATCH_SIZE) {
+            var end = Math.min(count, start + BATCH_SIZE);
+            var images = new ArrayList<Image>();
+            var batchIds = new ArrayList<Long>();
+            final var batchStart = start;
+            jdbcTemplate.execute((ConnectionCallback<Void>) con -> {
+                con.setAutoCommit(false);
+                try (var stmt = con.prepareStatement("INSERT INTO memes (type_id, filename, description, extension, content_hash, created_at) VALUES (1, ?, ?, ?, ?, ?)", Statement.RETURN_GENERATED_KEYS)) {
+                    for (int i = batchStart; i < end; i++) {
+                        var image = pool.get(random.nextInt(pool.size()));
+                        images.add(image);
+                        stmt.setString(1, fileName(i, image));
+                        stmt.setString(2, random.nextInt(5) == 0 ? null : text(2 + random.nextInt(14)));
+                        stmt.setString(3, image.extension());
+                        stmt.setString(4, image.sha256());
+                        stmt.setTimestamp(5, Timestamp.from(firstCreated.plus(step.multipliedBy(i))));
+                        stmt.addBatch();
+                    }
+                    stmt.executeBatch();
+                    try (var keys = stmt.getGeneratedKeys()) {
+                        while (keys.next()) batchIds.add(keys.getLong(1));
+                    }
+                    con.commit();
+                } finally {
+                    con.setAutoCommit(true);
+                }
+                return null;
+            });
+
+            for (int i = 0; i < batchIds.size(); i++) {
+                var image = images.get(i);
+                var target = uploads.resolve(batchIds.get(i) + "." + image.extension());
+                try {
+                    Files.createLink(target, image.file());
+                } catch (UnsupportedOperationException | IOException e) {
+                    Files.copy(image.file(), target);
+                }
+            }
+            ids.addAll(batchIds);
+        }
+        return ids;
+    }
+
+    /**
+     * Tags every meme with about the given number of tags, drawn by popularity.
+     *
+     * @return number of relations inserted
+     */
+    private int insertRelations(List<Long> memeIds, List<Long> tagIds, int average) {
+        var tags = new ZipfDistribution(tagIds.size(), 1.0);
+        var rows = new ArrayList<Object[]>();
+        var total = 0;
+        for (var memeId : memeIds) {
+            var chosen = new HashSet<Long>();
+            var count = random.nextInt(2 * average + 1);
+            for (int i = 0; i < count; i++) chosen.add(tagIds.get(tags.sample(random)));
+            for (var tagId : chosen) rows.add(new Object[] { memeId, tagId });
+
+            if (rows.size() >= BATCH_SIZE) {
+                jdbcTemplate.batchUpdate("INSERT INTO tags_to_memes (meme_id, tag_id) VALUES (?, ?)", rows);
+                total += rows.size();
+                rows.clear();
+            }
+        }
+        jdbcTemplate.batchUpdate("INSERT INTO tags_to_memes (meme_id, tag_id) VALUES (?, ?)", rows);
+        return total + rows.size();
+    }
+
+    /**
+     * Computes the counters kept by {@link com.systems.fele.memendex_server.tag.TagUsageRepository},
+     * as the migrations do.
+     */
+    private void updateCounters() {
+        jdbcTemplate.update("UPDATE tags SET usage_count = (SELECT COUNT(*) FROM tags_to_memes WHERE tags_to_memes.tag_id = tags.id)");
+        jdbcTemplate.update("DELETE FROM tag_scopes");
+        jdbcTemplate.update("""
+                INSERT INTO tag_scopes (scope, tag_count, meme_count)
+                SELECT tags.scope, COUNT(DISTINCT tags.id), COUNT(DISTINCT tags_to_memes.meme_id)
+                FROM tags LEFT JOIN tags_to_memes ON tags_to_memes.tag_id = tags.id
+                GROUP BY tags.scope""");
+    }
+
+    /**
+     * Like phone pictures, downloads named after their words or screenshots.
+     */
+    private String fileName(int index, Image image) {
+        var extension = image.extension().equals("jpeg") ? "jpg" : image.extension();
+        return switch (random.nextInt(3)) {
+            case 0 -> "IMG_%08d.%s".formatted(index, extension);
+            case 1 -> "Screenshot_%d.%s".formatted(1_600_000_000L + index * 97L, extension);
+            default -> "%s_%s_%d.%s".formatted(vocabulary.get(words.sample(random)), vocabulary.get(words.sample(random)), index, extension);
+        };
+    }
+
+    private String text(int count) {
+        var text = new StringBuilder();
+        for (int i = 0; i < count; i++) {
+            if (i > 0) text.append(' ');
+            text.append(vocabulary.get(words.sample(random)));
+        }
+        return text.toString();
+    }
+
+    /**
+     * Made up words, mixed with real ones in the most common ranks so searches for them find plenty.
+     */
+    private static List<String> vocabulary(Random random, int size) {
+        var common = List.of("the", "when", "you", "me", "cat", "dog", "bruh", "moment", "meme", "reaction",
+                "monday", "coffee", "code", "bug", "friday", "java", "boss", "pizza", "quando", "voce", "gato",
+                "cachorro", "segunda", "cafe", "xaropinho", "surprised", "pikachu", "drake", "stonks", "doge");
+        var syllables = new String[] { "ba", "ka", "lo", "mi", "ne", "ru", "so", "ta", "vi", "xe", "zu", "pe", "gra", "tro", "an", "el" };
+        var words = new LinkedHashSet<>(common);
+        while (words.size() < size) {
+            var word = new StringBuilder();
+            var length = 2 + random.nextInt(3);
+            for (int i = 0; i < length; i++) word.append(syllables[random.nextInt(syllables.length)]);
+            words.add(word.toString());
+        }
+        return new ArrayList<>(words);
+    }
+}
@@ -0,0 +1,51 @@
+package com.systems.fele.memendex_benchmarks;
+
+import com.systems.fele.memendex_server.meme.MemeService;
+import com.systems.fele.memendex_server.model.Meme;
+import com.systems.fele.memendex_server.model.MemeDetailed;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link MemeService#enrich(List)}, which loads the tags of every page served, for pages of
+ * random memes.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgs = "-Xmx2g")
+public class EnrichBenchmark {
+    @Param({ "100000" })
+    public int memes;
+
+    @Param({ "20", "100", "500" })
+    public int pageSize;
+
+    private MemeService memeService;
+    private final List<List<Meme>> pages = new ArrayList<>();
+    private int next = 0;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        var database = BenchmarkDatabase.create(memes, 42);
+        memeService = database.memeService();
+
+        var random = new Random(7);
+        for (int i = 0; i < 64; i++) {
+            var ids = new ArrayList<Long>();
+            for (int j = 0; j < pageSize; j++) ids.add(database.memeIds.get(random.nextInt(database.memeIds.size())));
+            pages.add(database.memeRepository.findAllById(ids));
+        }
+    }
+
+    @Benchmark
+    public List<MemeDetailed> enrich() {
+        return memeService.enrich(pages.get(next++ & (pages.size() - 1)));
+    }
+}
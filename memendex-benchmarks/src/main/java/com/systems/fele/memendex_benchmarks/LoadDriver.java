@@ -0,0 +1,334 @@
+package com.systems.fele.memendex_benchmarks;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import com.systems.fele.memendex_server.MemendexServerApplication;
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+
+import javax.imageio.ImageIO;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.URI;
+import java.net.URLEncoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Replays a mix of listings, searches, thumbnails, previews, uploads and edits against a server,
+ * with a fixed number of clients, and reports the throughput and latency percentiles of each.
+ * <p></p>
+ * With {@code --dataset}, a server is started in this JVM over a library made by
+ * {@link DatasetGenerator}. With {@code --url}, an already running server is used instead. Memes,
+ * words and tags to ask for are sampled from the server before starting, and the most popular
+ * memes are asked for the most, so the caches see a realistic mix of hits and misses.
+ * <pre>
+ * java -cp target/benchmarks.jar com.systems.fele.memendex_benchmarks.LoadDriver \
+ *     --dataset /tmp/library --concurrency 32 --duration 2m
+ * </pre>
+ * Other options are {@code --warmup} (30s, not measured), {@code --mix} (weights of the operations,
+ * {@code list=35,search=25,thumbnail=20,preview=10,edit=8,upload=2}, plus {@code sprite} for the
+ * thumbnails of a page in a single image), {@code --seed} (1) and
+ * {@code --result} (the JSON report, {@code results/load-<time>.json}).
+ * <p></p>
+ * Every client waits for a response before sending the next request, so the latencies are those
+ * seen at that concurrency, not at a given arrival rate.
+ */
+public final class LoadDriver {
+    private static final String DEFAULT_MIX = "list=35,search=25,thumbnail=20,preview=10,edit=8,upload=2";
+    private static final int SAMPLED_PAGES = 20;
+    private static final long MAX_LATENCY = TimeUnit.MINUTES.toNanos(5);
+
+    private final HttpClient client;
+    private final URI base;
+    private final ObjectMapper objectMapper = new ObjectMapper();
+
+    private final List<Long> memeIds = new ArrayList<>();
+    private final List<String> words = new ArrayList<>();
+    private final List<String> tags = new ArrayList<>();
+    private final List<byte[]> uploads = new ArrayList<>();
+    private int pages;
+    private ZipfDistribution popularMemes;
+
+    private final Map<Operation, Recorder> latencies = new EnumMap<>(Operation.class);
+    private final Map<Operation, Map<Integer, LongAdder>> errors = new EnumMap<>(Operation.class);
+    private final AtomicLong uploaded = new AtomicLong();
+    private volatile boolean measuring = false;
+
+    enum Operation {
+        list, search, thumbnail, sprite, preview, edit, upload
+    }
+
+    private LoadDriver(URI base, int concurrency) {
+        this.base = base;
+        this.client = HttpClient.newBuilder()
+                .executor(Executors.newFixedThreadPool(concurrency))
+                .connectTimeout(Duration.ofSeconds(10))
+                .build();
+        for (var operation : Operation.values()) {
+            latencies.put(operation, new Recorder(MAX_LATENCY, 3));
+            errors.put(operation, new ConcurrentHashMap<>());
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        var arguments = new Arguments(args);
+        var concurrency = arguments.integer("concurrency", 16);
+        var duration = arguments.duration("duration", Duration.ofMinutes(1));
+        var warmup = arguments.duration("warmup", Duration.ofSeconds(30));
+        var mix = parseMix(arguments.string("mix", DEFAULT_MIX));
+        var random = new Random(arguments.integer("seed", 1));
+        var result = Path.of(arguments.string("result", "results/load-%s.json"
+                .formatted(LocalDateTime.now().format(DateTimeFormatter.ofPattern("yyyyMMdd-HHmmss")))));
+
+        ConfigurableApplicationContext server = null;
+        URI base;
+        if (arguments.string("dataset", null) != null) {
+            var dataset = Path.of(arguments.string("dataset", null)).toAbsolutePath();
+            server = startServer(dataset);
+            base = URI.create("http://localhost:" + server.getEnvironment().getProperty("local.server.port") + "/");
+        } else {
+            base = URI.create(Objects.requireNonNull(arguments.string("url", null), "Either --dataset or --url is required"));
+        }
+
+        try {
+            var driver = new LoadDriver(base, concurrency);
+            driver.sample(random);
+            var report = driver.run(concurrency, warmup, duration, mix, random);
+            driver.print(report);
+
+            Files.createDirectories(result.toAbsolutePath().getParent());
+            var json = new LinkedHashMap<String, Object>();
+            json.put("url", base.toString());
+            json.put("concurrency", concurrency);
+            json.put("warmupSeconds", warmup.toSeconds());
+            json.put("durationSeconds", duration.toSeconds());
+            json.put("mix", mix);
+            json.put("operations", report);
+            driver.objectMapper.writer(SerializationFeature.INDENT_OUTPUT).writeValue(result.toFile(), json);
+            System.out.println("Report saved to " + result);
+        } finally {
+            if (server != null) server.close();
+        }
+        System.exit(0);
+    }
+
+    /**
+     * Starts the server over the database, uploads and cache of a library, on a random port.
+     */
+    private static ConfigurableApplicationContext startServer(Path dataset) {
+        if (!Files.exists(dataset.resolve("memendex.mv.db")))
+            throw new IllegalArgumentException(dataset + " is not a library made by DatasetGenerator");
+        return new SpringApplicationBuilder(MemendexServerApplication.class).run(
+                "--server.port=0",
+                "--spring.datasource.url=jdbc:h2:file:" + dataset.resolve("memendex"),
+                "--memendex.uploadLocation=" + dataset.resolve("uploads"),
+                "--memendex.cache=" + dataset.resolve("cache"),
+                "--memendex.reconciliation.at-startup=false");
+    }
+
+    /**
+     * Results of an operation. Latencies are in milliseconds, and only of the successful requests.
+     *
+     * @param errors number of failed requests, by status
+     */
+    private record Stats(long requests, Map<Integer, Long> errors, double throughput,
+                         double mean, double p50, double p90, double p99, double p999, double max) {
+    }
+
+    /**
+     * Reads random pages of memes, to learn their ids, words and tags, and draws the images to upload.
+     */
+    private void sample(Random random) throws IOException, InterruptedException {
+        var first = get("api/memes/list?size=1000");
+        var total = first.get("totalCount").asInt();
+        if (total == 0) throw new IllegalStateException("The server has no memes");
+        pages = Math.max(1, (total + 99) / 100);
+
+        var seen = new LinkedHashSet<Long>();
+        var seenWords = new LinkedHashSet<String>();
+        var seenTags = new LinkedHashSet<String>();
+        for (int i = 0; i < SAMPLED_PAGES; i++) {
+            var page = i == 0 ? first : get("api/memes/list?size=1000&page=" + (1 + random.nextInt(Math.max(1, total / 1000))));
+            for (var meme : page.get("data")) {
+                seen.add(meme.get("id").asLong());
+                var description = meme.get("description").asText("");
+                for (var word : description.split("\\s+")) if (word.length() >= 3) seenWords.add(word);
+                for (var tag : meme.get("tags")) seenTags.add(tag.asText());
+            }
+        }
+
+        memeIds.addAll(seen);
+        Collections.shuffle(memeIds, random);
+        popularMemes = new ZipfDistribution(memeIds.size(), 0.8);
+        words.addAll(seenWords.isEmpty() ? List.of("meme") : seenWords);
+        tags.addAll(seenTags);
+
+        for (var width : new int[] { 640, 1080, 1920 }) {
+            var bytes = new ByteArrayOutputStream();
+            ImageIO.write(SyntheticImages.create(width, width * 3 / 4, width), "jpeg", bytes);
+            uploads.add(bytes.toByteArray());
+        }
+        System.out.printf("Sampled %d memes, %d words and %d tags of %d memes%n", memeIds.size(), words.size(), tags.size(), total);
+    }
+
+    private Map<Operation, Stats> run(int concurrency, Duration warmup, Duration duration, Map<Operation, Integer> mix, Random random) throws InterruptedException {
+        var operations = new ArrayList<Operation>();
+        mix.forEach((operation, weight) -> operations.addAll(Collections.nCopies(weight, operation)));
+        var deadline = System.nanoTime() + warmup.plus(duration).toNanos();
+        var completed = new LongAdder();
+
+        var clients = new ArrayList<Thread>();
+        for (int i = 0; i < concurrency; i++) {
+            var clientRandom = new Random(random.nextLong());
+            clients.add(Thread.ofPlatform().name("load-client-" + i).start(() -> {
+                while (System.nanoTime() < deadline) {
+                    execute(operations.get(clientRandom.nextInt(operations.size())), clientRandom);
+                    completed.increment();
+                }
+            }));
+        }
+
+        System.out.printf("Warming up for %d s with %d clients%n", warmup.toSeconds(), concurrency);
+        Thread.sleep(warmup.toMillis());
+        for (var recorder : latencies.values()) recorder.reset();
+        errors.values().forEach(Map::clear);
+        measuring = true;
+        var start = System.nanoTime();
+
+        var progress = completed.sum();
+        var lastProgress = start;
+        while (System.nanoTime() < deadline) {
+            Thread.sleep(Math.min(10_000, Math.max(1, (deadline - System.nanoTime()) / 1_000_000)));
+            var now = System.nanoTime();
+            var count = completed.sum();
+            System.out.printf("%6.0f requests/s%n", (count - progress) * 1e9 / (now - lastProgress));
+            progress = count;
+            lastProgress = now;
+        }
+        for (var client : clients) client.join();
+        var elapsed = (System.nanoTime() - start) / 1e9;
+        measuring = false;
+
+        var report = new EnumMap<Operation, Stats>(Operation.class);
+        for (var operation : mix.keySet()) {
+            var histogram = latencies.get(operation).getIntervalHistogram();
+            var operationErrors = new TreeMap<Integer, Long>();
+            errors.get(operation).forEach((status, count) -> operationErrors.put(status, count.sum()));
+            report.put(operation, new Stats(histogram.getTotalCount(), operationErrors, histogram.getTotalCount() / elapsed,
+                    millis(histogram.getMean()), millis(histogram, 50), millis(histogram, 90), millis(histogram, 99),
+                    millis(histogram, 99.9), millis(histogram.getMaxValue())));
+        }
+        return report;
+    }
+
+    /**
+     * Sends the request of an operation and records how long it took, or its status if it failed.
+     * Connection failures are recorded as status 0.
+     */
+    private void execute(Operation operation, Random random) {
+        var request = request(operation, random);
+        var start = System.nanoTime();
+        int status;
+        try {
+            status = client.send(request, HttpResponse.BodyHandlers.discarding()).statusCode();
+        } catch (IOException e) {
+            status = 0;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        }
+        var nanos = System.nanoTime() - start;
+        if (!measuring) return;
+        if (status >= 200 && status < 400) latencies.get(operation).recordValue(Math.min(nanos, MAX_LATENCY));
+        else errors.get(operation).computeIfAbsent(status, k -> new LongAdder()).increment();
+    }
+
+    private HttpRequest request(Operation operation, Random random) {
+        var memeId = memeIds.get(popularMemes.sample(random));
+        return switch (operation) {
+            // Mostly the first pages, sometimes filtered by a tag
+            case list -> {
+                var page = 1 + (int) Math.min(pages - 1, Math.abs(random.nextGaussian()) * 5);
+                var filter = !tags.isEmpty() && random.nextBoolean() ? "&tag=" + encode(tags.get(random.nextInt(tags.size()))) : "";
+                yield HttpRequest.newBuilder(base.resolve("api/memes/list?size=100&page=" + page + filter)).build();
+            }
+            case search -> {
+                var query = words.get(random.nextInt(words.size()));
+                if (random.nextInt(3) == 0) query += " " + words.get(random.nextInt(words.size()));
+                yield HttpRequest.newBuilder(base.resolve("api/memes/search?size=100&query=" + encode(query))).build();
+            }
+            case thumbnail -> HttpRequest.newBuilder(base.resolve("api/memes/" + memeId + "/thumbnail")).build();
+            // The thumbnails of a whole page at once, which composes the sheet unless it's in memory
+            case sprite -> {
+                var start = popularMemes.sample(random);
+                var ids = new StringJoiner(",");
+                for (int i = 0; i < Math.min(100, memeIds.size()); i++) ids.add(Long.toString(memeIds.get((start + i) % memeIds.size())));
+                yield HttpRequest.newBuilder(base.resolve("api/memes/thumbnails/sprite?ids=" + ids)).build();
+            }
+            case preview -> HttpRequest.newBuilder(base.resolve("api/memes/" + memeId + "/preview")).build();
+            case edit -> HttpRequest.newBuilder(base.resolve("api/memes/edit"))
+                    .header("Content-Type", "application/json")
+                    .method("PATCH", HttpRequest.BodyPublishers.ofString("{\"id\":%d,\"description\":\"%s %s\"}"
+                            .formatted(memeId, words.get(random.nextInt(words.size())), words.get(random.nextInt(words.size())))))
+                    .build();
+            case upload -> HttpRequest.newBuilder(base.resolve("api/memes/upload/stream?fileName=load-" + uploaded.incrementAndGet()
+                            + ".jpg&description=" + encode(words.get(random.nextInt(words.size())))))
+                    .header("Content-Type", "image/jpeg")
+                    .POST(HttpRequest.BodyPublishers.ofByteArray(uploads.get(random.nextInt(uploads.size()))))
+                    .build();
+        };
+    }
+
+    private JsonNode get(String path) throws IOException, InterruptedException {
+        var response = client.send(HttpRequest.newBuilder(base.resolve(path)).build(), HttpResponse.BodyHandlers.ofString());
+        if (response.statusCode() != 200) throw new IOException("GET " + path + " returned " + response.statusCode());
+        return objectMapper.readTree(response.body());
+    }
+
+    private void print(Map<Operation, Stats> report) {
+        System.out.printf("%n%-10s %9s %7s %9s %9s %9s %9s %9s %9s%n", "operation", "requests", "errors", "req/s", "p50 ms", "p90 ms", "p99 ms", "p99.9 ms", "max ms");
+        report.forEach((operation, stats) -> System.out.printf("%-10s %9d %7d %9.1f %9.2f %9.2f %9.2f %9.2f %9.2f%n",
+                operation, stats.requests(), stats.errors().values().stream().mapToLong(Long::longValue).sum(), stats.throughput(),
+                stats.p50(), stats.p90(), stats.p99(), stats.p999(), stats.max()));
+    }
+
+    private static Map<Operation, Integer> parseMix(String mix) {
+        var weights = new EnumMap<Operation, Integer>(Operation.class);
+        for (var entry : mix.split(",")) {
+            var parts = entry.split("=");
+            var weight = Integer.parseInt(parts[1].strip());
+            if (weight > 0) weights.put(Operation.valueOf(parts[0].strip()), weight);
+        }
+        if (weights.isEmpty()) throw new IllegalArgumentException("The mix has no operations");
+        return weights;
+    }
+
+    private static String encode(String text) {
+        return URLEncoder.encode(text, StandardCharsets.UTF_8);
+    }
+
+    private static double millis(double nanos) {
+        return Math.round(nanos / 10_000.0) / 100.0;
+    }
+
+    private static double millis(Histogram histogram, double percentile) {
+        return millis(histogram.getValueAtPercentile(percentile));
+    }
+}
@@ -0,0 +1,43 @@
+package com.systems.fele.memendex_benchmarks;
+
+import com.systems.fele.memendex_server.meme.MimeTypeService;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import org.springframework.http.MediaType;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link MimeTypeService} lookups, done for every thumbnail, preview and download served.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MimeTypeBenchmark {
+    private static final String[] EXTENSIONS = { "png", "jpeg", "jpg", "gif", "mp4" };
+    private static final String[] MIME_TYPES = { "image/png", "image/jpeg", "image/gif", "video/mp4" };
+
+    @Benchmark
+    public void extensionToMime(Blackhole blackhole) {
+        for (var extension : EXTENSIONS) blackhole.consume(MimeTypeService.extensionToMime(extension));
+    }
+
+    @Benchmark
+    public void mimeToFileExtension(Blackhole blackhole) {
+        for (var mimeType : MIME_TYPES) blackhole.consume(MimeTypeService.mimeToFileExtension(mimeType));
+    }
+
+    /**
+     * Parses the type first, as the thumbnail endpoints do.
+     */
+    @Benchmark
+    public void isMimeTypeKnown(Blackhole blackhole) {
+        for (var extension : EXTENSIONS) {
+            var mime = MimeTypeService.extensionToMime(extension);
+            blackhole.consume(mime.isPresent() && MimeTypeService.isMimeTypeKnown(MediaType.parseMediaType(mime.get())));
+        }
+    }
+}
@@ -0,0 +1,63 @@
+package com.systems.fele.memendex_benchmarks;
+
+import com.systems.fele.memendex_server.model.Meme;
+import com.systems.fele.memendex_server.search.FullTextIndex;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Searching memes, with the {@link com.systems.fele.memendex_server.search.MemeFullTextIndex} that
+ * ranks results and the fuzzy {@link com.systems.fele.memendex_server.search.MemeSearchIndex} used
+ * when nothing matches. Queries are drawn like the seeded descriptions, so most hit common words.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgs = "-Xmx2g")
+public class SearchBenchmark {
+    @Param({ "10000", "100000" })
+    public int memes;
+
+    @Param({ "20", "100" })
+    public int pageSize;
+
+    private BenchmarkDatabase database;
+    private final String[] queries = new String[256];
+    private int next = 0;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        database = BenchmarkDatabase.create(memes, 42);
+        var random = new Random(7);
+        for (int i = 0; i < queries.length; i++) queries[i] = BenchmarkDatabase.randomQuery(random);
+    }
+
+    private String nextQuery() {
+        return queries[next++ & (queries.length - 1)];
+    }
+
+    @Benchmark
+    public FullTextIndex.Hits fullText() {
+        return database.memeFullTextIndex.search(nextQuery(), pageSize);
+    }
+
+    @Benchmark
+    public List<Long> fuzzy() {
+        return database.memeSearchIndex.search(nextQuery(), pageSize);
+    }
+
+    /**
+     * The first page of a search as the endpoint gets it, when it isn't cached: ranking and then
+     * reading the memes.
+     */
+    @Benchmark
+    public List<Meme> firstPage() {
+        var ids = database.memeFullTextIndex.search(nextQuery(), pageSize).hits().stream().map(FullTextIndex.Hit::memeId).toList();
+        return database.memeRepository.findAllById(ids);
+    }
+}
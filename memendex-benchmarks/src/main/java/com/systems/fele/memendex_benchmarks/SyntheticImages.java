@@ -0,0 +1,49 @@
+package com.systems.fele.memendex_benchmarks;
+
+import javax.imageio.ImageIO;
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+/**
+ * Images to feed the thumbnail code, with gradients, shapes and noise so they don't compress
+ * unrealistically well. The same seed always draws the same image.
+ */
+public final class SyntheticImages {
+    private SyntheticImages() {
+    }
+
+    public static BufferedImage create(int width, int height, long seed) {
+        var random = new Random(seed);
+        var image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        var g2d = image.createGraphics();
+        try {
+            g2d.setPaint(new GradientPaint(0, 0, new Color(random.nextInt(0xFFFFFF)), width, height, new Color(random.nextInt(0xFFFFFF))));
+            g2d.fillRect(0, 0, width, height);
+            for (int i = 0; i < 200; i++) {
+                g2d.setColor(new Color(random.nextInt(0xFFFFFF)));
+                g2d.fillOval(random.nextInt(width), random.nextInt(height), 1 + random.nextInt(Math.max(1, width / 8)), 1 + random.nextInt(Math.max(1, height / 8)));
+            }
+            // Meme captions
+            g2d.setColor(Color.WHITE);
+            g2d.setFont(new Font(Font.SANS_SERIF, Font.BOLD, Math.max(12, height / 10)));
+            g2d.drawString("TOP TEXT " + seed, width / 10, height / 6);
+            g2d.drawString("BOTTOM TEXT", width / 10, height * 9 / 10);
+        } finally {
+            g2d.dispose();
+        }
+        for (int i = 0; i < width * height / 20; i++) {
+            image.setRGB(random.nextInt(width), random.nextInt(height), random.nextInt(0xFFFFFF));
+        }
+        return image;
+    }
+
+    /**
+     * @param format an ImageIO format name, like png, jpeg or gif
+     */
+    public static void write(BufferedImage image, String format, File target) throws IOException {
+        if (!ImageIO.write(image, format, target)) throw new IOException("No writer for " + format);
+    }
+}
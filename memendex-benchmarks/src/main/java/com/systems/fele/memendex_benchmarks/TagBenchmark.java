@@ -0,0 +1,46 @@
+package com.systems.fele.memendex_benchmarks;
+
+import com.systems.fele.memendex_server.model.Tag;
+import com.systems.fele.memendex_server.tag.TagFilter;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parsing and printing tags, done for every tag of every meme served and edited, and parsing the
+ * tag filters of listings.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TagBenchmark {
+    private static final String[] TAGS = { "#cats", "#artist/someone", "source/reddit", "#template/drake-hotline-bling", "nsfw" };
+    private static final List<String> FILTER = List.of("cats", "#artist/*|#source/reddit", "-nsfw");
+
+    private final Tag[] parsed = new Tag[TAGS.length];
+
+    @Setup
+    public void setUp() {
+        for (int i = 0; i < TAGS.length; i++) parsed[i] = Tag.parse(TAGS[i]);
+    }
+
+    @Benchmark
+    public void parse(Blackhole blackhole) {
+        for (var tag : TAGS) blackhole.consume(Tag.parse(tag));
+    }
+
+    @Benchmark
+    public void print(Blackhole blackhole) {
+        for (var tag : parsed) blackhole.consume(tag.toString());
+    }
+
+    @Benchmark
+    public TagFilter parseFilter() {
+        return TagFilter.parse(FILTER);
+    }
+}
@@ -0,0 +1,53 @@
+package com.systems.fele.memendex_benchmarks;
+
+import com.systems.fele.memendex_server.thumbnail.DerivativeSize;
+import com.systems.fele.memendex_server.thumbnail.ThumbnailRenderer;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Rendering derivatives with {@link ThumbnailRenderer}, the work of every thumbnail job, for
+ * originals of several widths and formats. The originals are 4:3, drawn by {@link SyntheticImages}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ThumbnailBenchmark {
+    @Param({ "640", "1920", "4096" })
+    public int width;
+
+    @Param({ "png", "jpeg", "gif" })
+    public String format;
+
+    @Param({ "thumbnail", "preview" })
+    public DerivativeSize size;
+
+    private ThumbnailRenderer renderer;
+    private File source;
+    private ByteArrayOutputStream target;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        var directory = BenchmarkDatabase.temporaryDirectory();
+        renderer = new ThumbnailRenderer(BenchmarkDatabase.properties(directory), new SimpleMeterRegistry());
+
+        source = directory.resolve("source." + format).toFile();
+        target = new ByteArrayOutputStream();
+        source.deleteOnExit();
+        SyntheticImages.write(SyntheticImages.create(width, width * 3 / 4, width), format, source);
+    }
+
+    @Benchmark
+    public long render() throws IOException {
+        target.reset();
+        return renderer.render(source, size, target);
+    }
+}
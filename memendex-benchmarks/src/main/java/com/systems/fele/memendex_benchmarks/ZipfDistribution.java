@@ -0,0 +1,32 @@
+package com.systems.fele.memendex_benchmarks;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Draws ranks from 0 to n - 1 with probability proportional to 1 / (rank + 1)^exponent, so the
+ * first few are drawn most of the time and most are rare, as happens with tags and words.
+ */
+public final class ZipfDistribution {
+    private final double[] cumulative;
+
+    public ZipfDistribution(int n, double exponent) {
+        if (n < 1) throw new IllegalArgumentException("n must be positive");
+        cumulative = new double[n];
+        var sum = 0.0;
+        for (int rank = 0; rank < n; rank++) {
+            sum += 1 / Math.pow(rank + 1, exponent);
+            cumulative[rank] = sum;
+        }
+        for (int rank = 0; rank < n; rank++) cumulative[rank] /= sum;
+    }
+
+    public int sample(Random random) {
+        var index = Arrays.binarySearch(cumulative, random.nextDouble());
+        return Math.min(cumulative.length - 1, index >= 0 ? index : -index - 1);
+    }
+
+    public int size() {
+        return cumulative.length;
+    }
+}
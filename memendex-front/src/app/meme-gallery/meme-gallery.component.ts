@@ -1,8 +1,29 @@
-import { Component, EventEmitter, input, Output } from "@angular/core";
+import {
+  Component,
+  effect,
+  EventEmitter,
+  input,
+  Output,
+  signal,
+} from "@angular/core";
 import { MemePreviewComponent } from "./meme-preview/meme-preview.component";
 import { HttpClient } from "@angular/common/http";
 import { Meme } from "../../models/Meme";
 import { PaginatedResponse } from "../../models/PaginatedResponse";
+import { ThumbnailSprite } from "../../models/ThumbnailSprite";
+
+/** Most thumbnails the server puts in a sprite */
+const MAX_SPRITE_THUMBNAILS = 200;
+
+/** Loads an image into the browser cache, telling whether it could be loaded */
+function loadImage(url: string): Promise<boolean> {
+  return new Promise((resolve) => {
+    const image = new Image();
+    image.onload = () => resolve(true);
+    image.onerror = () => resolve(false);
+    image.src = url;
+  });
+}
 
 @Component({
   selector: "app-meme-gallery",
@@ -13,6 +34,39 @@ import { PaginatedResponse } from "../../models/PaginatedResponse";
 export class MemeGalleryComponent {
   data = input.required<PaginatedResponse<Meme>>();
 
+  /**
+   * The thumbnails of the page in a single image. Undefined while it's
+   * loading, and null if it couldn't be loaded.
+   */
+  sprite = signal<ThumbnailSprite | null | undefined>(undefined);
+
+  constructor() {
+    effect(() => {
+      const data = this.data();
+      this.sprite.set(undefined);
+      this.loadSprite(data.data).then((sprite) => {
+        if (this.data() === data) this.sprite.set(sprite);
+      });
+    });
+  }
+
+  private async loadSprite(memes: Meme[]): Promise<ThumbnailSprite | null> {
+    if (memes.length === 0) return null;
+    const ids = memes.slice(0, MAX_SPRITE_THUMBNAILS).map((m) => m.id);
+    try {
+      const response = await fetch(
+        `/api/memes/thumbnails/sprite?ids=${ids.join(",")}`,
+      );
+      if (!response.ok) return null;
+      const sprite = (await response.json()) as ThumbnailSprite;
+      // The image may no longer be the sheet laid out, which the server tells with a 404
+      if (sprite.url && !(await loadImage(sprite.url))) return null;
+      return sprite;
+    } catch {
+      return null;
+    }
+  }
+
   get memes() {
     return this.data().data;
   }
@@ -9,6 +9,7 @@ import {
 } from "@angular/core";
 import { Meme } from "../../../models/Meme";
 import { SUPPORTED_THUMBNAILS } from "../../../logic/MimeTypes";
+import { ThumbnailSprite } from "../../../models/ThumbnailSprite";
 import { MemendexBackendService } from "../../memendex-backend.service";
 
 @Component({
@@ -19,6 +20,11 @@ import { MemendexBackendService } from "../../memendex-backend.service";
 })
 export class MemePreviewComponent implements OnInit {
   @Input({ required: true }) meme!: Meme;
+  /**
+   * The thumbnails of the page, from the gallery. While it's undefined,
+   * nothing is shown instead of fetching the thumbnail on its own.
+   */
+  @Input() sprite?: ThumbnailSprite | null;
   @Output() select = new EventEmitter<Meme>();
 
   constructor(private memendexBackend: MemendexBackendService) {}
@@ -57,4 +63,23 @@ export class MemePreviewComponent implements OnInit {
     const meme = this.meme;
     return meme !== undefined && extensions.indexOf(meme.extension) >= 0;
   });
+
+  /**
+   * Styles showing the thumbnail of this meme out of the sprite, scaled to
+   * fit like the img would. Null when it isn't in the sprite.
+   */
+  spriteStyle(): Record<string, string> | null {
+    const sprite = this.sprite;
+    const cell = sprite?.thumbnails.find((t) => t.id === this.meme.id);
+    if (!sprite?.url || !cell) return null;
+
+    const scale = Math.min(160 / cell.width, 200 / cell.height);
+    return {
+      width: `${cell.width * scale}px`,
+      height: `${cell.height * scale}px`,
+      "background-image": `url(${sprite.url})`,
+      "background-size": `${sprite.width * scale}px ${sprite.height * scale}px`,
+      "background-position": `${-cell.x * scale}px ${-cell.y * scale}px`,
+    };
+  }
 }
@@ -7,4 +7,6 @@ export interface Meme {
   description: string;
   extension: string;
   tags: string[];
+  /** Version of the file, for the v parameter of thumbnail and preview URLs */
+  version?: string;
 }
@@ -5,4 +5,5 @@ export interface PaginatedResponse<T> {
   pageSize: number;
   page: number;
   hasNext: boolean;
+  nextCursor?: string;
 }
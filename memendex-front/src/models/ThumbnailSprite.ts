@@ -0,0 +1,15 @@
+/** The thumbnails of a page of memes, composed in a single image */
+export interface ThumbnailSprite {
+  /** URL of the image. Null when none of the memes has a thumbnail */
+  url: string | null;
+  width: number;
+  height: number;
+  /** Where the thumbnail of each meme is. Memes missing here are shown on their own */
+  thumbnails: {
+    id: number;
+    x: number;
+    y: number;
+    width: number;
+    height: number;
+  }[];
+}
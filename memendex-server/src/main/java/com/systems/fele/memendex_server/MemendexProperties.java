@@ -1,12 +1,89 @@
 package com.systems.fele.memendex_server;
 
 import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.boot.context.properties.bind.DefaultValue;
 import org.springframework.context.annotation.Configuration;
 
+import org.springframework.util.unit.DataSize;
+
+import java.time.Duration;
+
 // @Configuration(proxyBeanMethods=false)
 @ConfigurationProperties("memendex")
 public record MemendexProperties(
         String uploadLocation,
-        String cache
+        String cache,
+        @DefaultValue Thumbnails thumbnails,
+        @DefaultValue Similarity similarity,
+        @DefaultValue Ingest ingest,
+        @DefaultValue Search search,
+        @DefaultValue Reconciliation reconciliation
 ) {
+    /**
+     * Settings of the thumbnail pipeline
+     *
+     * @param workers       Number of threads generating thumbnails
+     * @param queueCapacity Maximum number of jobs waiting for a worker
+     * @param maxWait       How long a thumbnail request waits for a missing thumbnail before getting a placeholder
+     * @param cacheQuota    Maximum disk space used by generated thumbnails and previews
+     * @param maxDecodePixels Maximum number of pixels decoded from an original image. Bigger images are subsampled
+     */
+    public record Thumbnails(
+            @DefaultValue("2") int workers,
+            @DefaultValue("10000") int queueCapacity,
+            @DefaultValue("2s") Duration maxWait,
+            @DefaultValue("512MB") DataSize cacheQuota,
+            @DefaultValue("16000000") long maxDecodePixels
+    ) {
+    }
+
+    /**
+     * Settings of near duplicate detection
+     *
+     * @param maxDistance Maximum number of different bits between perceptual hashes of similar images. Searches may ask for less
+     */
+    public record Similarity(
+            @DefaultValue("10") int maxDistance
+    ) {
+    }
+
+    /**
+     * Settings of bulk imports
+     *
+     * @param hotFolder    Directory watched for files to import. Disabled when empty
+     * @param pollInterval How often the hot folder is checked. Files are only imported once they stop changing
+     * @param workers      Number of threads processing imported files. Zero to use one per core
+     * @param batchSize    Number of files inserted in the database at once
+     */
+    public record Ingest(
+            String hotFolder,
+            @DefaultValue("10s") Duration pollInterval,
+            @DefaultValue("0") int workers,
+            @DefaultValue("500") int batchSize
+    ) {
+    }
+
+    /**
+     * Settings of meme search
+     *
+     * @param cacheSize Number of queries whose results are kept, so the next pages are served from memory
+     * @param cacheTtl  How long the results of a query are kept
+     */
+    public record Search(
+            @DefaultValue("256") int cacheSize,
+            @DefaultValue("10m") Duration cacheTtl
+    ) {
+    }
+
+    /**
+     * Settings of the check between the database, the upload location and the thumbnails
+     *
+     * @param atStartup Whether the check runs once the application is ready
+     * @param batchSize Number of memes read from the database at once
+     */
+    public record Reconciliation(
+            @DefaultValue("true") boolean atStartup,
+            @DefaultValue("10000") int batchSize
+    ) {
+    }
 }
@@ -1,5 +1,6 @@
 package com.systems.fele.memendex_server;
 
+import com.systems.fele.memendex_server.backup.BackupCommand;
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
 import org.springframework.boot.context.properties.EnableConfigurationProperties;
@@ -12,6 +13,9 @@ public class MemendexServerApplication {
     public static void main(String[] args) {
 		if (!System.getenv().getOrDefault("MEMENDEX_HEADLESS", "").isEmpty())
 			System.setProperty("java.awt.headless", "false");
+		// Commands have the same beans as the server, but don't listen for requests
+		if (BackupCommand.isCommand(args))
+			System.setProperty("server.port", "-1");
 		SpringApplication.run(MemendexServerApplication.class, args);
 	}
 
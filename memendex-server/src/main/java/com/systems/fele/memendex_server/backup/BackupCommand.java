@@ -0,0 +1,76 @@
+package com.systems.fele.memendex_server.backup;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.boot.ApplicationArguments;
+import org.springframework.boot.ApplicationRunner;
+import org.springframework.boot.SpringApplication;
+import org.springframework.context.ApplicationContext;
+import org.springframework.stereotype.Component;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Set;
+
+/**
+ * Runs the application as a command instead of a server when its first argument is "export" or
+ * "restore", followed by the path of the zip:
+ * <pre>
+ * java -jar memendex-server.jar export /backups/memendex.zip
+ * java -jar memendex-server.jar restore /backups/memendex.zip
+ * </pre>
+ * The database and directories are the configured ones. The application exits once done, before
+ * the indexes are loaded.
+ */
+@Component
+public class BackupCommand implements ApplicationRunner {
+    private static final Logger logger = LoggerFactory.getLogger(BackupCommand.class);
+    private static final Set<String> COMMANDS = Set.of("export", "restore");
+
+    private final LibraryBackup libraryBackup;
+    private final ApplicationContext applicationContext;
+
+    public BackupCommand(LibraryBackup libraryBackup, ApplicationContext applicationContext) {
+        this.libraryBackup = libraryBackup;
+        this.applicationContext = applicationContext;
+    }
+
+    /**
+     * @param args command line arguments
+     * @return whether they are a command, so the server must not listen for requests
+     */
+    public static boolean isCommand(String[] args) {
+        return args.length > 0 && COMMANDS.contains(args[0]);
+    }
+
+    @Override
+    public void run(ApplicationArguments args) throws Exception {
+        final var command = args.getNonOptionArgs();
+        if (command.isEmpty() || !COMMANDS.contains(command.get(0))) return;
+        if (command.size() != 2) throw new IllegalArgumentException("Usage: %s <file.zip>".formatted(command.get(0)));
+
+        final var path = Path.of(command.get(1));
+        LibraryBackup.Summary summary;
+        if (command.get(0).equals("export")) {
+            // Written next to the target and renamed, so a failed export doesn't leave a partial zip behind
+            final var partial = path.resolveSibling(path.getFileName() + ".partial");
+            try (var output = new BufferedOutputStream(Files.newOutputStream(partial))) {
+                summary = libraryBackup.export(output);
+            } catch (Exception e) {
+                Files.deleteIfExists(partial);
+                throw e;
+            }
+            Files.move(partial, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } else {
+            try (var input = new BufferedInputStream(Files.newInputStream(path))) {
+                summary = libraryBackup.restore(input);
+            }
+        }
+
+        logger.info("{} done: {}", command.get(0), summary);
+        System.exit(SpringApplication.exit(applicationContext, () -> 0));
+    }
+}
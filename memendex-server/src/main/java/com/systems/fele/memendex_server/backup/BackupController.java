@@ -0,0 +1,40 @@
+package com.systems.fele.memendex_server.backup;
+
+import jakarta.servlet.http.HttpServletResponse;
+import org.springframework.http.HttpHeaders;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RestController;
+
+import java.io.IOException;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+
+/**
+ * Backups of the whole library. They're restored from the command line, see {@link BackupCommand}.
+ */
+@RestController
+@RequestMapping("/api/backup")
+public class BackupController {
+    private static final DateTimeFormatter FILE_NAME_TIME = DateTimeFormatter.ofPattern("yyyyMMdd-HHmmss");
+
+    private final LibraryBackup libraryBackup;
+
+    public BackupController(LibraryBackup libraryBackup) {
+        this.libraryBackup = libraryBackup;
+    }
+
+    /**
+     * Downloads the library as a zip, see {@link LibraryBackup}. It's streamed as it's read, so
+     * the download starts right away and its size isn't known in advance. Only one export runs at
+     * a time, others are answered with a 409 meanwhile.
+     */
+    @GetMapping("export")
+    public void export(HttpServletResponse response) throws IOException {
+        response.setContentType("application/zip");
+        response.setHeader(HttpHeaders.CONTENT_DISPOSITION,
+                "attachment; filename=memendex-%s.zip".formatted(LocalDateTime.now().format(FILE_NAME_TIME)));
+        response.setHeader(HttpHeaders.CACHE_CONTROL, "no-store");
+        libraryBackup.export(response.getOutputStream());
+    }
+}
@@ -0,0 +1,388 @@
+package com.systems.fele.memendex_server.backup;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.systems.fele.memendex_server.MemendexProperties;
+import com.systems.fele.memendex_server.exception.BackupInProgressException;
+import com.systems.fele.memendex_server.model.MemesType;
+import com.systems.fele.memendex_server.storage.ContentStore;
+import com.systems.fele.memendex_server.tag.TagUsageRepository;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.time.Instant;
+import java.time.OffsetDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.Semaphore;
+import java.util.regex.Pattern;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Exports the whole library to a zip, and restores it into an empty one.
+ * <p></p>
+ * The zip has a manifest.json, then the tags, memes and relations between them as NDJSON (one
+ * JSON object per line), in that order so they can be inserted as they're read, and finally the
+ * original files under files/. Memes with the same content hash share a single file, which is
+ * written under the name of the first of them.
+ * <p></p>
+ * Everything is streamed: rows are read with lazy cursors and written one by one, files are copied
+ * through a fixed buffer and stored without compression, as images are already compressed. So
+ * memory doesn't grow with the library. The export runs in a single serializable, read-only
+ * transaction, so it sees the library as it was when it began, whatever is written meanwhile. That
+ * is the only level at which H2 reads every table from the same snapshot: with the others, memes
+ * and relations committed between the queries would make an export that can't be restored. It
+ * doesn't lock anything, writes go on as usual, but the transaction holds a pooled connection for
+ * as long as the download takes, and keeps the old versions of the rows written meanwhile. So only
+ * one export runs at a time.
+ * <p></p>
+ * Restores insert the rows with the ids they had, in JDBC batches of the configured ingest batch
+ * size, and the usage counters of the tags are then computed from the relations. Files are checked
+ * against the content hash of their meme as they're read. Perceptual hashes
+ * and thumbnails aren't exported, they're computed again when needed.
+ */
+@Service
+public class LibraryBackup {
+    public static final int FORMAT = 1;
+
+    private static final Logger logger = LoggerFactory.getLogger(LibraryBackup.class);
+    private static final String MANIFEST = "manifest.json";
+    private static final String TAGS = "tags.ndjson";
+    private static final String MEMES = "memes.ndjson";
+    private static final String RELATIONS = "tags_to_memes.ndjson";
+    private static final String FILES = "files/";
+    private static final Pattern FILE_NAME = Pattern.compile("\\d+\\.[^/\\\\]+");
+
+    private final MemendexProperties memendexProperties;
+    private final JdbcTemplate jdbcTemplate;
+    private final TagUsageRepository tagUsageRepository;
+    private final ContentStore contentStore;
+    private final ObjectMapper objectMapper;
+    private final TransactionTemplate snapshotTransaction;
+    private final TransactionTemplate batchTransaction;
+    private final Semaphore exporting = new Semaphore(1);
+
+    public record Manifest(int format, Instant createdAt) {
+    }
+
+    public record TagRow(long id, String scope, String name) {
+    }
+
+    public record MemeRow(long id, MemesType type, String fileName, String description, String extension,
+                          String contentHash, OffsetDateTime createdAt, OffsetDateTime updatedAt) {
+    }
+
+    public record RelationRow(long memeId, long tagId) {
+    }
+
+    /**
+     * What was exported or restored.
+     *
+     * @param files original files. Memes sharing their content count once
+     */
+    public record Summary(long tags, long memes, long relations, long files) {
+    }
+
+    public LibraryBackup(MemendexProperties memendexProperties, JdbcTemplate jdbcTemplate, TagUsageRepository tagUsageRepository,
+                         ContentStore contentStore, ObjectMapper objectMapper, PlatformTransactionManager transactionManager) {
+        this.memendexProperties = memendexProperties;
+        this.jdbcTemplate = jdbcTemplate;
+        this.tagUsageRepository = tagUsageRepository;
+        this.contentStore = contentStore;
+        this.objectMapper = objectMapper;
+        this.snapshotTransaction = new TransactionTemplate(transactionManager);
+        this.snapshotTransaction.setIsolationLevel(TransactionDefinition.ISOLATION_SERIALIZABLE);
+        this.snapshotTransaction.setReadOnly(true);
+        this.batchTransaction = new TransactionTemplate(transactionManager);
+    }
+
+    /**
+     * Writes the whole library as a zip.
+     *
+     * @param output where the zip is written. It isn't closed
+     * @return what was exported
+     * @throws IOException If it can't be written
+     * @throws BackupInProgressException If another export is running
+     */
+    public Summary export(OutputStream output) throws IOException {
+        if (!exporting.tryAcquire()) throw new BackupInProgressException("Another export is running");
+        try {
+            return exportSnapshot(output);
+        } finally {
+            exporting.release();
+        }
+    }
+
+    private Summary exportSnapshot(OutputStream output) throws IOException {
+        final var start = System.nanoTime();
+        final var zip = new ZipOutputStream(output, StandardCharsets.UTF_8);
+        final Summary summary;
+        try {
+            summary = snapshotTransaction.execute(status -> {
+                jdbcTemplate.execute("SET LAZY_QUERY_EXECUTION TRUE");
+                try {
+                    return export(zip);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                } finally {
+                    jdbcTemplate.execute("SET LAZY_QUERY_EXECUTION FALSE");
+                }
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        zip.finish();
+
+        logger.info("Exported {} memes, {} tags, {} relations and {} files in {} ms", Objects.requireNonNull(summary).memes(),
+                summary.tags(), summary.relations(), summary.files(), (System.nanoTime() - start) / 1_000_000);
+        return summary;
+    }
+
+    private Summary export(ZipOutputStream zip) throws IOException {
+        zip.putNextEntry(new ZipEntry(MANIFEST));
+        zip.write(objectMapper.writeValueAsBytes(new Manifest(FORMAT, Instant.now())));
+        zip.closeEntry();
+
+        final var tags = writeRows(zip, TAGS, "SELECT id, scope, name FROM tags ORDER BY id",
+                rs -> new TagRow(rs.getLong("id"), rs.getString("scope"), rs.getString("name")));
+        final var memes = writeRows(zip, MEMES, "SELECT * FROM memes ORDER BY id", rs -> new MemeRow(
+                rs.getLong("id"),
+                MemesType.fromId(rs.getInt("type_id")),
+                rs.getString("filename"),
+                rs.getString("description"),
+                rs.getString("extension"),
+                rs.getString("content_hash"),
+                rs.getObject("created_at", OffsetDateTime.class),
+                rs.getObject("updated_at", OffsetDateTime.class)));
+        final var relations = writeRows(zip, RELATIONS, "SELECT meme_id, tag_id FROM tags_to_memes ORDER BY meme_id, tag_id",
+                rs -> new RelationRow(rs.getLong("meme_id"), rs.getLong("tag_id")));
+
+        // Ordered by hash, so memes sharing a file come one after another
+        zip.setLevel(Deflater.NO_COMPRESSION);
+        final var uploadLocation = Path.of(memendexProperties.uploadLocation());
+        final var files = new long[1];
+        final var previousHash = new String[1];
+        jdbcTemplate.query("SELECT id, extension, content_hash FROM memes WHERE type_id = ? ORDER BY content_hash, id", rs -> {
+            final var hash = rs.getString("content_hash");
+            if (hash != null && hash.equals(previousHash[0])) return;
+
+            final var name = "%d.%s".formatted(rs.getLong("id"), rs.getString("extension"));
+            final var file = uploadLocation.resolve(name);
+            try {
+                if (!Files.isRegularFile(file)) {
+                    logger.warn("The file of meme {} is missing, it won't be exported", rs.getLong("id"));
+                    return;
+                }
+                zip.putNextEntry(new ZipEntry(FILES + name));
+                Files.copy(file, zip);
+                zip.closeEntry();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            previousHash[0] = hash;
+            files[0]++;
+        }, MemesType.file.getId());
+
+        return new Summary(tags, memes, relations, files[0]);
+    }
+
+    @FunctionalInterface
+    private interface RowReader {
+        Object read(ResultSet rs) throws SQLException;
+    }
+
+    /**
+     * Writes the rows of a query as an NDJSON entry.
+     *
+     * @return number of rows written
+     */
+    private long writeRows(ZipOutputStream zip, String entry, String sql, RowReader reader) throws IOException {
+        zip.putNextEntry(new ZipEntry(entry));
+        final var count = new long[1];
+        jdbcTemplate.query(sql, rs -> {
+            try {
+                zip.write(objectMapper.writeValueAsBytes(reader.read(rs)));
+                zip.write('\n');
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            count[0]++;
+        });
+        zip.closeEntry();
+        return count[0];
+    }
+
+    /**
+     * Restores a zip written by {@link #export}. The library must be empty, as memes keep their ids.
+     * <p></p>
+     * Rows are committed a batch at a time, so a failed restore leaves the library half restored:
+     * start over from an empty database then.
+     *
+     * @param input the zip. It isn't closed
+     * @return what was restored
+     * @throws IOException If it can't be read, or isn't a backup
+     * @throws IllegalStateException If the library isn't empty
+     */
+    public Summary restore(InputStream input) throws IOException {
+        final var start = System.nanoTime();
+        if (count("memes") > 0 || count("tags") > 0)
+            throw new IllegalStateException("Backups can only be restored into an empty library");
+
+        final var zip = new ZipInputStream(input, StandardCharsets.UTF_8);
+        long tags = 0, memes = 0, relations = 0, files = 0;
+        var manifest = false;
+        final var uploadLocation = new File(memendexProperties.uploadLocation());
+        ZipEntry entry;
+        while ((entry = zip.getNextEntry()) != null) {
+            final var name = entry.getName();
+            if (name.equals(MANIFEST)) {
+                final var read = objectMapper.readValue(zip.readAllBytes(), Manifest.class);
+                if (read.format() != FORMAT) throw new IOException("Unsupported backup format " + read.format());
+                manifest = true;
+                continue;
+            }
+            if (!manifest) throw new IOException("Not a backup: " + MANIFEST + " must come first");
+
+            switch (name) {
+                case TAGS -> tags = insertRows(zip, TagRow.class, "INSERT INTO tags (id, scope, name) VALUES (?, ?, ?)",
+                        tag -> new Object[] { tag.id(), tag.scope(), tag.name() });
+                case MEMES -> memes = insertRows(zip, MemeRow.class, """
+                                INSERT INTO memes (id, type_id, filename, description, extension, content_hash, created_at, updated_at)
+                                VALUES (?, ?, ?, ?, ?, ?, ?, ?)""",
+                        meme -> new Object[] { meme.id(), meme.type().getId(), meme.fileName(), meme.description(), meme.extension(),
+                                meme.contentHash(), meme.createdAt(), meme.updatedAt() });
+                case RELATIONS -> relations = insertRows(zip, RelationRow.class, "INSERT INTO tags_to_memes (meme_id, tag_id) VALUES (?, ?)",
+                        relation -> new Object[] { relation.memeId(), relation.tagId() });
+                default -> {
+                    final var fileName = name.startsWith(FILES) ? name.substring(FILES.length()) : "";
+                    if (!FILE_NAME.matcher(fileName).matches()) {
+                        logger.warn("Skipping unknown entry {} of the backup", name);
+                        continue;
+                    }
+                    final var received = contentStore.receive(zip);
+                    try {
+                        verifyHash(fileName, received);
+                        contentStore.store(received, new File(uploadLocation, fileName), null);
+                    } finally {
+                        contentStore.discard(received);
+                    }
+                    files++;
+                }
+            }
+        }
+        if (!manifest) throw new IOException("Not a backup: " + MANIFEST + " is missing");
+
+        final var linked = linkSharedFiles(uploadLocation.toPath());
+        restartIdentity("memes");
+        restartIdentity("tags");
+        restartIdentity("tags_to_memes");
+        batchTransaction.executeWithoutResult(status -> tagUsageRepository.recount());
+
+        logger.info("Restored {} memes, {} tags, {} relations and {} files ({} shared) in {} ms", memes, tags, relations, files,
+                linked, (System.nanoTime() - start) / 1_000_000);
+        return new Summary(tags, memes, relations, files);
+    }
+
+    /**
+     * Checks a restored file against the content hash of the meme it's named after. Memes are
+     * restored before files, so the hash is already in the database.
+     */
+    private void verifyHash(String fileName, ContentStore.Received received) throws IOException {
+        final var id = Long.parseLong(fileName.substring(0, fileName.indexOf('.')));
+        final var hashes = jdbcTemplate.queryForList("SELECT content_hash FROM memes WHERE id = ?", String.class, id);
+        if (hashes.isEmpty() || hashes.get(0) == null) return;
+        if (!hashes.get(0).equals(received.sha256()))
+            throw new IOException("The file %s of the backup doesn't match its content hash".formatted(fileName));
+    }
+
+    @FunctionalInterface
+    private interface RowMapper<T> {
+        Object[] map(T row);
+    }
+
+    /**
+     * Inserts the rows of an NDJSON entry, a batch at a time.
+     *
+     * @return number of rows inserted
+     */
+    private <T> long insertRows(InputStream entry, Class<T> type, String sql, RowMapper<T> mapper) throws IOException {
+        // Not closed, as it would close the zip
+        final var reader = new BufferedReader(new InputStreamReader(entry, StandardCharsets.UTF_8));
+        final var batchSize = memendexProperties.ingest().batchSize();
+        final var batch = new ArrayList<Object[]>(batchSize);
+        long count = 0;
+        String line;
+        while ((line = reader.readLine()) != null) {
+            if (line.isBlank()) continue;
+            batch.add(mapper.map(objectMapper.readValue(line, type)));
+            if (batch.size() >= batchSize) {
+                insertBatch(sql, batch);
+                count += batch.size();
+                batch.clear();
+            }
+        }
+        insertBatch(sql, batch);
+        return count + batch.size();
+    }
+
+    private void insertBatch(String sql, List<Object[]> batch) {
+        if (batch.isEmpty()) return;
+        batchTransaction.executeWithoutResult(status -> jdbcTemplate.batchUpdate(sql, batch));
+    }
+
+    /**
+     * Memes sharing their content got a single file in the backup, under the name of the first of
+     * them. The others are created now as hard links to it, or as copies where links aren't supported.
+     *
+     * @return number of files created
+     */
+    private long linkSharedFiles(Path uploadLocation) {
+        final var linked = new long[1];
+        final var previous = new Object[2];
+        jdbcTemplate.query("SELECT id, extension, content_hash FROM memes WHERE type_id = ? AND content_hash IS NOT NULL ORDER BY content_hash, id", rs -> {
+            final var hash = rs.getString("content_hash");
+            final var file = uploadLocation.resolve("%d.%s".formatted(rs.getLong("id"), rs.getString("extension")));
+            try {
+                if (Files.exists(file)) {
+                    previous[0] = hash;
+                    previous[1] = file;
+                } else if (hash.equals(previous[0])) {
+                    try {
+                        Files.createLink(file, (Path) previous[1]);
+                    } catch (UnsupportedOperationException | IOException e) {
+                        Files.copy((Path) previous[1], file);
+                    }
+                    linked[0]++;
+                } else {
+                    logger.warn("The file of meme {} isn't in the backup", rs.getLong("id"));
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }, MemesType.file.getId());
+        return linked[0];
+    }
+
+    private void restartIdentity(String table) {
+        final var next = Objects.requireNonNull(jdbcTemplate.queryForObject("SELECT COALESCE(MAX(id), 0) + 1 FROM " + table, Long.class));
+        jdbcTemplate.execute("ALTER TABLE %s ALTER COLUMN id RESTART WITH %d".formatted(table, next));
+    }
+
+    private long count(String table) {
+        return Objects.requireNonNull(jdbcTemplate.queryForObject("SELECT COUNT(*) FROM " + table, Long.class));
+    }
+}
@@ -0,0 +1,14 @@
+package com.systems.fele.memendex_server.exception;
+
+import org.springframework.http.HttpStatus;
+import org.springframework.web.bind.annotation.ResponseStatus;
+
+@ResponseStatus(code = HttpStatus.CONFLICT, reason = "A backup is in progress")
+public class BackupInProgressException extends RuntimeException {
+
+    public BackupInProgressException() { this("A backup is in progress"); }
+
+    public BackupInProgressException(String message) {
+        super(message);
+    }
+}
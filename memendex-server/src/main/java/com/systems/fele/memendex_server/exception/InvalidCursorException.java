@@ -0,0 +1,14 @@
+package com.systems.fele.memendex_server.exception;
+
+import org.springframework.http.HttpStatus;
+import org.springframework.web.bind.annotation.ResponseStatus;
+
+@ResponseStatus(code = HttpStatus.BAD_REQUEST, reason = "Invalid cursor")
+public class InvalidCursorException extends RuntimeException {
+
+    public InvalidCursorException() { this("Invalid cursor"); }
+
+    public InvalidCursorException(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,12 @@
+package com.systems.fele.memendex_server.exception;
+
+import org.springframework.http.HttpStatus;
+import org.springframework.web.bind.annotation.ResponseStatus;
+
+@ResponseStatus(code = HttpStatus.BAD_REQUEST, reason = "Invalid tag filter")
+public class InvalidTagFilterException extends RuntimeException {
+
+    public InvalidTagFilterException(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,14 @@
+package com.systems.fele.memendex_server.exception;
+
+import org.springframework.http.HttpStatus;
+import org.springframework.web.bind.annotation.ResponseStatus;
+
+@ResponseStatus(code = HttpStatus.NOT_FOUND, reason = "No such import")
+public class NoSuchImportError extends RuntimeException {
+
+    public NoSuchImportError() { this("No such import"); }
+
+    public NoSuchImportError(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,14 @@
+package com.systems.fele.memendex_server.exception;
+
+import org.springframework.http.HttpStatus;
+import org.springframework.web.bind.annotation.ResponseStatus;
+
+@ResponseStatus(code = HttpStatus.NOT_FOUND, reason = "No such sprite sheet")
+public class NoSuchSpriteError extends RuntimeException {
+
+    public NoSuchSpriteError() { this("No such sprite sheet"); }
+
+    public NoSuchSpriteError(String message) {
+        super(message);
+    }
+}
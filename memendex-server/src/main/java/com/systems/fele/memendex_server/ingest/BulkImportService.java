@@ -0,0 +1,606 @@
+package com.systems.fele.memendex_server.ingest;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.systems.fele.memendex_server.MemendexProperties;
+import com.systems.fele.memendex_server.meme.MemeRepository;
+import com.systems.fele.memendex_server.meme.MemeService;
+import com.systems.fele.memendex_server.meme.MimeTypeService;
+import com.systems.fele.memendex_server.meme.TagToMemeRepository;
+import com.systems.fele.memendex_server.model.Meme;
+import com.systems.fele.memendex_server.model.MemePayload;
+import com.systems.fele.memendex_server.model.MemesType;
+import com.systems.fele.memendex_server.model.Tag;
+import com.systems.fele.memendex_server.storage.ContentStore;
+import com.systems.fele.memendex_server.tag.TagRepository;
+import com.systems.fele.memendex_server.util.FileSystemUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.support.TransactionTemplate;
+import org.springframework.web.multipart.MaxUploadSizeExceededException;
+import org.springframework.web.multipart.MultipartFile;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+/**
+ * Imports many files at once, from multipart requests, archives or the hot folder.
+ * <p></p>
+ * Files are received (written and hashed) in parallel by a pool of workers, one per core by
+ * default. They're then processed in batches: each batch is checked for duplicates with a single
+ * query, inserted with a single JDBC batch, and its files are moved into place in parallel. The
+ * memes of a batch, their files and their tags are committed in a single transaction, so a batch
+ * that fails leaves nothing behind and all its files are reported as failed.
+ * Thumbnails are queued in the {@link com.systems.fele.memendex_server.thumbnail.ThumbnailPipeline}
+ * like for single uploads.
+ * <p></p>
+ * Batches of the same import run one after another, so duplicates inside an import are detected
+ * too. Different imports run at the same time.
+ * <p></p>
+ * Tags come from the directories of each file (see {@link #tagsFromPath(String)}) and from an
+ * optional sidecar, a JSON file named after the file plus ".json" with "description" and "tags".
+ * JSON files are always taken as sidecars, never imported.
+ */
+@Service
+public class BulkImportService implements DisposableBean {
+    private static final Logger logger = LoggerFactory.getLogger(BulkImportService.class);
+    private static final int KEPT_JOBS = 20;
+    public static final String SIDECAR_EXTENSION = ".json";
+
+    private final MemendexProperties memendexProperties;
+    private final MemeRepository memeRepository;
+    private final TagRepository tagRepository;
+    private final TagToMemeRepository tagToMemeRepository;
+    private final MemeService memeService;
+    private final ContentStore contentStore;
+    private final ObjectMapper objectMapper;
+    private final TransactionTemplate transactionTemplate;
+    private final ExecutorService workers;
+    private final ExecutorService batches;
+    private final LinkedHashMap<String, ImportJob> jobs = new LinkedHashMap<>();
+
+    /**
+     * Description and tags of a file, read from its sidecar or given for the whole import.
+     */
+    public record Metadata(String description, List<String> tags) {
+        public static final Metadata EMPTY = new Metadata(null, List.of());
+
+        /**
+         * @return these tags plus the other ones, and this description unless it's missing
+         */
+        public Metadata merge(Metadata other) {
+            var mergedTags = new LinkedHashSet<String>();
+            if (tags != null) mergedTags.addAll(tags);
+            if (other.tags() != null) mergedTags.addAll(other.tags());
+            return new Metadata(description != null ? description : other.description(), List.copyOf(mergedTags));
+        }
+    }
+
+    /**
+     * Receives the contents of a file into the {@link ContentStore}.
+     */
+    @FunctionalInterface
+    public interface Receiver {
+        ContentStore.Received receive() throws IOException;
+    }
+
+    private record Item(String name, ContentStore.Received received, Metadata metadata) {
+    }
+
+    public BulkImportService(MemendexProperties memendexProperties, MemeRepository memeRepository, TagRepository tagRepository, TagToMemeRepository tagToMemeRepository, MemeService memeService, ContentStore contentStore, ObjectMapper objectMapper, TransactionTemplate transactionTemplate) {
+        this.memendexProperties = memendexProperties;
+        this.memeRepository = memeRepository;
+        this.tagRepository = tagRepository;
+        this.tagToMemeRepository = tagToMemeRepository;
+        this.memeService = memeService;
+        this.contentStore = contentStore;
+        this.objectMapper = objectMapper;
+        this.transactionTemplate = transactionTemplate;
+
+        final var settings = memendexProperties.ingest();
+        final var workerCount = settings.workers() > 0 ? settings.workers() : Runtime.getRuntime().availableProcessors();
+        this.workers = Executors.newFixedThreadPool(workerCount, daemonThreads("ingest-"));
+        this.batches = Executors.newCachedThreadPool(daemonThreads("ingest-batch-"));
+    }
+
+    private static ThreadFactory daemonThreads(String prefix) {
+        final var threadCount = new AtomicInteger();
+        return runnable -> {
+            var thread = new Thread(runnable, prefix + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    /**
+     * Starts an import. Files are added to the returned {@link Importer}, which must be finished once all of them are added.
+     *
+     * @param source         describes where the files come from, for the reports
+     * @param skipDuplicates whether files whose content was already imported are skipped. Otherwise, they're
+     *                       imported again, sharing the stored content
+     * @return the importer
+     */
+    public Importer begin(String source, boolean skipDuplicates) {
+        final var job = new ImportJob(source);
+        synchronized (jobs) {
+            jobs.put(job.getId(), job);
+            // Forgets the oldest finished jobs
+            var finished = jobs.values().stream().filter(j -> j.getStatus() != ImportJob.Status.running).count();
+            var iterator = jobs.values().iterator();
+            while (finished > KEPT_JOBS && iterator.hasNext()) {
+                if (iterator.next().getStatus() != ImportJob.Status.running) {
+                    iterator.remove();
+                    finished--;
+                }
+            }
+        }
+        return new Importer(job, skipDuplicates);
+    }
+
+    public Optional<ImportJob> getJob(String id) {
+        synchronized (jobs) {
+            return Optional.ofNullable(jobs.get(id));
+        }
+    }
+
+    /**
+     * @return the running imports and the last finished ones, newest first
+     */
+    public List<ImportJob> getJobs() {
+        synchronized (jobs) {
+            var list = new ArrayList<>(jobs.values());
+            Collections.reverse(list);
+            return list;
+        }
+    }
+
+    /**
+     * Imports the files of a multipart request. Files are received in parallel, and this returns
+     * once all of them are received, as the request parts are deleted when the request ends.
+     * <p></p>
+     * Parts named after another part plus ".json" are its sidecar.
+     *
+     * @param files          the files. Their names may include directories, which become tags
+     * @param metadata       description and tags for all files
+     * @param skipDuplicates whether files whose content was already imported are skipped
+     * @return the import, which continues in the background
+     */
+    public ImportJob importFiles(List<MultipartFile> files, Metadata metadata, boolean skipDuplicates) {
+        final var importer = begin("multipart", skipDuplicates);
+
+        final var sidecars = new HashMap<String, Metadata>();
+        for (var file : files) {
+            var name = partName(file);
+            if (!isSidecar(name)) continue;
+            try (var input = file.getInputStream()) {
+                sidecars.put(name.substring(0, name.length() - SIDECAR_EXTENSION.length()), readSidecar(input));
+            } catch (IOException e) {
+                importer.fail(name, "Invalid sidecar: " + e.getMessage());
+            }
+        }
+
+        final var received = new ArrayList<CompletableFuture<Void>>();
+        for (var file : files) {
+            var name = partName(file);
+            if (isSidecar(name)) continue;
+            var fileMetadata = sidecars.getOrDefault(name, Metadata.EMPTY)
+                    .merge(new Metadata(null, tagsFromPath(name)))
+                    .merge(metadata);
+            received.add(importer.add(name, () -> contentStore.receive(file), fileMetadata));
+        }
+
+        CompletableFuture.allOf(received.toArray(CompletableFuture[]::new)).join();
+        importer.finish();
+        return importer.getJob();
+    }
+
+    private static String partName(MultipartFile file) {
+        var name = Objects.requireNonNullElse(file.getOriginalFilename(), file.getName()).replace('\\', '/');
+        while (name.startsWith("/")) name = name.substring(1);
+        return name;
+    }
+
+    /**
+     * Imports the files of a zip or tar (optionally gzipped) archive. The archive is read here,
+     * and its files are processed in the background once it's fully read, so sidecars can be anywhere in it.
+     * <p></p>
+     * Files bigger than the maximum upload size are reported as failed and skipped.
+     *
+     * @param input          the archive
+     * @param metadata       description and tags for all files
+     * @param skipDuplicates whether files whose content was already imported are skipped
+     * @return the import, which continues in the background
+     * @throws IOException If the request can't be read
+     */
+    public ImportJob importArchive(InputStream input, Metadata metadata, boolean skipDuplicates) throws IOException {
+        var buffered = new BufferedInputStream(input);
+        buffered.mark(2);
+        var magic = (buffered.read() << 8) | buffered.read();
+        buffered.reset();
+        if (magic == 0x1f8b) {
+            buffered = new BufferedInputStream(new GZIPInputStream(buffered));
+            buffered.mark(2);
+            magic = (buffered.read() << 8) | buffered.read();
+            buffered.reset();
+        }
+        final var isZip = magic == ('P' << 8 | 'K');
+
+        final var importer = begin(isZip ? "zip" : "tar", skipDuplicates);
+        final var sidecars = new HashMap<String, Metadata>();
+        final var files = new LinkedHashMap<String, ContentStore.Received>();
+        try {
+            if (isZip) {
+                var zip = new ZipInputStream(buffered);
+                ZipEntry entry;
+                while ((entry = zip.getNextEntry()) != null) {
+                    if (!entry.isDirectory()) receiveEntry(importer, entry.getName(), zip, sidecars, files);
+                }
+            } else {
+                var tar = new TarReader(buffered);
+                TarReader.Entry entry;
+                while ((entry = tar.next()) != null) receiveEntry(importer, entry.name(), tar.contents(), sidecars, files);
+            }
+        } catch (IOException | RuntimeException e) {
+            // Nothing is imported from a broken archive
+            for (var received : files.values()) contentStore.discard(received);
+            importer.abort("Invalid archive: " + e.getMessage());
+            return importer.getJob();
+        }
+
+        files.forEach((name, received) -> {
+            var fileMetadata = sidecars.getOrDefault(name, Metadata.EMPTY)
+                    .merge(new Metadata(null, tagsFromPath(name)))
+                    .merge(metadata);
+            importer.add(name, received, fileMetadata);
+        });
+        importer.finish();
+        return importer.getJob();
+    }
+
+    private void receiveEntry(Importer importer, String name, InputStream contents, Map<String, Metadata> sidecars, Map<String, ContentStore.Received> files) throws IOException {
+        while (name.startsWith("./") || name.startsWith("/")) name = name.substring(name.indexOf('/') + 1);
+        if (name.isEmpty() || FileSystemUtils.sanitizeFileName(name).startsWith(".")) return;
+
+        if (isSidecar(name)) {
+            try {
+                sidecars.put(name.substring(0, name.length() - SIDECAR_EXTENSION.length()), readSidecar(contents));
+            } catch (JsonProcessingException e) {
+                importer.fail(name, "Invalid sidecar: " + e.getOriginalMessage());
+            }
+            return;
+        }
+
+        try {
+            var previous = files.put(name, contentStore.receive(contents));
+            if (previous != null) contentStore.discard(previous);
+        } catch (MaxUploadSizeExceededException e) {
+            importer.fail(name, e.getMessage());
+        }
+    }
+
+    /**
+     * Reads a sidecar file.
+     *
+     * @param input the sidecar contents
+     * @return its description and tags
+     * @throws IOException If it isn't valid JSON
+     */
+    public Metadata readSidecar(InputStream input) throws IOException {
+        // Read fully first, as the parser would close the stream, which may be an archive
+        var metadata = objectMapper.readValue(input.readAllBytes(), Metadata.class);
+        return new Metadata(metadata.description(), metadata.tags() != null ? metadata.tags() : List.of());
+    }
+
+    /**
+     * Takes tags from the directories of a path. Each directory is a tag, and "scope=value" stands for "#scope/value".
+     * <p></p>
+     * Example:
+     * <pre>
+     *     tagsFromPath("cats/source=reddit/cat.png") // returns ["#cats", "#source/reddit"]
+     * </pre>
+     *
+     * @param path relative path of a file, with '/' as separator
+     * @return the tags
+     */
+    public static List<String> tagsFromPath(String path) {
+        var directories = path.split("/");
+        var tags = new ArrayList<String>();
+        for (int i = 0; i < directories.length - 1; i++) {
+            var directory = directories[i].trim();
+            if (directory.isEmpty() || directory.equals(".") || directory.equals("..")) continue;
+            var separator = directory.indexOf('=');
+            tags.add(separator > 0 ? "#" + directory.substring(0, separator) + "/" + directory.substring(separator + 1) : "#" + directory);
+        }
+        return tags;
+    }
+
+    public static boolean isSidecar(String name) {
+        return name.toLowerCase().endsWith(SIDECAR_EXTENSION);
+    }
+
+    /**
+     * Collects the files of an import. Files are received by the workers as they're added, and
+     * processed in batches.
+     */
+    public class Importer {
+        private final ImportJob job;
+        private final boolean skipDuplicates;
+        private final Map<String, Long> importedHashes = new HashMap<>();
+        private final List<CompletableFuture<Void>> receiving = new ArrayList<>();
+        private final List<Item> pending = new ArrayList<>();
+        private CompletableFuture<Void> processing = CompletableFuture.completedFuture(null);
+        private volatile String failure;
+
+        private Importer(ImportJob job, boolean skipDuplicates) {
+            this.job = job;
+            this.skipDuplicates = skipDuplicates;
+        }
+
+        public ImportJob getJob() {
+            return job;
+        }
+
+        /**
+         * Adds a file, to be received by one of the workers.
+         *
+         * @param name     name of the file. Relative paths are kept in the report
+         * @param receiver receives the file contents
+         * @param metadata description and tags of the file
+         * @return future completed once the file is received (or failed to be)
+         */
+        public CompletableFuture<Void> add(String name, Receiver receiver, Metadata metadata) {
+            job.addTotal(1);
+            final var future = CompletableFuture.runAsync(() -> {
+                try {
+                    enqueue(new Item(name, receiver.receive(), metadata));
+                } catch (IOException | RuntimeException e) {
+                    job.record(new ImportJob.ItemResult(name, ImportJob.ItemStatus.failed, null, e.getMessage()));
+                }
+            }, workers);
+            synchronized (this) {
+                receiving.add(future);
+            }
+            return future;
+        }
+
+        /**
+         * Adds a file already received by the caller.
+         */
+        public void add(String name, ContentStore.Received received, Metadata metadata) {
+            job.addTotal(1);
+            enqueue(new Item(name, received, metadata));
+        }
+
+        /**
+         * Records a file that couldn't even be received.
+         */
+        public void fail(String name, String message) {
+            job.addTotal(1);
+            job.record(new ImportJob.ItemResult(name, ImportJob.ItemStatus.failed, null, message));
+        }
+
+        private synchronized void enqueue(Item item) {
+            pending.add(item);
+            if (pending.size() >= Math.max(1, memendexProperties.ingest().batchSize())) flush();
+        }
+
+        private synchronized void flush() {
+            if (pending.isEmpty()) return;
+            final var batch = List.copyOf(pending);
+            pending.clear();
+            processing = processing.thenRunAsync(() -> process(batch), batches);
+        }
+
+        /**
+         * Finishes the import as failed, without adding more files. Files already added are still processed.
+         *
+         * @param message reason of the failure
+         */
+        public void abort(String message) {
+            failure = message;
+            finish();
+        }
+
+        /**
+         * Marks that no more files will be added. The import finishes in the background.
+         *
+         * @return future completed when the import finishes
+         */
+        public CompletableFuture<Void> finish() {
+            final CompletableFuture<?>[] received;
+            synchronized (this) {
+                received = receiving.toArray(CompletableFuture[]::new);
+            }
+            return CompletableFuture.allOf(received)
+                    .thenCompose(ignored -> {
+                        synchronized (this) {
+                            flush();
+                            return processing;
+                        }
+                    })
+                    .whenComplete((ignored, e) -> {
+                        if (e != null) logger.error("Import {} failed", job.getId(), e);
+                        job.finish(e == null ? failure : e.getMessage());
+                    });
+        }
+
+        private void process(List<Item> batch) {
+            try {
+                processBatch(batch);
+            } catch (RuntimeException e) {
+                logger.error("Import {} failed to process a batch of {} files", job.getId(), batch.size(), e);
+                for (var item : batch)
+                    job.record(new ImportJob.ItemResult(item.name(), ImportJob.ItemStatus.failed, null, e.getMessage()));
+            } finally {
+                for (var item : batch) {
+                    try {
+                        contentStore.discard(item.received());
+                    } catch (IOException e) {
+                        logger.warn("Could not delete received file {}", item.received().file(), e);
+                    }
+                }
+            }
+        }
+
+        private void processBatch(List<Item> batch) {
+            final var existing = memeRepository.findByContentHashes(batch.stream().map(item -> item.received().sha256()).toList());
+
+            final var toInsert = new ArrayList<Item>();
+            final var payloads = new ArrayList<MemePayload>();
+            final var hashes = new ArrayList<String>();
+            final var duplicatesInBatch = new ArrayList<Item>();
+            final var hashesInBatch = new HashSet<String>();
+            for (var item : batch) {
+                final var sha256 = item.received().sha256();
+                final var duplicateOf = existing.containsKey(sha256) ? Long.valueOf(existing.get(sha256).id()) : importedHashes.get(sha256);
+                if (skipDuplicates && duplicateOf != null) {
+                    job.record(new ImportJob.ItemResult(item.name(), ImportJob.ItemStatus.duplicate, duplicateOf, null));
+                    continue;
+                }
+                if (skipDuplicates && !hashesInBatch.add(sha256)) {
+                    // Reported once the first one has an id
+                    duplicatesInBatch.add(item);
+                    continue;
+                }
+
+                final var fileName = FileSystemUtils.sanitizeFileName(item.name());
+                final var extension = Optional.ofNullable(FileSystemUtils.getExtension(fileName)).map(String::toLowerCase).orElse("dat");
+                final var fileExtension = MimeTypeService.extensionToMime(extension).flatMap(MimeTypeService::mimeToFileExtension).orElse(extension);
+                final var description = item.metadata().description() != null ? item.metadata().description() : "";
+
+                toInsert.add(item);
+                payloads.add(new MemePayload(MemesType.file, fileName, description, fileExtension));
+                hashes.add(sha256);
+            }
+
+            // Memes, files and tags are committed together: a failure leaves nothing behind
+            final var inserted = new ArrayList<Meme>();
+            final var failed = new LinkedHashMap<Long, String>();
+            try {
+                transactionTemplate.executeWithoutResult(status -> {
+                    inserted.addAll(memeRepository.insertAll(payloads, hashes));
+                    storeFiles(toInsert, inserted, existing, failed);
+                    memeRepository.deleteAll(failed.keySet());
+                    createTagRelations(toInsert, inserted, failed.keySet());
+                });
+            } catch (RuntimeException e) {
+                logger.error("Import {} failed to import a batch of {} files", job.getId(), toInsert.size(), e);
+                for (var meme : inserted) deleteFile(meme);
+                for (var item : toInsert)
+                    job.record(new ImportJob.ItemResult(item.name(), ImportJob.ItemStatus.failed, null, e.getMessage()));
+                for (var item : duplicatesInBatch)
+                    job.record(new ImportJob.ItemResult(item.name(), ImportJob.ItemStatus.failed, null, "The file it duplicates could not be imported"));
+                return;
+            }
+
+            for (int i = 0; i < inserted.size(); i++) {
+                final var item = toInsert.get(i);
+                final var meme = inserted.get(i);
+                if (failed.containsKey(meme.id())) {
+                    job.record(new ImportJob.ItemResult(item.name(), ImportJob.ItemStatus.failed, null, failed.get(meme.id())));
+                } else {
+                    importedHashes.putIfAbsent(item.received().sha256(), meme.id());
+                    memeService.queueThumbnail(meme);
+                    job.record(new ImportJob.ItemResult(item.name(), ImportJob.ItemStatus.imported, meme.id(), null));
+                }
+            }
+
+            for (var item : duplicatesInBatch) {
+                final var duplicateOf = importedHashes.get(item.received().sha256());
+                if (duplicateOf != null)
+                    job.record(new ImportJob.ItemResult(item.name(), ImportJob.ItemStatus.duplicate, duplicateOf, null));
+                else
+                    job.record(new ImportJob.ItemResult(item.name(), ImportJob.ItemStatus.failed, null, "The file it duplicates could not be stored"));
+            }
+        }
+
+        /**
+         * Moves the files of the inserted memes into place, which is what takes the longest.
+         * Memes whose file couldn't be stored are put in failed, with the reason.
+         */
+        private void storeFiles(List<Item> items, List<Meme> memes, Map<String, Meme> existing, Map<Long, String> failed) {
+            final var stored = new ArrayList<CompletableFuture<Void>>(memes.size());
+            for (int i = 0; i < memes.size(); i++) {
+                final var item = items.get(i);
+                final var target = new File(memendexProperties.uploadLocation(), memes.get(i).getPhysicalFileName());
+                final var sha256 = item.received().sha256();
+                final var sameContent = existing.containsKey(sha256)
+                        ? new File(memendexProperties.uploadLocation(), existing.get(sha256).getPhysicalFileName())
+                        : null;
+                stored.add(CompletableFuture.runAsync(() -> {
+                    try {
+                        contentStore.store(item.received(), target, sameContent);
+                    } catch (IOException e) {
+                        throw new CompletionException(e);
+                    }
+                }, workers));
+            }
+
+            for (int i = 0; i < memes.size(); i++) {
+                final var meme = memes.get(i);
+                try {
+                    stored.get(i).join();
+                } catch (CompletionException e) {
+                    failed.put(meme.id(), e.getCause().getMessage());
+                    deleteFile(meme);
+                }
+            }
+        }
+
+        private void deleteFile(Meme meme) {
+            final var file = new File(memendexProperties.uploadLocation(), meme.getPhysicalFileName());
+            try {
+                Files.deleteIfExists(file.toPath());
+            } catch (IOException e) {
+                logger.warn("Could not delete file {} of a meme that failed to import", file, e);
+            }
+        }
+
+        /**
+         * Tags the memes whose file was stored, parsing the tags like {@link com.systems.fele.memendex_server.meme.TagToMemeService} does.
+         */
+        private void createTagRelations(List<Item> items, List<Meme> memes, Set<Long> failed) {
+            final var tagsByMeme = new LinkedHashMap<Long, List<Tag>>();
+            for (int i = 0; i < memes.size(); i++) {
+                if (failed.contains(memes.get(i).id())) continue;
+                final var tags = Objects.requireNonNullElse(items.get(i).metadata().tags(), List.<String>of()).stream()
+                        .filter(Objects::nonNull)
+                        .map(String::trim)
+                        .filter(tag -> !tag.isEmpty() && !tag.equals("#"))
+                        .map(Tag::parse)
+                        .map(tag -> new Tag(0, tag.scope().toLowerCase(), tag.value() == null ? null : tag.value().toLowerCase()))
+                        .distinct()
+                        .toList();
+                if (!tags.isEmpty()) tagsByMeme.put(memes.get(i).id(), tags);
+            }
+            if (tagsByMeme.isEmpty()) return;
+
+            final var tagIds = new HashMap<Tag, Long>();
+            for (var tag : tagRepository.addOrFindTags(tagsByMeme.values().stream().flatMap(List::stream).distinct().toList()))
+                tagIds.put(new Tag(0, tag.scope(), tag.value()), tag.id());
+
+            final var relations = new ArrayList<TagToMemeRepository.TagIdMemeId>();
+            tagsByMeme.forEach((memeId, tags) -> {
+                for (var tag : tags) relations.add(new TagToMemeRepository.TagIdMemeId(tagIds.get(tag), memeId));
+            });
+            tagToMemeRepository.createRelations(relations);
+        }
+    }
+
+    @Override
+    public void destroy() {
+        workers.shutdownNow();
+        batches.shutdownNow();
+    }
+}
@@ -0,0 +1,173 @@
+package com.systems.fele.memendex_server.ingest;
+
+import com.systems.fele.memendex_server.MemendexProperties;
+import com.systems.fele.memendex_server.storage.ContentStore;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Imports the files dropped in the hot folder, when one is configured.
+ * <p></p>
+ * The folder is scanned every poll interval. A file is only imported once its size and
+ * modification time didn't change between two scans, so files still being copied are left
+ * alone. Once imported, files (and their sidecars) are deleted from the folder; files that fail
+ * are moved to its ".failed" directory. Directories become tags, see {@link BulkImportService#tagsFromPath(String)}.
+ * <p></p>
+ * Polling is used instead of a {@link WatchService} because it also works on network shares,
+ * which is where drop folders usually are.
+ */
+@Component
+public class HotFolderWatcher implements DisposableBean {
+    private static final Logger logger = LoggerFactory.getLogger(HotFolderWatcher.class);
+    private static final String FAILED_DIRECTORY = ".failed";
+
+    private final MemendexProperties memendexProperties;
+    private final BulkImportService bulkImportService;
+    private final ContentStore contentStore;
+    private final Map<Path, FileState> seen = new HashMap<>();
+    private ScheduledExecutorService scheduler;
+
+    private record FileState(long size, FileTime modified) {
+    }
+
+    public HotFolderWatcher(MemendexProperties memendexProperties, BulkImportService bulkImportService, ContentStore contentStore) {
+        this.memendexProperties = memendexProperties;
+        this.bulkImportService = bulkImportService;
+        this.contentStore = contentStore;
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void onApplicationReady() throws IOException {
+        final var hotFolder = memendexProperties.ingest().hotFolder();
+        if (hotFolder == null || hotFolder.isBlank()) return;
+
+        final var root = Path.of(hotFolder);
+        Files.createDirectories(root);
+        logger.info("Watching hot folder {}", root.toAbsolutePath());
+
+        final var interval = memendexProperties.ingest().pollInterval().toMillis();
+        scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            var thread = new Thread(runnable, "hot-folder");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.scheduleWithFixedDelay(() -> {
+            try {
+                scan(root);
+            } catch (IOException | RuntimeException e) {
+                logger.error("Could not scan hot folder {}", root, e);
+            }
+        }, 0, interval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Imports the files that are ready and waits for the import to finish, so the next scan
+     * doesn't see them again.
+     */
+    private void scan(Path root) throws IOException {
+        final var current = new HashMap<Path, FileState>();
+        final var ready = new ArrayList<Path>();
+
+        Files.walkFileTree(root, new SimpleFileVisitor<>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+                return !dir.equals(root) && dir.getFileName().toString().startsWith(".") ? FileVisitResult.SKIP_SUBTREE : FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                if (!attrs.isRegularFile() || file.getFileName().toString().startsWith(".")) return FileVisitResult.CONTINUE;
+                var state = new FileState(attrs.size(), attrs.lastModifiedTime());
+                current.put(file, state);
+                if (state.equals(seen.get(file))) ready.add(file);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(Path file, IOException exc) {
+                return FileVisitResult.CONTINUE;
+            }
+        });
+
+        seen.clear();
+        seen.putAll(current);
+
+        // Sidecars are read with their file. The ones whose file isn't ready yet wait for it
+        final var files = ready.stream().filter(file -> !BulkImportService.isSidecar(file.toString())).toList();
+        if (files.isEmpty()) return;
+
+        final var importer = bulkImportService.begin("hot folder", true);
+        final var sources = new HashMap<String, Path>();
+        for (var file : files) {
+            final var name = root.relativize(file).toString().replace('\\', '/');
+            var metadata = new BulkImportService.Metadata(null, BulkImportService.tagsFromPath(name));
+
+            final var sidecar = sidecarOf(file);
+            if (Files.isRegularFile(sidecar)) {
+                try (var input = Files.newInputStream(sidecar)) {
+                    metadata = bulkImportService.readSidecar(input).merge(metadata);
+                } catch (IOException e) {
+                    importer.fail(name, "Invalid sidecar: " + e.getMessage());
+                    moveToFailed(root, file);
+                    continue;
+                }
+            }
+
+            sources.put(name, file);
+            importer.add(name, () -> contentStore.receive(file), metadata);
+        }
+
+        // Files are only taken out of the folder once they're safely imported
+        importer.finish().join();
+        for (var item : importer.getJob().report(true).items()) {
+            final var file = sources.get(item.name());
+            if (file == null) continue;
+            if (item.status() == ImportJob.ItemStatus.failed) {
+                logger.warn("Could not import {} from the hot folder: {}", item.name(), item.message());
+                moveToFailed(root, file);
+            } else {
+                Files.deleteIfExists(file);
+                Files.deleteIfExists(sidecarOf(file));
+            }
+            seen.remove(file);
+        }
+    }
+
+    private static Path sidecarOf(Path file) {
+        return file.resolveSibling(file.getFileName() + BulkImportService.SIDECAR_EXTENSION);
+    }
+
+    /**
+     * Moves a file, and its sidecar if any, to the failed directory so it isn't tried again.
+     */
+    private void moveToFailed(Path root, Path file) {
+        for (var source : List.of(file, sidecarOf(file))) {
+            if (!Files.exists(source)) continue;
+            try {
+                var target = root.resolve(FAILED_DIRECTORY).resolve(root.relativize(source));
+                Files.createDirectories(target.getParent());
+                Files.move(source, target, StandardCopyOption.REPLACE_EXISTING);
+            } catch (IOException e) {
+                logger.warn("Could not move {} out of the hot folder", source, e);
+            }
+        }
+    }
+
+    @Override
+    public void destroy() {
+        if (scheduler != null) scheduler.shutdownNow();
+    }
+}
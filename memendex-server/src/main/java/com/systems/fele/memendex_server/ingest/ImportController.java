@@ -0,0 +1,77 @@
+package com.systems.fele.memendex_server.ingest;
+
+import com.systems.fele.memendex_server.exception.NoSuchImportError;
+import jakarta.servlet.http.HttpServletRequest;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.*;
+import org.springframework.web.multipart.MultipartFile;
+
+import java.io.IOException;
+import java.net.URI;
+import java.util.List;
+
+/**
+ * Bulk imports. Imports run in the background: starting one answers 202 with its report, and
+ * its progress can then be polled at the Location returned.
+ */
+@RestController
+@RequestMapping("/api/memes/import")
+public class ImportController {
+    private final BulkImportService bulkImportService;
+
+    public ImportController(BulkImportService bulkImportService) {
+        this.bulkImportService = bulkImportService;
+    }
+
+    /**
+     * Imports every "files" part of a multipart request. Description and tags apply to all of them,
+     * on top of the tags taken from their paths and sidecars.
+     */
+    @PostMapping(consumes = { MediaType.MULTIPART_FORM_DATA_VALUE })
+    public ResponseEntity<ImportJob.Report> importFiles(@RequestParam("files") List<MultipartFile> files,
+                                                        @RequestParam(value = "description", required = false) String description,
+                                                        @RequestParam(value = "tags", required = false) List<String> tags,
+                                                        @RequestParam(value = "skipDuplicates", required = false, defaultValue = "true") boolean skipDuplicates) {
+        var job = bulkImportService.importFiles(files, metadata(description, tags), skipDuplicates);
+        return accepted(job);
+    }
+
+    /**
+     * Imports the files of a zip, tar or tar.gz archive sent as the request body.
+     */
+    @PostMapping(value = "archive")
+    public ResponseEntity<ImportJob.Report> importArchive(@RequestParam(value = "description", required = false) String description,
+                                                          @RequestParam(value = "tags", required = false) List<String> tags,
+                                                          @RequestParam(value = "skipDuplicates", required = false, defaultValue = "true") boolean skipDuplicates,
+                                                          HttpServletRequest request) throws IOException {
+        var job = bulkImportService.importArchive(request.getInputStream(), metadata(description, tags), skipDuplicates);
+        return accepted(job);
+    }
+
+    /**
+     * Lists the running imports and the last finished ones, newest first, without the results of each file.
+     */
+    @GetMapping
+    public List<ImportJob.Report> list() {
+        return bulkImportService.getJobs().stream().map(job -> job.report(false)).toList();
+    }
+
+    @GetMapping("/{id}")
+    public ImportJob.Report get(@PathVariable("id") String id,
+                                @RequestParam(value = "items", required = false, defaultValue = "true") boolean items) {
+        return bulkImportService.getJob(id)
+                .orElseThrow(NoSuchImportError::new)
+                .report(items);
+    }
+
+    private static BulkImportService.Metadata metadata(String description, List<String> tags) {
+        return new BulkImportService.Metadata(description, tags == null ? List.of() : tags);
+    }
+
+    private static ResponseEntity<ImportJob.Report> accepted(ImportJob job) {
+        return ResponseEntity.accepted()
+                .location(URI.create("/api/memes/import/" + job.getId()))
+                .body(job.report(false));
+    }
+}
@@ -0,0 +1,104 @@
+package com.systems.fele.memendex_server.ingest;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Progress of a bulk import. Counters are updated by the workers while the import runs, and
+ * {@link #report(boolean)} takes a consistent enough snapshot for polling clients.
+ */
+public class ImportJob {
+    public enum Status {
+        running, finished, failed
+    }
+
+    public enum ItemStatus {
+        imported, duplicate, failed
+    }
+
+    /**
+     * @param name    path of the file, as sent or relative to the archive or hot folder
+     * @param status  what happened to it
+     * @param memeId  id of the created meme, or of the existing one for duplicates. Null when failed
+     * @param message reason of the failure
+     */
+    public record ItemResult(String name, ItemStatus status, Long memeId, String message) {
+    }
+
+    /**
+     * Snapshot of an import.
+     *
+     * @param items results of each file. Null when not requested
+     */
+    public record Report(String id, String source, Status status, int total, int processed, int imported,
+                         int duplicates, int failed, Instant startedAt, Instant finishedAt, String message,
+                         List<ItemResult> items) {
+    }
+
+    private final String id = UUID.randomUUID().toString();
+    private final String source;
+    private final Instant startedAt = Instant.now();
+    private final AtomicInteger total = new AtomicInteger();
+    private final AtomicInteger imported = new AtomicInteger();
+    private final AtomicInteger duplicates = new AtomicInteger();
+    private final AtomicInteger failed = new AtomicInteger();
+    private final List<ItemResult> items = new ArrayList<>();
+    private volatile Status status = Status.running;
+    private volatile Instant finishedAt;
+    private volatile String message;
+
+    ImportJob(String source) {
+        this.source = source;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public Status getStatus() {
+        return status;
+    }
+
+    void addTotal(int count) {
+        total.addAndGet(count);
+    }
+
+    void record(ItemResult result) {
+        switch (result.status()) {
+            case imported -> imported.incrementAndGet();
+            case duplicate -> duplicates.incrementAndGet();
+            case failed -> failed.incrementAndGet();
+        }
+        synchronized (items) {
+            items.add(result);
+        }
+    }
+
+    void finish(String failure) {
+        message = failure;
+        finishedAt = Instant.now();
+        status = failure == null ? Status.finished : Status.failed;
+    }
+
+    /**
+     * @param withItems whether to include the result of every file
+     * @return snapshot of the import
+     */
+    public Report report(boolean withItems) {
+        List<ItemResult> itemsCopy = null;
+        if (withItems) {
+            synchronized (items) {
+                itemsCopy = List.copyOf(items);
+            }
+        }
+
+        var importedCount = imported.get();
+        var duplicatesCount = duplicates.get();
+        var failedCount = failed.get();
+        return new Report(id, source, status, total.get(), importedCount + duplicatesCount + failedCount,
+                importedCount, duplicatesCount, failedCount, startedAt, finishedAt, message, itemsCopy);
+    }
+}
@@ -0,0 +1,193 @@
+package com.systems.fele.memendex_server.ingest;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Reads the regular files of a tar stream (ustar, GNU and pax long names), one at a time.
+ * <p></p>
+ * Only what's needed for imports is supported: names and contents. Links, devices and
+ * permissions are ignored.
+ */
+class TarReader {
+    private static final int BLOCK_SIZE = 512;
+
+    private final InputStream input;
+    private final byte[] header = new byte[BLOCK_SIZE];
+    private long remaining = 0;
+    private long padding = 0;
+
+    /**
+     * @param name path of the file inside the archive
+     * @param size size in bytes
+     */
+    record Entry(String name, long size) {
+    }
+
+    TarReader(InputStream input) {
+        this.input = input;
+    }
+
+    /**
+     * Moves to the next regular file. Its contents can be read from {@link #contents()}.
+     *
+     * @return the entry, or null at the end of the archive
+     * @throws IOException If the stream isn't a valid tar
+     */
+    Entry next() throws IOException {
+        skipCurrent();
+
+        String longName = null;
+        while (true) {
+            if (!readBlock(header) || isZeroBlock(header)) return null;
+            if (!checksumMatches(header)) throw new IOException("Invalid tar header checksum");
+
+            final var type = (char) header[156];
+            final var size = parseNumber(header, 124, 12);
+            remaining = size;
+            padding = (BLOCK_SIZE - size % BLOCK_SIZE) % BLOCK_SIZE;
+
+            switch (type) {
+                case 'L' -> longName = trimName(new String(readContents(size), StandardCharsets.UTF_8));
+                case 'x' -> {
+                    var path = paxPath(new String(readContents(size), StandardCharsets.UTF_8));
+                    if (path != null) longName = path;
+                }
+                case '0', '\0', '7' -> {
+                    var name = longName != null ? longName : headerName(header);
+                    return new Entry(name, size);
+                }
+                default -> {
+                    // Directories, links and everything else carry no file of their own
+                    skipCurrent();
+                    longName = null;
+                }
+            }
+        }
+    }
+
+    /**
+     * @return stream with the contents of the current entry. Closing it does nothing
+     */
+    InputStream contents() {
+        return new InputStream() {
+            @Override
+            public int read() throws IOException {
+                if (remaining <= 0) return -1;
+                var read = input.read();
+                if (read < 0) throw new EOFException("Tar stream ended inside an entry");
+                remaining--;
+                return read;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                if (remaining <= 0) return -1;
+                var read = input.read(b, off, (int) Math.min(len, remaining));
+                if (read < 0) throw new EOFException("Tar stream ended inside an entry");
+                remaining -= read;
+                return read;
+            }
+        };
+    }
+
+    private byte[] readContents(long size) throws IOException {
+        if (size > Integer.MAX_VALUE) throw new IOException("Tar header entry too large");
+        var contents = contents().readNBytes((int) size);
+        skipCurrent();
+        return contents;
+    }
+
+    private void skipCurrent() throws IOException {
+        skipFully(remaining + padding);
+        remaining = 0;
+        padding = 0;
+    }
+
+    private void skipFully(long count) throws IOException {
+        while (count > 0) {
+            var skipped = input.skip(count);
+            if (skipped <= 0) {
+                if (input.read() < 0) throw new EOFException("Tar stream ended inside an entry");
+                skipped = 1;
+            }
+            count -= skipped;
+        }
+    }
+
+    private boolean readBlock(byte[] block) throws IOException {
+        var read = input.readNBytes(block, 0, BLOCK_SIZE);
+        if (read == 0) return false;
+        if (read < BLOCK_SIZE) throw new EOFException("Truncated tar header");
+        return true;
+    }
+
+    private static boolean isZeroBlock(byte[] block) {
+        for (var b : block) if (b != 0) return false;
+        return true;
+    }
+
+    private static boolean checksumMatches(byte[] block) {
+        long sum = 0;
+        for (int i = 0; i < BLOCK_SIZE; i++) sum += (i >= 148 && i < 156) ? ' ' : (block[i] & 0xff);
+        return sum == parseNumber(block, 148, 8);
+    }
+
+    private static String headerName(byte[] block) {
+        var name = readString(block, 0, 100);
+        var magic = readString(block, 257, 6);
+        if (magic.startsWith("ustar")) {
+            var prefix = readString(block, 345, 155);
+            if (!prefix.isEmpty()) name = prefix + "/" + name;
+        }
+        return name;
+    }
+
+    private static String readString(byte[] block, int offset, int length) {
+        var end = offset;
+        while (end < offset + length && block[end] != 0) end++;
+        return new String(block, offset, end - offset, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Numbers are octal, or base-256 when the first byte has its high bit set.
+     */
+    private static long parseNumber(byte[] block, int offset, int length) {
+        if ((block[offset] & 0x80) != 0) {
+            long value = block[offset] & 0x7f;
+            for (int i = offset + 1; i < offset + length; i++) value = (value << 8) | (block[i] & 0xff);
+            return value;
+        }
+
+        long value = 0;
+        for (int i = offset; i < offset + length; i++) {
+            var c = block[i];
+            if (c == 0 || c == ' ') {
+                if (value != 0) break;
+                continue;
+            }
+            value = value * 8 + (c - '0');
+        }
+        return value;
+    }
+
+    private static String trimName(String name) {
+        var end = name.indexOf('\0');
+        return end < 0 ? name : name.substring(0, end);
+    }
+
+    /**
+     * Pax records are "length key=value\n".
+     */
+    private static String paxPath(String records) {
+        for (var record : records.split("\n")) {
+            var space = record.indexOf(' ');
+            if (space < 0) continue;
+            var keyValue = record.substring(space + 1);
+            if (keyValue.startsWith("path=")) return keyValue.substring("path=".length());
+        }
+        return null;
+    }
+}
@@ -0,0 +1,59 @@
+package com.systems.fele.memendex_server.meme;
+
+import com.systems.fele.memendex_server.tag.TagRelationsChangedEvent;
+import com.systems.fele.memendex_server.tag.TagsChangedEvent;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.event.TransactionalEventListener;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counts the writes to the library (memes, tags and the tags of memes), so listings can tell
+ * clients whether what they already have is still current.
+ * <p></p>
+ * Writes made inside a transaction are counted once it commits. A listing must read the
+ * generation before reading the database: that way, a write it didn't see always changes the
+ * generation after it, and its result is never labelled newer than it is.
+ * <p></p>
+ * The counter starts over on every start, so {@link #etag()} also carries the start time.
+ */
+@Component
+public class LibraryGeneration {
+    private final String instance = Long.toString(System.currentTimeMillis(), 36);
+    private final AtomicLong generation = new AtomicLong();
+
+    /**
+     * @return a weak ETag for anything built from the library as it is now
+     */
+    public String etag() {
+        return "W/\"%s-%d\"".formatted(instance, generation.get());
+    }
+
+    /**
+     * Counts a write, after the current transaction commits if there is one.
+     */
+    public void increment() {
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCommit() {
+                    generation.incrementAndGet();
+                }
+            });
+        } else {
+            generation.incrementAndGet();
+        }
+    }
+
+    @TransactionalEventListener(fallbackExecution = true)
+    public void onTagsChanged(TagsChangedEvent event) {
+        generation.incrementAndGet();
+    }
+
+    @TransactionalEventListener(fallbackExecution = true)
+    public void onTagRelationsChanged(TagRelationsChangedEvent event) {
+        generation.incrementAndGet();
+    }
+}
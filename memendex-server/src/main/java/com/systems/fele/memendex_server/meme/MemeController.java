@@ -1,17 +1,27 @@
 package com.systems.fele.memendex_server.meme;
 
 import com.systems.fele.memendex_server.MemendexProperties;
+import com.systems.fele.memendex_server.exception.InvalidCursorException;
 import com.systems.fele.memendex_server.exception.InvalidMemeException;
 import com.systems.fele.memendex_server.exception.NoSuchMemeError;
-import com.systems.fele.memendex_server.model.Meme;
-import com.systems.fele.memendex_server.model.MemeDetailed;
-import com.systems.fele.memendex_server.model.MemesType;
-import com.systems.fele.memendex_server.model.PaginatedResponse;
+import com.systems.fele.memendex_server.exception.NoSuchSpriteError;
+import com.systems.fele.memendex_server.model.*;
+import com.systems.fele.memendex_server.search.MemeFullTextIndex;
+import com.systems.fele.memendex_server.tag.TagFilter;
+import com.systems.fele.memendex_server.thumbnail.DerivativeCache;
+import com.systems.fele.memendex_server.thumbnail.DerivativeSize;
+import com.systems.fele.memendex_server.thumbnail.SpriteSheets;
+import com.systems.fele.memendex_server.thumbnail.ThumbnailPipeline;
+import com.systems.fele.memendex_server.util.HttpCaching;
+import com.systems.fele.memendex_server.util.RangedFileSender;
+import jakarta.servlet.http.HttpServletRequest;
 import jakarta.servlet.http.HttpServletResponse;
 import org.apache.tomcat.util.http.fileupload.IOUtils;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.MediaType;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.context.request.ServletWebRequest;
 import org.springframework.web.multipart.MultipartFile;
 import org.springframework.web.multipart.MultipartHttpServletRequest;
 import org.springframework.web.multipart.MultipartRequest;
@@ -20,6 +30,7 @@ import java.io.*;
 import java.util.Collections;
 import java.util.List;
 import java.util.Objects;
+import java.util.Optional;
 import java.util.stream.Collectors;
 
 @RestController
@@ -28,47 +39,125 @@ public class MemeController {
     private final MemeService memeService;
     private final MemendexProperties memendexProperties;
     private final MemeRepository memeRepository;
+    private final LibraryGeneration libraryGeneration;
 
     @Autowired
-    public MemeController(MemeService memeService, MemendexProperties memendexProperties, MemeRepository memeRepository) {
+    public MemeController(MemeService memeService, MemendexProperties memendexProperties, MemeRepository memeRepository, LibraryGeneration libraryGeneration) {
         this.memeService = memeService;
         this.memendexProperties = memendexProperties;
         this.memeRepository = memeRepository;
+        this.libraryGeneration = libraryGeneration;
     }
 
     @GetMapping(value = "/{id}", produces = MediaType.APPLICATION_JSON_VALUE)
-    public MemeDetailed getMeme(@PathVariable("id") long id) {
+    public MemeDetailed getMeme(@PathVariable("id") long id, ServletWebRequest request) {
+        if (isNotModified(request)) return null;
         return memeService.enrich(memeService.getMeme(id).orElseThrow(NoSuchMemeError::new));
     }
 
+    /**
+     * Checks whether the client already has the response, as of the current {@link LibraryGeneration}.
+     * When it does, the response is a 304 and the handler must return null. Otherwise, the response
+     * gets the weak ETag of the generation.
+     */
+    private boolean isNotModified(ServletWebRequest request) {
+        Objects.requireNonNull(request.getResponse()).setHeader(HttpHeaders.CACHE_CONTROL, HttpCaching.REVALIDATE);
+        return request.checkNotModified(libraryGeneration.etag());
+    }
+
+    /**
+     * @return the number of memes before the page
+     * @throws InvalidCursorException if the page starts too far to be counted in an int
+     */
+    private static int pageOffset(int page, int size) {
+        var offset = (long) (page - 1) * size;
+        if (offset > Integer.MAX_VALUE - size - 1) throw new InvalidCursorException("Page out of range");
+        return (int) offset;
+    }
+
+    /**
+     * Lists memes. When a cursor (taken from {@link PaginatedResponse#nextCursor()}) is given, the page
+     * starts right after it and both page and sort parameters are ignored.
+     * <p></p>
+     * With tag parameters, only the memes matching all of them are listed (see {@link TagFilter} for the
+     * syntax), and the response carries the most common tags among them as facets. The tag parameters
+     * must be sent again along with the cursor.
+     */
     @GetMapping("list")
-    public PaginatedResponse<MemeDetailed> list(@RequestParam(value = "page", required = false, defaultValue = "1") int page, @RequestParam(value = "size", required = false, defaultValue = "100") int size) {
-        var memes = memeRepository.listPaginated(page, size);
-        if (page == 0) page = 1;
+    public PaginatedResponse<MemeDetailed> list(@RequestParam(value = "page", required = false, defaultValue = "1") int page,
+                                                @RequestParam(value = "size", required = false, defaultValue = "100") int size,
+                                                @RequestParam(value = "cursor", required = false) String cursor,
+                                                @RequestParam(value = "sort", required = false, defaultValue = "id") MemeSort sort,
+                                                @RequestParam(value = "desc", required = false, defaultValue = "false") boolean descending,
+                                                @RequestParam(value = "tag", required = false) List<String> tags,
+                                                @RequestParam(value = "facets", required = false, defaultValue = "20") int facets,
+                                                ServletWebRequest request) {
+        if (isNotModified(request)) return null;
+        if (page < 1) page = 1;
         if (size < 1 || size > 1000) size = 100;
-        var totalCount = memeRepository.getTotalCount();
-        var hasNext = (page - 1) * size + memes.size() < totalCount;
+
+        PageCursor after = null;
+        if (cursor != null) {
+            after = PageCursor.decode(cursor);
+            sort = after.sort();
+            descending = after.descending();
+        }
+
+        List<Meme> memes;
+        int totalCount;
+        List<TagUsage> facetCounts = null;
+        if (tags != null && !tags.isEmpty()) {
+            var offset = after == null ? pageOffset(page, size) : 0;
+            var tagged = memeService.listTagged(TagFilter.parse(tags), sort, descending, after, offset, size + 1, Math.min(Math.max(facets, 0), 100));
+            memes = tagged.memes();
+            totalCount = tagged.totalCount();
+            facetCounts = tagged.facets();
+        } else {
+            if (after != null || page == 1) {
+                memes = memeRepository.listAfter(sort, descending, after, size + 1);
+            } else {
+                memes = memeRepository.listPaginated(sort, descending, page, size + 1);
+            }
+            totalCount = memeRepository.getTotalCount();
+        }
+
+        var hasNext = memes.size() > size;
+        if (hasNext) memes = memes.subList(0, size);
 
         return new PaginatedResponse<>(
-                memes.stream().map(memeService::enrich).toList(),
+                memeService.enrich(memes),
                 memes.size(),
                 totalCount,
                 size,
                 page,
-                hasNext
+                hasNext,
+                hasNext ? PageCursor.after(memes.get(memes.size() - 1), sort, descending).encode() : null,
+                facetCounts
         );
     }
 
+    /**
+     * Searches the file name, description and tags of memes, most relevant first. Words may be
+     * written in any form ("cats" finds "cat"), and text between double quotes must appear as is.
+     * When nothing matches, memes close enough to the query are returned instead, ordered by id.
+     * Accepts a cursor the same way {@link #list} does.
+     */
     @GetMapping("search")
-    public PaginatedResponse<MemeDetailed> search(@RequestParam String query, @RequestParam(value = "page", required = false, defaultValue = "1") int page, @RequestParam(value = "size", required = false, defaultValue = "100") int size) {
+    public PaginatedResponse<MemeDetailed> search(@RequestParam String query,
+                                                  @RequestParam(value = "page", required = false, defaultValue = "1") int page,
+                                                  @RequestParam(value = "size", required = false, defaultValue = "100") int size,
+                                                  @RequestParam(value = "cursor", required = false) String cursor,
+                                                  ServletWebRequest request) {
+        if (isNotModified(request)) return null;
         if (query.length() < 3)
             return PaginatedResponse.empty();
 
-        if (page == 0) page = 1;
+        if (page < 1) page = 1;
         if (size < 1 || size > 1000) size = 100;
 
-        var memes = memeRepository.powerSearch(query, page, size);
-        var totalCount = -1;
+        var offset = cursor == null ? pageOffset(page, size) : SearchCursor.decode(cursor).offset();
+        var results = memeService.search(query, offset, size + 1);
+        var memes = results.memes();
         boolean hasNext;
 
         if (memes.size() > size) {
@@ -79,32 +168,161 @@ public class MemeController {
         }
 
         return new PaginatedResponse<>(
-                memes.stream().map(memeService::enrich).toList(),
+                memeService.enrich(memes),
                 memes.size(),
-                totalCount,
+                results.totalCount(),
                 size,
                 page,
-                hasNext
+                hasNext,
+                hasNext ? new SearchCursor(offset + size).encode() : null
         );
     }
 
+    /**
+     * Builds the search index again from the database, while searches keep using the current one.
+     */
+    @PostMapping("search/rebuild")
+    public MemeFullTextIndex.Stats rebuildSearchIndex() {
+        return memeService.rebuildSearchIndex();
+    }
+
+    /**
+     * Sends the thumbnail of a meme. When the {@code v} parameter is the {@link MemeDetailed#version()}
+     * of the meme, it may be cached for good; otherwise it must be revalidated.
+     */
     @GetMapping(value = "/{id}/thumbnail")
-    public void thumbnail(@PathVariable("id") long id, HttpServletResponse response) throws IOException {
-        final var extension = memeService.getMeme(id).orElseThrow(NoSuchMemeError::new).extension();
-        final var mediaType = memeService.getThumbnailTo(id, extension, response.getOutputStream());
-        response.setContentType(mediaType.toString());
-        response.setStatus(200);
+    public void thumbnail(@PathVariable("id") long id, HttpServletRequest request, HttpServletResponse response) throws IOException {
+        final var meme = memeService.getMeme(id).orElseThrow(NoSuchMemeError::new);
+        final var etag = etag(meme, DerivativeSize.thumbnail);
+        final var cacheControl = cacheControl(meme, request);
+        if (HttpCaching.sendNotModified(etag, meme.create(), cacheControl, request, response)) return;
+
+        final var thumbnail = memeService.getDerivative(meme, DerivativeSize.thumbnail);
+
+        // Thumbnails are always JPEG
+        if (thumbnail.isPresent()) {
+            HttpCaching.setHeaders(etag, meme.create(), cacheControl, response);
+            send(thumbnail.get(), request, response);
+        } else {
+            final var placeholder = memeService.getPlaceholderThumbnail();
+            response.setHeader(HttpHeaders.CACHE_CONTROL, "no-store");
+            response.setContentType(MediaType.IMAGE_JPEG_VALUE);
+            response.setContentLength(placeholder.length);
+            response.getOutputStream().write(placeholder);
+        }
+    }
+
+    /**
+     * Sends a derivative straight from the segment of the cache it's in. Derivatives are always JPEG.
+     */
+    private static void send(DerivativeCache.Derivative derivative, HttpServletRequest request, HttpServletResponse response) throws IOException {
+        RangedFileSender.send(derivative.file(), derivative.position(), derivative.length(), MediaType.IMAGE_JPEG, request, response);
+    }
+
+    /**
+     * A strong ETag for one representation of the file of a meme. Those of derivatives carry the
+     * {@link DerivativeCache#RENDER_VERSION}, as they change when it does.
+     *
+     * @param size the size of the derivative, or null for the original file
+     */
+    private static String etag(Meme meme, DerivativeSize size) {
+        final var representation = size == null ? "original" : "%s-%s".formatted(size.name(), DerivativeCache.RENDER_VERSION);
+        return "\"%d-%s-%s\"".formatted(meme.id(), meme.contentVersion(), representation);
+    }
+
+    /**
+     * @return immutable when the URL has the current version of the meme in the {@code v} parameter
+     */
+    private static String cacheControl(Meme meme, HttpServletRequest request) {
+        return MemeService.cacheVersion(meme).equals(request.getParameter("v")) ? HttpCaching.IMMUTABLE : HttpCaching.REVALIDATE;
     }
 
+    /**
+     * Lays out the thumbnails of a page of memes in a single image, see {@link SpriteSheets}, to be
+     * fetched in one request instead of one per meme. The response says where each thumbnail is,
+     * and has the URL of the image, which carries its version so it's cached for good.
+     */
+    @GetMapping(value = "thumbnails/sprite", produces = MediaType.APPLICATION_JSON_VALUE)
+    public ThumbnailSprite thumbnailSprite(@RequestParam("ids") List<Long> ids, ServletWebRequest request) throws IOException {
+        final var sheet = memeService.getThumbnailSprite(ids, null);
+        Objects.requireNonNull(request.getResponse()).setHeader(HttpHeaders.CACHE_CONTROL, HttpCaching.REVALIDATE);
+        if (request.checkNotModified(spriteEtag(sheet.token()))) return null;
+
+        final var url = sheet.cells().isEmpty() ? null : "/api/memes/thumbnails/sprite.jpg?ids=%s&v=%s".formatted(
+                sheet.cells().stream().map(cell -> Long.toString(cell.id())).collect(Collectors.joining(",")), sheet.token());
+        return new ThumbnailSprite(url, sheet.width(), sheet.height(), sheet.cells());
+    }
+
+    /**
+     * Sends the image laid out by {@link #thumbnailSprite}. It's composed again when no longer in
+     * memory, and may be cached for good when still the same as the {@code v} parameter. When it's
+     * no longer the same, it isn't found, so the page falls back to the thumbnails of each meme.
+     */
+    @GetMapping(value = "thumbnails/sprite.jpg")
+    public void thumbnailSpriteImage(@RequestParam("ids") List<Long> ids,
+                                     @RequestParam(value = "v", required = false) String token,
+                                     HttpServletRequest request, HttpServletResponse response) throws IOException {
+        // The sheet of a token never changes, so it isn't even looked up
+        if (token != null && HttpCaching.sendNotModified(spriteEtag(token), null, HttpCaching.IMMUTABLE, request, response)) return;
+
+        final var sheet = memeService.getThumbnailSprite(ids, token);
+        if (sheet.cells().isEmpty()) throw new NoSuchMemeError("None of the memes has a thumbnail");
+        // The layout the page got was of another sheet, so these thumbnails would be misplaced
+        if (token != null && !token.equals(sheet.token())) throw new NoSuchSpriteError("The sprite sheet changed");
+
+        final var etag = spriteEtag(sheet.token());
+        final var cacheControl = token != null ? HttpCaching.IMMUTABLE : HttpCaching.REVALIDATE;
+        if (HttpCaching.sendNotModified(etag, null, cacheControl, request, response)) return;
+        HttpCaching.setHeaders(etag, null, cacheControl, response);
+        response.setContentType(MediaType.IMAGE_JPEG_VALUE);
+        response.setContentLength(sheet.jpeg().length);
+        response.getOutputStream().write(sheet.jpeg());
+    }
+
+    private static String spriteEtag(String token) {
+        return "\"sprite-%s\"".formatted(token);
+    }
+
+    @GetMapping(value = "thumbnails/stats", produces = MediaType.APPLICATION_JSON_VALUE)
+    public ThumbnailPipeline.Stats thumbnailStats() {
+        return memeService.getThumbnailStats();
+    }
+
+    @GetMapping(value = "thumbnails/cache/stats", produces = MediaType.APPLICATION_JSON_VALUE)
+    public DerivativeCache.Stats derivativeCacheStats() {
+        return memeService.getDerivativeCacheStats();
+    }
+
+    /**
+     * Sends the image of a meme. When a size is given, a scaled down JPEG is sent instead,
+     * unless it isn't ready in time, isn't smaller than the original or the image is animated.
+     * Accepts the {@code v} parameter the same way {@link #thumbnail} does, except when the scaled
+     * down image wasn't ready, as it will be sent next time.
+     */
     @GetMapping(value = "/{id}/preview")
-    public void image(@PathVariable("id") long id, HttpServletResponse response) throws IOException {
+    public void image(@PathVariable("id") long id,
+                      @RequestParam(value = "size", required = false) DerivativeSize size,
+                      HttpServletRequest request, HttpServletResponse response) throws IOException {
         final var meme = memeRepository.findById(id).orElseThrow(NoSuchMemeError::new);
 
         final var mime = MediaType.parseMediaType(MimeTypeService.extensionToMime(meme.extension()).orElseThrow());
         if (MimeTypeService.isMimeTypeKnown(mime)) {
-            final var mediaType = memeService.getImageTo(meme, response.getOutputStream());
-            response.setContentType(mediaType.toString());
-            response.setStatus(200);
+            final var original = memeService.getImageFile(meme);
+            final var scaled = size != null && !MediaType.IMAGE_GIF.equalsTypeAndSubtype(mime);
+            // A client that has the scaled down image needs nothing else, so it isn't even looked up
+            if (scaled && HttpCaching.sendNotModified(etag(meme, size), meme.create(), cacheControl(meme, request), request, response)) return;
+            final var rendered = scaled ? memeService.getDerivative(meme, size) : Optional.<DerivativeCache.Derivative>empty();
+            final var derivative = rendered.filter(jpeg -> jpeg.length() < original.length());
+
+            final var etag = etag(meme, derivative.isPresent() ? size : null);
+            final var cacheControl = scaled && rendered.isEmpty() ? HttpCaching.REVALIDATE : cacheControl(meme, request);
+            if (HttpCaching.sendNotModified(etag, meme.create(), cacheControl, request, response)) return;
+            HttpCaching.setHeaders(etag, meme.create(), cacheControl, response);
+
+            if (derivative.isPresent())
+                send(derivative.get(), request, response);
+            else
+                RangedFileSender.send(original, new MediaType("image", meme.extension()), request, response);
         } else {
             response.getWriter().printf("Cannot preview %s files%n", meme.extension());
             response.setStatus(400);
@@ -112,26 +330,60 @@ public class MemeController {
     }
 
     @GetMapping(value = "/{id}/download")
-    public void download(@PathVariable("id") long id, HttpServletResponse response) throws IOException {
+    public void download(@PathVariable("id") long id, HttpServletRequest request, HttpServletResponse response) throws IOException {
         final var meme = memeRepository.findById(id).orElseThrow(NoSuchMemeError::new);
 
-        response.setContentType(MediaType.APPLICATION_OCTET_STREAM_VALUE);
-
         if (meme.type() == MemesType.file) {
+            final var file = memeService.getImageFile(meme);
+            final var etag = etag(meme, null);
+            if (HttpCaching.sendNotModified(etag, meme.create(), HttpCaching.REVALIDATE, request, response)) return;
+            HttpCaching.setHeaders(etag, meme.create(), HttpCaching.REVALIDATE, response);
             response.setHeader("Content-Disposition", "attachment; filename=" + meme.fileName());
-            memeService.getImageTo(meme, response.getOutputStream());
+            RangedFileSender.send(file, MediaType.APPLICATION_OCTET_STREAM, request, response);
         } else if (meme.type() == MemesType.note) {
+            response.setContentType(MediaType.APPLICATION_OCTET_STREAM_VALUE);
             response.setHeader("Content-Disposition", "attachment; filename=" + meme.fileName() + ".md");
             response.getWriter().print(meme.description());
+            response.setStatus(200);
         } else {
             throw new InvalidMemeException("You can only download memes of type `file` or `note`");
         }
+    }
+
+    /**
+     * Finds memes that look like this one, i.e. whose perceptual hashes differ in at most
+     * distance bits, which can't exceed the configured maximum. Waits for the hash to be computed,
+     * if needed, up to the thumbnail wait.
+     */
+    @GetMapping(value = "/{id}/similar", produces = MediaType.APPLICATION_JSON_VALUE)
+    public List<SimilarMeme> similar(@PathVariable("id") long id,
+                                     @RequestParam(value = "distance", required = false) Integer distance) {
+        final var meme = memeService.getMeme(id).orElseThrow(NoSuchMemeError::new);
+        if (distance != null) distance = Math.max(0, Math.min(memendexProperties.similarity().maxDistance(), distance));
+        return memeService.findSimilar(meme, distance);
+    }
 
-        response.setStatus(200);
+    /**
+     * Uploads a meme of type file sending the file as the request body, which is streamed
+     * straight into the upload location.
+     */
+    @PostMapping(value = "upload/stream")
+    public UploadedMeme uploadStream(@RequestParam("fileName") String fileName,
+                                     @RequestParam(value = "description", required = false, defaultValue = "") String description,
+                                     @RequestParam(value = "checkDuplicates", required = false, defaultValue = "false") boolean checkDuplicates,
+                                     HttpServletRequest request) throws IOException {
+        if (request.getContentType() == null)
+            throw new InvalidMemeException("The Content-Type header is required");
+        final var meme = memeService.saveMeme(description, fileName, request.getContentType(), request.getInputStream());
+        return new UploadedMeme(meme, checkDuplicates ? memeService.findSimilar(meme, null) : null);
     }
 
+    /**
+     * Uploads a meme. When checkDuplicates is true, the response lists the memes that look like
+     * the uploaded file, which takes up to the thumbnail wait longer.
+     */
     @PostMapping(value = "upload", consumes = { MediaType.MULTIPART_FORM_DATA_VALUE })
-    public Meme upload(MultipartHttpServletRequest request, HttpServletResponse response) throws IOException {
+    public UploadedMeme upload(MultipartHttpServletRequest request, HttpServletResponse response) throws IOException {
         // @RequestPart("meme") MultipartFile meme, @RequestPart("description") String description
         var type = MemesType.valueOf(Objects.requireNonNull(request.getParameter("type"), "The type parameter is missing and it's required"));
         var description = Objects.requireNonNullElse(request.getParameter("description"), "");
@@ -139,15 +391,17 @@ public class MemeController {
         if (type == MemesType.file) {
             var file = request.getFile("file");
             if (file == null) throw new InvalidMemeException("For type `file`, the `file` form-part is required");
-            return memeService.saveMeme(description, file);
+            var meme = memeService.saveMeme(description, file);
+            var checkDuplicates = Boolean.parseBoolean(request.getParameter("checkDuplicates"));
+            return new UploadedMeme(meme, checkDuplicates ? memeService.findSimilar(meme, null) : null);
         } else if (type == MemesType.link) {
             var link = request.getParameter("link");
             if (link == null) throw new InvalidMemeException("For type `link`, the `link` form-part is required");
-            return memeService.saveBookmark(description, link);
+            return new UploadedMeme(memeService.saveBookmark(description, link), null);
         } else if (type == MemesType.note) {
             var title = request.getParameter("title");
             if (title == null) throw new InvalidMemeException("For type `note`, the `title` form-part is required");
-            return memeService.saveNote(description, title);
+            return new UploadedMeme(memeService.saveNote(description, title), null);
         }
 
         System.out.println(request.getParameter("description"));
@@ -164,4 +418,13 @@ public class MemeController {
         return memeService.enrich(memeService.getMeme(meme.id()).orElseThrow(NoSuchMemeError::new));
     }
 
+    /**
+     * Adds, removes or replaces the tags of many memes at once, selected by id or by a search
+     * and/or tag filter. Runs in a single transaction.
+     */
+    @PatchMapping(value = "tags", consumes = { MediaType.APPLICATION_JSON_VALUE })
+    public BulkTagEditResult editTags(@RequestBody BulkTagEdit edit) {
+        return memeService.editTags(edit);
+    }
+
 }
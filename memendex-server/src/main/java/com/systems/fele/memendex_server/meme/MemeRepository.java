@@ -2,18 +2,24 @@ package com.systems.fele.memendex_server.meme;
 
 import com.systems.fele.memendex_server.MemendexProperties;
 import com.systems.fele.memendex_server.exception.NoSuchMemeError;
-import com.systems.fele.memendex_server.model.Meme;
-import com.systems.fele.memendex_server.model.MemePayload;
-import com.systems.fele.memendex_server.model.MemesType;
+import com.systems.fele.memendex_server.model.*;
+import com.systems.fele.memendex_server.search.MemeFullTextIndex;
+import com.systems.fele.memendex_server.search.MemeSearchIndex;
+import com.systems.fele.memendex_server.tag.TagPostings;
+import com.systems.fele.memendex_server.util.IdBitmap;
 import org.springframework.dao.DataAccessException;
+import org.springframework.jdbc.core.BatchPreparedStatementSetter;
 import org.springframework.jdbc.core.JdbcTemplate;
 import org.springframework.jdbc.core.namedparam.MapSqlParameterSource;
 import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
 import org.springframework.jdbc.support.GeneratedKeyHolder;
 import org.springframework.jdbc.support.KeyHolder;
 import org.springframework.stereotype.Repository;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
 
 import java.io.File;
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
@@ -22,20 +28,47 @@ import java.time.Instant;
 import java.time.LocalDateTime;
 import java.time.ZoneId;
 import java.time.ZonedDateTime;
-import java.util.Arrays;
-import java.util.List;
-import java.util.Objects;
-import java.util.Optional;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.function.ToIntFunction;
 import java.util.stream.Collectors;
 
 @Repository
 public class MemeRepository {
+    /**
+     * Sets up to this size are sorted in memory by {@link #listIdsIn}, larger ones are found by walking the index.
+     */
+    private static final int SORTED_LOOKUP_MAX = 10_000;
+    private static final int MAX_SCAN_BATCH = 65_536;
+
     private final JdbcTemplate jdbcTemplate;
     private final MemendexProperties memendexProperties;
+    private final MemeSearchIndex memeSearchIndex;
+    private final MemeFullTextIndex memeFullTextIndex;
+    private final TagPostings tagPostings;
+    private final LibraryGeneration libraryGeneration;
+
+    /**
+     * Number of memes in the table, as of the last commit. Negative until first counted.
+     */
+    private final AtomicLong totalCount = new AtomicLong(-1);
+    /**
+     * Writes that change the number of memes and haven't committed or rolled back yet, and how many
+     * did. Counting the table only sets {@link #totalCount} when no write raced it.
+     */
+    private final AtomicInteger writesInFlight = new AtomicInteger();
+    private final AtomicLong writesFinished = new AtomicLong();
 
-    public MemeRepository(JdbcTemplate jdbcTemplate, MemendexProperties memendexProperties) {
+    public MemeRepository(JdbcTemplate jdbcTemplate, MemendexProperties memendexProperties, MemeSearchIndex memeSearchIndex, MemeFullTextIndex memeFullTextIndex, TagPostings tagPostings, LibraryGeneration libraryGeneration) {
         this.jdbcTemplate = jdbcTemplate;
         this.memendexProperties = memendexProperties;
+        this.memeSearchIndex = memeSearchIndex;
+        this.memeFullTextIndex = memeFullTextIndex;
+        this.tagPostings = tagPostings;
+        this.libraryGeneration = libraryGeneration;
     }
 
     /**
@@ -48,6 +81,125 @@ public class MemeRepository {
         return jdbcTemplate.query("SELECT * FROM MEMES WHERE id = ? LIMIT 1", MemeRepository::mapRowToMeme, id).stream().findFirst();
     }
 
+    /**
+     * Finds all memes with the given ids. Ids that don't exist are skipped.
+     *
+     * @param ids ids of the memes
+     * @return The memes found, in the same order as the ids
+     */
+    public List<Meme> findAllById(List<Long> ids) {
+        if (ids.isEmpty()) return List.of();
+
+        var memes = new NamedParameterJdbcTemplate(jdbcTemplate)
+                .query("SELECT * FROM MEMES WHERE id IN (:ids)", Map.of("ids", ids), MemeRepository::mapRowToMeme)
+                .stream()
+                .collect(Collectors.toMap(Meme::id, Function.identity()));
+
+        return ids.stream().map(memes::get).filter(Objects::nonNull).toList();
+    }
+
+    /**
+     * Filters out the ids of memes that don't exist, with a single query.
+     *
+     * @param ids ids of the memes
+     * @return the ids that exist, in ascending order
+     */
+    public List<Long> findExistingIds(Collection<Long> ids) {
+        if (ids.isEmpty()) return List.of();
+        return new NamedParameterJdbcTemplate(jdbcTemplate)
+                .queryForList("SELECT id FROM MEMES WHERE id IN (:ids) ORDER BY id", Map.of("ids", ids), Long.class);
+    }
+
+    /**
+     * Finds a meme whose file has the given content hash.
+     *
+     * @param contentHash hex SHA-256 of the file contents
+     * @return Optional object containing the Meme, if there`s any
+     */
+    public Optional<Meme> findByContentHash(String contentHash) {
+        return jdbcTemplate.query("SELECT * FROM MEMES WHERE content_hash = ? ORDER BY id LIMIT 1", MemeRepository::mapRowToMeme, contentHash).stream().findFirst();
+    }
+
+    /**
+     * Finds, for each content hash, a meme whose file has it, with a single query.
+     *
+     * @param contentHashes hex SHA-256 of file contents
+     * @return map of content hash to the meme with the lowest id. Hashes without memes are absent
+     */
+    public Map<String, Meme> findByContentHashes(Collection<String> contentHashes) {
+        if (contentHashes.isEmpty()) return Map.of();
+
+        var memes = new HashMap<String, Meme>();
+        new NamedParameterJdbcTemplate(jdbcTemplate).query("SELECT * FROM MEMES WHERE content_hash IN (:hashes) ORDER BY id",
+                Map.of("hashes", contentHashes),
+                rs -> {
+                    memes.putIfAbsent(rs.getString("content_hash"), mapRowToMeme(rs, 0));
+                });
+        return memes;
+    }
+
+    /**
+     * Inserts many memes with a single batch. Like {@link #insert(MemePayload)}, this method does
+     * not handle file saving. Callers run it in a transaction when the batch must be inserted as a whole.
+     *
+     * @param memePayloads  The memes to be inserted
+     * @param contentHashes hex SHA-256 of each meme file contents. Items may be null
+     * @return The newly created memes, in the same order
+     */
+    public List<Meme> insertAll(List<MemePayload> memePayloads, List<String> contentHashes) {
+        if (memePayloads.isEmpty()) return List.of();
+
+        final var createdDate = ZonedDateTime.now();
+        final var keyHolder = new GeneratedKeyHolder();
+        counted(() -> jdbcTemplate.batchUpdate(
+                con -> con.prepareStatement("INSERT INTO memes (type_id, filename, description, extension, content_hash, created_at) VALUES (?, ?, ?, ?, ?, ?)",
+                        Statement.RETURN_GENERATED_KEYS),
+                new BatchPreparedStatementSetter() {
+                    @Override
+                    public void setValues(PreparedStatement stmt, int i) throws SQLException {
+                        var memePayload = memePayloads.get(i);
+                        stmt.setInt(1, memePayload.type().getId());
+                        stmt.setString(2, memePayload.fileName());
+                        stmt.setString(3, memePayload.description());
+                        stmt.setString(4, memePayload.extension());
+                        stmt.setString(5, contentHashes.get(i));
+                        stmt.setTimestamp(6, Timestamp.from(Instant.from(createdDate)));
+                    }
+
+                    @Override
+                    public int getBatchSize() {
+                        return memePayloads.size();
+                    }
+                }, keyHolder), inserted -> memePayloads.size());
+
+        final var ids = keyHolder.getKeyList().stream().map(keys -> ((Number) keys.get("id")).longValue()).toList();
+        if (ids.size() != memePayloads.size())
+            throw new RuntimeException("There was an error retrieving the generated keys!");
+
+        afterCommit(() -> tagPostings.addMemes(ids));
+        libraryGeneration.increment();
+        afterCommit(() -> {
+            for (int i = 0; i < memePayloads.size(); i++) {
+                var memePayload = memePayloads.get(i);
+                memeSearchIndex.put(ids.get(i), memePayload.fileName(), memePayload.description());
+                memeFullTextIndex.put(ids.get(i), memePayload.fileName(), memePayload.description());
+            }
+        });
+        var memes = new ArrayList<Meme>(memePayloads.size());
+        for (int i = 0; i < memePayloads.size(); i++) {
+            var memePayload = memePayloads.get(i);
+            memes.add(new Meme(ids.get(i),
+                    memePayload.type(),
+                    memePayload.fileName(),
+                    memePayload.description(),
+                    memePayload.extension(),
+                    createdDate,
+                    null,
+                    contentHashes.get(i)));
+        }
+        return memes;
+    }
+
     /**
      * Inserts a meme into the repository. This method does not handle
      * file saving, only database operations.
@@ -56,28 +208,72 @@ public class MemeRepository {
      * @return The newly created meme, with the generated id
      */
     public Meme insert(MemePayload memePayload) {
+        return insert(memePayload, null);
+    }
+
+    /**
+     * Same as {@link #insert(MemePayload)}, also saving the hash of the file contents.
+     *
+     * @param memePayload The meme to be inserted.
+     * @param contentHash hex SHA-256 of the file contents. May be null
+     * @return The newly created meme, with the generated id
+     */
+    public Meme insert(MemePayload memePayload, String contentHash) {
         KeyHolder keyHolder = new GeneratedKeyHolder();
         var createdDate = ZonedDateTime.now();
-        jdbcTemplate.update(con -> {
-            var stmt = con.prepareStatement("INSERT INTO memes (type_id, filename, description, extension, created_at) VALUES (?, ?, ?, ?, ?)", Statement.RETURN_GENERATED_KEYS);
+
+        counted(() -> jdbcTemplate.update(con -> {
+            var stmt = con.prepareStatement("INSERT INTO memes (type_id, filename, description, extension, content_hash, created_at) VALUES (?, ?, ?, ?, ?, ?)", Statement.RETURN_GENERATED_KEYS);
             stmt.setInt(1, memePayload.type().getId());
             stmt.setString(2, memePayload.fileName());
             stmt.setString(3, memePayload.description());
             stmt.setString(4, memePayload.extension());
-            stmt.setTimestamp(5, Timestamp.from(Instant.from(createdDate)));
+            stmt.setString(5, contentHash);
+            stmt.setTimestamp(6, Timestamp.from(Instant.from(createdDate)));
             return stmt;
-        }, keyHolder);
+        }, keyHolder), inserted -> inserted);
 
         var keys = keyHolder.getKeys();
         if (keys == null) throw new RuntimeException("There was an error retrieving the generated key!");
 
-        return new Meme((Long) keys.get("id"),
+        final var id = (Long) keys.get("id");
+        afterCommit(() -> {
+            memeSearchIndex.put(id, memePayload.fileName(), memePayload.description());
+            memeFullTextIndex.put(id, memePayload.fileName(), memePayload.description());
+        });
+        afterCommit(() -> tagPostings.addMemes(List.of(id)));
+        libraryGeneration.increment();
+
+        return new Meme(id,
                 memePayload.type(),
                 memePayload.fileName(),
                 memePayload.description(),
                 memePayload.extension(),
                 createdDate,
-                null);
+                null,
+                contentHash);
+    }
+
+    /**
+     * Deletes memes with a single statement, e.g. the ones whose file couldn't be stored. This method
+     * does not handle files, and the memes must have no tags nor perceptual hashes.
+     *
+     * @param ids ids of the memes
+     */
+    public void deleteAll(Collection<Long> ids) {
+        if (ids.isEmpty()) return;
+
+        counted(() -> new NamedParameterJdbcTemplate(jdbcTemplate)
+                .update("DELETE FROM memes WHERE id IN (:ids)", Map.of("ids", ids)), deleted -> -deleted);
+
+        afterCommit(() -> {
+            for (var id : ids) {
+                memeSearchIndex.remove(id);
+                memeFullTextIndex.remove(id);
+            }
+        });
+        afterCommit(() -> tagPostings.removeMemes(ids));
+        libraryGeneration.increment();
     }
 
     private static ZonedDateTime convertToZonedDateTimeUsingLocalDateTime(Timestamp timestamp) {
@@ -94,7 +290,8 @@ public class MemeRepository {
                 rs.getString("description"),
                 rs.getString("extension"),
                 convertToZonedDateTimeUsingLocalDateTime(rs.getTimestamp("created_at")),
-                convertToZonedDateTimeUsingLocalDateTime(rs.getTimestamp("updated_at")));
+                convertToZonedDateTimeUsingLocalDateTime(rs.getTimestamp("updated_at")),
+                rs.getString("content_hash"));
     }
 
     @Deprecated
@@ -102,36 +299,232 @@ public class MemeRepository {
         return jdbcTemplate.query("SELECT * FROM MEMES", MemeRepository::mapRowToMeme);
     }
 
+    /**
+     * Returns the number of memes. The table is only counted once, after that the counter is
+     * maintained by the inserts as they commit.
+     *
+     * @return number of memes
+     */
     public int getTotalCount() {
-        return Objects.requireNonNull(jdbcTemplate.queryForObject("SELECT COUNT(id) FROM MEMES", Integer.class));
+        var count = totalCount.get();
+        if (count >= 0) return (int) count;
+
+        final var finished = writesFinished.get();
+        final var idle = writesInFlight.get() == 0;
+        count = Objects.requireNonNull(jdbcTemplate.queryForObject("SELECT COUNT(id) FROM MEMES", Long.class));
+        // A write that committed around the count may or may not be in it: count again next time
+        if (idle && totalCount.compareAndSet(-1, count) && (writesInFlight.get() > 0 || writesFinished.get() != finished))
+            totalCount.set(-1);
+        return (int) count;
+    }
+
+    /**
+     * Runs a write that adds memes to the table, or removes them, and updates the counter once it
+     * commits. Writes outside a transaction commit as they return.
+     *
+     * @param write the write
+     * @param delta number of memes the write added, negative if it removed them
+     */
+    private <T> T counted(Supplier<T> write, ToIntFunction<T> delta) {
+        writesInFlight.incrementAndGet();
+        final T result;
+        try {
+            result = write.get();
+        } catch (RuntimeException e) {
+            finishWrite(0);
+            throw e;
+        }
+
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCompletion(int status) {
+                    finishWrite(status == STATUS_COMMITTED ? delta.applyAsInt(result) : 0);
+                }
+            });
+        } else {
+            finishWrite(delta.applyAsInt(result));
+        }
+        return result;
     }
 
-    public List<Meme> listPaginated(int pageNum, int pageSize) {
+    /**
+     * Applies a change to the in-memory indexes once the current transaction commits, or right away
+     * outside of one, so writes that are rolled back never show up in them.
+     */
+    private static void afterCommit(Runnable change) {
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCommit() {
+                    change.run();
+                }
+            });
+        } else {
+            change.run();
+        }
+    }
+
+    private void finishWrite(long delta) {
+        totalCount.updateAndGet(count -> count < 0 ? count : count + delta);
+        writesFinished.incrementAndGet();
+        writesInFlight.decrementAndGet();
+    }
+
+    /**
+     * Lists memes using offset pagination. Prefer {@link #listAfter(MemeSort, boolean, PageCursor, int)},
+     * as deep pages get slower here.
+     *
+     * @param sort       sort order
+     * @param descending whether to reverse the order
+     * @param pageNum    page to fetch, starting at 1
+     * @param pageSize   maximum number of memes to return
+     * @return memes of the page
+     */
+    public List<Meme> listPaginated(MemeSort sort, boolean descending, int pageNum, int pageSize) {
         if (pageNum == 0) pageNum = 1;
 
-        return jdbcTemplate.query("SELECT * FROM MEMES OFFSET ? FETCH FIRST ? ROWS ONLY", MemeRepository::mapRowToMeme, (pageNum - 1) * pageSize, pageSize);
+        final var direction = descending ? "DESC" : "ASC";
+        return jdbcTemplate.query("SELECT * FROM MEMES ORDER BY %1$s %2$s NULLS LAST, id %2$s OFFSET ? FETCH FIRST ? ROWS ONLY".formatted(sort.getColumn(), direction),
+                MemeRepository::mapRowToMeme, (long) (pageNum - 1) * pageSize, pageSize);
     }
 
     /**
-     * Executes a fuzzy search in memes by using both filename and description fields.
+     * Lists memes using keyset pagination, starting right after the cursor. Each page is a range scan
+     * over the (column, id) index, so it costs the same regardless of how deep it is.
+     * Memes with a null sort value always come last.
+     *
+     * @param sort       sort order
+     * @param descending whether to reverse the order
+     * @param after      position to start after. Null for the first page
+     * @param limit      maximum number of memes to return
+     * @return memes of the page
+     */
+    public List<Meme> listAfter(MemeSort sort, boolean descending, PageCursor after, int limit) {
+        final var direction = descending ? "DESC" : "ASC";
+        final var comparison = descending ? "<" : ">";
+        final var startId = descending ? Long.MAX_VALUE : Long.MIN_VALUE;
+
+        if (sort == MemeSort.id) {
+            return jdbcTemplate.query("SELECT * FROM memes WHERE id %s ? ORDER BY id %s FETCH FIRST ? ROWS ONLY".formatted(comparison, direction),
+                    MemeRepository::mapRowToMeme, after == null ? startId : after.id(), limit);
+        }
+
+        final var column = sort.getColumn();
+        var memes = new ArrayList<Meme>();
+        if (after == null) {
+            memes.addAll(jdbcTemplate.query("SELECT * FROM memes WHERE %1$s IS NOT NULL ORDER BY %1$s %2$s, id %2$s FETCH FIRST ? ROWS ONLY".formatted(column, direction),
+                    MemeRepository::mapRowToMeme, limit));
+        } else if (after.value() != null) {
+            memes.addAll(jdbcTemplate.query("SELECT * FROM memes WHERE (%1$s, id) %3$s (?, ?) ORDER BY %1$s %2$s, id %2$s FETCH FIRST ? ROWS ONLY".formatted(column, direction, comparison),
+                    MemeRepository::mapRowToMeme, Timestamp.from(after.value()), after.id(), limit));
+        }
+
+        if (memes.size() < limit) {
+            final var afterId = after == null || after.value() != null ? startId : after.id();
+            memes.addAll(jdbcTemplate.query("SELECT * FROM memes WHERE %1$s IS NULL AND id %3$s ? ORDER BY id %2$s FETCH FIRST ? ROWS ONLY".formatted(column, direction, comparison),
+                    MemeRepository::mapRowToMeme, afterId, limit - memes.size()));
+        }
+
+        return memes;
+    }
+
+    /**
+     * Lists the ids of the memes in a set, in the same order as {@link #listAfter(MemeSort, boolean, PageCursor, int)}.
      * <p></p>
-     * Notes:
-     * pageSize + 1 elements will be queried. This is used to guess if it has reached the
-     * end of our query. So when calculating the has next property, check if the size of
-     * the returned list is greater than the requested. Also remember to trim the result
-     * in this case.
+     * Small sets are read by id and sorted here. Larger ones are found by walking the (column, id)
+     * index in growing batches and skipping the memes not in the set, so the first pages don't
+     * need the whole set sorted.
      *
-     * @param query    The search term
-     * @param pageNum  Current page to fetch
-     * @param pageSize Maximum number of elements to return + 1. See notes.
-     * @return Memes filtered
+     * @param sort       sort order, other than {@link MemeSort#id}
+     * @param descending whether to reverse the order
+     * @param after      position to start after. Null to start from the beginning
+     * @param offset     number of memes of the set to skip
+     * @param limit      maximum number of ids to return
+     * @param memes      the set
+     * @return ids of the page
      */
-    public List<Meme> powerSearch(String query, int pageNum, int pageSize) {
-        return jdbcTemplate.query("""
-                SELECT * FROM memes
-                WHERE TOKEN_SET_PARTIAL_RATIO(description, ?) > 85 OR TOKEN_SET_PARTIAL_RATIO(filename, ?) > 85
-                OFFSET ? FETCH FIRST ? ROWS ONLY
-                """, MemeRepository::mapRowToMeme, query, query, (pageNum - 1) * pageSize, pageSize + 1);
+    public List<Long> listIdsIn(MemeSort sort, boolean descending, PageCursor after, int offset, int limit, IdBitmap memes) {
+        final var column = sort.getColumn();
+        final var ids = new ArrayList<Long>(limit);
+
+        if (memes.cardinality() <= SORTED_LOOKUP_MAX) {
+            var values = new ArrayList<Long>();
+            memes.forEach(values::add);
+
+            record Row(long id, Timestamp value) {
+            }
+            Comparator<Row> order = Comparator.comparing(Row::value, Comparator.nullsLast(Comparator.naturalOrder()))
+                    .thenComparingLong(Row::id);
+            final var rows = new ArrayList<Row>();
+            jdbcTemplate.query("SELECT id, %s AS sort_value FROM memes WHERE id = ANY(?)".formatted(column),
+                    rs -> {
+                        rows.add(new Row(rs.getLong("id"), rs.getTimestamp("sort_value")));
+                    }, (Object) values.toArray(Long[]::new));
+
+            // Nulls always come last, whatever the direction
+            if (descending) order = Comparator.comparing((Row row) -> row.value() == null).thenComparing(order.reversed());
+            rows.sort(order);
+
+            var start = 0;
+            if (after != null) {
+                var cursor = new Row(after.id(), after.value() == null ? null : Timestamp.from(after.value()));
+                while (start < rows.size() && order.compare(rows.get(start), cursor) <= 0) start++;
+            }
+            for (int i = start + offset; i < rows.size() && ids.size() < limit; i++) ids.add(rows.get(i).id());
+            return ids;
+        }
+
+        final var direction = descending ? "DESC" : "ASC";
+        final var comparison = descending ? "<" : ">";
+        final var skip = new int[] { offset };
+        var batch = limit * 4;
+
+        if (after == null || after.value() != null) {
+            Object[] position = after == null ? null : new Object[] { Timestamp.from(after.value()), after.id() };
+            while (ids.size() < limit) {
+                final var last = new Object[2];
+                final var read = new int[1];
+                final var sql = position == null
+                        ? "SELECT id, %1$s AS sort_value FROM memes WHERE %1$s IS NOT NULL ORDER BY %1$s %2$s, id %2$s FETCH FIRST ? ROWS ONLY".formatted(column, direction)
+                        : "SELECT id, %1$s AS sort_value FROM memes WHERE (%1$s, id) %3$s (?, ?) ORDER BY %1$s %2$s, id %2$s FETCH FIRST ? ROWS ONLY".formatted(column, direction, comparison);
+                final var params = position == null ? new Object[] { batch } : new Object[] { position[0], position[1], batch };
+                jdbcTemplate.query(sql, rs -> {
+                    var id = rs.getLong("id");
+                    last[0] = rs.getTimestamp("sort_value");
+                    last[1] = id;
+                    read[0]++;
+                    collect(id, memes, skip, ids, limit);
+                }, params);
+
+                if (read[0] < batch) break;
+                position = last;
+                batch = Math.min(batch * 4, MAX_SCAN_BATCH);
+            }
+        }
+
+        var afterId = after == null || after.value() != null ? (descending ? Long.MAX_VALUE : Long.MIN_VALUE) : after.id();
+        while (ids.size() < limit) {
+            final var last = new long[1];
+            final var read = new int[1];
+            jdbcTemplate.query("SELECT id FROM memes WHERE %1$s IS NULL AND id %3$s ? ORDER BY id %2$s FETCH FIRST ? ROWS ONLY".formatted(column, direction, comparison),
+                    rs -> {
+                        last[0] = rs.getLong("id");
+                        read[0]++;
+                        collect(last[0], memes, skip, ids, limit);
+                    }, afterId, batch);
+
+            if (read[0] < batch) break;
+            afterId = last[0];
+            batch = Math.min(batch * 4, MAX_SCAN_BATCH);
+        }
+        return ids;
+    }
+
+    private static void collect(long id, IdBitmap memes, int[] skip, List<Long> ids, int limit) {
+        if (ids.size() >= limit || !memes.contains(id)) return;
+        if (skip[0] > 0) skip[0]--;
+        else ids.add(id);
     }
 
     /**
@@ -167,6 +560,7 @@ public class MemeRepository {
                 " WHERE id = :id";
 
         new NamedParameterJdbcTemplate(jdbcTemplate).update(sql, params);
+        reindex(id);
     }
 
     /**
@@ -211,6 +605,15 @@ public class MemeRepository {
             if (newFile != null) newFile.renameTo(originalFile);
             throw e;
         }
+        reindex(meme.id());
+    }
+
+    private void reindex(long id) {
+        libraryGeneration.increment();
+        findById(id).ifPresent(meme -> afterCommit(() -> {
+            memeSearchIndex.put(meme.id(), meme.fileName(), meme.description());
+            memeFullTextIndex.put(meme.id(), meme.fileName(), meme.description());
+        }));
     }
 
     /**
@@ -224,5 +627,21 @@ public class MemeRepository {
                 SET updated_at = CURRENT_TIMESTAMP(2)
                 WHERE id = ?
                 """, id);
+        libraryGeneration.increment();
+    }
+
+    /**
+     * Same as {@link #touch(long)}, for many memes with a single statement.
+     *
+     * @param ids meme ids
+     */
+    public void touchAll(Collection<Long> ids) {
+        if (ids.isEmpty()) return;
+        new NamedParameterJdbcTemplate(jdbcTemplate).update("""
+                UPDATE memes
+                SET updated_at = CURRENT_TIMESTAMP(2)
+                WHERE id IN (:ids)
+                """, Map.of("ids", ids));
+        libraryGeneration.increment();
     }
 }
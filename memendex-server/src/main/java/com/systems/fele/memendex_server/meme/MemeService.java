@@ -3,52 +3,116 @@ package com.systems.fele.memendex_server.meme;
 import com.systems.fele.memendex_server.MemendexProperties;
 import com.systems.fele.memendex_server.exception.NoSuchMemeError;
 import com.systems.fele.memendex_server.model.*;
-import com.systems.fele.memendex_server.tag.TagRepository;
+import com.systems.fele.memendex_server.thumbnail.DerivativeCache;
+import com.systems.fele.memendex_server.thumbnail.DerivativeSize;
+import com.systems.fele.memendex_server.thumbnail.SpriteSheets;
+import com.systems.fele.memendex_server.thumbnail.ThumbnailPipeline;
+import com.systems.fele.memendex_server.thumbnail.ThumbnailRenderer;
+import com.systems.fele.memendex_server.similarity.BkTree;
+import com.systems.fele.memendex_server.search.FullTextIndex;
+import com.systems.fele.memendex_server.search.MemeFullTextIndex;
+import com.systems.fele.memendex_server.search.MemeSearchIndex;
+import com.systems.fele.memendex_server.search.SearchResultCache;
+import com.systems.fele.memendex_server.similarity.SimilarityIndex;
+import com.systems.fele.memendex_server.storage.ContentStore;
+import com.systems.fele.memendex_server.tag.TagFilter;
+import com.systems.fele.memendex_server.tag.TagPostings;
 import com.systems.fele.memendex_server.util.FileSystemUtils;
-import jakarta.servlet.ServletOutputStream;
-import org.apache.tomcat.util.http.fileupload.IOUtils;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
 import org.springframework.http.MediaType;
 import org.springframework.stereotype.Service;
 import org.springframework.web.multipart.MultipartFile;
 
 import javax.imageio.ImageIO;
 import java.awt.*;
-import java.awt.geom.AffineTransform;
 import java.awt.image.BufferedImage;
-import java.awt.image.RenderedImage;
 import java.io.*;
+import java.nio.file.Files;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Optional;
-import java.util.stream.LongStream;
+import java.util.OptionalLong;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Function;
+import java.util.stream.Collectors;
 
 @Service
 public class MemeService {
+    private static final int CACHED_SEARCH_RESULTS = 1000;
+
     private final MemendexProperties memendexProperties;
     private final MemeRepository memeRepository;
-    private final File cacheDir;
-    private final TagRepository tagRepository;
     private final TagToMemeRepository tagToMemeRepository;
-
-    public MemeService(MemendexProperties memendexProperties, MemeRepository memeRepository, TagRepository tagRepository, TagToMemeRepository tagToMemeRepository) {
+    private final TagToMemeService tagToMemeService;
+    private final ThumbnailPipeline thumbnailPipeline;
+    private final DerivativeCache derivativeCache;
+    private final ThumbnailRenderer thumbnailRenderer;
+    private final ContentStore contentStore;
+    private final SimilarityIndex similarityIndex;
+    private final TagPostings tagPostings;
+    private final MemeFullTextIndex memeFullTextIndex;
+    private final MemeSearchIndex memeSearchIndex;
+    private final SearchResultCache searchResultCache;
+    private final SpriteSheets spriteSheets;
+    private final Map<DerivativeSize, Counter> cacheHits = new EnumMap<>(DerivativeSize.class);
+    private final Map<DerivativeSize, Counter> cacheMisses = new EnumMap<>(DerivativeSize.class);
+    private volatile byte[] placeholderThumbnail;
+
+    public MemeService(MemendexProperties memendexProperties, MemeRepository memeRepository, TagToMemeRepository tagToMemeRepository, TagToMemeService tagToMemeService, ThumbnailPipeline thumbnailPipeline, DerivativeCache derivativeCache, ThumbnailRenderer thumbnailRenderer, ContentStore contentStore, SimilarityIndex similarityIndex, TagPostings tagPostings, MemeFullTextIndex memeFullTextIndex, MemeSearchIndex memeSearchIndex, SearchResultCache searchResultCache, SpriteSheets spriteSheets, MeterRegistry meterRegistry) {
         this.memendexProperties = memendexProperties;
         this.memeRepository = memeRepository;
-        this.cacheDir = new File(memendexProperties.cache(), "thumbnails");
-        this.tagRepository = tagRepository;
         this.tagToMemeRepository = tagToMemeRepository;
+        this.tagToMemeService = tagToMemeService;
+        this.thumbnailPipeline = thumbnailPipeline;
+        this.derivativeCache = derivativeCache;
+        this.thumbnailRenderer = thumbnailRenderer;
+        this.contentStore = contentStore;
+        this.similarityIndex = similarityIndex;
+        this.tagPostings = tagPostings;
+        this.memeFullTextIndex = memeFullTextIndex;
+        this.memeSearchIndex = memeSearchIndex;
+        this.searchResultCache = searchResultCache;
+        this.spriteSheets = spriteSheets;
+        for (var size : DerivativeSize.values()) {
+            cacheHits.put(size, cacheRequests(meterRegistry, size, "hit"));
+            cacheMisses.put(size, cacheRequests(meterRegistry, size, "miss"));
+        }
+    }
 
-        if (!cacheDir.exists()) cacheDir.mkdirs();
+    public MemeDetailed enrich(Meme meme) {
+        return enrich(List.of(meme)).get(0);
+    }
 
+    /**
+     * @return the version of the file of a meme and of how its derivatives are rendered, see
+     * {@link MemeDetailed#version()}
+     */
+    public static String cacheVersion(Meme meme) {
+        return "%s-%s".formatted(meme.contentVersion(), DerivativeCache.RENDER_VERSION);
     }
 
-    public MemeDetailed enrich(Meme meme) {
-        var tagIds = tagToMemeRepository.getTagsRelatedToMeme(meme.id());
-        var tags = LongStream.of(tagIds)
-                .mapToObj(tagRepository::getTag)
-                .filter(Optional::isPresent)
-                .map(Optional::get)
-                .map(Tag::toString)
+    /**
+     * Adds the tags to a page of memes. Tags for the whole page are loaded at once.
+     *
+     * @param memes memes to enrich
+     * @return the detailed memes, in the same order
+     */
+    public List<MemeDetailed> enrich(List<Meme> memes) {
+        var tagsByMeme = tagToMemeRepository.getTagsRelatedToMemes(memes.stream().map(Meme::id).collect(Collectors.toSet()));
+        return memes.stream()
+                .map(meme -> {
+                    var tags = tagsByMeme.getOrDefault(meme.id(), List.of()).stream().map(Tag::toString).toList();
+                    return new MemeDetailed(meme.id(), meme.type(), meme.fileName(), meme.description(), meme.extension(), tags, cacheVersion(meme));
+                })
                 .toList();
-        return new MemeDetailed(meme.id(), meme.type(), meme.fileName(), meme.description(), meme.extension(), tags);
     }
 
     /**
@@ -63,30 +127,58 @@ public class MemeService {
         if (file.getContentType() == null || file.getOriginalFilename() == null)
             throw new RuntimeException("Content-Type of file or file name cannot be null");
 
-        final var mimeType = MediaType.parseMediaType(file.getContentType());
-        final String fileExtension;
-        final boolean processThumbnail;
-        if (Arrays.stream(MimeTypeService.KNOWN_MIME_TYPES).noneMatch(mimeType::equalsTypeAndSubtype)) {
-            fileExtension = Optional.ofNullable(FileSystemUtils.getExtension(file.getOriginalFilename())).orElse("dat");
-            processThumbnail = false;
-        } else {
-            fileExtension = MimeTypeService.mimeToFileExtension(file.getContentType()).orElse("dat");
-            processThumbnail = true;
-        }
+        return saveMeme(description, file.getOriginalFilename(), file.getContentType(), contentStore.receive(file));
+    }
 
-        var meme = memeRepository.insert(new MemePayload(MemesType.file, file.getOriginalFilename(), description, fileExtension));
+    /**
+     * Same as {@link #saveMeme(String, MultipartFile)}, but reading the file contents from a stream.
+     * @param description The description of the meme to create
+     * @param fileName Original file name
+     * @param contentType Content-Type of the file
+     * @param input The file contents
+     * @return The newly created meme
+     * @throws IOException If there`s any IO errors
+     */
+    public Meme saveMeme(String description, String fileName, String contentType, InputStream input) throws IOException {
+        return saveMeme(description, fileName, contentType, contentStore.receive(input));
+    }
 
-        final var fileName = meme.getPhysicalFileName();
-        final var targetFile = new File(memendexProperties.uploadLocation(), fileName);
+    private Meme saveMeme(String description, String originalFileName, String contentType, ContentStore.Received received) throws IOException {
+        try {
+            final var mimeType = MediaType.parseMediaType(contentType);
+            final String fileExtension;
+            final boolean processThumbnail;
+            if (Arrays.stream(MimeTypeService.KNOWN_MIME_TYPES).noneMatch(mimeType::equalsTypeAndSubtype)) {
+                fileExtension = Optional.ofNullable(FileSystemUtils.getExtension(originalFileName)).orElse("dat");
+                processThumbnail = false;
+            } else {
+                fileExtension = MimeTypeService.mimeToFileExtension(contentType).orElse("dat");
+                processThumbnail = true;
+            }
 
-        try (FileOutputStream fos = new FileOutputStream(targetFile)) {
-            IOUtils.copy(file.getInputStream(), fos);
-        }
+            final var sameContent = memeRepository.findByContentHash(received.sha256())
+                    .map(existing -> new File(memendexProperties.uploadLocation(), existing.getPhysicalFileName()))
+                    .orElse(null);
+
+            var meme = memeRepository.insert(new MemePayload(MemesType.file, originalFileName, description, fileExtension), received.sha256());
+            final var target = new File(memendexProperties.uploadLocation(), meme.getPhysicalFileName());
+            try {
+                contentStore.store(received, target, sameContent);
+            } catch (IOException | RuntimeException e) {
+                // A meme without its file would be listed but never served
+                Files.deleteIfExists(target.toPath());
+                memeRepository.deleteAll(List.of(meme.id()));
+                throw e;
+            }
 
-        if (processThumbnail)
-            generateAndSaveThumbnail(meme.id(), fileExtension);
+            // The thumbnail is generated in the background, the upload doesn't wait for it
+            if (processThumbnail)
+                requestDerivative(meme.id(), fileExtension, DerivativeSize.thumbnail);
 
-        return meme;
+            return meme;
+        } finally {
+            contentStore.discard(received);
+        }
     }
 
     /**
@@ -112,48 +204,69 @@ public class MemeService {
     }
 
     /**
-     * Returns the file which is the thumbnail of parameter fileName
+     * Generates a derivative and saves it in the {@link DerivativeCache}
      * @param id meme id
-     * @return The thumbnail {@link File} object
+     * @param extension original file name extension
+     * @param size size of the derivative
+     * @return The cached derivative
+     * @throws IOException If any error
      */
-    public File getThumbnailFileName(long id) {
-        return new File(cacheDir, id +  ".jpeg");
+    private DerivativeCache.Derivative generateAndSaveDerivative(long id, String extension, DerivativeSize size) throws IOException {
+        final var key = new DerivativeCache.Key(id, size);
+        final var cached = derivativeCache.get(key);
+        final var source = new File(memendexProperties.uploadLocation(), id + "." + extension);
+        if (cached.isPresent()) {
+            // Cached without its hash, as when the database was restored but the cache was kept
+            if (size == DerivativeSize.thumbnail && similarityIndex.getHash(id).isEmpty())
+                similarityIndex.put(id, thumbnailRenderer.perceptualHash(source));
+            return cached.get();
+        }
+
+        final var output = new ByteArrayOutputStream();
+        final var perceptualHash = thumbnailRenderer.render(source, size, output);
+        if (size == DerivativeSize.thumbnail) similarityIndex.put(id, perceptualHash);
+        return derivativeCache.put(key, output.toByteArray());
     }
 
     /**
-     * Generates a thumbnail and write it to the file system
+     * Queues the generation of the thumbnail of a meme, without waiting for it. Does nothing for
+     * files that aren't images.
+     * @param meme the meme
+     */
+    public void queueThumbnail(Meme meme) {
+        queueThumbnail(meme.id(), meme.extension());
+    }
+
+    /**
+     * Queues the generation of the thumbnail of a meme of type file, without waiting for it.
      * @param id meme id
      * @param extension original file name extension
-     * @return The thumbnail {@link File} object
-     * @throws IOException If any error
+     * @return the job, completed once the thumbnail is cached. Empty if the file isn't an image
      */
-    private File generateAndSaveThumbnail(long id, String extension) throws IOException {
-        final var thumbnailFile = getThumbnailFileName(id);
-        var thumbImg = generateThumbnail(id + "." + extension);
-        ImageIO.write(thumbImg, "jpeg", thumbnailFile);
-        return thumbnailFile;
+    public Optional<CompletableFuture<DerivativeCache.Derivative>> queueThumbnail(long id, String extension) {
+        if (!isThumbnailable(extension)) return Optional.empty();
+        return Optional.of(requestDerivative(id, extension, DerivativeSize.thumbnail));
     }
 
-    public BufferedImage generateThumbnail(String fileName) throws IOException {
-        var img = ImageIO.read(new File(memendexProperties.uploadLocation(), fileName));
-        return generateThumbnail(img);
+    /**
+     * @param extension original file name extension
+     * @return whether files with this extension are images that thumbnails can be made of
+     */
+    public boolean isThumbnailable(String extension) {
+        final var mime = MimeTypeService.extensionToMime(extension);
+        return mime.isPresent() && MimeTypeService.isMimeTypeKnown(MediaType.parseMediaType(mime.get()));
     }
 
-    public BufferedImage generateThumbnail(RenderedImage img) throws IOException {
-        double ratio = (double) img.getHeight() / (double) img.getWidth();
-        int desiredHeight = 100;
-        int desiredWidth = (int) (desiredHeight / ratio);
-        BufferedImage bi = getCompatibleImage(desiredWidth, desiredHeight);
-        // var bi = img;
-        Graphics2D g2d = bi.createGraphics();
-
-        double xScale = (double) desiredWidth / img.getWidth();
-        double yScale = (double) desiredHeight / img.getHeight();
-
-        AffineTransform at = AffineTransform.getScaleInstance(xScale,yScale);
-        g2d.drawRenderedImage(img, at);
-        g2d.dispose();
-        return bi;
+    /**
+     * Queues the generation of a derivative in the {@link ThumbnailPipeline}. If it's
+     * already queued, the pending job is returned instead.
+     * @param id meme id
+     * @param extension original file name extension
+     * @param size size of the derivative
+     * @return future completed with the cached derivative
+     */
+    private CompletableFuture<DerivativeCache.Derivative> requestDerivative(long id, String extension, DerivativeSize size) {
+        return thumbnailPipeline.submit(new DerivativeCache.Key(id, size), () -> generateAndSaveDerivative(id, extension, size));
     }
 
     private BufferedImage getCompatibleImage(int w, int h) {
@@ -167,27 +280,178 @@ public class MemeService {
         }
     }
 
-    public MediaType getThumbnailTo(long id, String extension, OutputStream outputStream) throws IOException {
-        final var meme = memeRepository.findById(id).orElseThrow(NoSuchMemeError::new);
-        final var thumbnailFile = getThumbnailFileName(id);
-        if (!thumbnailFile.exists()) {
-            generateAndSaveThumbnail(id, extension);
+    /**
+     * Returns a scaled down version of a meme. If it isn't cached, its generation is queued
+     * and this waits for it up to the configured time.
+     * @param meme the meme
+     * @param size size of the derivative
+     * @return The cached derivative, or empty if it isn't ready in time or can't be generated
+     */
+    public Optional<DerivativeCache.Derivative> getDerivative(Meme meme, DerivativeSize size) {
+        final var cached = getCachedDerivative(meme.id(), size);
+        if (cached.isPresent()) return cached;
+
+        final var mime = MimeTypeService.extensionToMime(meme.extension());
+        if (mime.isEmpty() || !MimeTypeService.isMimeTypeKnown(MediaType.parseMediaType(mime.get())))
+            return Optional.empty();
+
+        try {
+            final var wait = memendexProperties.thumbnails().maxWait();
+            return Optional.of(requestDerivative(meme.id(), meme.extension(), size).get(wait.toMillis(), TimeUnit.MILLISECONDS));
+        } catch (TimeoutException | ExecutionException e) {
+            return Optional.empty();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return Optional.empty();
         }
+    }
+
+    private Optional<DerivativeCache.Derivative> getCachedDerivative(long id, DerivativeSize size) {
+        final var cached = derivativeCache.get(new DerivativeCache.Key(id, size));
+        (cached.isPresent() ? cacheHits : cacheMisses).get(size).increment();
+        return cached;
+    }
+
+    private static Counter cacheRequests(MeterRegistry meterRegistry, DerivativeSize size, String result) {
+        return Counter.builder("memendex.derivatives.cache.requests")
+                .tag("size", size.name())
+                .tag("result", result)
+                .register(meterRegistry);
+    }
 
-        try(FileInputStream input = new FileInputStream(thumbnailFile)) {
-            IOUtils.copy(input, outputStream);
+    /**
+     * Returns the thumbnails of some memes composed in a single image, see {@link SpriteSheets}.
+     * Thumbnails that aren't cached are all queued at once and waited for together, up to the
+     * configured time. The ones that still aren't ready, and memes that aren't images, are left out.
+     * @param ids ids of the memes, in the order their thumbnails are laid out. Only the first
+     *            {@link SpriteSheets#MAX_THUMBNAILS} are used
+     * @param token token of the sheet wanted, to skip looking up the memes if it's in memory. May be null
+     * @return The sprite sheet
+     * @throws IOException If it can't be encoded
+     */
+    public SpriteSheets.Sheet getThumbnailSprite(List<Long> ids, String token) throws IOException {
+        if (token != null) {
+            final var cached = spriteSheets.get(token);
+            if (cached.isPresent()) return cached.get();
+        }
+
+        final var memes = memeRepository.findAllById(ids.stream().distinct().limit(SpriteSheets.MAX_THUMBNAILS).toList());
+        final var thumbnails = new HashMap<Long, DerivativeCache.Derivative>();
+        final var pending = new HashMap<Long, CompletableFuture<DerivativeCache.Derivative>>();
+        for (var meme : memes) {
+            final var cached = getCachedDerivative(meme.id(), DerivativeSize.thumbnail);
+            final var mime = MimeTypeService.extensionToMime(meme.extension());
+            if (cached.isPresent())
+                thumbnails.put(meme.id(), cached.get());
+            else if (mime.isPresent() && MimeTypeService.isMimeTypeKnown(MediaType.parseMediaType(mime.get())))
+                pending.put(meme.id(), requestDerivative(meme.id(), meme.extension(), DerivativeSize.thumbnail));
         }
 
-        // Thumbnails are always JPEG
-        return MediaType.IMAGE_JPEG;
+        if (!pending.isEmpty()) {
+            try {
+                final var wait = memendexProperties.thumbnails().maxWait();
+                CompletableFuture.allOf(pending.values().toArray(CompletableFuture[]::new)).get(wait.toMillis(), TimeUnit.MILLISECONDS);
+            } catch (TimeoutException | ExecutionException e) {
+                // Whatever is ready by now goes in the sheet
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            pending.forEach((id, job) -> {
+                if (job.isDone() && !job.isCompletedExceptionally()) thumbnails.put(id, job.join());
+            });
+        }
+
+        return spriteSheets.compose(memes.stream()
+                .filter(meme -> thumbnails.containsKey(meme.id()))
+                .map(meme -> new SpriteSheets.Source(meme.id(), meme.contentVersion(), thumbnails.get(meme.id()).bytes()))
+                .toList());
     }
 
-    public MediaType getImageTo(Meme meme, ServletOutputStream outputStream) throws IOException {
-        try(FileInputStream input = new FileInputStream(new File(memendexProperties.uploadLocation(), meme.getPhysicalFileName()))) {
-            IOUtils.copy(input, outputStream);
+    /**
+     * Returns the perceptual hash of a meme. It's computed along with the thumbnail, so if it
+     * wasn't yet, the thumbnail is queued (or its pending job joined) and this waits for it up to
+     * the configured time.
+     * @param meme the meme
+     * @return The hash, or empty if it isn't ready in time or the meme isn't an image
+     */
+    public OptionalLong getPerceptualHash(Meme meme) {
+        final var hash = similarityIndex.getHash(meme.id());
+        if (hash.isPresent() || !isThumbnailable(meme.extension())) return hash;
+
+        try {
+            final var wait = memendexProperties.thumbnails().maxWait();
+            requestDerivative(meme.id(), meme.extension(), DerivativeSize.thumbnail).get(wait.toMillis(), TimeUnit.MILLISECONDS);
+            return similarityIndex.getHash(meme.id());
+        } catch (TimeoutException | ExecutionException e) {
+            return OptionalLong.empty();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return OptionalLong.empty();
         }
+    }
+
+    /**
+     * Finds the memes that look like the given one.
+     * @param meme the meme
+     * @param maxDistance maximum number of different bits between perceptual hashes. Null for the configured default
+     * @return Similar memes, closest first. Empty if the perceptual hash of the meme isn't available
+     */
+    public List<SimilarMeme> findSimilar(Meme meme, Integer maxDistance) {
+        final var hash = getPerceptualHash(meme);
+        if (hash.isEmpty()) return List.of();
 
-        return new MediaType("image", meme.extension());
+        final var distance = maxDistance != null ? maxDistance : memendexProperties.similarity().maxDistance();
+        final var matches = similarityIndex.findSimilar(hash.getAsLong(), distance).stream()
+                .filter(match -> match.memeId() != meme.id())
+                .toList();
+
+        final var memes = enrich(memeRepository.findAllById(matches.stream().map(BkTree.Match::memeId).toList())).stream()
+                .collect(Collectors.toMap(MemeDetailed::id, Function.identity()));
+
+        return matches.stream()
+                .filter(match -> memes.containsKey(match.memeId()))
+                .map(match -> new SimilarMeme(memes.get(match.memeId()), match.distance()))
+                .toList();
+    }
+
+    /**
+     * Returns the image sent while a thumbnail isn't available
+     * @return JPEG bytes
+     * @throws IOException If any error
+     */
+    public byte[] getPlaceholderThumbnail() throws IOException {
+        if (placeholderThumbnail == null) {
+            var image = getCompatibleImage(100, 100);
+            var g2d = image.createGraphics();
+            g2d.setColor(Color.LIGHT_GRAY);
+            g2d.fillRect(0, 0, 100, 100);
+            g2d.dispose();
+
+            var output = new ByteArrayOutputStream();
+            ImageIO.write(image, "jpeg", output);
+            placeholderThumbnail = output.toByteArray();
+        }
+        return placeholderThumbnail;
+    }
+
+    public ThumbnailPipeline.Stats getThumbnailStats() {
+        return thumbnailPipeline.stats();
+    }
+
+    public DerivativeCache.Stats getDerivativeCacheStats() {
+        return derivativeCache.stats();
+    }
+
+    /**
+     * Returns the file with the contents of the meme
+     * @param meme the meme, of type file
+     * @return The uploaded {@link File}
+     * @throws NoSuchMemeError If the file is missing from the upload location
+     */
+    public File getImageFile(Meme meme) {
+        var file = new File(memendexProperties.uploadLocation(), meme.getPhysicalFileName());
+        if (!file.isFile()) throw new NoSuchMemeError("The file of meme %d is missing".formatted(meme.id()));
+        return file;
     }
 
     public void updateMeme(MemeDetailed meme) {
@@ -196,39 +460,118 @@ public class MemeService {
         else
             memeRepository.touch(meme.id());
 
-        if (meme.tags() != null) {
-            var currentTagRelation = tagToMemeRepository.getRelationsToMeme(meme.id());
-
-            var newTags = meme.tags().stream()
-                    .map(Tag::parse)
-                    .map(tag -> tagRepository.addOrFindTag(tag.scope(), tag.value()))
-                    .toList();
+        if (meme.tags() != null)
+            tagToMemeService.replaceTags(meme.id(), meme.tags());
+    }
 
-            var relationsToRemove = currentTagRelation.stream()
-                    .filter(r -> newTags.stream().noneMatch(t -> t.id() == r.tagId()))
-                    .toList();
+    /**
+     * Changes the tags of many memes at once. See {@link TagToMemeService#editTags(BulkTagEdit)}.
+     */
+    public BulkTagEditResult editTags(BulkTagEdit edit) {
+        return tagToMemeService.editTags(edit);
+    }
 
-            var relationsToCreate = newTags.stream()
-                    .filter(t -> currentTagRelation.stream().noneMatch(r -> t.id() == r.tagId()))
-                    .toList();
+    public Optional<Meme> getMeme(long id) {
+        return memeRepository.findById(id);
+    }
 
-            for (var tag : relationsToCreate) {
-                tagToMemeRepository.createRelation(tag.id(), meme.id());
-            }
+    /**
+     * @param memes      the page of memes
+     * @param totalCount number of memes matching the filter
+     * @param facets     the most common tags among them
+     */
+    public record TaggedMemes(List<Meme> memes, int totalCount, List<TagUsage> facets) {
+    }
 
-            for (var relation : relationsToRemove) {
-                tagToMemeRepository.deleteRelation(relation.id());
-                var tagUsage = tagToMemeRepository.countTagReferences(relation.tagId());
-                if (tagUsage == 0) tagRepository.deleteTag(relation.tagId());
+    /**
+     * Lists the memes matching a tag filter. The filter is evaluated by {@link TagPostings}; ordering
+     * by id comes straight from its result, other orders from {@link MemeRepository#listIdsIn}.
+     *
+     * @param filter     the filter
+     * @param sort       sort order
+     * @param descending whether to reverse the order
+     * @param after      position to start after. Null for the first page
+     * @param offset     number of memes to skip
+     * @param limit      maximum number of memes to return
+     * @param facets     maximum number of facets to count
+     * @return the page, the total and the facets
+     */
+    public TaggedMemes listTagged(TagFilter filter, MemeSort sort, boolean descending, PageCursor after, int offset, int limit, int facets) {
+        final var matching = tagPostings.filter(filter);
+
+        List<Long> ids;
+        if (sort == MemeSort.id) {
+            ids = new ArrayList<>(limit);
+            var id = after == null ? (descending ? Long.MAX_VALUE : 0) : (descending ? after.id() - 1 : after.id() + 1);
+            for (int skip = offset; ids.size() < limit; id = descending ? id - 1 : id + 1) {
+                id = descending ? matching.previous(id) : matching.next(id);
+                if (id < 0) break;
+                if (skip > 0) skip--;
+                else ids.add(id);
             }
+        } else {
+            ids = memeRepository.listIdsIn(sort, descending, after, offset, limit, matching);
         }
 
+        return new TaggedMemes(
+                memeRepository.findAllById(ids),
+                (int) matching.cardinality(),
+                tagPostings.facets(matching, filter, facets));
     }
 
-    public Optional<Meme> getMeme(long id) {
-        return memeRepository.findById(id);
+    /**
+     * @param memes      the page of memes
+     * @param totalCount number of memes matching the query. -1 when unknown
+     * @param ranked     whether the memes are ordered by relevance, instead of by id
+     */
+    public record SearchResults(List<Meme> memes, int totalCount, boolean ranked) {
     }
 
+    /**
+     * Searches the file name, description and tags of memes with {@link MemeFullTextIndex}, most
+     * relevant first. When nothing matches, as with typos, falls back to the fuzzy search of
+     * {@link MemeSearchIndex}, ordered by id.
+     * <p></p>
+     * At least the first {@link #CACHED_SEARCH_RESULTS} ids found are kept in {@link SearchResultCache},
+     * so the next pages don't search again. Going past them searches for twice as many.
+     *
+     * @param query  the query
+     * @param offset number of memes to skip
+     * @param limit  maximum number of memes to return
+     * @return the page and the total
+     */
+    public SearchResults search(String query, int offset, int limit) {
+        final var needed = (int) Math.min((long) offset + limit, Integer.MAX_VALUE);
+        final var generation = memeFullTextIndex.generation();
+        var cached = searchResultCache.get(query, generation);
+
+        SearchResultCache.Results results;
+        if (cached.isPresent() && cached.get().covers(needed)) {
+            results = cached.get();
+        } else {
+            var count = Math.max(needed, cached.map(c -> c.ids().length * 2).orElse(CACHED_SEARCH_RESULTS));
+            results = findSearchResults(query, generation, count);
+            searchResultCache.put(query, results);
+        }
 
+        var ids = results.ids();
+        var page = Arrays.stream(ids, Math.min(offset, ids.length), Math.min(needed, ids.length)).boxed().toList();
+        return new SearchResults(memeRepository.findAllById(page), results.total(), results.ranked());
+    }
+
+    private SearchResultCache.Results findSearchResults(String query, long generation, int count) {
+        final var now = System.nanoTime();
+        var found = memeFullTextIndex.search(query, count);
+        if (found.total() > 0) {
+            var ids = found.hits().stream().mapToLong(FullTextIndex.Hit::memeId).toArray();
+            return new SearchResultCache.Results(generation, now, ids, found.total(), true, ids.length == found.total());
+        }
 
+        var ids = memeSearchIndex.search(query, count).stream().mapToLong(Long::longValue).toArray();
+        return new SearchResultCache.Results(generation, now, ids, -1, false, ids.length < count);
+    }
+
+    public MemeFullTextIndex.Stats rebuildSearchIndex() {
+        return memeFullTextIndex.rebuild();
+    }
 }
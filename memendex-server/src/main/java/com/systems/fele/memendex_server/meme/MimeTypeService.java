@@ -27,6 +27,8 @@ public class MimeTypeService {
     private static final MimeToExtension[] MIME_TO_EXTENSION_TABLE = new MimeToExtension[]{
             new MimeToExtension(MediaType.IMAGE_PNG_VALUE, "png"),
             new MimeToExtension(MediaType.IMAGE_JPEG_VALUE, "jpeg"),
+            // Only used when reading extensions, memes are always saved as .jpeg
+            new MimeToExtension(MediaType.IMAGE_JPEG_VALUE, "jpg"),
             new MimeToExtension(MediaType.IMAGE_GIF_VALUE, "gif")
     };
 
@@ -2,8 +2,10 @@ package com.systems.fele.memendex_server.meme;
 
 import com.systems.fele.memendex_server.model.Tag;
 import com.systems.fele.memendex_server.model.TagToMeme;
-import com.systems.fele.memendex_server.model.TagUsage;
+import com.systems.fele.memendex_server.tag.TagRelationsChangedEvent;
+import org.springframework.context.ApplicationEventPublisher;
 import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
 import org.springframework.jdbc.support.GeneratedKeyHolder;
 import org.springframework.jdbc.support.KeyHolder;
 import org.springframework.stereotype.Repository;
@@ -11,14 +13,16 @@ import org.springframework.stereotype.Repository;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
-import java.util.List;
+import java.util.*;
 
 @Repository
 public class TagToMemeRepository {
     private final JdbcTemplate jdbcTemplate;
+    private final ApplicationEventPublisher eventPublisher;
 
-    public TagToMemeRepository(JdbcTemplate jdbcTemplate) {
+    public TagToMemeRepository(JdbcTemplate jdbcTemplate, ApplicationEventPublisher eventPublisher) {
         this.jdbcTemplate = jdbcTemplate;
+        this.eventPublisher = eventPublisher;
     }
 
     /**
@@ -34,6 +38,30 @@ public class TagToMemeRepository {
                 .toArray();
     }
 
+    /**
+     * Returns the tags related to each of the memes, with a single query.
+     *
+     * @param memeIds ids of the memes
+     * @return map of meme id to its tags, in the order they were related. Memes without tags are absent
+     */
+    public Map<Long, List<Tag>> getTagsRelatedToMemes(Collection<Long> memeIds) {
+        if (memeIds.isEmpty()) return Map.of();
+
+        var tagsByMeme = new HashMap<Long, List<Tag>>();
+        new NamedParameterJdbcTemplate(jdbcTemplate).query("""
+                        SELECT tags_to_memes.meme_id, tags.id, tags.scope, tags.name
+                        FROM tags_to_memes
+                        INNER JOIN tags ON tags_to_memes.tag_id = tags.id
+                        WHERE tags_to_memes.meme_id IN (:ids)
+                        ORDER BY tags_to_memes.id""",
+                Map.of("ids", memeIds),
+                rs -> {
+                    tagsByMeme.computeIfAbsent(rs.getLong("meme_id"), k -> new ArrayList<>())
+                            .add(new Tag(rs.getLong("id"), rs.getString("scope"), rs.getString("name")));
+                });
+        return tagsByMeme;
+    }
+
     /**
      * Returns the relation object between tags and a meme
      *
@@ -45,6 +73,7 @@ public class TagToMemeRepository {
     }
 
     public TagToMeme createRelation(long tagId, long memeId) {
+        lockMemes(List.of(memeId));
         KeyHolder keyHolder = new GeneratedKeyHolder();
         jdbcTemplate.update(con -> {
             var stmt = con.prepareStatement("INSERT INTO TAGS_TO_MEMES (TAG_ID, MEME_ID) VALUES (?, ?)", Statement.RETURN_GENERATED_KEYS);
@@ -57,22 +86,158 @@ public class TagToMemeRepository {
         if (keys == null)
             throw new RuntimeException("There was an error retrieving the generated key!");
 
+        eventPublisher.publishEvent(new TagRelationsChangedEvent(List.of(new TagIdMemeId(tagId, memeId)), List.of()));
         return new TagToMeme((Long) keys.get("id"), tagId, memeId);
     }
 
+    /**
+     * Creates many relations with a single batch.
+     *
+     * @param relations pairs of tag id and meme id
+     */
+    public void createRelations(List<TagIdMemeId> relations) {
+        if (relations.isEmpty()) return;
+        lockMemes(relations.stream().map(TagIdMemeId::memeId).toList());
+        jdbcTemplate.batchUpdate("INSERT INTO TAGS_TO_MEMES (TAG_ID, MEME_ID) VALUES (?, ?)",
+                relations.stream().map(r -> new Object[] { r.tagId(), r.memeId() }).toList());
+        eventPublisher.publishEvent(new TagRelationsChangedEvent(List.copyOf(relations), List.of()));
+    }
+
+    public record TagIdMemeId(long tagId, long memeId) {
+    }
+
+    /**
+     * Returns the ids of the tags related to any of the memes, with a single query.
+     *
+     * @param memeIds ids of the memes
+     * @return tag ids
+     */
+    public Set<Long> getTagIdsRelatedToMemes(Collection<Long> memeIds) {
+        if (memeIds.isEmpty()) return Set.of();
+        return new HashSet<>(new NamedParameterJdbcTemplate(jdbcTemplate).queryForList(
+                "SELECT DISTINCT tag_id FROM tags_to_memes WHERE meme_id IN (:memeIds)",
+                Map.of("memeIds", memeIds), Long.class));
+    }
+
+    /**
+     * Returns the memes related to all the given tags.
+     *
+     * @param tagIds ids of the tags
+     * @return meme ids, in ascending order
+     */
+    public List<Long> findMemesWithAllTags(Collection<Long> tagIds) {
+        if (tagIds.isEmpty()) return List.of();
+        return new NamedParameterJdbcTemplate(jdbcTemplate).queryForList("""
+                        SELECT meme_id FROM tags_to_memes
+                        WHERE tag_id IN (:tagIds)
+                        GROUP BY meme_id
+                        HAVING COUNT(DISTINCT tag_id) = :count
+                        ORDER BY meme_id""",
+                Map.of("tagIds", tagIds, "count", new HashSet<>(tagIds).size()), Long.class);
+    }
+
+    /**
+     * Relates every meme to every tag, skipping the pairs already related. The missing pairs
+     * are found with a single query and inserted with a single batch.
+     *
+     * @param memeIds ids of the memes. Ids that don't exist are ignored
+     * @param tagIds  ids of the tags
+     * @return number of relations created
+     */
+    public int addRelations(Collection<Long> memeIds, Collection<Long> tagIds) {
+        if (memeIds.isEmpty() || tagIds.isEmpty()) return 0;
+        lockMemes(memeIds);
+        var missing = new NamedParameterJdbcTemplate(jdbcTemplate).query("""
+                        SELECT tags.id AS tag_id, memes.id AS meme_id FROM memes CROSS JOIN tags
+                        WHERE memes.id IN (:memeIds) AND tags.id IN (:tagIds)
+                        AND NOT EXISTS (SELECT 1 FROM tags_to_memes r WHERE r.meme_id = memes.id AND r.tag_id = tags.id)
+                        ORDER BY memes.id, tags.id""",
+                Map.of("memeIds", memeIds, "tagIds", tagIds),
+                TagToMemeRepository::resultSetToTagIdMemeId);
+        createRelations(missing);
+        return missing.size();
+    }
+
+    /**
+     * Deletes the relations between the memes and the tags.
+     *
+     * @param memeIds ids of the memes
+     * @param tagIds  ids of the tags
+     * @return number of relations deleted
+     */
+    public int deleteRelations(Collection<Long> memeIds, Collection<Long> tagIds) {
+        if (memeIds.isEmpty() || tagIds.isEmpty()) return 0;
+        return deleteRelationsWhere(memeIds, "meme_id IN (:memeIds) AND tag_id IN (:tagIds)", Map.of("memeIds", memeIds, "tagIds", tagIds));
+    }
+
+    /**
+     * Deletes the relations between the memes and any tag but the kept ones.
+     *
+     * @param memeIds    ids of the memes
+     * @param keptTagIds ids of the tags whose relations are kept. May be empty
+     * @return number of relations deleted
+     */
+    public int deleteRelationsExcept(Collection<Long> memeIds, Collection<Long> keptTagIds) {
+        if (memeIds.isEmpty()) return 0;
+        if (keptTagIds.isEmpty())
+            return deleteRelationsWhere(memeIds, "meme_id IN (:memeIds)", Map.of("memeIds", memeIds));
+        return deleteRelationsWhere(memeIds, "meme_id IN (:memeIds) AND tag_id NOT IN (:tagIds)", Map.of("memeIds", memeIds, "tagIds", keptTagIds));
+    }
+
+    /**
+     * Deletes the relations matching a condition with a single statement, after reading
+     * them for the {@link TagRelationsChangedEvent}.
+     *
+     * @param memeIds the memes the relations may belong to, locked first
+     */
+    private int deleteRelationsWhere(Collection<Long> memeIds, String condition, Map<String, ?> params) {
+        lockMemes(memeIds);
+        var template = new NamedParameterJdbcTemplate(jdbcTemplate);
+        var relations = template.query("SELECT tag_id, meme_id FROM tags_to_memes WHERE " + condition, params,
+                TagToMemeRepository::resultSetToTagIdMemeId);
+        if (relations.isEmpty()) return 0;
+
+        var deleted = template.update("DELETE FROM tags_to_memes WHERE " + condition, params);
+        eventPublisher.publishEvent(new TagRelationsChangedEvent(List.of(), relations));
+        return deleted;
+    }
+
     public void deleteRelation(long relationId) {
-        jdbcTemplate.update("DELETE FROM TAGS_TO_MEMES WHERE ID = ?", relationId);
+        var memeIds = jdbcTemplate.queryForList("SELECT meme_id FROM tags_to_memes WHERE id = ?", Long.class, relationId);
+        deleteRelationsWhere(memeIds, "id = :id", Map.of("id", relationId));
+    }
+
+    /**
+     * Locks the memes until the transaction ends, before their relations are changed. That way, the
+     * changes to the tags of a meme happen one after another, and each transaction sees the relations
+     * the previous ones committed, which {@link com.systems.fele.memendex_server.tag.TagUsageRepository}
+     * relies on to count the memes of each scope. Rows are locked in id order, so transactions locking
+     * the same memes can't deadlock.
+     *
+     * @param memeIds ids of the memes
+     */
+    private void lockMemes(Collection<Long> memeIds) {
+        if (memeIds.isEmpty()) return;
+        new NamedParameterJdbcTemplate(jdbcTemplate).queryForList("SELECT id FROM memes WHERE id IN (:memeIds) ORDER BY id FOR UPDATE",
+                Map.of("memeIds", new HashSet<>(memeIds)), Long.class);
     }
 
+    /**
+     * @return number of memes with the tag, read from its counter (see {@link com.systems.fele.memendex_server.tag.TagUsageRepository})
+     */
     public int countTagReferences(long tagId) {
-        var count = jdbcTemplate.queryForObject("SELECT COUNT(*) FROM TAGS_TO_MEMES WHERE TAG_ID = ?", Integer.class, tagId);
-        return count == null ? 0 : count;
+        return jdbcTemplate.query("SELECT usage_count FROM TAGS WHERE ID = ?", TagToMemeRepository::resultSetToId, tagId)
+                .stream().findFirst().map(Long::intValue).orElse(0);
     }
 
     private static long resultSetToId(ResultSet resultSet, int i) throws SQLException {
         return resultSet.getLong(1);
     }
 
+    private static TagIdMemeId resultSetToTagIdMemeId(ResultSet resultSet, int i) throws SQLException {
+        return new TagIdMemeId(resultSet.getLong("TAG_ID"), resultSet.getLong("MEME_ID"));
+    }
+
     private static TagToMeme resultSetToTagToMeme(ResultSet resultSet, int i) throws SQLException {
         return new TagToMeme(resultSet.getLong("ID"), resultSet.getLong("TAG_ID"), resultSet.getLong("MEME_ID"));
     }
@@ -80,33 +245,4 @@ public class TagToMemeRepository {
     public record TagIdUsage(long tagId, long count) {
 
     }
-
-    public List<TagUsage> getTopTags() {
-        return jdbcTemplate.query("""
-                        SELECT scope, name, COUNT(*) AS COUNT
-                        FROM tags_to_memes
-                        INNER JOIN tags ON tags_to_memes.tag_id = tags.id
-                        GROUP BY tag_id ORDER BY COUNT DESC FETCH FIRST 10 ROWS ONLY""",
-                TagToMemeRepository::tagUsageFromResultSet
-        );
-    }
-
-    public List<TagUsage> getSuggestions(String searchTerm) {
-        return jdbcTemplate.query("""
-                        SELECT scope, name, COUNT(*) AS COUNT
-                        FROM tags_to_memes
-                        INNER JOIN TAGS ON tags_to_memes.tag_id = TAGS.ID
-                        WHERE CONCAT(scope, '/', name) LIKE CONCAT('%', ?, '%')
-                        GROUP BY tag_id
-                        ORDER BY COUNT DESC
-                        FETCH FIRST 10 ROWS ONLY
-                        """,
-                TagToMemeRepository::tagUsageFromResultSet,
-                searchTerm
-        );
-    }
-
-    private static TagUsage tagUsageFromResultSet(ResultSet resultSet, int i) throws SQLException {
-        return new TagUsage(new Tag(0, resultSet.getString("scope"), resultSet.getString("name")).toString(), resultSet.getInt("count"));
-    }
 }
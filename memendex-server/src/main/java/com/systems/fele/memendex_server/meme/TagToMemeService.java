@@ -1,19 +1,146 @@
 package com.systems.fele.memendex_server.meme;
 
-import com.systems.fele.memendex_server.model.TagUsage;
+import com.systems.fele.memendex_server.exception.InvalidTagEditException;
+import com.systems.fele.memendex_server.model.BulkTagEdit;
+import com.systems.fele.memendex_server.model.BulkTagEditResult;
+import com.systems.fele.memendex_server.model.Tag;
+import com.systems.fele.memendex_server.search.MemeSearchIndex;
+import com.systems.fele.memendex_server.tag.TagRepository;
 import org.springframework.stereotype.Service;
+import org.springframework.transaction.support.TransactionTemplate;
 
-import java.util.List;
+import java.util.*;
 
 @Service
 public class TagToMemeService {
+    /**
+     * Maximum number of memes per statement, to keep the IN lists reasonable.
+     */
+    private static final int CHUNK_SIZE = 1000;
+
     private final TagToMemeRepository tagToMemeRepository;
+    private final TagRepository tagRepository;
+    private final MemeRepository memeRepository;
+    private final MemeSearchIndex memeSearchIndex;
+    private final TransactionTemplate transactionTemplate;
 
-    public TagToMemeService(TagToMemeRepository tagToMemeRepository) {
+    public TagToMemeService(TagToMemeRepository tagToMemeRepository, TagRepository tagRepository, MemeRepository memeRepository, MemeSearchIndex memeSearchIndex, TransactionTemplate transactionTemplate) {
         this.tagToMemeRepository = tagToMemeRepository;
+        this.tagRepository = tagRepository;
+        this.memeRepository = memeRepository;
+        this.memeSearchIndex = memeSearchIndex;
+        this.transactionTemplate = transactionTemplate;
+    }
+
+    /**
+     * Replaces the tags of a single meme.
+     *
+     * @param memeId id of the meme
+     * @param tags   its new tags
+     */
+    public void replaceTags(long memeId, List<String> tags) {
+        editTags(new BulkTagEdit(List.of(memeId), null, null, null, null, tags));
+    }
+
+    /**
+     * Changes the tags of many memes in a single transaction. Relations are added and removed
+     * with a few set-based statements per thousand memes, and the tags left without memes are
+     * deleted at the end, all at once.
+     *
+     * @param edit the memes and the changes
+     * @return what was changed
+     * @throws InvalidTagEditException If no memes are selected, or replace is used with add or remove
+     */
+    public BulkTagEditResult editTags(BulkTagEdit edit) {
+        final var replace = edit.replace() != null;
+        final var add = parseTags(edit.add());
+        final var remove = parseTags(edit.remove());
+        if (replace && (!add.isEmpty() || !remove.isEmpty()))
+            throw new InvalidTagEditException("replace can't be used with add or remove");
+        if (add.stream().anyMatch(remove::contains))
+            throw new InvalidTagEditException("The same tag can't be both added and removed");
+
+        return Objects.requireNonNull(transactionTemplate.execute(status -> {
+            final var memeIds = selectMemes(edit);
+
+            final List<Long> addedTagIds = tagRepository.addOrFindTags(replace ? parseTags(edit.replace()) : add).stream().map(Tag::id).toList();
+            final List<Long> removedTagIds = replace ? List.of() : tagRepository.findTags(remove).stream().map(Tag::id).toList();
+
+            // Tags that may end up without memes
+            final var unusedCandidates = new HashSet<>(removedTagIds);
+
+            int added = 0, removed = 0;
+            for (int from = 0; from < memeIds.size(); from += CHUNK_SIZE) {
+                final var chunk = memeIds.subList(from, Math.min(memeIds.size(), from + CHUNK_SIZE));
+
+                int changed;
+                if (replace) {
+                    unusedCandidates.addAll(tagToMemeRepository.getTagIdsRelatedToMemes(chunk));
+                    changed = tagToMemeRepository.deleteRelationsExcept(chunk, addedTagIds);
+                } else {
+                    changed = tagToMemeRepository.deleteRelations(chunk, removedTagIds);
+                }
+                removed += changed;
+
+                var created = tagToMemeRepository.addRelations(chunk, addedTagIds);
+                added += created;
+
+                if (changed + created > 0) memeRepository.touchAll(chunk);
+            }
+
+            addedTagIds.forEach(unusedCandidates::remove);
+            final var deletedTags = tagRepository.deleteUnusedTags(unusedCandidates);
+
+            return new BulkTagEditResult(memeIds.size(), added, removed, deletedTags);
+        }));
+    }
+
+    /**
+     * @return ids of the selected memes that exist, in ascending order
+     */
+    private List<Long> selectMemes(BulkTagEdit edit) {
+        if (edit.ids() != null) {
+            var ids = new ArrayList<Long>();
+            var distinct = List.copyOf(new TreeSet<>(edit.ids()));
+            for (int from = 0; from < distinct.size(); from += CHUNK_SIZE)
+                ids.addAll(memeRepository.findExistingIds(distinct.subList(from, Math.min(distinct.size(), from + CHUNK_SIZE))));
+            return ids;
+        }
+
+        final var hasQuery = edit.query() != null && !edit.query().isBlank();
+        final var withTags = parseTags(edit.withTags());
+        if (!hasQuery && withTags.isEmpty())
+            throw new InvalidTagEditException("Either ids, query or withTags is required");
+        if (hasQuery && edit.query().length() < 3)
+            throw new InvalidTagEditException("The query must have at least 3 characters");
+
+        List<Long> ids = null;
+        if (!withTags.isEmpty()) {
+            var tags = tagRepository.findTags(withTags);
+            if (tags.size() < withTags.size()) return List.of();
+            ids = tagToMemeRepository.findMemesWithAllTags(tags.stream().map(Tag::id).toList());
+        }
+        if (hasQuery) {
+            var found = memeSearchIndex.search(edit.query(), Integer.MAX_VALUE);
+            if (ids == null) {
+                ids = found;
+            } else {
+                var matching = new HashSet<>(found);
+                ids = ids.stream().filter(matching::contains).toList();
+            }
+        }
+        return ids;
     }
 
-    public List<TagUsage> getTopTags() {
-        return tagToMemeRepository.getTopTags();
+    private static List<Tag> parseTags(List<String> tags) {
+        if (tags == null) return List.of();
+        return tags.stream()
+                .filter(Objects::nonNull)
+                .map(String::trim)
+                .filter(tag -> !tag.isEmpty() && !tag.equals("#"))
+                .map(Tag::parse)
+                .map(tag -> new Tag(0, tag.scope().toLowerCase(), tag.value() == null ? null : tag.value().toLowerCase()))
+                .distinct()
+                .toList();
     }
 }
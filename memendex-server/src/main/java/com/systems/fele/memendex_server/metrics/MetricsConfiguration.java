@@ -0,0 +1,74 @@
+package com.systems.fele.memendex_server.metrics;
+
+import com.systems.fele.memendex_server.search.SearchResultCache;
+import com.systems.fele.memendex_server.thumbnail.DerivativeCache;
+import com.systems.fele.memendex_server.thumbnail.ThumbnailPipeline;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+/**
+ * Metrics not tied to a single call: the state of the thumbnail pipeline and of the caches. The
+ * meters of each call are recorded where it happens, and HTTP requests, JVM and connection pool
+ * metrics come from Spring Boot.
+ */
+@Configuration(proxyBeanMethods = false)
+public class MetricsConfiguration {
+
+    @Bean
+    static TimedComponentsPostProcessor timedComponentsPostProcessor(ObjectProvider<MeterRegistry> meterRegistry) {
+        return new TimedComponentsPostProcessor(meterRegistry);
+    }
+
+    @Bean
+    MeterBinder thumbnailPipelineMetrics(ThumbnailPipeline pipeline) {
+        return registry -> {
+            Gauge.builder("memendex.thumbnails.queued", pipeline, p -> p.stats().queued())
+                    .description("Thumbnail jobs waiting for a worker")
+                    .register(registry);
+            Gauge.builder("memendex.thumbnails.running", pipeline, p -> p.stats().running())
+                    .description("Thumbnail jobs being generated")
+                    .register(registry);
+            FunctionCounter.builder("memendex.thumbnails.jobs", pipeline, p -> p.stats().completed())
+                    .tag("result", "completed")
+                    .register(registry);
+            FunctionCounter.builder("memendex.thumbnails.jobs", pipeline, p -> p.stats().failed())
+                    .tag("result", "failed")
+                    .register(registry);
+            FunctionCounter.builder("memendex.thumbnails.jobs", pipeline, p -> p.stats().rejected())
+                    .tag("result", "rejected")
+                    .register(registry);
+        };
+    }
+
+    @Bean
+    MeterBinder derivativeCacheMetrics(DerivativeCache cache) {
+        return registry -> {
+            Gauge.builder("memendex.derivatives.cache.entries", cache, c -> c.stats().entries())
+                    .register(registry);
+            Gauge.builder("memendex.derivatives.cache.size", cache, c -> c.stats().bytes())
+                    .baseUnit("bytes")
+                    .register(registry);
+            Gauge.builder("memendex.derivatives.cache.quota", cache, c -> c.stats().quota())
+                    .baseUnit("bytes")
+                    .register(registry);
+            FunctionCounter.builder("memendex.derivatives.cache.evictions", cache, c -> c.stats().evictions())
+                    .register(registry);
+            Gauge.builder("memendex.derivatives.cache.disk", cache, c -> c.stats().diskBytes())
+                    .baseUnit("bytes")
+                    .register(registry);
+            FunctionCounter.builder("memendex.derivatives.cache.compactions", cache, c -> c.stats().compactions())
+                    .register(registry);
+        };
+    }
+
+    @Bean
+    MeterBinder searchResultCacheMetrics(SearchResultCache cache) {
+        return registry -> Gauge.builder("memendex.search.cache.entries", cache, SearchResultCache::size)
+                .register(registry);
+    }
+}
@@ -0,0 +1,83 @@
+package com.systems.fele.memendex_server.metrics;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.aopalliance.intercept.MethodInterceptor;
+import org.aopalliance.intercept.MethodInvocation;
+import org.springframework.aop.framework.autoproxy.AbstractBeanFactoryAwareAdvisingPostProcessor;
+import org.springframework.aop.support.ComposablePointcut;
+import org.springframework.aop.support.DefaultPointcutAdvisor;
+import org.springframework.aop.support.annotation.AnnotationMatchingPointcut;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.stereotype.Repository;
+import org.springframework.stereotype.Service;
+import org.springframework.util.ClassUtils;
+
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Times every public method of {@link Repository} and {@link Service} beans, which covers the
+ * database calls and the work behind each endpoint.
+ * <p></p>
+ * Recorded as memendex.repository and memendex.service, tagged with the simple name of the class,
+ * the method and the exception thrown, if any. All of them are bounded by the code, so the number
+ * of series stays fixed however the application is used. Calls between methods of the same bean
+ * don't go through the proxy and aren't timed separately.
+ */
+public class TimedComponentsPostProcessor extends AbstractBeanFactoryAwareAdvisingPostProcessor {
+
+    public TimedComponentsPostProcessor(ObjectProvider<MeterRegistry> meterRegistry) {
+        var pointcut = new ComposablePointcut(new AnnotationMatchingPointcut(Repository.class, true))
+                .union(new AnnotationMatchingPointcut(Service.class, true));
+        this.advisor = new DefaultPointcutAdvisor(pointcut, new TimingInterceptor(meterRegistry));
+        // Time the calls as made, before other advice like exception translation
+        setBeforeExistingAdvisors(true);
+    }
+
+    private static final class TimingInterceptor implements MethodInterceptor {
+        private final ObjectProvider<MeterRegistry> meterRegistry;
+        /**
+         * Timers already registered, as looking them up in the registry costs more than the calls
+         * being timed
+         */
+        private final Map<TimerKey, Timer> timers = new ConcurrentHashMap<>();
+
+        TimingInterceptor(ObjectProvider<MeterRegistry> meterRegistry) {
+            this.meterRegistry = meterRegistry;
+        }
+
+        @Override
+        public Object invoke(MethodInvocation invocation) throws Throwable {
+            var method = invocation.getMethod();
+            var registry = meterRegistry.getIfAvailable();
+            if (registry == null || !Modifier.isPublic(method.getModifiers()) || method.getDeclaringClass() == Object.class)
+                return invocation.proceed();
+
+            var targetClass = invocation.getThis() == null ? method.getDeclaringClass() : ClassUtils.getUserClass(invocation.getThis());
+            var exception = "none";
+            var sample = Timer.start(registry);
+            try {
+                return invocation.proceed();
+            } catch (Throwable e) {
+                exception = e.getClass().getSimpleName();
+                throw e;
+            } finally {
+                sample.stop(timers.computeIfAbsent(new TimerKey(targetClass, method, exception), key -> key.register(registry)));
+            }
+        }
+    }
+
+    private record TimerKey(Class<?> targetClass, Method method, String exception) {
+        Timer register(MeterRegistry registry) {
+            var layer = targetClass.isAnnotationPresent(Repository.class) ? "memendex.repository" : "memendex.service";
+            return Timer.builder(layer)
+                    .tag("class", targetClass.getSimpleName())
+                    .tag("method", method.getName())
+                    .tag("exception", exception)
+                    .register(registry);
+        }
+    }
+}
@@ -0,0 +1,174 @@
+package com.systems.fele.memendex_server.migration;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.SmartInitializingSingleton;
+import org.springframework.core.env.Environment;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.core.io.Resource;
+import org.springframework.core.io.support.PathMatchingResourcePatternResolver;
+import org.springframework.jdbc.core.ConnectionCallback;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.init.ScriptUtils;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.time.Instant;
+import java.util.*;
+import java.util.regex.Pattern;
+
+/**
+ * Brings the database schema up to date by running the migrations in db/migration that weren't
+ * applied yet, in version order.
+ * <p></p>
+ * Migrations are named V&lt;version&gt;__&lt;description&gt;.sql. Each one applied is recorded in
+ * schema_history along with the SHA-256 of its script, and startup fails if an applied script was
+ * changed afterwards: a released migration must never be edited, a new one must be added instead.
+ * <p></p>
+ * H2 commits schema changes right away, so a migration that fails halfway is not rolled back.
+ * Migrations are written to be run again (CREATE ... IF NOT EXISTS and the like), and as the
+ * failed one isn't recorded, it is retried on the next startup.
+ * <p></p>
+ * Runs once every bean is created and before the web server starts, so no request ever sees an
+ * outdated schema. Indexes are built here too: H2 has no concurrent index builds, and a build
+ * blocks writes to its table until it's done anyway.
+ */
+@Component
+public class SchemaMigrator implements SmartInitializingSingleton {
+    private static final Logger logger = LoggerFactory.getLogger(SchemaMigrator.class);
+    private static final String LOCATION = "classpath*:db/migration/*.sql";
+    private static final Pattern NAME = Pattern.compile("V(\\d+)__(.+)\\.sql");
+
+    private final JdbcTemplate jdbcTemplate;
+    private final Environment environment;
+
+    /**
+     * @param version     the version, from the file name
+     * @param description the rest of the file name, with spaces instead of underscores
+     * @param script      the script
+     * @param checksum    hex SHA-256 of the script, ignoring line endings
+     */
+    public record Migration(int version, String description, Resource script, String checksum) {
+    }
+
+    public SchemaMigrator(JdbcTemplate jdbcTemplate, Environment environment) {
+        this.jdbcTemplate = jdbcTemplate;
+        this.environment = environment;
+    }
+
+    @Override
+    public void afterSingletonsInstantiated() {
+        jdbcTemplate.execute((ConnectionCallback<Void>) con -> {
+            var empty = !hasTables(con);
+            migrate(con, findMigrations());
+            if (empty && environment.matchesProfiles("development"))
+                ScriptUtils.executeSqlScript(con, new ClassPathResource("data.sql"));
+            return null;
+        });
+    }
+
+    /**
+     * @return the migrations in the classpath, in version order
+     * @throws IllegalStateException If a script is misnamed or two have the same version
+     */
+    public static List<Migration> findMigrations() {
+        try {
+            var migrations = new TreeMap<Integer, Migration>();
+            for (var resource : new PathMatchingResourcePatternResolver().getResources(LOCATION)) {
+                var matcher = NAME.matcher(Objects.requireNonNull(resource.getFilename()));
+                if (!matcher.matches())
+                    throw new IllegalStateException("Invalid migration name %s, expected V<version>__<description>.sql".formatted(resource.getFilename()));
+
+                var migration = new Migration(Integer.parseInt(matcher.group(1)), matcher.group(2).replace('_', ' '), resource, checksum(resource));
+                var existing = migrations.put(migration.version(), migration);
+                if (existing != null)
+                    throw new IllegalStateException("Migrations %s and %s have the same version".formatted(existing.script().getFilename(), resource.getFilename()));
+            }
+            return List.copyOf(migrations.values());
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private void migrate(Connection con, List<Migration> migrations) throws SQLException {
+        try (var stmt = con.createStatement()) {
+            stmt.execute("""
+                    CREATE TABLE IF NOT EXISTS schema_history (
+                      version      INT NOT NULL,
+                      description  VARCHAR(255) NOT NULL,
+                      checksum     CHAR(64) NOT NULL,
+                      installed_at TIMESTAMP(2) WITH TIME ZONE NOT NULL,
+                      duration_ms  LONG NOT NULL,
+
+                      PRIMARY KEY ( version )
+                    )""");
+        }
+
+        var applied = new HashMap<Integer, String>();
+        try (var stmt = con.createStatement(); var rs = stmt.executeQuery("SELECT version, checksum FROM schema_history")) {
+            while (rs.next()) applied.put(rs.getInt("version"), rs.getString("checksum"));
+        }
+
+        var pending = new ArrayList<Migration>();
+        for (var migration : migrations) {
+            var checksum = applied.remove(migration.version());
+            if (checksum == null) pending.add(migration);
+            else if (!checksum.equals(migration.checksum()))
+                throw new IllegalStateException("Migration %s was changed after being applied to the database".formatted(migration.script().getFilename()));
+        }
+        if (!applied.isEmpty())
+            logger.warn("The database has migrations {} unknown to this version, it was probably used by a newer one", new TreeSet<>(applied.keySet()));
+        if (pending.isEmpty()) return;
+
+        logger.info("Applying {} schema migrations", pending.size());
+        final var autoCommit = con.getAutoCommit();
+        con.setAutoCommit(false);
+        try {
+            for (var migration : pending) apply(con, migration);
+        } finally {
+            con.setAutoCommit(autoCommit);
+        }
+    }
+
+    private void apply(Connection con, Migration migration) throws SQLException {
+        final var start = System.nanoTime();
+        try {
+            ScriptUtils.executeSqlScript(con, migration.script());
+            try (var stmt = con.prepareStatement("INSERT INTO schema_history (version, description, checksum, installed_at, duration_ms) VALUES (?, ?, ?, ?, ?)")) {
+                stmt.setInt(1, migration.version());
+                stmt.setString(2, migration.description());
+                stmt.setString(3, migration.checksum());
+                stmt.setTimestamp(4, Timestamp.from(Instant.now()));
+                stmt.setLong(5, (System.nanoTime() - start) / 1_000_000);
+                stmt.executeUpdate();
+            }
+            con.commit();
+        } catch (SQLException | RuntimeException e) {
+            con.rollback();
+            throw new IllegalStateException("Could not apply migration %s".formatted(migration.script().getFilename()), e);
+        }
+        logger.info("Applied migration {} ({}) in {} ms", migration.version(), migration.description(), (System.nanoTime() - start) / 1_000_000);
+    }
+
+    private static boolean hasTables(Connection con) throws SQLException {
+        try (var rs = con.getMetaData().getTables(null, "PUBLIC", null, new String[] { "TABLE" })) {
+            return rs.next();
+        }
+    }
+
+    private static String checksum(Resource resource) throws IOException {
+        try (var input = resource.getInputStream()) {
+            var script = new String(input.readAllBytes(), StandardCharsets.UTF_8).replace("\r\n", "\n");
+            return HexFormat.of().formatHex(MessageDigest.getInstance("SHA-256").digest(script.getBytes(StandardCharsets.UTF_8)));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
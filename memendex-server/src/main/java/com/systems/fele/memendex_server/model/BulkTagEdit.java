@@ -0,0 +1,24 @@
+package com.systems.fele.memendex_server.model;
+
+import java.util.List;
+
+/**
+ * Changes the tags of many memes at once.
+ * <p></p>
+ * The memes are either the given ids, or the result of a search and/or of a tag filter
+ * (memes with all the given tags). The tags are either added and/or removed, or replaced.
+ *
+ * @param ids      ids of the memes
+ * @param query    search term, as in /api/memes/search
+ * @param withTags only memes with all these tags
+ * @param add      tags to add
+ * @param remove   tags to remove
+ * @param replace  the new tags of the memes. Can't be used with add or remove. Empty removes every tag
+ */
+public record BulkTagEdit(List<Long> ids,
+                          String query,
+                          List<String> withTags,
+                          List<String> add,
+                          List<String> remove,
+                          List<String> replace) {
+}
@@ -0,0 +1,10 @@
+package com.systems.fele.memendex_server.model;
+
+/**
+ * @param memes       number of memes selected
+ * @param added       number of tags added to memes
+ * @param removed     number of tags removed from memes
+ * @param deletedTags number of tags deleted because no meme uses them anymore
+ */
+public record BulkTagEditResult(int memes, int added, int removed, int deletedTags) {
+}
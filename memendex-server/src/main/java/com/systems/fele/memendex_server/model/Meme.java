@@ -10,6 +10,7 @@ import java.time.ZonedDateTime;
  * @param extension Extension of the file
  * @param create Created timestamp
  * @param updated Last updated timestamp
+ * @param contentHash hex SHA-256 of the file contents. Null for memes uploaded before hashes were kept
  */
 public record Meme(
         long id,
@@ -18,7 +19,8 @@ public record Meme(
         String description,
         String extension,
         ZonedDateTime create,
-        ZonedDateTime updated) {
+        ZonedDateTime updated,
+        String contentHash) {
 
     /**
      * Returns the actual file name inside the disk
@@ -28,4 +30,14 @@ public record Meme(
         return "%d.%s".formatted(id, extension);
     }
 
+    /**
+     * Identifies the contents of the file, which never change after the upload: the start of the
+     * content hash or, without one, the creation time.
+     * @return a short token, safe for URLs and ETags
+     */
+    public String contentVersion() {
+        if (contentHash != null) return contentHash.substring(0, 16);
+        return Long.toString(create == null ? 0 : create.toEpochSecond(), 36);
+    }
+
 }
@@ -2,10 +2,18 @@ package com.systems.fele.memendex_server.model;
 
 import java.util.List;
 
+/**
+ * A meme with its tags.
+ *
+ * @param version {@link Meme#contentVersion()} and the render version of the derivatives, to be sent
+ *                back as the {@code v} parameter of the thumbnail and preview URLs so they can be
+ *                cached for good. Ignored on edits
+ */
 public record MemeDetailed(long id,
                            MemesType type,
                            String fileName,
                            String description,
                            String extension,
-                           List<String> tags) {
+                           List<String> tags,
+                           String version) {
 }
@@ -0,0 +1,38 @@
+package com.systems.fele.memendex_server.model;
+
+import java.time.ZonedDateTime;
+
+/**
+ * Sort orders available when listing memes. Every order is backed by an
+ * index on (column, id), so the id works as a tie-breaker.
+ */
+public enum MemeSort {
+    id("id"),
+    created("created_at"),
+    updated("updated_at");
+
+    final String column;
+
+    MemeSort(String column) {
+        this.column = column;
+    }
+
+    public String getColumn() {
+        return column;
+    }
+
+    /**
+     * Returns the value of the sort column for the meme. Always null for {@link #id}
+     * as the id itself is the sort key.
+     *
+     * @param meme the meme
+     * @return the sort column value
+     */
+    public ZonedDateTime sortValue(Meme meme) {
+        return switch (this) {
+            case id -> null;
+            case created -> meme.create();
+            case updated -> meme.updated();
+        };
+    }
+}
@@ -0,0 +1,51 @@
+package com.systems.fele.memendex_server.model;
+
+import com.systems.fele.memendex_server.exception.InvalidCursorException;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.Base64;
+
+/**
+ * Position after which the next page starts. Sent to clients as an opaque string.
+ *
+ * @param sort       sort order of the listing
+ * @param descending whether the order is reversed
+ * @param id         id of the last meme of the previous page
+ * @param value      value of the sort column of the last meme. Null for {@link MemeSort#id} or if the column is null
+ */
+public record PageCursor(MemeSort sort, boolean descending, long id, Instant value) {
+
+    /**
+     * Creates the cursor pointing right after the given meme.
+     */
+    public static PageCursor after(Meme meme, MemeSort sort, boolean descending) {
+        var value = sort.sortValue(meme);
+        return new PageCursor(sort, descending, meme.id(), value == null ? null : value.toInstant());
+    }
+
+    public String encode() {
+        var raw = "%s|%b|%d|%s".formatted(sort, descending, id, value == null ? "" : value);
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(raw.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Decodes a cursor produced by {@link #encode()}.
+     *
+     * @param cursor the encoded cursor
+     * @return the cursor
+     * @throws InvalidCursorException if the cursor is malformed
+     */
+    public static PageCursor decode(String cursor) {
+        try {
+            var parts = new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.UTF_8).split("\\|", 4);
+            return new PageCursor(
+                    MemeSort.valueOf(parts[0]),
+                    Boolean.parseBoolean(parts[1]),
+                    Long.parseLong(parts[2]),
+                    parts[3].isEmpty() ? null : Instant.parse(parts[3]));
+        } catch (RuntimeException e) {
+            throw new InvalidCursorException();
+        }
+    }
+}
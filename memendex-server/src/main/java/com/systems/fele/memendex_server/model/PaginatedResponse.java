@@ -1,16 +1,30 @@
 package com.systems.fele.memendex_server.model;
 
+import com.fasterxml.jackson.annotation.JsonInclude;
+
 import java.util.List;
 
+/**
+ * A page of results.
+ *
+ * @param nextCursor Opaque cursor for fetching the page after this one. Null when there's no next page
+ * @param facets     Most common tags among all the results, when listing by tags. Null otherwise
+ */
 public record PaginatedResponse<T>(
     List<T> data,
     int count,
     int totalCount,
     int pageSize,
     int page,
-    boolean hasNext
+    boolean hasNext,
+    String nextCursor,
+    @JsonInclude(JsonInclude.Include.NON_NULL) List<TagUsage> facets
 ){
+    public PaginatedResponse(List<T> data, int count, int totalCount, int pageSize, int page, boolean hasNext, String nextCursor) {
+        this(data, count, totalCount, pageSize, page, hasNext, nextCursor, null);
+    }
+
     public static <T> PaginatedResponse<T> empty() {
-        return new PaginatedResponse<>(List.of(), 0, 0, 0, 0, false);
+        return new PaginatedResponse<>(List.of(), 0, 0, 0, 0, false, null);
     }
 }
@@ -0,0 +1,9 @@
+package com.systems.fele.memendex_server.model;
+
+/**
+ * @param scope the scope
+ * @param tags  number of tags in it
+ * @param memes number of memes with any tag of it
+ */
+public record ScopeUsage(String scope, long tags, long memes) {
+}
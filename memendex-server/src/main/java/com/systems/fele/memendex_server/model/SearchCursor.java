@@ -0,0 +1,41 @@
+package com.systems.fele.memendex_server.model;
+
+import com.systems.fele.memendex_server.exception.InvalidCursorException;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+
+/**
+ * Position of the next page of a search. Sent to clients as an opaque string.
+ * <p></p>
+ * Search results are ranked, so unlike {@link PageCursor} there's no sort value to continue from:
+ * the cursor holds how many results were already returned.
+ *
+ * @param offset number of results of the previous pages
+ */
+public record SearchCursor(int offset) {
+
+    public String encode() {
+        var raw = "search|%d".formatted(offset);
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(raw.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Decodes a cursor produced by {@link #encode()}.
+     *
+     * @param cursor the encoded cursor
+     * @return the cursor
+     * @throws InvalidCursorException if the cursor is malformed
+     */
+    public static SearchCursor decode(String cursor) {
+        try {
+            var parts = new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.UTF_8).split("\\|", 2);
+            if (!parts[0].equals("search")) throw new InvalidCursorException();
+            var offset = Integer.parseInt(parts[1]);
+            if (offset < 0) throw new InvalidCursorException();
+            return new SearchCursor(offset);
+        } catch (RuntimeException e) {
+            throw new InvalidCursorException();
+        }
+    }
+}
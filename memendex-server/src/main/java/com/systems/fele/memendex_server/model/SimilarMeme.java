@@ -0,0 +1,11 @@
+package com.systems.fele.memendex_server.model;
+
+import com.fasterxml.jackson.annotation.JsonUnwrapped;
+
+/**
+ * A meme found to be similar to another
+ * @param meme The similar meme
+ * @param distance Number of different bits between the perceptual hashes. Zero means they look the same
+ */
+public record SimilarMeme(@JsonUnwrapped MemeDetailed meme, int distance) {
+}
@@ -0,0 +1,16 @@
+package com.systems.fele.memendex_server.model;
+
+import com.systems.fele.memendex_server.thumbnail.SpriteSheets;
+
+import java.util.List;
+
+/**
+ * The thumbnails of some memes, composed in a single image.
+ *
+ * @param url        URL of the image, which may be cached for good. Null when there are no thumbnails
+ * @param width      width of the image
+ * @param height     height of the image
+ * @param thumbnails where the thumbnail of each meme is in the image. Memes missing from it must be shown on their own
+ */
+public record ThumbnailSprite(String url, int width, int height, List<SpriteSheets.Cell> thumbnails) {
+}
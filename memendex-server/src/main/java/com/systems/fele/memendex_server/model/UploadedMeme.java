@@ -0,0 +1,13 @@
+package com.systems.fele.memendex_server.model;
+
+import com.fasterxml.jackson.annotation.JsonUnwrapped;
+
+import java.util.List;
+
+/**
+ * Response of an upload
+ * @param meme The newly created meme
+ * @param possibleDuplicates Memes that look like the uploaded one. Null unless asked for
+ */
+public record UploadedMeme(@JsonUnwrapped Meme meme, List<SimilarMeme> possibleDuplicates) {
+}
@@ -0,0 +1,326 @@
+package com.systems.fele.memendex_server.reconciliation;
+
+import com.systems.fele.memendex_server.MemendexProperties;
+import com.systems.fele.memendex_server.meme.MemeService;
+import com.systems.fele.memendex_server.model.MemesType;
+import com.systems.fele.memendex_server.thumbnail.DerivativeCache;
+import com.systems.fele.memendex_server.thumbnail.DerivativeSize;
+import com.systems.fele.memendex_server.util.IdBitmap;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.function.Consumer;
+import java.util.regex.Pattern;
+
+/**
+ * Checks that the database and the upload location agree, and generates the thumbnails that are
+ * missing before anyone asks for them.
+ * <p></p>
+ * Every meme of type file must have its &lt;id&gt;.&lt;extension&gt; in the upload location, which
+ * isn't the case when the server stopped between inserting a meme and moving its file into place.
+ * Files named after no meme are orphans. Both are reported, but left alone: deciding what to do with
+ * them is up to the user.
+ * <p></p>
+ * The upload location is listed while the ids of the memes are read from the database, in batches,
+ * and both are kept as {@link IdBitmap}s, so a check of hundreds of thousands of memes takes a few
+ * megabytes. As memes may be uploaded or deleted meanwhile, the differences found are looked up
+ * again before they're reported. Missing thumbnails of the memes whose files are there are then
+ * queued, newest first, as long as they fit in the cache quota, no more at a time than there are
+ * workers, so requests never wait long behind them.
+ * <p></p>
+ * It runs in the background once the application is ready, and again whenever requested. Only one
+ * check runs at a time.
+ */
+@Service
+public class LibraryReconciler implements DisposableBean {
+    private static final Logger logger = LoggerFactory.getLogger(LibraryReconciler.class);
+    private static final Pattern UPLOAD_NAME = Pattern.compile("(\\d{1,10})\\.[^.]+");
+    private static final int REPORTED_ITEMS = 100;
+    private static final long DEFAULT_THUMBNAIL_BYTES = 8 * 1024;
+
+    private final MemendexProperties memendexProperties;
+    private final JdbcTemplate jdbcTemplate;
+    private final MemeService memeService;
+    private final DerivativeCache derivativeCache;
+    private final ExecutorService executor = Executors.newFixedThreadPool(2, runnable -> {
+        var thread = new Thread(runnable, "reconciliation");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private Report last;
+    private CompletableFuture<Report> running;
+
+    public enum Status {
+        running, finished, failed
+    }
+
+    /**
+     * Outcome of a check. Only the first few ids and names are listed, along with how many there are.
+     *
+     * @param memes              memes of type file
+     * @param files              files in the upload location
+     * @param missingFiles       memes whose file isn't in the upload location
+     * @param missingFileIds     ids of the first of them
+     * @param orphanFiles        files in the upload location that belong to no meme
+     * @param orphanFileNames    names of the first of them
+     * @param missingThumbnails  memes whose file is an image and has no thumbnail
+     * @param queuedThumbnails   thumbnails queued, the rest didn't fit in the cache
+     */
+    public record Report(Status status, Instant startedAt, Instant finishedAt, long memes, long files,
+                         long missingFiles, List<Long> missingFileIds, long orphanFiles, List<String> orphanFileNames,
+                         long missingThumbnails, long queuedThumbnails, String message) {
+    }
+
+    public LibraryReconciler(MemendexProperties memendexProperties, JdbcTemplate jdbcTemplate, MemeService memeService,
+                             DerivativeCache derivativeCache) {
+        this.memendexProperties = memendexProperties;
+        this.jdbcTemplate = jdbcTemplate;
+        this.memeService = memeService;
+        this.derivativeCache = derivativeCache;
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void onApplicationReady() {
+        if (memendexProperties.reconciliation().atStartup()) start();
+    }
+
+    /**
+     * Starts a check in the background, unless one is running already.
+     *
+     * @return the check, running or just started
+     */
+    public synchronized Report start() {
+        if (running != null && !running.isDone()) return last;
+
+        final var startedAt = Instant.now();
+        last = new Report(Status.running, startedAt, null, 0, 0, 0, List.of(), 0, List.of(), 0, 0, null);
+        running = CompletableFuture.supplyAsync(() -> reconcile(startedAt), executor)
+                .exceptionally(e -> {
+                    logger.error("The reconciliation failed", e);
+                    return new Report(Status.failed, startedAt, Instant.now(), 0, 0, 0, List.of(), 0, List.of(), 0, 0, e.getMessage());
+                })
+                .thenApply(report -> {
+                    publish(report);
+                    return report;
+                });
+        return last;
+    }
+
+    private synchronized void publish(Report report) {
+        last = report;
+    }
+
+    /**
+     * @return the running check, or else the last one. Empty if none ran yet
+     */
+    public synchronized Optional<Report> getLast() {
+        return Optional.ofNullable(last);
+    }
+
+    private Report reconcile(Instant startedAt) {
+        final var uploadLocation = Path.of(memendexProperties.uploadLocation());
+        final var listing = CompletableFuture.supplyAsync(() -> listUploads(uploadLocation), executor);
+        final var memeIds = new IdBitmap();
+        forEachFileMeme((id, extension) -> memeIds.add(id));
+        final var files = listing.join();
+
+        final var missing = memeIds.andNot(files.ids());
+        final var orphans = files.ids().andNot(memeIds);
+        recheck(uploadLocation, missing, orphans);
+        final var missingIds = new ArrayList<Long>();
+        missing.forEach(id -> {
+            if (missingIds.size() < REPORTED_ITEMS) missingIds.add(id);
+        });
+
+        final var orphanNames = new ArrayList<>(files.unknownNames());
+        if (!orphans.isEmpty()) orphanNames.addAll(names(uploadLocation, orphans, REPORTED_ITEMS - orphanNames.size()));
+
+        final var checked = new Report(Status.running, startedAt, null, memeIds.cardinality(), files.count(),
+                missing.cardinality(), missingIds, orphans.cardinality() + files.unknownCount(), orphanNames, 0, 0, null);
+        publish(checked);
+        if (checked.missingFiles() > 0 || checked.orphanFiles() > 0)
+            logger.warn("{} memes have no file and {} files belong to no meme, e.g. {} and {}",
+                    checked.missingFiles(), checked.orphanFiles(), missingIds, orphanNames);
+
+        final var thumbnails = queueThumbnails(files.ids());
+
+        final var report = new Report(Status.finished, startedAt, Instant.now(), checked.memes(), checked.files(),
+                checked.missingFiles(), missingIds, checked.orphanFiles(), orphanNames, thumbnails[0], thumbnails[1], null);
+        logger.info("Reconciled {} memes and {} files in {} ms: {} files missing, {} orphan files, {} thumbnails queued of {} missing",
+                report.memes(), report.files(), report.finishedAt().toEpochMilli() - startedAt.toEpochMilli(),
+                report.missingFiles(), report.orphanFiles(), report.queuedThumbnails(), report.missingThumbnails());
+        return report;
+    }
+
+    /**
+     * @param ids          ids of the files named after a meme id
+     * @param count        number of files
+     * @param unknownNames names of the first files not named after a meme id
+     * @param unknownCount number of files not named after a meme id
+     */
+    private record Listing(IdBitmap ids, long count, List<String> unknownNames, long unknownCount) {
+    }
+
+    private static Listing listUploads(Path uploadLocation) {
+        final var ids = new IdBitmap();
+        final var unknown = new ArrayList<String>();
+        long count = 0, unknownCount = 0;
+        try (var stream = Files.newDirectoryStream(uploadLocation, Files::isRegularFile)) {
+            for (var file : stream) {
+                count++;
+                final var name = file.getFileName().toString();
+                final var matcher = UPLOAD_NAME.matcher(name);
+                final var id = matcher.matches() ? Long.parseLong(matcher.group(1)) : -1;
+                if (id >= 0 && id <= Integer.MAX_VALUE) {
+                    ids.add(id);
+                } else {
+                    if (unknown.size() < REPORTED_ITEMS) unknown.add(name);
+                    unknownCount++;
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return new Listing(ids, count, unknown, unknownCount);
+    }
+
+    /**
+     * @return names of the files of the upload location whose id is in the set, up to limit
+     */
+    private static List<String> names(Path uploadLocation, IdBitmap ids, int limit) {
+        final var names = new ArrayList<String>();
+        try (var stream = Files.newDirectoryStream(uploadLocation, Files::isRegularFile)) {
+            for (var file : stream) {
+                if (names.size() >= limit) break;
+                final var matcher = UPLOAD_NAME.matcher(file.getFileName().toString());
+                if (matcher.matches() && ids.contains(Long.parseLong(matcher.group(1)))) names.add(matcher.group());
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return names;
+    }
+
+    /**
+     * Memes uploaded or deleted while the check runs may have been read on one side and not on the
+     * other. Each difference is looked up again, and dropped if it no longer holds: missing files
+     * that are there now or whose meme is gone, and orphan files whose meme is there now.
+     */
+    private void recheck(Path uploadLocation, IdBitmap missing, IdBitmap orphans) {
+        final var template = new NamedParameterJdbcTemplate(jdbcTemplate);
+        forEachBatch(missing, ids -> {
+            final var stillMissing = new IdBitmap();
+            template.query("SELECT id, extension FROM memes WHERE type_id = :type AND id IN (:ids)",
+                    Map.of("type", MemesType.file.getId(), "ids", ids), rs -> {
+                        final var id = rs.getLong("id");
+                        if (!Files.exists(uploadLocation.resolve("%d.%s".formatted(id, rs.getString("extension")))))
+                            stillMissing.add(id);
+                    });
+            for (var id : ids) if (!stillMissing.contains(id)) missing.remove(id);
+        });
+        forEachBatch(orphans, ids -> template.query("SELECT id FROM memes WHERE type_id = :type AND id IN (:ids)",
+                Map.of("type", MemesType.file.getId(), "ids", ids), rs -> {
+                    orphans.remove(rs.getLong("id"));
+                }));
+    }
+
+    /**
+     * Splits the ids in lists of the configured batch size. The set may be changed by the consumer.
+     */
+    private void forEachBatch(IdBitmap ids, Consumer<List<Long>> consumer) {
+        final var batchSize = memendexProperties.reconciliation().batchSize();
+        final var batches = new ArrayList<List<Long>>();
+        ids.forEach(id -> {
+            if (batches.isEmpty() || batches.get(batches.size() - 1).size() >= batchSize) batches.add(new ArrayList<>(batchSize));
+            batches.get(batches.size() - 1).add(id);
+        });
+        batches.forEach(consumer);
+    }
+
+    @FunctionalInterface
+    private interface FileMemeConsumer {
+        void accept(long id, String extension);
+    }
+
+    private record FileMeme(long id, String extension) {
+    }
+
+    /**
+     * Reads the memes of type file in batches, newest first. Each batch is read whole before it's
+     * passed on, so the consumer may block without holding a connection.
+     */
+    private void forEachFileMeme(FileMemeConsumer consumer) {
+        final var batchSize = memendexProperties.reconciliation().batchSize();
+        var after = Long.MAX_VALUE;
+        List<FileMeme> batch;
+        do {
+            batch = jdbcTemplate.query("SELECT id, extension FROM memes WHERE type_id = ? AND id < ? ORDER BY id DESC LIMIT ?",
+                    (rs, rowNum) -> new FileMeme(rs.getLong("id"), rs.getString("extension")),
+                    MemesType.file.getId(), after, batchSize);
+            for (var meme : batch) consumer.accept(meme.id(), meme.extension());
+            if (!batch.isEmpty()) after = batch.get(batch.size() - 1).id();
+        } while (batch.size() == batchSize);
+    }
+
+    /**
+     * Queues the missing thumbnails of the memes whose files exist, while they fit in the cache.
+     *
+     * @return how many are missing and how many were queued
+     */
+    private long[] queueThumbnails(IdBitmap files) {
+        final var stats = derivativeCache.stats();
+        final var averageBytes = stats.entries() > 0 ? Math.max(1, stats.bytes() / stats.entries()) : DEFAULT_THUMBNAIL_BYTES;
+        final var room = Math.max(0, stats.quota() - stats.bytes()) / averageBytes;
+        final var slots = new Semaphore(memendexProperties.thumbnails().workers());
+        final var counts = new long[2];
+        forEachFileMeme((id, extension) -> {
+            if (!files.contains(id) || derivativeCache.contains(new DerivativeCache.Key(id, DerivativeSize.thumbnail))) return;
+            if (counts[1] >= room) {
+                // Still counted as missing, as long as it's an image
+                if (memeService.isThumbnailable(extension)) counts[0]++;
+                return;
+            }
+
+            // Only a few at a time, so that requests don't wait behind them
+            try {
+                slots.acquire();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted", e);
+            }
+            final var job = memeService.queueThumbnail(id, extension);
+            if (job.isEmpty()) {
+                slots.release();
+                return;
+            }
+            job.get().whenComplete((derivative, e) -> slots.release());
+            counts[0]++;
+            counts[1]++;
+        });
+        return counts;
+    }
+
+    @Override
+    public void destroy() {
+        executor.shutdownNow();
+    }
+}
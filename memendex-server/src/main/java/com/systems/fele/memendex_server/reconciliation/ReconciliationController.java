@@ -0,0 +1,41 @@
+package com.systems.fele.memendex_server.reconciliation;
+
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RestController;
+
+import java.net.URI;
+
+/**
+ * Checks of the library. A check runs in the background: starting one answers 202 with its report,
+ * which can then be polled until it's finished.
+ */
+@RestController
+@RequestMapping("/api/memes/reconciliation")
+public class ReconciliationController {
+    private final LibraryReconciler libraryReconciler;
+
+    public ReconciliationController(LibraryReconciler libraryReconciler) {
+        this.libraryReconciler = libraryReconciler;
+    }
+
+    /**
+     * Starts a check, unless one is running already, in which case that one is returned.
+     */
+    @PostMapping
+    public ResponseEntity<LibraryReconciler.Report> start() {
+        return ResponseEntity.accepted()
+                .location(URI.create("/api/memes/reconciliation"))
+                .body(libraryReconciler.start());
+    }
+
+    /**
+     * The running check, or else the last one. 404 if none ran since the server started.
+     */
+    @GetMapping
+    public ResponseEntity<LibraryReconciler.Report> get() {
+        return ResponseEntity.of(libraryReconciler.getLast());
+    }
+}
@@ -0,0 +1,457 @@
+package com.systems.fele.memendex_server.search;
+
+import java.util.*;
+import java.util.function.IntPredicate;
+
+/**
+ * In-memory inverted index of the filename, description and tags of memes, ranked with BM25F.
+ * <p></p>
+ * Every term keeps one posting list with the memes it appears in and its positions there. The
+ * positions are what phrase queries are checked against. A search only visits the postings of the
+ * query terms and keeps the best hits in a heap, so the cost depends on how common the terms are
+ * and not on how many memes there are.
+ * <p></p>
+ * The fields are weighted (tags count the most, file names the least) and their term frequencies
+ * are normalized by their own average length before being combined, as in BM25F. Replacing or
+ * removing a meme leaves its postings behind, skipped by searches until enough of them pile up and
+ * the postings are rebuilt.
+ * <p></p>
+ * This class is not thread safe. See {@link MemeFullTextIndex}.
+ */
+public class FullTextIndex {
+    static final double K1 = 1.2;
+    static final double B = 0.75;
+
+    /**
+     * Positions are stored along with their field in the top bits, so a phrase can't span fields.
+     */
+    private static final int FIELD_SHIFT = 24;
+    private static final int MAX_POSITION = (1 << FIELD_SHIFT) - 1;
+
+    public enum Field {
+        fileName(0.5), description(1.0), tags(2.0);
+
+        final double weight;
+
+        Field(double weight) {
+            this.weight = weight;
+        }
+    }
+
+    private static final Field[] FIELDS = Field.values();
+
+    private Doc[] docs = new Doc[1024];
+    private int docCount = 0;
+    private int deadCount = 0;
+
+    private final Map<Long, Integer> docsByMeme = new HashMap<>();
+    private final Map<String, TermPostings> postings = new HashMap<>();
+    private final long[] totalLengths = new long[FIELDS.length];
+
+    /**
+     * A search hit.
+     *
+     * @param memeId id of the meme
+     * @param score  BM25F score, higher is better
+     */
+    public record Hit(long memeId, double score) {
+    }
+
+    /**
+     * @param hits  the best hits, best first
+     * @param total how many memes match the query
+     */
+    public record Hits(List<Hit> hits, int total) {
+    }
+
+    /**
+     * Indexes a meme, replacing anything indexed before for it.
+     *
+     * @param memeId      id of the meme
+     * @param fileName    file name. May be null
+     * @param description description. May be null
+     * @param tags        the tags, as written by {@link com.systems.fele.memendex_server.model.Tag#toString()}
+     */
+    public void put(long memeId, String fileName, String description, List<String> tags) {
+        remove(memeId);
+
+        var fields = new List<?>[FIELDS.length];
+        fields[Field.fileName.ordinal()] = TextAnalyzer.analyze(fileName);
+        fields[Field.description.ordinal()] = TextAnalyzer.analyze(description);
+        var tagTerms = new ArrayList<String>();
+        for (var tag : tags) {
+            // Leave a gap so a phrase doesn't match across two tags
+            if (!tagTerms.isEmpty()) tagTerms.add(null);
+            tagTerms.addAll(TextAnalyzer.analyze(tag));
+        }
+        fields[Field.tags.ordinal()] = tagTerms;
+
+        var positions = new LinkedHashMap<String, IntList>();
+        var lengths = new int[FIELDS.length];
+        for (int field = 0; field < FIELDS.length; field++) {
+            var terms = fields[field];
+            lengths[field] = Math.min(terms.size(), MAX_POSITION);
+            for (int position = 0; position < lengths[field]; position++) {
+                var term = (String) terms.get(position);
+                if (term != null) positions.computeIfAbsent(term, k -> new IntList()).add(field << FIELD_SHIFT | position);
+            }
+        }
+
+        if (docCount == docs.length) docs = Arrays.copyOf(docs, docCount * 2);
+        var docId = docCount++;
+        docs[docId] = new Doc(memeId, fileName, description, List.copyOf(tags), lengths, positions.keySet().toArray(String[]::new));
+        docsByMeme.put(memeId, docId);
+        for (int field = 0; field < FIELDS.length; field++) totalLengths[field] += lengths[field];
+        positions.forEach((term, termPositions) -> postings.computeIfAbsent(term, k -> new TermPostings()).add(docId, termPositions));
+    }
+
+    /**
+     * Replaces the file name and description of a meme, keeping its tags.
+     */
+    public void putText(long memeId, String fileName, String description) {
+        var doc = find(memeId);
+        put(memeId, fileName, description, doc == null ? List.of() : doc.tags());
+    }
+
+    /**
+     * Replaces the tags of a meme, keeping its file name and description. Does nothing if the meme
+     * isn't indexed.
+     */
+    public void putTags(long memeId, List<String> tags) {
+        var doc = find(memeId);
+        if (doc != null) put(memeId, doc.fileName(), doc.description(), tags);
+    }
+
+    /**
+     * Removes a meme from the index.
+     *
+     * @param memeId id of the meme
+     */
+    public void remove(long memeId) {
+        var docId = docsByMeme.remove(memeId);
+        if (docId == null) return;
+
+        var doc = docs[docId];
+        docs[docId] = null;
+        deadCount++;
+        for (int field = 0; field < FIELDS.length; field++) totalLengths[field] -= doc.lengths()[field];
+        for (var term : doc.terms()) {
+            var termPostings = postings.get(term);
+            if (--termPostings.documentFrequency == 0) postings.remove(term);
+        }
+
+        if (deadCount > 1024 && deadCount > docCount / 4) compact();
+    }
+
+    /**
+     * @return number of memes indexed
+     */
+    public int size() {
+        return docsByMeme.size();
+    }
+
+    /**
+     * @return number of distinct terms indexed
+     */
+    public int termCount() {
+        return postings.size();
+    }
+
+    /**
+     * Finds the memes matching the query, most relevant first. Memes with the same score are
+     * ordered by id.
+     *
+     * @param query the query
+     * @param limit maximum number of hits to return
+     * @return the best hits and how many memes match
+     */
+    public Hits search(FullTextQuery query, int limit) {
+        // Only the documents in the postings of the terms get a score, so that's all the room needed
+        var terms = new ArrayList<TermPostings>();
+        var maxDocs = 0;
+        for (var term : query.scoredTerms()) {
+            var termPostings = postings.get(term);
+            if (termPostings == null) continue;
+            terms.add(termPostings);
+            maxDocs += termPostings.documentFrequency;
+        }
+
+        var matched = new ScoredDocs(maxDocs, docCount);
+        for (var termPostings : terms) {
+            var idf = Math.log(1 + (size() - termPostings.documentFrequency + 0.5) / (termPostings.documentFrequency + 0.5));
+            termPostings.forEach((docId, data, offset, count) -> {
+                var doc = docs[docId];
+                if (doc == null) return;
+                var tf = 0.0;
+                for (int i = 0; i < count; i++) {
+                    var field = data[offset + i] >>> FIELD_SHIFT;
+                    var average = (double) totalLengths[field] / size();
+                    tf += FIELDS[field].weight / (1 - B + B * doc.lengths()[field] / average);
+                }
+                matched.add(docId, idf * tf * (K1 + 1) / (tf + K1));
+            });
+        }
+
+        var phrases = query.phrases();
+        if (!phrases.isEmpty()) {
+            var inEveryPhrase = new HashSet<>(matchPhrase(phrases.get(0)));
+            for (int i = 1; i < phrases.size() && !inEveryPhrase.isEmpty(); i++) inEveryPhrase.retainAll(new HashSet<>(matchPhrase(phrases.get(i))));
+            matched.retain(inEveryPhrase::contains);
+        }
+
+        final Comparator<Hit> byScore = Comparator.comparingDouble(Hit::score).thenComparing(Hit::memeId, Comparator.reverseOrder());
+        var best = new PriorityQueue<>(byScore);
+        for (int i = 0; i < matched.size(); i++) {
+            var hit = new Hit(docs[matched.docId(i)].memeId(), matched.score(i));
+            if (best.size() < limit) best.add(hit);
+            else if (limit > 0 && byScore.compare(hit, best.peek()) > 0) {
+                best.poll();
+                best.add(hit);
+            }
+        }
+
+        var hits = new ArrayList<>(best);
+        hits.sort(byScore.reversed());
+        return new Hits(hits, matched.size());
+    }
+
+    /**
+     * @return the live documents containing the terms of the phrase at consecutive positions of
+     * the same field
+     */
+    private List<Integer> matchPhrase(List<String> phrase) {
+        var offsets = new IntList();
+        var termPostings = new ArrayList<TermPostings>();
+        for (int i = 0; i < phrase.size(); i++) {
+            if (phrase.get(i) == null) continue;
+            var found = postings.get(phrase.get(i));
+            if (found == null) return List.of();
+            offsets.add(i);
+            termPostings.add(found);
+        }
+        if (termPostings.isEmpty()) return List.of();
+
+        // Walk the postings of every term together, as all are sorted by document
+        var cursors = new TermPostings.Cursor[termPostings.size()];
+        for (int i = 0; i < cursors.length; i++) cursors[i] = termPostings.get(i).cursor();
+        var result = new ArrayList<Integer>();
+
+        outer:
+        while (cursors[0].valid()) {
+            var docId = cursors[0].docId();
+            for (int i = 1; i < cursors.length; i++) {
+                cursors[i].advanceTo(docId);
+                if (!cursors[i].valid()) break outer;
+                if (cursors[i].docId() != docId) {
+                    cursors[0].advanceTo(cursors[i].docId());
+                    continue outer;
+                }
+            }
+
+            if (docs[docId] != null && hasPhraseAt(cursors, offsets)) result.add(docId);
+            cursors[0].next();
+        }
+        return result;
+    }
+
+    private static boolean hasPhraseAt(TermPostings.Cursor[] cursors, IntList offsets) {
+        for (int p = 0; p < cursors[0].count(); p++) {
+            var start = cursors[0].position(p) - offsets.get(0);
+            var found = true;
+            for (int i = 1; i < cursors.length && found; i++) found = cursors[i].hasPosition(start + offsets.get(i));
+            if (found) return true;
+        }
+        return false;
+    }
+
+    private Doc find(long memeId) {
+        var docId = docsByMeme.get(memeId);
+        return docId == null ? null : docs[docId];
+    }
+
+    /**
+     * Rebuilds every posting list without the removed documents.
+     */
+    private void compact() {
+        var live = new ArrayList<Doc>(docsByMeme.size());
+        for (int i = 0; i < docCount; i++) {
+            if (docs[i] != null) live.add(docs[i]);
+        }
+
+        docs = new Doc[Math.max(1024, live.size() * 2)];
+        docCount = 0;
+        deadCount = 0;
+        docsByMeme.clear();
+        postings.clear();
+        Arrays.fill(totalLengths, 0);
+
+        for (var doc : live) put(doc.memeId(), doc.fileName(), doc.description(), doc.tags());
+    }
+
+    /**
+     * An indexed meme. The original texts are kept so a single field can be replaced, and the
+     * postings rebuilt.
+     *
+     * @param lengths number of positions of each field
+     * @param terms   the distinct terms of the document
+     */
+    private record Doc(long memeId, String fileName, String description, List<String> tags, int[] lengths, String[] terms) {
+    }
+
+    /**
+     * Postings of a term, stored flat as the document id, the number of positions and the positions.
+     * Document ids are appended in ascending order, as they're assigned sequentially.
+     */
+    private static final class TermPostings {
+        private final IntList data = new IntList();
+        private int documentFrequency = 0;
+
+        @FunctionalInterface
+        interface PostingConsumer {
+            void accept(int docId, int[] data, int offset, int count);
+        }
+
+        void add(int docId, IntList positions) {
+            data.add(docId);
+            data.add(positions.size());
+            for (int i = 0; i < positions.size(); i++) data.add(positions.get(i));
+            documentFrequency++;
+        }
+
+        void forEach(PostingConsumer consumer) {
+            var values = data.values;
+            for (int i = 0; i < data.size(); i += 2 + values[i + 1]) consumer.accept(values[i], values, i + 2, values[i + 1]);
+        }
+
+        Cursor cursor() {
+            return new Cursor();
+        }
+
+        final class Cursor {
+            private int index = 0;
+
+            boolean valid() {
+                return index < data.size();
+            }
+
+            int docId() {
+                return data.values[index];
+            }
+
+            int count() {
+                return data.values[index + 1];
+            }
+
+            int position(int i) {
+                return data.values[index + 2 + i];
+            }
+
+            boolean hasPosition(int position) {
+                for (int i = 0; i < count(); i++) {
+                    if (position(i) == position) return true;
+                }
+                return false;
+            }
+
+            void next() {
+                index += 2 + count();
+            }
+
+            void advanceTo(int docId) {
+                while (valid() && docId() < docId) next();
+            }
+        }
+    }
+
+    /**
+     * Growable list of ints.
+     */
+    /**
+     * Scores of the documents matching a query. They're kept in an open addressing table sized after
+     * the postings of the query terms, so a query takes memory for its matches and not for every
+     * document. Only when the terms are so common that the table would be about as big as the index,
+     * the scores are indexed by document directly.
+     */
+    private static final class ScoredDocs {
+        /**
+         * Document id plus one, zero for free slots. Null when indexed by document
+         */
+        private final int[] keys;
+        private final double[] scores;
+        private final int shift;
+        /**
+         * Slots taken, in the order the documents were first scored
+         */
+        private final IntList slots = new IntList();
+
+        ScoredDocs(int maxDocs, int docCount) {
+            var capacity = Integer.highestOneBit(Math.max(8, maxDocs) * 2 - 1) << 1;
+            if (capacity >= docCount) {
+                keys = null;
+                scores = new double[docCount];
+                shift = 0;
+            } else {
+                keys = new int[capacity];
+                scores = new double[capacity];
+                shift = Integer.numberOfLeadingZeros(capacity - 1);
+            }
+        }
+
+        /**
+         * Adds to the score of a document. Scores are always positive.
+         */
+        void add(int docId, double score) {
+            var slot = docId;
+            if (keys != null) {
+                // Fibonacci hashing, taking the top bits of the product
+                slot = (docId * 0x9E3779B9) >>> shift;
+                while (keys[slot] != 0 && keys[slot] != docId + 1) slot = (slot + 1) & (keys.length - 1);
+                keys[slot] = docId + 1;
+            }
+            if (scores[slot] == 0) slots.add(slot);
+            scores[slot] += score;
+        }
+
+        int docId(int i) {
+            return keys == null ? slots.get(i) : keys[slots.get(i)] - 1;
+        }
+
+        double score(int i) {
+            return scores[slots.get(i)];
+        }
+
+        int size() {
+            return slots.size();
+        }
+
+        void retain(IntPredicate predicate) {
+            slots.retain(slot -> predicate.test(keys == null ? slot : keys[slot] - 1));
+        }
+    }
+
+    static final class IntList {
+        private int[] values = new int[4];
+        private int size = 0;
+
+        void add(int value) {
+            if (size == values.length) values = Arrays.copyOf(values, size * 2);
+            values[size++] = value;
+        }
+
+        int get(int i) {
+            return values[i];
+        }
+
+        int size() {
+            return size;
+        }
+
+        void retain(IntPredicate predicate) {
+            var kept = 0;
+            for (int i = 0; i < size; i++) {
+                if (predicate.test(values[i])) values[kept++] = values[i];
+            }
+            size = kept;
+        }
+    }
+}
@@ -0,0 +1,65 @@
+package com.systems.fele.memendex_server.search;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * A query for {@link FullTextIndex}. Words are analyzed the same way the indexed text is, and any
+ * of them is enough for a meme to match, the ones matching more (and rarer) words ranking first.
+ * Text between double quotes is a phrase, which the meme must contain as written.
+ * <p></p>
+ * So {@code "atomic bomb" cat} finds the memes with "atomic bomb" in some field, those that also
+ * mention cats first.
+ *
+ * @param terms   terms outside phrases
+ * @param phrases the phrases, all of which must match. Stop words are kept as null, so they still
+ *                take up a position
+ */
+public record FullTextQuery(List<String> terms, List<List<String>> phrases) {
+
+    /**
+     * Parses a query. A quote left open ends at the end of the query.
+     */
+    public static FullTextQuery parse(String query) {
+        var terms = new ArrayList<String>();
+        var phrases = new ArrayList<List<String>>();
+
+        var parts = query.split("\"", -1);
+        for (int i = 0; i < parts.length; i++) {
+            var analyzed = TextAnalyzer.analyze(parts[i]);
+            if (i % 2 == 0) {
+                analyzed.stream().filter(Objects::nonNull).forEach(terms::add);
+            } else {
+                // Stop words only matter between the words of a phrase
+                while (!analyzed.isEmpty() && analyzed.get(0) == null) analyzed.remove(0);
+                while (!analyzed.isEmpty() && analyzed.get(analyzed.size() - 1) == null) analyzed.remove(analyzed.size() - 1);
+                if (!analyzed.isEmpty()) phrases.add(analyzed);
+            }
+        }
+        return new FullTextQuery(List.copyOf(terms), phrases.stream().map(FullTextQuery::copyOf).toList());
+    }
+
+    /**
+     * @return the distinct terms that add to the score, from the words and the phrases
+     */
+    public List<String> scoredTerms() {
+        var scored = new LinkedHashSet<>(terms);
+        for (var phrase : phrases) phrase.stream().filter(Objects::nonNull).forEach(scored::add);
+        return List.copyOf(scored);
+    }
+
+    /**
+     * @return whether there is nothing to search for, as when the query only has stop words
+     */
+    public boolean isEmpty() {
+        return terms.isEmpty() && phrases.isEmpty();
+    }
+
+    private static List<String> copyOf(List<String> phrase) {
+        // List.copyOf rejects nulls
+        return Collections.unmodifiableList(new ArrayList<>(phrase));
+    }
+}
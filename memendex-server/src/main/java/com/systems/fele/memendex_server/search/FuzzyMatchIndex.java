@@ -0,0 +1,301 @@
+package com.systems.fele.memendex_server.search;
+
+import me.xdrop.fuzzywuzzy.FuzzySearch;
+import me.xdrop.fuzzywuzzy.algorithms.DefaultStringFunction;
+
+import java.util.*;
+import java.util.stream.LongStream;
+
+/**
+ * In-memory n-gram index used to narrow down the candidates of a
+ * {@link FuzzySearch#tokenSetPartialRatio(String, String)} search before scoring them.
+ * <p></p>
+ * A text only scores above {@link #SCORE_THRESHOLD} if it either shares a whole token with
+ * the query (in which case the score is 100) or if some window of the longer normalized string
+ * has enough characters in common with the shorter one. The second case allows us to compute,
+ * for a given length, the minimum number of q-grams that must survive the edits, so every text
+ * sharing fewer q-grams than that with the query can be safely discarded. Trigrams are used
+ * when the bound allows it and bigrams otherwise, as trigrams give no guarantee for some short
+ * lengths.
+ * <p></p>
+ * The candidates are always scored with the same function the database alias uses, so the
+ * results are exactly the same as scanning the whole table.
+ * <p></p>
+ * This class is not thread safe. See {@link MemeSearchIndex}.
+ */
+public class FuzzyMatchIndex {
+    public static final int SCORE_THRESHOLD = 85;
+
+    private static final DefaultStringFunction STRING_FUNCTION = new DefaultStringFunction();
+
+    private Entry[] entries = new Entry[1024];
+    private int entryCount = 0;
+    private int deadCount = 0;
+
+    private final Map<Long, int[]> entriesByMeme = new HashMap<>();
+    private final Map<String, Postings> tokenPostings = new HashMap<>();
+    private final Map<Long, Postings> bigramPostings = new HashMap<>();
+    private final Map<Long, Postings> trigramPostings = new HashMap<>();
+
+    /**
+     * Entries whose own length doesn't allow pruning by trigrams (or bigrams). When they're
+     * shorter than the query they're checked directly against the query bigrams.
+     */
+    private final Postings shortEntries = new Postings();
+
+    /**
+     * Indexes the searchable texts of a meme, replacing anything indexed before for it.
+     *
+     * @param memeId id of the meme
+     * @param texts  the texts to index. Null values are ignored
+     */
+    public void put(long memeId, String... texts) {
+        remove(memeId);
+
+        var ids = Arrays.stream(texts)
+                .filter(Objects::nonNull)
+                .mapToInt(text -> addEntry(memeId, text))
+                .toArray();
+        entriesByMeme.put(memeId, ids);
+    }
+
+    /**
+     * Removes a meme from the index.
+     *
+     * @param memeId id of the meme
+     */
+    public void remove(long memeId) {
+        var ids = entriesByMeme.remove(memeId);
+        if (ids == null) return;
+
+        for (var id : ids) entries[id] = null;
+        deadCount += ids.length;
+
+        if (deadCount > 1024 && deadCount > entryCount / 4) compact();
+    }
+
+    /**
+     * @return number of memes indexed
+     */
+    public int size() {
+        return entriesByMeme.size();
+    }
+
+    /**
+     * Finds the ids of the memes with any text scoring above {@link #SCORE_THRESHOLD} against the query.
+     *
+     * @param query The search term
+     * @param limit Maximum number of ids to return
+     * @return Matching meme ids, in ascending order
+     */
+    public List<Long> search(String query, int limit) {
+        return search(query, Long.MIN_VALUE, limit);
+    }
+
+    /**
+     * Same as {@link #search(String, int)}, but skips memes with id lower than or equal to afterId.
+     * Only candidates after it are scored.
+     *
+     * @param query   The search term
+     * @param afterId Only ids greater than this are returned
+     * @param limit   Maximum number of ids to return
+     * @return Matching meme ids, in ascending order
+     */
+    public List<Long> search(String query, long afterId, int limit) {
+        var analyzed = Analyzed.of(query);
+        if (analyzed.tokens().isEmpty() || limit <= 0) return List.of();
+
+        var candidates = new HashSet<Entry>();
+
+        // Sharing a whole token always scores 100
+        for (var token : analyzed.tokens()) {
+            var postings = tokenPostings.get(token);
+            if (postings != null) postings.forEach(id -> addIfAlive(candidates, id));
+        }
+
+        final var queryLength = analyzed.text().length();
+        final var bigrams = gramKeys(analyzed.text(), 2);
+        final var trigrams = gramKeys(analyzed.text(), 3);
+        final var trigramsNeeded = minSharedGrams(queryLength, 3) - duplicates(trigrams);
+        final var bigramsNeeded = minSharedGrams(queryLength, 2) - duplicates(bigrams);
+
+        if (trigramsNeeded > 0 || bigramsNeeded <= 0) {
+            collectByCount(candidates, trigramPostings, trigrams, trigramsNeeded, queryLength, 3);
+        } else {
+            collectByCount(candidates, bigramPostings, bigrams, bigramsNeeded, queryLength, 2);
+        }
+
+        if (trigramsNeeded <= 0 && bigramsNeeded <= 0) {
+            // The query gives no bound at all, so longer texts can't be discarded
+            for (int id = 0; id < entryCount; id++) {
+                if (entries[id] != null && entries[id].length() >= queryLength) candidates.add(entries[id]);
+            }
+        }
+
+        // Texts shorter than the query which can't be pruned by postings are checked by hand
+        var queryBigrams = new HashSet<Long>();
+        for (var key : bigrams) queryBigrams.add(key);
+        shortEntries.forEach(id -> {
+            var entry = entries[id];
+            if (entry == null || entry.length() >= queryLength) return;
+            var shared = LongStream.of(gramKeys(entry.normalized(), 2)).distinct().filter(queryBigrams::contains).count();
+            if (shared >= entry.minBigrams()) candidates.add(entry);
+        });
+
+        return candidates.stream()
+                .filter(entry -> entry.memeId() > afterId)
+                .sorted(Comparator.comparingLong(Entry::memeId))
+                .filter(entry -> FuzzySearch.tokenSetPartialRatio(entry.text(), query) > SCORE_THRESHOLD)
+                .mapToLong(Entry::memeId)
+                .distinct()
+                .limit(limit)
+                .boxed()
+                .toList();
+    }
+
+    private void collectByCount(Set<Entry> candidates, Map<Long, Postings> index, long[] queryGrams, int queryNeeded, int queryLength, int q) {
+        var lists = LongStream.of(queryGrams)
+                .distinct()
+                .mapToObj(index::get)
+                .filter(Objects::nonNull)
+                .toList();
+
+        Postings.countOccurrences(lists, (id, count) -> {
+            var entry = entries[id];
+            if (entry == null) return;
+
+            if (entry.length() >= queryLength) {
+                if (count >= queryNeeded) candidates.add(entry);
+            } else if (!entry.isShort() && count >= entry.minGrams(q)) {
+                candidates.add(entry);
+            }
+        });
+    }
+
+    private void addIfAlive(Set<Entry> candidates, int id) {
+        if (entries[id] != null) candidates.add(entries[id]);
+    }
+
+    private int addEntry(long memeId, String text) {
+        var normalized = normalize(text);
+        var bigrams = gramKeys(normalized, 2);
+        var trigrams = gramKeys(normalized, 3);
+        var minBigrams = minSharedGrams(normalized.length(), 2) - duplicates(bigrams);
+        var minTrigrams = minSharedGrams(normalized.length(), 3) - duplicates(trigrams);
+        var isShort = minBigrams < 1 || minTrigrams < 1;
+
+        if (entryCount == entries.length) entries = Arrays.copyOf(entries, entries.length * 2);
+        final var id = entryCount++;
+        entries[id] = new Entry(memeId, text, isShort ? normalized : null, normalized.length(), minBigrams, minTrigrams);
+
+        for (var token : normalized.split(" ")) {
+            if (!token.isEmpty()) tokenPostings.computeIfAbsent(token, k -> new Postings()).add(id);
+        }
+        LongStream.of(bigrams).distinct().forEach(key -> bigramPostings.computeIfAbsent(key, k -> new Postings()).add(id));
+        LongStream.of(trigrams).distinct().forEach(key -> trigramPostings.computeIfAbsent(key, k -> new Postings()).add(id));
+        if (isShort) shortEntries.add(id);
+
+        return id;
+    }
+
+    /**
+     * Rebuilds every posting list without the removed entries.
+     */
+    private void compact() {
+        var live = new ArrayList<Map.Entry<Long, String[]>>();
+        for (var memeEntry : entriesByMeme.entrySet()) {
+            var texts = Arrays.stream(memeEntry.getValue()).mapToObj(id -> entries[id].text()).toArray(String[]::new);
+            live.add(Map.entry(memeEntry.getKey(), texts));
+        }
+        live.sort(Map.Entry.comparingByKey());
+
+        entries = new Entry[Math.max(1024, live.size() * 2)];
+        entryCount = 0;
+        deadCount = 0;
+        entriesByMeme.clear();
+        tokenPostings.clear();
+        bigramPostings.clear();
+        trigramPostings.clear();
+        shortEntries.clear();
+
+        for (var memeEntry : live) put(memeEntry.getKey(), memeEntry.getValue());
+    }
+
+    /**
+     * Normalizes a text the same way token set ratios do: processed by the default string
+     * function, split into a set of tokens, sorted and joined by a single space.
+     */
+    static String normalize(String text) {
+        var processed = STRING_FUNCTION.apply(text);
+        return String.join(" ", new TreeSet<>(Arrays.asList(processed.split("\\s+"))));
+    }
+
+    /**
+     * Minimum number of q-gram positions of the shorter string that survive in any window scoring
+     * above {@link #SCORE_THRESHOLD} with partial ratio, for the given length of the shorter string.
+     * <p></p>
+     * The ratio of two strings is 2M / (n + w), where M is the number of matching characters and
+     * w is the window length. Each unmatched character of the shorter string breaks up to q grams
+     * and each unmatched character of the window breaks up to q - 1.
+     *
+     * @param length length of the shorter string
+     * @param q      gram size
+     * @return minimum number of surviving grams. Zero or less means nothing can be discarded
+     */
+    static int minSharedGrams(int length, int q) {
+        var min = Integer.MAX_VALUE;
+        for (int window = 1; window <= length; window++) {
+            // round(100 * 2M / (n + w)) > 85  <=>  400M >= 171(n + w)
+            var matches = (171 * (length + window) + 399) / 400;
+            if (matches > window) continue;
+            var survivors = (length - q + 1) - q * (length - matches) - (q - 1) * (window - matches);
+            min = Math.min(min, survivors);
+        }
+        return min == Integer.MAX_VALUE ? 0 : min;
+    }
+
+    static long[] gramKeys(String text, int q) {
+        if (text.length() < q) return new long[0];
+
+        var keys = new long[text.length() - q + 1];
+        for (int i = 0; i < keys.length; i++) {
+            long key = 0;
+            for (int j = 0; j < q; j++) key = (key << 16) | text.charAt(i + j);
+            keys[i] = key;
+        }
+        return keys;
+    }
+
+    private static int duplicates(long[] keys) {
+        return keys.length - (int) LongStream.of(keys).distinct().count();
+    }
+
+    private record Analyzed(String text, Set<String> tokens) {
+        static Analyzed of(String query) {
+            var normalized = normalize(query);
+            var tokens = new HashSet<>(Arrays.asList(normalized.split(" ")));
+            tokens.remove("");
+            return new Analyzed(normalized, tokens);
+        }
+    }
+
+    /**
+     * An indexed text.
+     *
+     * @param memeId      id of the meme the text belongs to
+     * @param text        original text, used for scoring
+     * @param normalized  normalized text. Only kept for short entries
+     * @param length      length of the normalized text
+     * @param minBigrams  bigrams this text must share with a longer query
+     * @param minTrigrams trigrams this text must share with a longer query
+     */
+    private record Entry(long memeId, String text, String normalized, int length, int minBigrams, int minTrigrams) {
+        boolean isShort() {
+            return normalized != null;
+        }
+
+        int minGrams(int q) {
+            return q == 2 ? minBigrams : minTrigrams;
+        }
+    }
+}
@@ -0,0 +1,245 @@
+package com.systems.fele.memendex_server.search;
+
+import com.systems.fele.memendex_server.meme.TagToMemeRepository.TagIdMemeId;
+import com.systems.fele.memendex_server.model.Tag;
+import com.systems.fele.memendex_server.tag.TagRelationsChangedEvent;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.RowCallbackHandler;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.event.TransactionalEventListener;
+
+import java.util.*;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.stream.Stream;
+
+/**
+ * Keeps a {@link FullTextIndex} of the filename, description and tags of every meme.
+ * <p></p>
+ * The index is loaded from the database once the application is ready (or on the first search,
+ * whichever comes first). Texts are then kept up to date by {@link com.systems.fele.memendex_server.meme.MemeRepository},
+ * and tags by the {@link TagRelationsChangedEvent}, both once their transaction commits. Changes that
+ * happen before it is loaded are ignored, as they will be read from the database anyway.
+ * <p></p>
+ * {@link #rebuild()} builds a new index from the database while searches keep using the current
+ * one, and then swaps them.
+ */
+@Component
+public class MemeFullTextIndex {
+    private static final Logger logger = LoggerFactory.getLogger(MemeFullTextIndex.class);
+
+    private final JdbcTemplate jdbcTemplate;
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private FullTextIndex index = new FullTextIndex();
+    private volatile boolean loaded = false;
+
+    /**
+     * Bumped after every change, so results computed before it can be told apart.
+     */
+    private volatile long generation = 0;
+
+    /**
+     * Memes changed while {@link #rebuild()} reads the database, to be read again before the swap.
+     * Null when not rebuilding.
+     */
+    private Set<Long> changedDuringRebuild;
+
+    /**
+     * @param memes  memes indexed
+     * @param terms  distinct terms indexed
+     * @param millis time taken to build the index
+     */
+    public record Stats(int memes, int terms, long millis) {
+    }
+
+    public MemeFullTextIndex(JdbcTemplate jdbcTemplate) {
+        this.jdbcTemplate = jdbcTemplate;
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void onApplicationReady() {
+        ensureLoaded();
+    }
+
+    /**
+     * Finds the memes matching the query, most relevant first. See {@link FullTextQuery} for the syntax.
+     *
+     * @param query the query
+     * @param limit maximum number of hits to return
+     * @return the best hits and how many memes match
+     */
+    public FullTextIndex.Hits search(String query, int limit) {
+        var parsed = FullTextQuery.parse(query);
+        if (parsed.isEmpty()) return new FullTextIndex.Hits(List.of(), 0);
+
+        ensureLoaded();
+        lock.readLock().lock();
+        try {
+            return index.search(parsed, limit);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Changes every time a meme is indexed or gets different tags, and when the index is rebuilt.
+     * A result obtained after reading some generation is outdated once it changes.
+     * <p></p>
+     * {@link com.systems.fele.memendex_server.meme.MemeRepository} updates {@link MemeSearchIndex} right
+     * before this one, so the generation covers fuzzy results too.
+     *
+     * @return the current generation
+     */
+    public long generation() {
+        return generation;
+    }
+
+    /**
+     * Indexes (or re-indexes) the texts of a meme, keeping its tags.
+     *
+     * @param memeId      id of the meme
+     * @param fileName    file name of the meme
+     * @param description description of the meme
+     */
+    public void put(long memeId, String fileName, String description) {
+        lock.writeLock().lock();
+        try {
+            if (!loaded) return;
+            index.putText(memeId, fileName, description);
+            if (changedDuringRebuild != null) changedDuringRebuild.add(memeId);
+            generation++;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Removes a meme from the index.
+     *
+     * @param memeId id of the meme
+     */
+    public void remove(long memeId) {
+        lock.writeLock().lock();
+        try {
+            if (!loaded) return;
+            index.remove(memeId);
+            if (changedDuringRebuild != null) changedDuringRebuild.add(memeId);
+            generation++;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Reads the tags of the memes that gained or lost some. They're read while holding the lock,
+     * so concurrent edits are applied in the order they were committed.
+     */
+    @TransactionalEventListener(fallbackExecution = true)
+    public void onTagRelationsChanged(TagRelationsChangedEvent event) {
+        var memeIds = Stream.concat(event.added().stream(), event.removed().stream())
+                .map(TagIdMemeId::memeId)
+                .distinct()
+                .toArray(Long[]::new);
+        if (memeIds.length == 0) return;
+
+        lock.writeLock().lock();
+        try {
+            if (!loaded) return;
+            var tags = loadTags(memeIds);
+            for (var memeId : memeIds) index.putTags(memeId, tags.getOrDefault(memeId, List.of()));
+            if (changedDuringRebuild != null) changedDuringRebuild.addAll(Arrays.asList(memeIds));
+            generation++;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Builds the index again from the database. Searches are served by the current index until
+     * the new one is ready.
+     *
+     * @return the size of the new index
+     */
+    public synchronized Stats rebuild() {
+        ensureLoaded();
+        final var start = System.nanoTime();
+
+        lock.writeLock().lock();
+        try {
+            changedDuringRebuild = new HashSet<>();
+        } finally {
+            lock.writeLock().unlock();
+        }
+
+        var fresh = new FullTextIndex();
+        try {
+            load(fresh, null);
+            lock.writeLock().lock();
+            try {
+                if (!changedDuringRebuild.isEmpty()) {
+                    // Read again, except the ones deleted meanwhile
+                    changedDuringRebuild.forEach(fresh::remove);
+                    load(fresh, changedDuringRebuild.toArray(Long[]::new));
+                }
+                index = fresh;
+                generation++;
+            } finally {
+                lock.writeLock().unlock();
+            }
+        } finally {
+            lock.writeLock().lock();
+            changedDuringRebuild = null;
+            lock.writeLock().unlock();
+        }
+
+        var stats = new Stats(fresh.size(), fresh.termCount(), (System.nanoTime() - start) / 1_000_000);
+        logger.info("Rebuilt the full-text index: {} memes, {} terms in {} ms", stats.memes(), stats.terms(), stats.millis());
+        return stats;
+    }
+
+    /**
+     * Indexes memes read from the database.
+     *
+     * @param target  the index
+     * @param memeIds the memes to index. Null for all of them
+     */
+    private void load(FullTextIndex target, Long[] memeIds) {
+        var tags = loadTags(memeIds);
+        RowCallbackHandler callback = rs -> target.put(rs.getLong("id"), rs.getString("filename"), rs.getString("description"),
+                tags.getOrDefault(rs.getLong("id"), List.of()));
+        if (memeIds == null) jdbcTemplate.query("SELECT id, filename, description FROM memes", callback);
+        else jdbcTemplate.query("SELECT id, filename, description FROM memes WHERE id = ANY(?)", callback, (Object) memeIds);
+    }
+
+    /**
+     * @param memeIds the memes. Null for all of them
+     * @return the tags of each meme, in the order they were created
+     */
+    private Map<Long, List<String>> loadTags(Long[] memeIds) {
+        var tags = new HashMap<Long, List<String>>();
+        RowCallbackHandler callback = rs -> tags
+                .computeIfAbsent(rs.getLong("meme_id"), k -> new ArrayList<>())
+                .add(new Tag(rs.getLong("id"), rs.getString("scope"), rs.getString("name")).toString());
+
+        final var sql = "SELECT ttm.meme_id, t.id, t.scope, t.name FROM tags_to_memes ttm JOIN tags t ON t.id = ttm.tag_id";
+        if (memeIds == null) jdbcTemplate.query(sql + " ORDER BY t.id", callback);
+        else jdbcTemplate.query(sql + " WHERE ttm.meme_id = ANY(?) ORDER BY t.id", callback, (Object) memeIds);
+        return tags;
+    }
+
+    private void ensureLoaded() {
+        if (loaded) return;
+
+        lock.writeLock().lock();
+        try {
+            if (loaded) return;
+            load(index, null);
+            loaded = true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+}
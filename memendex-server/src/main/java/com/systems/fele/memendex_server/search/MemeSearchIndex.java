@@ -0,0 +1,108 @@
+package com.systems.fele.memendex_server.search;
+
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Component;
+
+import java.util.List;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Keeps a {@link FuzzyMatchIndex} of the filename and description of every meme.
+ * <p></p>
+ * The index is loaded from the database once the application is ready (or on the first
+ * search, whichever comes first) and then kept up to date by {@link com.systems.fele.memendex_server.meme.MemeRepository}.
+ * Changes that happen before it is loaded are ignored, as they will be read from the database anyway.
+ */
+@Component
+public class MemeSearchIndex {
+    private final JdbcTemplate jdbcTemplate;
+    private final FuzzyMatchIndex index = new FuzzyMatchIndex();
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private volatile boolean loaded = false;
+
+    public MemeSearchIndex(JdbcTemplate jdbcTemplate) {
+        this.jdbcTemplate = jdbcTemplate;
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void onApplicationReady() {
+        ensureLoaded();
+    }
+
+    /**
+     * Finds the ids of the memes whose filename or description scores above
+     * {@link FuzzyMatchIndex#SCORE_THRESHOLD} against the query.
+     *
+     * @param query The search term
+     * @param limit Maximum number of ids to return
+     * @return Matching meme ids, in ascending order
+     */
+    public List<Long> search(String query, int limit) {
+        return search(query, Long.MIN_VALUE, limit);
+    }
+
+    /**
+     * Same as {@link #search(String, int)}, but skips memes with id lower than or equal to afterId.
+     *
+     * @param query   The search term
+     * @param afterId Only ids greater than this are returned
+     * @param limit   Maximum number of ids to return
+     * @return Matching meme ids, in ascending order
+     */
+    public List<Long> search(String query, long afterId, int limit) {
+        ensureLoaded();
+        lock.readLock().lock();
+        try {
+            return index.search(query, afterId, limit);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Indexes (or re-indexes) a meme.
+     *
+     * @param memeId      id of the meme
+     * @param fileName    file name of the meme
+     * @param description description of the meme
+     */
+    public void put(long memeId, String fileName, String description) {
+        lock.writeLock().lock();
+        try {
+            if (loaded) index.put(memeId, description, fileName);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Removes a meme from the index.
+     *
+     * @param memeId id of the meme
+     */
+    public void remove(long memeId) {
+        lock.writeLock().lock();
+        try {
+            if (loaded) index.remove(memeId);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private void ensureLoaded() {
+        if (loaded) return;
+
+        lock.writeLock().lock();
+        try {
+            if (loaded) return;
+            jdbcTemplate.query("SELECT id, filename, description FROM memes", rs -> {
+                index.put(rs.getLong("id"), rs.getString("description"), rs.getString("filename"));
+            });
+            loaded = true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+}
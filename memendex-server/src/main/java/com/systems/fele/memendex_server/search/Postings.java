@@ -0,0 +1,85 @@
+package com.systems.fele.memendex_server.search;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.function.IntConsumer;
+
+/**
+ * Growable list of entry ids. Ids must be appended in ascending order,
+ * which holds as long as they're assigned sequentially.
+ */
+class Postings {
+    private int[] ids = new int[4];
+    private int size = 0;
+
+    void add(int id) {
+        if (size == ids.length) ids = Arrays.copyOf(ids, size * 2);
+        ids[size++] = id;
+    }
+
+    void clear() {
+        ids = new int[4];
+        size = 0;
+    }
+
+    int size() {
+        return size;
+    }
+
+    void forEach(IntConsumer consumer) {
+        for (int i = 0; i < size; i++) consumer.accept(ids[i]);
+    }
+
+    @FunctionalInterface
+    interface CountConsumer {
+        void accept(int id, int count);
+    }
+
+    /**
+     * Merges the posting lists and reports, for each id, in how many lists it appears.
+     * Ids are reported in ascending order.
+     *
+     * @param lists    posting lists to merge
+     * @param consumer receives every id along with its count
+     */
+    static void countOccurrences(List<Postings> lists, CountConsumer consumer) {
+        var heap = new PriorityQueue<Cursor>(lists.size() + 1);
+        for (var list : lists) {
+            if (list.size > 0) heap.add(new Cursor(list));
+        }
+
+        while (!heap.isEmpty()) {
+            var id = heap.peek().current();
+            var count = 0;
+            while (!heap.isEmpty() && heap.peek().current() == id) {
+                var cursor = heap.poll();
+                count++;
+                if (cursor.advance()) heap.add(cursor);
+            }
+            consumer.accept(id, count);
+        }
+    }
+
+    private static class Cursor implements Comparable<Cursor> {
+        private final Postings postings;
+        private int position = 0;
+
+        Cursor(Postings postings) {
+            this.postings = postings;
+        }
+
+        int current() {
+            return postings.ids[position];
+        }
+
+        boolean advance() {
+            return ++position < postings.size;
+        }
+
+        @Override
+        public int compareTo(Cursor other) {
+            return Integer.compare(current(), other.current());
+        }
+    }
+}
@@ -0,0 +1,101 @@
+package com.systems.fele.memendex_server.search;
+
+import com.systems.fele.memendex_server.MemendexProperties;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.stereotype.Component;
+
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Optional;
+
+/**
+ * Keeps the ordered ids found by recent searches, so the next pages of a query, and the same query
+ * made again, are sliced from memory instead of searched again.
+ * <p></p>
+ * Results are stored along with the {@link MemeFullTextIndex#generation()} read before searching,
+ * and are only served while it stays the same: any write to the indexes makes every result stale.
+ * The least recently used queries are evicted once there are too many, and results older than the
+ * configured TTL are searched again.
+ */
+@Component
+public class SearchResultCache {
+    private final int maxEntries;
+    private final long ttlNanos;
+    private final Map<String, Results> entries;
+    private final Counter hits;
+    private final Counter misses;
+
+    /**
+     * Ids found by a search.
+     *
+     * @param generation generation of the indexes the search ran against
+     * @param createdAt  {@link System#nanoTime()} when it was stored
+     * @param ids        ids of the first memes found, in order
+     * @param total      number of memes matching. -1 when unknown
+     * @param ranked     whether the ids are ordered by relevance, instead of by id
+     * @param complete   whether ids has every meme matching
+     */
+    public record Results(long generation, long createdAt, long[] ids, int total, boolean ranked, boolean complete) {
+
+        /**
+         * @return whether these results have the first count ids of the search
+         */
+        public boolean covers(int count) {
+            return complete || ids.length >= count;
+        }
+    }
+
+    public SearchResultCache(MemendexProperties memendexProperties, MeterRegistry meterRegistry) {
+        this.hits = Counter.builder("memendex.search.cache.requests").tag("result", "hit").register(meterRegistry);
+        this.misses = Counter.builder("memendex.search.cache.requests").tag("result", "miss").register(meterRegistry);
+        this.maxEntries = memendexProperties.search().cacheSize();
+        this.ttlNanos = memendexProperties.search().cacheTtl().toNanos();
+        this.entries = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Results> eldest) {
+                return size() > SearchResultCache.this.maxEntries;
+            }
+        };
+    }
+
+    /**
+     * @param query      the query, as typed
+     * @param generation the current generation
+     * @return the results stored for the query, unless they are stale
+     */
+    public synchronized Optional<Results> get(String query, long generation) {
+        var key = normalize(query);
+        var results = entries.get(key);
+        if (results != null && (results.generation() != generation || System.nanoTime() - results.createdAt() > ttlNanos)) {
+            entries.remove(key);
+            results = null;
+        }
+        (results == null ? misses : hits).increment();
+        return Optional.ofNullable(results);
+    }
+
+    /**
+     * Stores the results of a query, replacing older ones.
+     */
+    public synchronized void put(String query, Results results) {
+        if (maxEntries <= 0) return;
+        entries.put(normalize(query), results);
+    }
+
+    /**
+     * @return number of queries whose results are kept
+     */
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * Queries differing only in case and spacing find the same memes, in both the full-text and the
+     * fuzzy search.
+     */
+    static String normalize(String query) {
+        return query.strip().replaceAll("\\s+", " ").toLowerCase(Locale.ROOT);
+    }
+}
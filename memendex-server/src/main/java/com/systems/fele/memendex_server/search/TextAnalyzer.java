@@ -0,0 +1,89 @@
+package com.systems.fele.memendex_server.search;
+
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Turns text into the terms indexed by {@link FullTextIndex}. Queries go through the same steps,
+ * so "Ação" finds "acao.png" and "cats" finds "cat".
+ * <p></p>
+ * Text is split on anything that isn't a letter or a digit, accents are removed and everything is
+ * lowercased. Stop words are dropped but still take up their position, so phrases keep their gaps.
+ * Finally, a light stemmer removes plural and -ing/-ed endings. It is deliberately conservative:
+ * memes mix English, Portuguese and internet slang, and an aggressive stemmer would merge words
+ * that have nothing to do with each other.
+ */
+public final class TextAnalyzer {
+    private static final int MAX_TERM_LENGTH = 40;
+
+    private static final Set<String> STOP_WORDS = Set.of(
+            "a", "an", "and", "are", "as", "at", "be", "by", "for", "from", "in", "is", "it", "of",
+            "on", "or", "that", "the", "this", "to", "was", "with",
+            "o", "os", "um", "uma", "e", "de", "do", "da", "dos", "das", "no", "na", "em", "que", "com", "para"
+    );
+
+    private TextAnalyzer() {
+    }
+
+    /**
+     * @param text the text. Null is the same as empty
+     * @return the terms, where the position of each is its index. Stop words and overly long
+     * tokens are left as null
+     */
+    public static List<String> analyze(String text) {
+        var terms = new ArrayList<String>();
+        if (text == null) return terms;
+
+        var folded = Normalizer.normalize(text, Normalizer.Form.NFD);
+        var token = new StringBuilder();
+        for (int i = 0; i <= folded.length(); i++) {
+            var c = i < folded.length() ? folded.charAt(i) : ' ';
+            if (Character.getType(c) == Character.NON_SPACING_MARK) continue;
+            if (Character.isLetterOrDigit(c)) {
+                token.append(Character.toLowerCase(c));
+            } else if (!token.isEmpty()) {
+                terms.add(term(token.toString()));
+                token.setLength(0);
+            }
+        }
+        return terms;
+    }
+
+    private static String term(String token) {
+        if (token.length() > MAX_TERM_LENGTH || STOP_WORDS.contains(token)) return null;
+        return stem(token);
+    }
+
+    /**
+     * Removes plural endings, then -ing and -ed, much like the first step of Porter's stemmer.
+     * Numbers are left alone.
+     */
+    static String stem(String word) {
+        if (word.length() < 4 || !Character.isLetter(word.charAt(word.length() - 1))) return word;
+
+        if (word.endsWith("sses")) word = word.substring(0, word.length() - 2);
+        else if (word.endsWith("ies") && !word.endsWith("eies") && !word.endsWith("aies")) word = word.substring(0, word.length() - 3) + "y";
+        else if (word.endsWith("s") && !word.endsWith("ss") && !word.endsWith("us") && !word.endsWith("is"))
+            word = word.substring(0, word.length() - 1);
+
+        String stem = null;
+        if (word.endsWith("ing") && word.length() > 5) stem = word.substring(0, word.length() - 3);
+        else if (word.endsWith("ed") && word.length() > 4) stem = word.substring(0, word.length() - 2);
+        if (stem == null || !hasVowel(stem)) return word;
+
+        // running -> run, but falling -> fall
+        var last = stem.charAt(stem.length() - 1);
+        if (stem.length() > 2 && last == stem.charAt(stem.length() - 2) && "aeiouylsz".indexOf(last) < 0)
+            return stem.substring(0, stem.length() - 1);
+        return stem;
+    }
+
+    private static boolean hasVowel(String text) {
+        for (int i = 0; i < text.length(); i++) {
+            if ("aeiouy".indexOf(text.charAt(i)) >= 0) return true;
+        }
+        return false;
+    }
+}
@@ -0,0 +1,93 @@
+package com.systems.fele.memendex_server.similarity;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * BK-tree of 64 bits hashes under the hamming distance.
+ * <p></p>
+ * Every child of a node sits at a known distance from it, so by the triangle inequality a
+ * search with radius r only has to visit the children at distance d - r to d + r, where d is
+ * the distance between the query and the node. Small radiuses touch only a fraction of the tree.
+ * <p></p>
+ * Memes with the same hash share a node. This class is not thread safe. See {@link SimilarityIndex}.
+ */
+public class BkTree {
+
+    /**
+     * @param memeId   id of the meme
+     * @param distance hamming distance from the query
+     */
+    public record Match(long memeId, int distance) {
+    }
+
+    private static class Node {
+        final long hash;
+        final List<Long> memeIds = new ArrayList<>(1);
+        final Node[] children = new Node[Long.SIZE + 1];
+
+        Node(long hash) {
+            this.hash = hash;
+        }
+    }
+
+    private Node root;
+
+    public void add(long memeId, long hash) {
+        if (root == null) root = new Node(hash);
+
+        var node = root;
+        while (true) {
+            var distance = PerceptualHash.distance(node.hash, hash);
+            if (distance == 0) {
+                node.memeIds.add(memeId);
+                return;
+            }
+            if (node.children[distance] == null) node.children[distance] = new Node(hash);
+            node = node.children[distance];
+        }
+    }
+
+    /**
+     * Removes a meme. Nodes are kept, even if they end up with no memes, as their children depend on them.
+     */
+    public void remove(long memeId, long hash) {
+        var node = root;
+        while (node != null) {
+            var distance = PerceptualHash.distance(node.hash, hash);
+            if (distance == 0) {
+                node.memeIds.remove(Long.valueOf(memeId));
+                return;
+            }
+            node = node.children[distance];
+        }
+    }
+
+    /**
+     * @param hash        the query
+     * @param maxDistance search radius
+     * @return memes with hashes within maxDistance of the query, in no particular order
+     */
+    public List<Match> search(long hash, int maxDistance) {
+        var matches = new ArrayList<Match>();
+        if (root == null) return matches;
+
+        var pending = new ArrayDeque<Node>();
+        pending.push(root);
+        while (!pending.isEmpty()) {
+            var node = pending.pop();
+            var distance = PerceptualHash.distance(node.hash, hash);
+            if (distance <= maxDistance) {
+                for (var memeId : node.memeIds) matches.add(new Match(memeId, distance));
+            }
+
+            var from = Math.max(1, distance - maxDistance);
+            var to = Math.min(Long.SIZE, distance + maxDistance);
+            for (int i = from; i <= to; i++) {
+                if (node.children[i] != null) pending.push(node.children[i]);
+            }
+        }
+        return matches;
+    }
+}
@@ -0,0 +1,57 @@
+package com.systems.fele.memendex_server.similarity;
+
+import java.awt.image.BufferedImage;
+
+/**
+ * Difference hash (dHash) of images. The image is reduced to a 9x8 grid of average
+ * luminance and every bit tells whether a cell is brighter than its right neighbor, so
+ * re-compressed or resized copies of an image get hashes only a few bits apart.
+ */
+public class PerceptualHash {
+    private static final int COLUMNS = 9;
+    private static final int ROWS = 8;
+
+    private PerceptualHash() {
+    }
+
+    /**
+     * @param image the image. Its resolution doesn't matter, a subsampled decode works just as well
+     * @return the 64 bits hash
+     */
+    public static long dHash(BufferedImage image) {
+        final var width = image.getWidth();
+        final var height = image.getHeight();
+        final var sums = new double[ROWS * COLUMNS];
+        final var counts = new int[ROWS * COLUMNS];
+        final var row = new int[width];
+
+        for (int y = 0; y < height; y++) {
+            image.getRGB(0, y, width, 1, row, 0, width);
+            final var cellRow = Math.min(ROWS - 1, y * ROWS / height);
+            for (int x = 0; x < width; x++) {
+                final var cell = cellRow * COLUMNS + Math.min(COLUMNS - 1, x * COLUMNS / width);
+                final var rgb = row[x];
+                sums[cell] += 0.299 * ((rgb >> 16) & 0xff) + 0.587 * ((rgb >> 8) & 0xff) + 0.114 * (rgb & 0xff);
+                counts[cell]++;
+            }
+        }
+
+        long hash = 0;
+        for (int y = 0; y < ROWS; y++) {
+            for (int x = 0; x < COLUMNS - 1; x++) {
+                final var left = average(sums, counts, y * COLUMNS + x);
+                final var right = average(sums, counts, y * COLUMNS + x + 1);
+                hash = (hash << 1) | (left > right ? 1 : 0);
+            }
+        }
+        return hash;
+    }
+
+    private static double average(double[] sums, int[] counts, int cell) {
+        return counts[cell] == 0 ? 0 : sums[cell] / counts[cell];
+    }
+
+    public static int distance(long a, long b) {
+        return Long.bitCount(a ^ b);
+    }
+}
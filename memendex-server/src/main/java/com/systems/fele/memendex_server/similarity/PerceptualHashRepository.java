@@ -0,0 +1,36 @@
+package com.systems.fele.memendex_server.similarity;
+
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Repository;
+
+import java.util.function.BiConsumer;
+
+@Repository
+public class PerceptualHashRepository {
+    private final JdbcTemplate jdbcTemplate;
+
+    public PerceptualHashRepository(JdbcTemplate jdbcTemplate) {
+        this.jdbcTemplate = jdbcTemplate;
+    }
+
+    /**
+     * Saves the perceptual hash of a meme, replacing the previous one.
+     *
+     * @param memeId id of the meme
+     * @param hash   the hash
+     */
+    public void save(long memeId, long hash) {
+        jdbcTemplate.update("MERGE INTO perceptual_hashes (meme_id, hash) KEY (meme_id) VALUES (?, ?)", memeId, hash);
+    }
+
+    /**
+     * Reads every saved hash.
+     *
+     * @param consumer receives the meme id and its hash
+     */
+    public void forEach(BiConsumer<Long, Long> consumer) {
+        jdbcTemplate.query("SELECT meme_id, hash FROM perceptual_hashes", rs -> {
+            consumer.accept(rs.getLong("meme_id"), rs.getLong("hash"));
+        });
+    }
+}
@@ -0,0 +1,109 @@
+package com.systems.fele.memendex_server.similarity;
+
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Component;
+
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.OptionalLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Keeps the perceptual hashes of the memes in a {@link BkTree}, so near duplicates are found
+ * without comparing against the whole library.
+ * <p></p>
+ * The index is loaded from the database once the application is ready (or on first use,
+ * whichever comes first). Hashes are saved through {@link #put(long, long)}, which updates
+ * both the database and the index.
+ */
+@Component
+public class SimilarityIndex {
+    private final PerceptualHashRepository perceptualHashRepository;
+    private final BkTree tree = new BkTree();
+    private final Map<Long, Long> hashes = new HashMap<>();
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private volatile boolean loaded = false;
+
+    public SimilarityIndex(PerceptualHashRepository perceptualHashRepository) {
+        this.perceptualHashRepository = perceptualHashRepository;
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void onApplicationReady() {
+        ensureLoaded();
+    }
+
+    /**
+     * Saves the perceptual hash of a meme.
+     *
+     * @param memeId id of the meme
+     * @param hash   its hash
+     */
+    public void put(long memeId, long hash) {
+        ensureLoaded();
+        // Saved before locking, so searches don't wait on the database. The hash of a meme is only
+        // put by the job rendering its thumbnail, so there's no other write to race with
+        perceptualHashRepository.save(memeId, hash);
+        lock.writeLock().lock();
+        try {
+            var previous = hashes.put(memeId, hash);
+            if (previous != null) tree.remove(memeId, previous);
+            tree.add(memeId, hash);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * @param memeId id of the meme
+     * @return its hash, if it was already computed
+     */
+    public OptionalLong getHash(long memeId) {
+        ensureLoaded();
+        lock.readLock().lock();
+        try {
+            var hash = hashes.get(memeId);
+            return hash == null ? OptionalLong.empty() : OptionalLong.of(hash);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Finds the memes whose hash is within maxDistance of the given one.
+     *
+     * @param hash        the hash to compare with
+     * @param maxDistance maximum hamming distance
+     * @return matches ordered by distance, then id
+     */
+    public List<BkTree.Match> findSimilar(long hash, int maxDistance) {
+        ensureLoaded();
+        lock.readLock().lock();
+        try {
+            return tree.search(hash, maxDistance).stream()
+                    .sorted(Comparator.comparingInt(BkTree.Match::distance).thenComparingLong(BkTree.Match::memeId))
+                    .toList();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private void ensureLoaded() {
+        if (loaded) return;
+
+        lock.writeLock().lock();
+        try {
+            if (loaded) return;
+            perceptualHashRepository.forEach((memeId, hash) -> {
+                hashes.put(memeId, hash);
+                tree.add(memeId, hash);
+            });
+            loaded = true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+}
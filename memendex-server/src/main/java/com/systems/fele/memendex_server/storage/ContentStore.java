@@ -0,0 +1,214 @@
+package com.systems.fele.memendex_server.storage;
+
+import com.systems.fele.memendex_server.MemendexProperties;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.springframework.boot.autoconfigure.web.servlet.MultipartProperties;
+import org.springframework.lang.Nullable;
+import org.springframework.stereotype.Component;
+import org.springframework.web.multipart.MaxUploadSizeExceededException;
+import org.springframework.web.multipart.MultipartFile;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Writes uploaded files into the upload location, hashing them on the way.
+ * <p></p>
+ * Uploads are first received inside the incoming directory, which lives in the upload location
+ * so moving them to their final name is just a rename. Every upload is written only once: streams
+ * are hashed while they're written there, and multipart uploads, which the container already wrote
+ * there, are hashed and renamed.
+ * <p></p>
+ * When the same content was already uploaded, the new file is created as a hard link to the
+ * existing one, so the content is stored only once. File systems without hard links get a copy.
+ */
+@Component
+public class ContentStore {
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final File incomingDirectory;
+    private final long maxFileSize;
+    private final MeterRegistry meterRegistry;
+
+    /**
+     * An upload received in the incoming directory.
+     *
+     * @param file   the received file
+     * @param sha256 hex SHA-256 of the contents
+     * @param length size in bytes
+     */
+    public record Received(File file, String sha256, long length) {
+    }
+
+    public ContentStore(MemendexProperties memendexProperties, MultipartProperties multipartProperties, MeterRegistry meterRegistry) throws IOException {
+        this.incomingDirectory = new File(memendexProperties.uploadLocation(), ".incoming");
+        this.maxFileSize = multipartProperties.getMaxFileSize().toBytes();
+        this.meterRegistry = meterRegistry;
+
+        if (!incomingDirectory.exists()) incomingDirectory.mkdirs();
+
+        // Nothing is being uploaded yet, so anything left there is from an interrupted upload
+        var leftovers = incomingDirectory.listFiles(File::isFile);
+        if (leftovers != null) for (var leftover : leftovers) Files.deleteIfExists(leftover.toPath());
+    }
+
+    public File getIncomingDirectory() {
+        return incomingDirectory;
+    }
+
+    /**
+     * Receives an upload from a stream, writing it once while hashing it.
+     *
+     * @param input the upload contents
+     * @return the received upload. It must be either stored or discarded
+     * @throws IOException If any error
+     * @throws MaxUploadSizeExceededException If the contents are bigger than the maximum upload size
+     */
+    public Received receive(InputStream input) throws IOException {
+        return receive("stream", input);
+    }
+
+    /**
+     * Receives a multipart upload. The container already buffered it in the incoming directory
+     * (see {@link MultipartConfiguration}), so it's hashed reading that buffer and then renamed
+     * into place: the file is written only once, by the container. Small parts kept in memory by
+     * the container are written here instead.
+     *
+     * @param file the uploaded file
+     * @return the received upload. It must be either stored or discarded
+     * @throws IOException If any error
+     */
+    public Received receive(MultipartFile file) throws IOException {
+        final var start = System.nanoTime();
+        final var digest = sha256();
+        try (var input = new DigestInputStream(file.getInputStream(), digest)) {
+            input.transferTo(OutputStream.nullOutputStream());
+        }
+
+        final var target = new File(incomingDirectory, UUID.randomUUID() + ".tmp");
+        try {
+            file.transferTo(target);
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(target.toPath());
+            throw e;
+        }
+        return received("multipart", start, new Received(target, HexFormat.of().formatHex(digest.digest()), file.getSize()));
+    }
+
+    private Received receive(String source, InputStream input) throws IOException {
+        final var start = System.nanoTime();
+        final var target = new File(incomingDirectory, UUID.randomUUID() + ".tmp");
+        final var digest = sha256();
+        long length = 0;
+
+        try (OutputStream output = Files.newOutputStream(target.toPath(), StandardOpenOption.CREATE_NEW)) {
+            var buffer = new byte[BUFFER_SIZE];
+            int read;
+            while ((read = input.read(buffer)) != -1) {
+                length += read;
+                if (maxFileSize >= 0 && length > maxFileSize) throw new MaxUploadSizeExceededException(maxFileSize);
+                digest.update(buffer, 0, read);
+                output.write(buffer, 0, read);
+            }
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(target.toPath());
+            throw e;
+        }
+
+        return received(source, start, new Received(target, HexFormat.of().formatHex(digest.digest()), length));
+    }
+
+    /**
+     * Receives a file already on this server, leaving it where it is. The received file is a
+     * hard link to it when possible, so nothing is copied.
+     *
+     * @param source the file
+     * @return the received upload. It must be either stored or discarded
+     * @throws IOException If any error
+     */
+    public Received receive(Path source) throws IOException {
+        final var start = System.nanoTime();
+        final var digest = sha256();
+        try (var input = new DigestInputStream(Files.newInputStream(source), digest)) {
+            input.transferTo(OutputStream.nullOutputStream());
+        }
+
+        final var target = new File(incomingDirectory, UUID.randomUUID() + ".tmp");
+        try {
+            Files.createLink(target.toPath(), source);
+        } catch (UnsupportedOperationException | IOException e) {
+            // Different file system or no hard links
+            Files.copy(source, target.toPath());
+        }
+
+        return received("file", start, new Received(target, HexFormat.of().formatHex(digest.digest()), Files.size(target.toPath())));
+    }
+
+    /**
+     * Records how long receiving took, the size and the throughput, tagged by where the upload came from.
+     */
+    private Received received(String source, long start, Received received) {
+        final var nanos = System.nanoTime() - start;
+        Timer.builder("memendex.uploads.receive").tag("source", source).register(meterRegistry).record(nanos, TimeUnit.NANOSECONDS);
+        DistributionSummary.builder("memendex.uploads.size").tag("source", source).baseUnit("bytes")
+                .register(meterRegistry).record(received.length());
+        if (nanos > 0) DistributionSummary.builder("memendex.uploads.throughput").tag("source", source).baseUnit("bytes_per_second")
+                .register(meterRegistry).record(received.length() * 1e9 / nanos);
+        return received;
+    }
+
+    /**
+     * Moves a received upload to its final place, making it durable.
+     *
+     * @param received    the received upload
+     * @param target      final file
+     * @param sameContent an existing file with the same contents, if any. The target becomes a link to it
+     * @throws IOException If any error
+     */
+    public void store(Received received, File target, @Nullable File sameContent) throws IOException {
+        if (sameContent != null && sameContent.isFile() && sameContent.length() == received.length()) {
+            try {
+                Files.createLink(target.toPath(), sameContent.toPath());
+                discard(received);
+                return;
+            } catch (UnsupportedOperationException | IOException e) {
+                // No hard links here, the content is stored again
+            }
+        }
+
+        Files.move(received.file().toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        try (var channel = FileChannel.open(target.toPath(), StandardOpenOption.WRITE)) {
+            channel.force(true);
+        }
+    }
+
+    /**
+     * Deletes a received upload that won't be stored. Does nothing if it was already stored.
+     *
+     * @param received the received upload
+     * @throws IOException If any error
+     */
+    public void discard(Received received) throws IOException {
+        Files.deleteIfExists(received.file().toPath());
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
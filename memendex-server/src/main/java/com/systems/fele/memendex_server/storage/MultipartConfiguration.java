@@ -0,0 +1,27 @@
+package com.systems.fele.memendex_server.storage;
+
+import jakarta.servlet.MultipartConfigElement;
+import org.springframework.boot.autoconfigure.web.servlet.MultipartProperties;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+/**
+ * Buffers multipart uploads inside the {@link ContentStore} incoming directory instead of the
+ * servlet container temporary directory. Being in the same file system as the upload location,
+ * the buffered file can be renamed into place instead of copied, and buffers left behind by a
+ * crash are deleted on the next start.
+ * <p></p>
+ * Every other setting still comes from the spring.servlet.multipart properties.
+ */
+@Configuration(proxyBeanMethods = false)
+public class MultipartConfiguration {
+
+    @Bean
+    public MultipartConfigElement multipartConfigElement(MultipartProperties multipartProperties, ContentStore contentStore) {
+        return new MultipartConfigElement(
+                contentStore.getIncomingDirectory().getAbsolutePath(),
+                multipartProperties.getMaxFileSize().toBytes(),
+                multipartProperties.getMaxRequestSize().toBytes(),
+                (int) multipartProperties.getFileSizeThreshold().toBytes());
+    }
+}
@@ -1,9 +1,10 @@
 package com.systems.fele.memendex_server.tag;
 
-import com.systems.fele.memendex_server.meme.TagToMemeRepository;
+import com.systems.fele.memendex_server.model.ScopeUsage;
 import com.systems.fele.memendex_server.model.Tag;
 import com.systems.fele.memendex_server.model.TagUsage;
 import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
@@ -14,23 +15,31 @@ import java.util.List;
 @RequestMapping("/api/tags")
 public class TagController {
     private final TagService tagService;
-    private final TagToMemeRepository tagToMemeRepository;
 
-    public TagController(TagService tagService, TagToMemeRepository tagToMemeRepository) {
+    public TagController(TagService tagService) {
         this.tagService = tagService;
-        this.tagToMemeRepository = tagToMemeRepository;
     }
 
     @GetMapping("search")
-    public List<Tag> search(@RequestParam("q") String searchTerm) {
-        return tagService.searchTags(searchTerm);
+    public List<Tag> search(@RequestParam("q") String searchTerm,
+                            @RequestParam(value = "limit", required = false, defaultValue = "100") int limit) {
+        return tagService.searchTags(searchTerm, Math.min(Math.max(limit, 1), 1000));
     }
 
     @GetMapping("suggestions")
-    public List<TagUsage> suggestions(@RequestParam(value = "q", required = false) String searchTerm) {
-        if (searchTerm == null || searchTerm.isBlank())
-            return tagToMemeRepository.getTopTags();
-        else
-            return tagToMemeRepository.getSuggestions(searchTerm);
+    public List<TagUsage> suggestions(@RequestParam(value = "q", required = false) String searchTerm,
+                                      @RequestParam(value = "limit", required = false, defaultValue = "10") int limit) {
+        return tagService.getSuggestions(searchTerm, Math.min(Math.max(limit, 1), 100));
+    }
+
+    @GetMapping("scopes")
+    public List<ScopeUsage> scopes(@RequestParam(value = "limit", required = false, defaultValue = "100") int limit) {
+        return tagService.getScopes(Math.min(Math.max(limit, 1), 1000));
+    }
+
+    @GetMapping("scopes/{scope}/tags")
+    public List<TagUsage> scopeTags(@PathVariable("scope") String scope,
+                                    @RequestParam(value = "limit", required = false, defaultValue = "100") int limit) {
+        return tagService.getTopTags(scope, Math.min(Math.max(limit, 1), 1000));
     }
 }
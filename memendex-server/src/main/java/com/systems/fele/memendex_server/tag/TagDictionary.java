@@ -0,0 +1,97 @@
+package com.systems.fele.memendex_server.tag;
+
+import com.systems.fele.memendex_server.model.Tag;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.event.TransactionalEventListener;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Keeps every tag and its usage count in a {@link TagTrie}, so autocomplete doesn't touch the database.
+ * <p></p>
+ * The dictionary is loaded from the database once the application is ready (or on first use,
+ * whichever comes first) and then kept up to date by the {@link TagsChangedEvent} and
+ * {@link TagRelationsChangedEvent} published by the repositories, once their transaction commits.
+ * Changes that happen before it is loaded are ignored, as they will be read from the database anyway.
+ */
+@Component
+public class TagDictionary {
+    private final JdbcTemplate jdbcTemplate;
+    private final TagTrie trie = new TagTrie();
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private volatile boolean loaded = false;
+
+    public TagDictionary(JdbcTemplate jdbcTemplate) {
+        this.jdbcTemplate = jdbcTemplate;
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void onApplicationReady() {
+        ensureLoaded();
+    }
+
+    /**
+     * Finds the most used tags starting with the prefix. See {@link TagTrie#search(String, int, long)}.
+     *
+     * @param prefix   the prefix. Empty for all tags
+     * @param limit    maximum number of tags to return
+     * @param minCount only tags used at least this many times
+     * @return the tags, most used first
+     */
+    public List<TagTrie.Match> search(String prefix, int limit, long minCount) {
+        ensureLoaded();
+        lock.readLock().lock();
+        try {
+            return trie.search(prefix, limit, minCount);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @TransactionalEventListener(fallbackExecution = true)
+    public void onTagsChanged(TagsChangedEvent event) {
+        lock.writeLock().lock();
+        try {
+            if (!loaded) return;
+            for (var tag : event.created()) trie.put(tag, 0);
+            for (var tag : event.deleted()) trie.remove(tag.id());
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @TransactionalEventListener(fallbackExecution = true)
+    public void onTagRelationsChanged(TagRelationsChangedEvent event) {
+        var deltas = new HashMap<Long, Long>();
+        for (var relation : event.added()) deltas.merge(relation.tagId(), 1L, Long::sum);
+        for (var relation : event.removed()) deltas.merge(relation.tagId(), -1L, Long::sum);
+
+        lock.writeLock().lock();
+        try {
+            if (!loaded) return;
+            deltas.forEach(trie::addCount);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private void ensureLoaded() {
+        if (loaded) return;
+
+        lock.writeLock().lock();
+        try {
+            if (loaded) return;
+            jdbcTemplate.query("SELECT id, scope, name, usage_count FROM tags", rs -> {
+                trie.put(new Tag(rs.getLong("id"), rs.getString("scope"), rs.getString("name")), rs.getLong("usage_count"));
+            });
+            loaded = true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+}
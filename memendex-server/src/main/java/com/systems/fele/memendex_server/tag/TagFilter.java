@@ -0,0 +1,65 @@
+package com.systems.fele.memendex_server.tag;
+
+import com.systems.fele.memendex_server.exception.InvalidTagFilterException;
+import com.systems.fele.memendex_server.model.Tag;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Tag filter for listing memes: every clause must hold.
+ * <p></p>
+ * Each clause is written as tags separated by '|', any of which is enough. A leading '-' negates
+ * the clause. "#scope/*" stands for any tag of the scope. So "cats", "#artist/*|#source/reddit"
+ * and "-#nsfw" together list the memes with #cats, by any artist or from reddit, and not #nsfw.
+ *
+ * @param clauses the clauses, all of which must hold
+ */
+public record TagFilter(List<Clause> clauses) {
+    private static final int MAX_TERMS = 100;
+
+    /**
+     * @param scope    the scope, in lowercase
+     * @param value    the value, in lowercase. Null for the tag without value
+     * @param anyValue whether any tag of the scope matches
+     */
+    public record Term(String scope, String value, boolean anyValue) {
+    }
+
+    /**
+     * @param terms   the tags, any of which is enough
+     * @param negated whether the memes with any of them are excluded instead
+     */
+    public record Clause(List<Term> terms, boolean negated) {
+    }
+
+    /**
+     * @param expressions one clause per expression. See {@link TagFilter}
+     * @return the filter
+     * @throws InvalidTagFilterException If an expression is empty, or there are too many tags
+     */
+    public static TagFilter parse(List<String> expressions) {
+        var clauses = new ArrayList<Clause>();
+        var count = 0;
+        for (var expression : expressions) {
+            var text = expression.trim();
+            var negated = text.startsWith("-");
+            if (negated) text = text.substring(1);
+
+            var terms = new ArrayList<Term>();
+            for (var part : text.split("\\|")) {
+                var tag = part.trim().toLowerCase();
+                if (tag.isEmpty() || tag.equals("#")) continue;
+                var parsed = Tag.parse(tag);
+                if (parsed.scope().isEmpty()) throw new InvalidTagFilterException("Invalid tag: " + part.trim());
+                terms.add("*".equals(parsed.value())
+                        ? new Term(parsed.scope(), null, true)
+                        : new Term(parsed.scope(), parsed.value(), false));
+            }
+            if (terms.isEmpty()) throw new InvalidTagFilterException("Empty tag filter: " + expression);
+            if ((count += terms.size()) > MAX_TERMS) throw new InvalidTagFilterException("Too many tags in the filter");
+            clauses.add(new Clause(List.copyOf(terms), negated));
+        }
+        return new TagFilter(List.copyOf(clauses));
+    }
+}
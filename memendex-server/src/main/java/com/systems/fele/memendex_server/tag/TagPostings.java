@@ -0,0 +1,236 @@
+package com.systems.fele.memendex_server.tag;
+
+import com.systems.fele.memendex_server.model.Tag;
+import com.systems.fele.memendex_server.model.TagUsage;
+import com.systems.fele.memendex_server.util.IdBitmap;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.event.TransactionalEventListener;
+
+import java.util.*;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Keeps, for every tag, the {@link IdBitmap} of the memes with it, so tag filters and facet counts
+ * are computed in memory instead of joining tags_to_memes.
+ * <p></p>
+ * The postings are loaded from the database once the application is ready (or on first use,
+ * whichever comes first) and then kept up to date by the {@link TagsChangedEvent} and
+ * {@link TagRelationsChangedEvent} published by the repositories, once their transaction commits.
+ * New and deleted memes are applied by {@link com.systems.fele.memendex_server.meme.MemeRepository}
+ * once their transaction commits too, as negated clauses need the set of all memes. Changes that
+ * happen before it is loaded are ignored, as they will be read from the database anyway.
+ */
+@Component
+public class TagPostings {
+    private final JdbcTemplate jdbcTemplate;
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private final Map<Long, Tag> tags = new HashMap<>();
+    private final Map<String, Long> tagIdsByName = new HashMap<>();
+    private final Map<String, Set<Long>> tagIdsByScope = new HashMap<>();
+    private final Map<Long, IdBitmap> memesByTag = new HashMap<>();
+    private final IdBitmap allMemes = new IdBitmap();
+    private volatile boolean loaded = false;
+
+    public TagPostings(JdbcTemplate jdbcTemplate) {
+        this.jdbcTemplate = jdbcTemplate;
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void onApplicationReady() {
+        ensureLoaded();
+    }
+
+    /**
+     * Finds the memes matching the filter. Positive clauses are intersected smallest first, and
+     * negated ones are subtracted at the end.
+     *
+     * @param filter the filter
+     * @return the ids of the matching memes. The set is a copy, free to be used after the call
+     */
+    public IdBitmap filter(TagFilter filter) {
+        ensureLoaded();
+        lock.readLock().lock();
+        try {
+            final var required = new ArrayList<IdBitmap>();
+            final var excluded = new ArrayList<IdBitmap>();
+            for (var clause : filter.clauses()) {
+                (clause.negated() ? excluded : required).add(union(clause.terms()));
+            }
+            required.sort(Comparator.comparingLong(IdBitmap::cardinality));
+
+            var result = required.isEmpty() ? allMemes : required.get(0);
+            for (int i = 1; i < required.size() && !result.isEmpty(); i++) result = result.and(required.get(i));
+            for (var bitmap : excluded) {
+                if (result.isEmpty()) break;
+                result = result.andNot(bitmap);
+            }
+            return result.copy();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Counts the memes of the set that have each tag. Tags are visited from the most used down,
+     * and the visit stops once no remaining tag can beat the ones found, as a tag can't be on more
+     * memes of the set than it is on overall.
+     *
+     * @param memes  the set, usually from {@link #filter(TagFilter)}
+     * @param filter tags of its exact terms are left out
+     * @param limit  maximum number of tags to return
+     * @return the tags found in the set and how many of its memes have them, most common first
+     */
+    public List<TagUsage> facets(IdBitmap memes, TagFilter filter, int limit) {
+        if (limit <= 0 || memes.isEmpty()) return List.of();
+
+        ensureLoaded();
+        lock.readLock().lock();
+        try {
+            final var skipped = new HashSet<Long>();
+            for (var clause : filter.clauses()) {
+                for (var term : clause.terms()) {
+                    if (!term.anyValue()) findTag(term.scope(), term.value()).ifPresent(skipped::add);
+                }
+            }
+
+            final var candidates = new ArrayList<Map.Entry<Long, Long>>();
+            memesByTag.forEach((tagId, bitmap) -> {
+                if (!skipped.contains(tagId) && tags.containsKey(tagId)) candidates.add(Map.entry(tagId, bitmap.cardinality()));
+            });
+            candidates.sort(Map.Entry.<Long, Long>comparingByValue().reversed());
+
+            final Comparator<TagUsage> byCount = Comparator.comparingLong(TagUsage::count).thenComparing(TagUsage::tag, Comparator.reverseOrder());
+            final var best = new PriorityQueue<>(byCount);
+            for (var candidate : candidates) {
+                if (best.size() == limit && candidate.getValue() < best.peek().count()) break;
+                var count = memes.andCardinality(memesByTag.get(candidate.getKey()));
+                if (count == 0) continue;
+                best.add(new TagUsage(tags.get(candidate.getKey()).toString(), count));
+                if (best.size() > limit) best.poll();
+            }
+
+            var facets = new ArrayList<>(best);
+            facets.sort(byCount.reversed());
+            return facets;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Adds memes to the set of all memes. Called whenever created memes are committed.
+     */
+    public void addMemes(Collection<Long> memeIds) {
+        lock.writeLock().lock();
+        try {
+            if (!loaded) return;
+            memeIds.forEach(allMemes::add);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Removes memes from the set of all memes, and from the postings of their tags. Called whenever
+     * deleted memes are committed.
+     */
+    public void removeMemes(Collection<Long> memeIds) {
+        lock.writeLock().lock();
+        try {
+            if (!loaded) return;
+            memeIds.forEach(allMemes::remove);
+            for (var memes : memesByTag.values()) memeIds.forEach(memes::remove);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @TransactionalEventListener(fallbackExecution = true)
+    public void onTagsChanged(TagsChangedEvent event) {
+        lock.writeLock().lock();
+        try {
+            if (!loaded) return;
+            event.created().forEach(this::putTag);
+            for (var tag : event.deleted()) {
+                tags.remove(tag.id());
+                tagIdsByName.remove(tag.toString(), tag.id());
+                memesByTag.remove(tag.id());
+                var scopeTags = tagIdsByScope.get(tag.scope());
+                if (scopeTags != null && scopeTags.remove(tag.id()) && scopeTags.isEmpty()) tagIdsByScope.remove(tag.scope());
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @TransactionalEventListener(fallbackExecution = true)
+    public void onTagRelationsChanged(TagRelationsChangedEvent event) {
+        lock.writeLock().lock();
+        try {
+            if (!loaded) return;
+            for (var relation : event.added())
+                memesByTag.computeIfAbsent(relation.tagId(), k -> new IdBitmap()).add(relation.memeId());
+            for (var relation : event.removed()) {
+                var bitmap = memesByTag.get(relation.tagId());
+                if (bitmap != null) bitmap.remove(relation.memeId());
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * @return the memes with any of the tags. May be one of the postings, so it must not be changed
+     */
+    private IdBitmap union(List<TagFilter.Term> terms) {
+        var bitmaps = new ArrayList<IdBitmap>();
+        for (var term : terms) {
+            if (term.anyValue()) {
+                for (var tagId : tagIdsByScope.getOrDefault(term.scope(), Set.of())) bitmaps.add(memesByTag.get(tagId));
+            } else {
+                findTag(term.scope(), term.value()).map(memesByTag::get).ifPresent(bitmaps::add);
+            }
+        }
+        bitmaps.removeIf(Objects::isNull);
+
+        if (bitmaps.isEmpty()) return new IdBitmap();
+        var result = bitmaps.get(0);
+        for (int i = 1; i < bitmaps.size(); i++) result = result.or(bitmaps.get(i));
+        return result;
+    }
+
+    private Optional<Long> findTag(String scope, String value) {
+        return Optional.ofNullable(tagIdsByName.get(new Tag(0, scope, value).toString()));
+    }
+
+    private void putTag(Tag tag) {
+        tags.put(tag.id(), tag);
+        tagIdsByName.put(tag.toString(), tag.id());
+        tagIdsByScope.computeIfAbsent(tag.scope(), k -> new HashSet<>()).add(tag.id());
+        memesByTag.computeIfAbsent(tag.id(), k -> new IdBitmap());
+    }
+
+    private void ensureLoaded() {
+        if (loaded) return;
+
+        lock.writeLock().lock();
+        try {
+            if (loaded) return;
+            jdbcTemplate.query("SELECT id, scope, name FROM tags", rs -> {
+                putTag(new Tag(rs.getLong("id"), rs.getString("scope"), rs.getString("name")));
+            });
+            jdbcTemplate.query("SELECT tag_id, meme_id FROM tags_to_memes ORDER BY meme_id", rs -> {
+                memesByTag.computeIfAbsent(rs.getLong("tag_id"), k -> new IdBitmap()).add(rs.getLong("meme_id"));
+            });
+            jdbcTemplate.query("SELECT id FROM memes ORDER BY id", rs -> {
+                allMemes.add(rs.getLong("id"));
+            });
+            loaded = true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+}
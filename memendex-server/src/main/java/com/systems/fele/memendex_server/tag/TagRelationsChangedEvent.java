@@ -0,0 +1,16 @@
+package com.systems.fele.memendex_server.tag;
+
+import com.systems.fele.memendex_server.meme.TagToMemeRepository.TagIdMemeId;
+
+import java.util.List;
+
+/**
+ * Published by {@link com.systems.fele.memendex_server.meme.TagToMemeRepository} when memes
+ * get or lose tags, with exactly the relations that changed. Inside a transaction, listeners
+ * should wait for the commit (see {@link org.springframework.transaction.event.TransactionalEventListener}).
+ *
+ * @param added   relations created
+ * @param removed relations deleted
+ */
+public record TagRelationsChangedEvent(List<TagIdMemeId> added, List<TagIdMemeId> removed) {
+}
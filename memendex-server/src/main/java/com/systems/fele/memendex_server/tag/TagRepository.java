@@ -2,7 +2,10 @@ package com.systems.fele.memendex_server.tag;
 
 import com.systems.fele.memendex_server.model.Tag;
 import com.systems.fele.memendex_server.MemendexProperties;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.dao.DuplicateKeyException;
 import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
 import org.springframework.jdbc.support.GeneratedKeyHolder;
 import org.springframework.jdbc.support.KeyHolder;
 import org.springframework.stereotype.Repository;
@@ -10,18 +13,19 @@ import org.springframework.stereotype.Repository;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
-import java.util.List;
-import java.util.Objects;
-import java.util.Optional;
+import java.util.*;
+import java.util.stream.Stream;
 
 @Repository
 public class TagRepository {
     private final JdbcTemplate jdbcTemplate;
     private final MemendexProperties memendexProperties;
+    private final ApplicationEventPublisher eventPublisher;
 
-    public TagRepository(JdbcTemplate jdbcTemplate, MemendexProperties memendexProperties) {
+    public TagRepository(JdbcTemplate jdbcTemplate, MemendexProperties memendexProperties, ApplicationEventPublisher eventPublisher) {
         this.jdbcTemplate = jdbcTemplate;
         this.memendexProperties = memendexProperties;
+        this.eventPublisher = eventPublisher;
     }
 
     /**
@@ -50,7 +54,84 @@ public class TagRepository {
         if (keys == null)
             throw new RuntimeException("There was an error retrieving the generated key!");
 
-        return new Tag((long) keys.get("id"), myScope, myValue);
+        var tag = new Tag((long) keys.get("id"), myScope, myValue);
+        eventPublisher.publishEvent(new TagsChangedEvent(List.of(tag), List.of()));
+        return tag;
+    }
+
+    /**
+     * Finds many tags at once, adding the missing ones.
+     * <p></p>
+     * Another transaction may be adding the same tags. Its inserts make these wait for it to end
+     * and then fail on the unique index if it committed, in which case its tag is used. The missing
+     * tags are inserted in (scope, name) order, so two transactions never wait for each other.
+     *
+     * @param tags scope and value of the tags. Their ids are ignored
+     * @return the tags, in the same order, without repetitions
+     */
+    public List<Tag> addOrFindTags(Collection<Tag> tags) {
+        var found = findTags(tags);
+        var missing = lowercase(tags).stream()
+                .filter(tag -> found.stream().noneMatch(f -> sameTag(f, tag)))
+                .sorted(Comparator.comparing(Tag::scope).thenComparing(Tag::value, Comparator.nullsFirst(Comparator.naturalOrder())))
+                .toList();
+        if (missing.isEmpty()) return found;
+
+        var created = new ArrayList<Tag>();
+        for (var tag : missing) {
+            KeyHolder keyHolder = new GeneratedKeyHolder();
+            try {
+                jdbcTemplate.update(con -> {
+                    var stmt = con.prepareStatement("INSERT INTO TAGS (scope, name) VALUES (?, ?)", Statement.RETURN_GENERATED_KEYS);
+                    stmt.setString(1, tag.scope());
+                    stmt.setString(2, tag.value());
+                    return stmt;
+                }, keyHolder);
+            } catch (DuplicateKeyException e) {
+                // Created and committed by another transaction meanwhile, which counted it
+                continue;
+            }
+            created.add(new Tag(Objects.requireNonNull(keyHolder.getKey()).longValue(), tag.scope(), tag.value()));
+        }
+
+        if (!created.isEmpty()) eventPublisher.publishEvent(new TagsChangedEvent(created, List.of()));
+        return findTags(tags);
+    }
+
+    /**
+     * Finds many tags with a single query.
+     *
+     * @param tags scope and value of the tags. Their ids are ignored
+     * @return the tags that exist, in the same order, without repetitions
+     */
+    public List<Tag> findTags(Collection<Tag> tags) {
+        var wanted = lowercase(tags);
+        if (wanted.isEmpty()) return List.of();
+
+        // Joined with the wanted (scope, name) pairs, each one is a lookup of the unique index
+        var values = String.join(", ", Collections.nCopies(wanted.size(), "(CAST(? AS VARCHAR(255)), CAST(? AS VARCHAR(255)))"));
+        var candidates = jdbcTemplate.query("""
+                        SELECT t.* FROM (VALUES %s) AS wanted(scope, name)
+                        INNER JOIN TAGS t ON t.scope = wanted.scope AND t.name IS NOT DISTINCT FROM wanted.name
+                        """.formatted(values),
+                TagRepository::mapRowToTag,
+                wanted.stream().flatMap(tag -> Stream.of(tag.scope(), tag.value())).toArray());
+
+        return wanted.stream()
+                .map(tag -> candidates.stream().filter(candidate -> sameTag(candidate, tag)).findFirst())
+                .flatMap(Optional::stream)
+                .toList();
+    }
+
+    private static List<Tag> lowercase(Collection<Tag> tags) {
+        return tags.stream()
+                .map(tag -> new Tag(0, Objects.requireNonNull(tag.scope()).toLowerCase(), tag.value() == null ? null : tag.value().toLowerCase()))
+                .distinct()
+                .toList();
+    }
+
+    private static boolean sameTag(Tag a, Tag b) {
+        return a.scope().equals(b.scope()) && Objects.equals(a.value(), b.value());
     }
 
     public Optional<Tag> getTag(long id) {
@@ -68,17 +149,34 @@ public class TagRepository {
                         scope, value).stream().findFirst();
     }
 
-    public List<Tag> search(String searchTerm) {
-        return jdbcTemplate.query("SELECT * FROM TAGS WHERE CONCAT(scope, '/', name) LIKE CONCAT('%', ?, '%')",
-                TagRepository::mapRowToTag,
-                searchTerm);
-    }
-
     private static Tag mapRowToTag(ResultSet rs, int rowNum) throws SQLException {
         return new Tag(rs.getLong("id"), rs.getString("scope"), rs.getString("name"));
     }
 
     public void deleteTag(long tagId) {
+        var tag = getTag(tagId);
+        if (tag.isEmpty()) return;
+
         jdbcTemplate.update("DELETE FROM TAGS WHERE ID = ?", tagId);
+        eventPublisher.publishEvent(new TagsChangedEvent(List.of(), List.of(tag.get())));
+    }
+
+    /**
+     * Deletes the given tags that aren't related to any meme anymore, all at once.
+     *
+     * @param tagIds ids of the tags that may have become unused
+     * @return number of tags deleted
+     */
+    public int deleteUnusedTags(Collection<Long> tagIds) {
+        if (tagIds.isEmpty()) return 0;
+        var template = new NamedParameterJdbcTemplate(jdbcTemplate);
+        var unused = template.query(
+                "SELECT * FROM TAGS WHERE id IN (:tagIds) AND NOT EXISTS (SELECT 1 FROM TAGS_TO_MEMES WHERE TAGS_TO_MEMES.tag_id = TAGS.id)",
+                Map.of("tagIds", tagIds), TagRepository::mapRowToTag);
+        if (unused.isEmpty()) return 0;
+
+        var deleted = template.update("DELETE FROM TAGS WHERE id IN (:tagIds)", Map.of("tagIds", unused.stream().map(Tag::id).toList()));
+        eventPublisher.publishEvent(new TagsChangedEvent(List.of(), unused));
+        return deleted;
     }
 }
@@ -1,6 +1,8 @@
 package com.systems.fele.memendex_server.tag;
 
+import com.systems.fele.memendex_server.model.ScopeUsage;
 import com.systems.fele.memendex_server.model.Tag;
+import com.systems.fele.memendex_server.model.TagUsage;
 import org.springframework.stereotype.Service;
 
 import java.util.List;
@@ -9,13 +11,57 @@ import java.util.Optional;
 @Service
 public class TagService {
     private final TagRepository tagRepository;
+    private final TagDictionary tagDictionary;
+    private final TagUsageRepository tagUsageRepository;
 
-    public TagService(TagRepository tagRepository) {
+    public TagService(TagRepository tagRepository, TagDictionary tagDictionary, TagUsageRepository tagUsageRepository) {
         this.tagRepository = tagRepository;
+        this.tagDictionary = tagDictionary;
+        this.tagUsageRepository = tagUsageRepository;
     }
 
-    public List<Tag> searchTags(String searchTerm) {
-        return tagRepository.search(searchTerm);
+    /**
+     * Finds tags by prefix, used or not.
+     *
+     * @param searchTerm prefix of the scope, of the value or of any of their words
+     * @param limit      maximum number of tags to return
+     * @return the tags, most used first
+     */
+    public List<Tag> searchTags(String searchTerm, int limit) {
+        return tagDictionary.search(searchTerm, limit, 0).stream().map(TagTrie.Match::tag).toList();
+    }
+
+    /**
+     * Suggests the most used tags starting with a prefix.
+     *
+     * @param searchTerm the prefix. Null or blank for the most used tags overall
+     * @param limit      maximum number of tags to return
+     * @return the tags and their usage, most used first
+     */
+    public List<TagUsage> getSuggestions(String searchTerm, int limit) {
+        var prefix = searchTerm == null ? "" : searchTerm.trim();
+        return tagDictionary.search(prefix, limit, 1).stream()
+                .map(match -> new TagUsage(match.tag().toString(), match.count()))
+                .toList();
+    }
+
+    /**
+     * @param limit maximum number of scopes to return
+     * @return the scopes, with most memes first
+     */
+    public List<ScopeUsage> getScopes(int limit) {
+        return tagUsageRepository.getScopes(limit);
+    }
+
+    /**
+     * @param scope the scope, case insensitive. A leading '#' is ignored
+     * @param limit maximum number of tags to return
+     * @return the tags of the scope and their usage, most used first
+     */
+    public List<TagUsage> getTopTags(String scope, int limit) {
+        var normalized = scope.trim().toLowerCase();
+        if (normalized.startsWith("#")) normalized = normalized.substring(1);
+        return tagUsageRepository.getTopTags(normalized, limit);
     }
 
     public Optional<Tag> findById(long id) {
@@ -0,0 +1,200 @@
+package com.systems.fele.memendex_server.tag;
+
+import com.systems.fele.memendex_server.model.Tag;
+
+import java.util.*;
+
+/**
+ * Prefix tree of tags and their usage counts, for autocomplete.
+ * <p></p>
+ * Each tag is reachable from several keys: "scope/value" (so both the scope and the whole tag
+ * work as prefixes), the value alone, and every word of the scope and of the value. So "sou",
+ * "#source/red" and "red" all find "#source/reddit", and "dit" finds "#source/my-dit".
+ * <p></p>
+ * Every node knows the highest count below it, so the most used tags under a prefix are found
+ * best-first, visiting only the branches that can still hold one of them instead of the whole subtree.
+ * <p></p>
+ * This class is not thread safe. See {@link TagDictionary}.
+ */
+public class TagTrie {
+
+    /**
+     * @param tag   the tag
+     * @param count number of memes with it
+     */
+    public record Match(Tag tag, long count) {
+    }
+
+    private static class Entry {
+        final Tag tag;
+        final String text;
+        long count;
+        final List<Node> terminals = new ArrayList<>(2);
+
+        Entry(Tag tag, long count) {
+            this.tag = tag;
+            this.text = tag.toString();
+            this.count = count;
+        }
+    }
+
+    private static class Node {
+        final Node parent;
+        final char key;
+        final Map<Character, Node> children = new HashMap<>(4);
+        final List<Entry> entries = new ArrayList<>(1);
+        long max = Long.MIN_VALUE;
+
+        Node(Node parent, char key) {
+            this.parent = parent;
+            this.key = key;
+        }
+    }
+
+    private final Node root = new Node(null, '\0');
+    private final Map<Long, Entry> entriesById = new HashMap<>();
+
+    /**
+     * Adds a tag, or updates its count if it's already there.
+     */
+    public void put(Tag tag, long count) {
+        var existing = entriesById.get(tag.id());
+        if (existing != null) {
+            setCount(tag.id(), count);
+            return;
+        }
+
+        var entry = new Entry(tag, count);
+        entriesById.put(tag.id(), entry);
+        for (var key : keys(tag)) {
+            var node = root;
+            for (int i = 0; i < key.length(); i++) {
+                final var node1 = node;
+                final var c = key.charAt(i);
+                node = node.children.computeIfAbsent(c, k -> new Node(node1, c));
+            }
+            if (node.entries.contains(entry)) continue;
+            node.entries.add(entry);
+            entry.terminals.add(node);
+            updateMax(node);
+        }
+    }
+
+    public void remove(long tagId) {
+        var entry = entriesById.remove(tagId);
+        if (entry == null) return;
+
+        for (var node : entry.terminals) {
+            node.entries.remove(entry);
+            // Prunes the branches left empty
+            while (node.parent != null && node.entries.isEmpty() && node.children.isEmpty()) {
+                node.parent.children.remove(node.key);
+                node = node.parent;
+            }
+            updateMax(node);
+        }
+    }
+
+    /**
+     * Adds to the count of a tag. Does nothing if it isn't there.
+     */
+    public void addCount(long tagId, long delta) {
+        var entry = entriesById.get(tagId);
+        if (entry != null) setCount(tagId, entry.count + delta);
+    }
+
+    private void setCount(long tagId, long count) {
+        var entry = entriesById.get(tagId);
+        if (entry.count == count) return;
+        entry.count = count;
+        for (var node : entry.terminals) updateMax(node);
+    }
+
+    public OptionalLong getCount(long tagId) {
+        var entry = entriesById.get(tagId);
+        return entry == null ? OptionalLong.empty() : OptionalLong.of(entry.count);
+    }
+
+    public int size() {
+        return entriesById.size();
+    }
+
+    /**
+     * Finds the most used tags with a key starting with the prefix.
+     *
+     * @param prefix   the prefix, case insensitive. A leading '#' is ignored. Empty for all tags
+     * @param limit    maximum number of tags to return
+     * @param minCount only tags used at least this many times
+     * @return the tags, most used first, then alphabetically
+     */
+    public List<Match> search(String prefix, int limit, long minCount) {
+        var normalized = prefix.toLowerCase();
+        if (normalized.startsWith("#")) normalized = normalized.substring(1);
+
+        var node = root;
+        for (int i = 0; i < normalized.length() && node != null; i++) node = node.children.get(normalized.charAt(i));
+
+        var matches = new ArrayList<Match>();
+        if (node == null || limit <= 0) return matches;
+
+        // Nodes are expanded before entries with the same count, so ties come out alphabetically
+        final var pending = new PriorityQueue<Object>((a, b) -> {
+            var countA = a instanceof Node n ? n.max : ((Entry) a).count;
+            var countB = b instanceof Node n ? n.max : ((Entry) b).count;
+            if (countA != countB) return Long.compare(countB, countA);
+            if (a instanceof Node) return b instanceof Node ? 0 : -1;
+            if (b instanceof Node) return 1;
+            var byText = ((Entry) a).text.compareTo(((Entry) b).text);
+            return byText != 0 ? byText : Long.compare(((Entry) a).tag.id(), ((Entry) b).tag.id());
+        });
+        final var seen = new HashSet<Entry>();
+
+        pending.add(node);
+        while (!pending.isEmpty() && matches.size() < limit) {
+            var next = pending.poll();
+            if (next instanceof Node n) {
+                if (n.max < minCount) break;
+                pending.addAll(n.entries);
+                for (var child : n.children.values()) if (child.max >= minCount) pending.add(child);
+            } else {
+                var entry = (Entry) next;
+                if (entry.count < minCount) break;
+                if (seen.add(entry)) matches.add(new Match(entry.tag, entry.count));
+            }
+        }
+        return matches;
+    }
+
+    private void updateMax(Node node) {
+        while (node != null) {
+            long max = Long.MIN_VALUE;
+            for (var entry : node.entries) max = Math.max(max, entry.count);
+            for (var child : node.children.values()) max = Math.max(max, child.max);
+            if (max == node.max) return;
+            node.max = max;
+            node = node.parent;
+        }
+    }
+
+    /**
+     * @return the keys a tag is found by, in lowercase
+     */
+    static Set<String> keys(Tag tag) {
+        var scope = tag.scope().toLowerCase();
+        var value = tag.value() == null ? null : tag.value().toLowerCase();
+
+        var keys = new LinkedHashSet<String>();
+        keys.add(value == null ? scope : scope + "/" + value);
+        if (value != null && !value.isEmpty()) keys.add(value);
+        addWords(keys, scope);
+        if (value != null) addWords(keys, value);
+        return keys;
+    }
+
+    private static void addWords(Set<String> keys, String text) {
+        for (int i = 1; i < text.length(); i++) {
+            if (!Character.isLetterOrDigit(text.charAt(i - 1)) && Character.isLetterOrDigit(text.charAt(i)))
+                keys.add(text.substring(i));
+        }
+    }
+}
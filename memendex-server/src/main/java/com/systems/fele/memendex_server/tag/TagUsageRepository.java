@@ -0,0 +1,170 @@
+package com.systems.fele.memendex_server.tag;
+
+import com.systems.fele.memendex_server.meme.TagToMemeRepository.TagIdMemeId;
+import com.systems.fele.memendex_server.model.ScopeUsage;
+import com.systems.fele.memendex_server.model.Tag;
+import com.systems.fele.memendex_server.model.TagUsage;
+import org.springframework.context.event.EventListener;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
+import org.springframework.stereotype.Repository;
+
+import java.util.*;
+
+/**
+ * Keeps the usage counters of tags and scopes, so the most used tags and scopes are read from
+ * an index instead of counting every relation.
+ * <p></p>
+ * tags.usage_count is the number of memes with the tag. tag_scopes holds, for every scope,
+ * how many tags it has and how many memes have any tag of it (the rollup, e.g. memes with any
+ * #artist/* tag).
+ * <p></p>
+ * The counters are updated by plain event listeners, so they run inside the transaction that
+ * changed the tags and are committed or rolled back with it. Relations must be changed inside a
+ * transaction, as the scope rollup relies on the locks {@link com.systems.fele.memendex_server.meme.TagToMemeRepository}
+ * takes on the memes.
+ */
+@Repository
+public class TagUsageRepository {
+    private final JdbcTemplate jdbcTemplate;
+
+    public TagUsageRepository(JdbcTemplate jdbcTemplate) {
+        this.jdbcTemplate = jdbcTemplate;
+    }
+
+    @EventListener
+    public void onTagsChanged(TagsChangedEvent event) {
+        var deltas = new HashMap<String, Integer>();
+        for (var tag : event.created()) deltas.merge(tag.scope(), 1, Integer::sum);
+        for (var tag : event.deleted()) deltas.merge(tag.scope(), -1, Integer::sum);
+        deltas.values().removeIf(delta -> delta == 0);
+        if (deltas.isEmpty()) return;
+
+        deltas.forEach((scope, delta) -> {
+            try {
+                mergeScope(scope, delta);
+            } catch (DuplicateKeyException e) {
+                // Another transaction created the scope meanwhile, and committed: it's updated now
+                mergeScope(scope, delta);
+            }
+        });
+        if (!event.deleted().isEmpty())
+            jdbcTemplate.update("DELETE FROM tag_scopes WHERE tag_count <= 0");
+    }
+
+    private void mergeScope(String scope, int tags) {
+        jdbcTemplate.update("""
+                        MERGE INTO tag_scopes USING (VALUES (CAST(? AS VARCHAR(255)), CAST(? AS INT))) AS delta(scope, tags)
+                        ON tag_scopes.scope = delta.scope
+                        WHEN MATCHED THEN UPDATE SET tag_count = tag_count + delta.tags
+                        WHEN NOT MATCHED THEN INSERT (scope, tag_count) VALUES (delta.scope, delta.tags)""",
+                scope, tags);
+    }
+
+    /**
+     * Updates the counters of the tags and of their scopes.
+     * <p></p>
+     * A meme only counts once per scope, so the scope rollup changes when a meme gets its first
+     * tag of the scope or loses its last one. That is told from how many tags of the scope the
+     * affected memes have now, read with a single query, and how many they had before the change.
+     * The memes were locked before the change, so no other transaction changed their tags since:
+     * the count is exactly this transaction's view plus what was committed before it.
+     */
+    @EventListener
+    public void onTagRelationsChanged(TagRelationsChangedEvent event) {
+        var tagDeltas = new HashMap<Long, Long>();
+        for (var relation : event.added()) tagDeltas.merge(relation.tagId(), 1L, Long::sum);
+        for (var relation : event.removed()) tagDeltas.merge(relation.tagId(), -1L, Long::sum);
+        tagDeltas.values().removeIf(delta -> delta == 0);
+        if (tagDeltas.isEmpty()) return;
+
+        jdbcTemplate.batchUpdate("UPDATE tags SET usage_count = usage_count + ? WHERE id = ?",
+                tagDeltas.entrySet().stream().map(e -> new Object[] { e.getValue(), e.getKey() }).toList());
+
+        final var template = new NamedParameterJdbcTemplate(jdbcTemplate);
+        final var scopeByTag = new HashMap<Long, String>();
+        template.query("SELECT id, scope FROM tags WHERE id IN (:ids)", Map.of("ids", tagDeltas.keySet()),
+                rs -> {
+                    scopeByTag.put(rs.getLong("id"), rs.getString("scope"));
+                });
+
+        // Change in the number of tags of each scope each meme has
+        final var changes = new HashMap<ScopeMeme, Long>();
+        for (var relation : event.added()) addChange(changes, scopeByTag, relation, 1);
+        for (var relation : event.removed()) addChange(changes, scopeByTag, relation, -1);
+        changes.values().removeIf(delta -> delta == 0);
+        if (changes.isEmpty()) return;
+
+        final var current = new HashMap<ScopeMeme, Long>();
+        template.query("""
+                        SELECT tags.scope, r.meme_id, COUNT(*) AS tags
+                        FROM tags_to_memes r INNER JOIN tags ON tags.id = r.tag_id
+                        WHERE r.meme_id IN (:memeIds) AND tags.scope IN (:scopes)
+                        GROUP BY tags.scope, r.meme_id""",
+                Map.of("memeIds", changes.keySet().stream().map(ScopeMeme::memeId).distinct().toList(),
+                        "scopes", changes.keySet().stream().map(ScopeMeme::scope).distinct().toList()),
+                rs -> {
+                    current.put(new ScopeMeme(rs.getString("scope"), rs.getLong("meme_id")), rs.getLong("tags"));
+                });
+
+        final var scopeDeltas = new HashMap<String, Long>();
+        changes.forEach((key, delta) -> {
+            var now = current.getOrDefault(key, 0L);
+            var before = now - delta;
+            if (before == 0 && now > 0) scopeDeltas.merge(key.scope(), 1L, Long::sum);
+            else if (before > 0 && now == 0) scopeDeltas.merge(key.scope(), -1L, Long::sum);
+        });
+        scopeDeltas.values().removeIf(delta -> delta == 0);
+        if (scopeDeltas.isEmpty()) return;
+
+        jdbcTemplate.batchUpdate("UPDATE tag_scopes SET meme_count = meme_count + ? WHERE scope = ?",
+                scopeDeltas.entrySet().stream().map(e -> new Object[] { e.getValue(), e.getKey() }).toList());
+    }
+
+    private record ScopeMeme(String scope, long memeId) {
+    }
+
+    private static void addChange(Map<ScopeMeme, Long> changes, Map<Long, String> scopeByTag, TagIdMemeId relation, long delta) {
+        var scope = scopeByTag.get(relation.tagId());
+        if (scope != null) changes.merge(new ScopeMeme(scope, relation.memeId()), delta, Long::sum);
+    }
+
+    /**
+     * Computes every counter again from the relations, as the migrations do. For when tags and
+     * relations were written directly, without the events, like when restoring a backup.
+     */
+    public void recount() {
+        jdbcTemplate.update("UPDATE tags SET usage_count = (SELECT COUNT(*) FROM tags_to_memes WHERE tags_to_memes.tag_id = tags.id)");
+        jdbcTemplate.update("DELETE FROM tag_scopes");
+        jdbcTemplate.update("""
+                INSERT INTO tag_scopes (scope, tag_count, meme_count)
+                SELECT tags.scope, COUNT(DISTINCT tags.id), COUNT(DISTINCT tags_to_memes.meme_id)
+                FROM tags LEFT JOIN tags_to_memes ON tags_to_memes.tag_id = tags.id
+                GROUP BY tags.scope""");
+    }
+
+    /**
+     * @param limit maximum number of scopes to return
+     * @return the scopes with most memes first
+     */
+    public List<ScopeUsage> getScopes(int limit) {
+        return jdbcTemplate.query("SELECT scope, tag_count, meme_count FROM tag_scopes ORDER BY meme_count DESC, scope LIMIT ?",
+                (rs, rowNum) -> new ScopeUsage(rs.getString("scope"), rs.getLong("tag_count"), rs.getLong("meme_count")),
+                limit);
+    }
+
+    /**
+     * Returns the most used tags of a scope, walking the (scope, usage_count) index.
+     *
+     * @param scope the scope
+     * @param limit maximum number of tags to return
+     * @return the tags and their usage, most used first
+     */
+    public List<TagUsage> getTopTags(String scope, int limit) {
+        return jdbcTemplate.query("SELECT scope, name, usage_count FROM tags WHERE scope = ? ORDER BY usage_count DESC, name LIMIT ?",
+                (rs, rowNum) -> new TagUsage(new Tag(0, rs.getString("scope"), rs.getString("name")).toString(),
+                        rs.getLong("usage_count")),
+                scope, limit);
+    }
+}
@@ -0,0 +1,15 @@
+package com.systems.fele.memendex_server.tag;
+
+import com.systems.fele.memendex_server.model.Tag;
+
+import java.util.List;
+
+/**
+ * Published by {@link TagRepository} when tags are created or deleted. Inside a transaction,
+ * listeners should wait for the commit (see {@link org.springframework.transaction.event.TransactionalEventListener}).
+ *
+ * @param created the new tags
+ * @param deleted the deleted tags
+ */
+public record TagsChangedEvent(List<Tag> created, List<Tag> deleted) {
+}
@@ -0,0 +1,563 @@
+package com.systems.fele.memendex_server.thumbnail;
+
+import com.systems.fele.memendex_server.MemendexProperties;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.zip.CRC32C;
+
+/**
+ * Disk cache of the scaled down images (derivatives) of the memes.
+ * <p></p>
+ * Derivatives are appended to a few large segment files instead of having a file each, so that
+ * hundreds of thousands of them don't cost as many inodes, directory entries and opens. Every
+ * segment is mapped in memory: looking a derivative up is a single map lookup, and it's read or
+ * sent to a socket straight from the segment, without opening anything.
+ * <p></p>
+ * A record is a header (magic, meme id, size, length and CRC) and the JPEG. A record without JPEG
+ * is a tombstone, appended when a derivative is dropped so that it doesn't come back on startup.
+ * The CRC covers the meme id, size and length as well as the JPEG, as the pages of a record may
+ * reach the disk in any order: a header that is still zeros but for the magic doesn't pass. The
+ * index from keys to records lives in memory and is built at startup by walking the segments in
+ * order, so the last record of a key is the one that counts. Segments are preallocated and the
+ * int after the last record is always zero, which is where the walk stops. Only the segment being
+ * appended to may end in a torn record after a crash, so only its CRCs are checked; the others are
+ * flushed to disk when they fill up.
+ * <p></p>
+ * Segments are named after {@link #VERSION}, so bumping it whenever the rendering or the record
+ * format changes discards the old ones on the next startup. The live derivatives are kept under the
+ * configured quota by dropping the least recently used ones. Dropped and replaced records are dead
+ * space until their segment is compacted: its live records are appended again, along with the
+ * tombstones that older segments still need, and the segment is deleted a while later, once the
+ * requests that may still be sending from it are done. Compaction runs in a background thread,
+ * moving a record at a time, so appends only ever wait for one move.
+ * <p></p>
+ * Recency is only tracked in memory. On startup, the order of the records is used instead.
+ */
+@Component
+public class DerivativeCache implements DisposableBean {
+    public static final int VERSION = 2;
+    /**
+     * Changes along with how derivatives look: with {@link #VERSION} and with the bounds of any
+     * {@link DerivativeSize}. Goes into the ETags of derivatives and the version of their URLs.
+     */
+    public static final String RENDER_VERSION = "%d.%s".formatted(VERSION, Integer.toString(
+            Arrays.stream(DerivativeSize.values()).map(DerivativeSize::bounds).collect(Collectors.joining(",")).hashCode() & 0x7fffffff, 36));
+
+    private static final Logger logger = LoggerFactory.getLogger(DerivativeCache.class);
+    private static final Pattern SEGMENT_NAME = Pattern.compile("v(\\d+)-(\\d{6})\\.pack");
+    private static final int MAGIC = 0x4d445831;
+    private static final int HEADER_BYTES = 24;
+    private static final long MIN_SEGMENT_BYTES = 4L * 1024 * 1024;
+    private static final long MAX_SEGMENT_BYTES = 64L * 1024 * 1024;
+    private static final long RETIRED_SEGMENT_DELAY_MILLIS = 60_000;
+
+    /**
+     * Identifies a derivative.
+     *
+     * @param memeId id of the meme
+     * @param size   size of the derivative
+     */
+    public record Key(long memeId, DerivativeSize size) {
+    }
+
+    /**
+     * A cached derivative, at {@code position} of a segment file.
+     *
+     * @param file     the segment file
+     * @param position where the JPEG starts in the file
+     * @param length   size of the JPEG
+     * @param content  the JPEG, mapped from the segment
+     */
+    public record Derivative(File file, long position, int length, ByteBuffer content) {
+        /**
+         * @return the JPEG, mapped from the segment. Every call returns a new buffer
+         */
+        @Override
+        public ByteBuffer content() {
+            return content.duplicate();
+        }
+
+        /**
+         * @return a copy of the JPEG
+         */
+        public byte[] bytes() {
+            final var bytes = new byte[length];
+            content.get(0, bytes);
+            return bytes;
+        }
+    }
+
+    /**
+     * @param entries     number of derivatives in the cache
+     * @param bytes       total size of the derivatives
+     * @param quota       maximum total size
+     * @param evictions   derivatives dropped to stay under the quota
+     * @param diskBytes   space taken by the segments, dead records included
+     * @param segments    number of segments
+     * @param compactions segments compacted
+     */
+    public record Stats(int entries, long bytes, long quota, long evictions, long diskBytes, int segments, long compactions) {
+    }
+
+    private static final class Segment {
+        final int number;
+        final File file;
+        final MappedByteBuffer buffer;
+        /**
+         * Bytes taken by records, live or not. Written under the append lock, read under the cache lock.
+         */
+        int end;
+        /**
+         * Bytes taken by the records in the index, headers included.
+         */
+        long liveBytes;
+
+        Segment(int number, File file, MappedByteBuffer buffer) {
+            this.number = number;
+            this.file = file;
+            this.buffer = buffer;
+        }
+    }
+
+    /**
+     * Where a derivative is. Moved by compaction, which doesn't change its recency.
+     */
+    private static final class Entry {
+        Segment segment;
+        int offset;
+        int length;
+
+        Entry(Segment segment, int offset, int length) {
+            this.segment = segment;
+            this.offset = offset;
+            this.length = length;
+        }
+
+        int recordBytes() {
+            return HEADER_BYTES + length;
+        }
+    }
+
+    private final File directory;
+    private final long quota;
+    private final long segmentBytes;
+    private final long retiredSegmentDelayMillis;
+
+    /**
+     * Serializes appends, which includes the records moved by compaction. Taken before the cache
+     * lock, never after.
+     */
+    private final Object appendLock = new Object();
+    private final ScheduledExecutorService compactor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        var thread = new Thread(runnable, "derivatives-compaction");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final AtomicBoolean compactionQueued = new AtomicBoolean();
+
+    /**
+     * Derivatives in access order. Guarded by the cache lock, like the fields below.
+     */
+    private final LinkedHashMap<Key, Entry> entries = new LinkedHashMap<>(256, 0.75f, true);
+    private final TreeMap<Integer, Segment> segments = new TreeMap<>();
+    /**
+     * Compacted segments waiting to be deleted. Only used by the compaction thread, which deletes them.
+     */
+    private final List<Segment> retired = new ArrayList<>();
+    /**
+     * Segment being appended to. Written under both locks.
+     */
+    private Segment active;
+    private long totalBytes = 0;
+    private long diskBytes = 0;
+    private long evictions = 0;
+    private long compactions = 0;
+
+    @Autowired
+    public DerivativeCache(MemendexProperties memendexProperties) {
+        this(memendexProperties, RETIRED_SEGMENT_DELAY_MILLIS);
+    }
+
+    DerivativeCache(MemendexProperties memendexProperties, long retiredSegmentDelayMillis) {
+        this.directory = new File(memendexProperties.cache(), "derivatives");
+        this.quota = memendexProperties.thumbnails().cacheQuota().toBytes();
+        this.segmentBytes = Math.clamp(quota / 8, MIN_SEGMENT_BYTES, MAX_SEGMENT_BYTES);
+        this.retiredSegmentDelayMillis = retiredSegmentDelayMillis;
+
+        if (!directory.exists()) directory.mkdirs();
+        try {
+            load();
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not load the derivatives in " + directory, e);
+        }
+        removeLegacyThumbnails(new File(memendexProperties.cache(), "thumbnails"));
+    }
+
+    /**
+     * Returns a derivative if it's cached, marking it as recently used.
+     *
+     * @param key the derivative
+     * @return The cached derivative
+     */
+    public synchronized Optional<Derivative> get(Key key) {
+        final var entry = entries.get(key);
+        return entry == null ? Optional.empty() : Optional.of(derivative(entry));
+    }
+
+    /**
+     * Tells whether a derivative is cached, without marking it as recently used.
+     *
+     * @param key the derivative
+     */
+    public synchronized boolean contains(Key key) {
+        return entries.containsKey(key);
+    }
+
+    /**
+     * Appends a generated derivative to the cache, replacing the previous one, and drops the least
+     * recently used ones if the quota is exceeded, appending their tombstones. Dead space left behind
+     * is compacted later.
+     *
+     * @param key     the derivative
+     * @param content the JPEG
+     * @return The cached derivative
+     * @throws IOException If any error
+     */
+    public Derivative put(Key key, byte[] content) throws IOException {
+        if (content.length == 0) throw new IOException("Derivative is empty");
+        if (content.length > segmentBytes - HEADER_BYTES - Integer.BYTES)
+            throw new IOException("Derivative of %d bytes doesn't fit in a segment".formatted(content.length));
+
+        final Derivative derivative;
+        synchronized (appendLock) {
+            final var entry = append(key, content);
+            final List<Key> evicted;
+            synchronized (this) {
+                final var previous = entries.put(key, entry);
+                if (previous != null) release(previous);
+                entry.segment.liveBytes += entry.recordBytes();
+                totalBytes += entry.length;
+                evicted = evict();
+                derivative = derivative(entry);
+            }
+            for (var dropped : evicted) append(dropped, new byte[0]);
+        }
+        if (compactionQueued.compareAndSet(false, true)) {
+            try {
+                compactor.execute(this::compactInBackground);
+            } catch (RejectedExecutionException e) {
+                // Shutting down, the dead space is compacted after the next startup
+            }
+        }
+        return derivative;
+    }
+
+    @Override
+    public void destroy() {
+        compactor.shutdownNow();
+    }
+
+    public synchronized Stats stats() {
+        return new Stats(entries.size(), totalBytes, quota, evictions, diskBytes, segments.size(), compactions);
+    }
+
+    private static Derivative derivative(Entry entry) {
+        final var content = entry.segment.buffer.slice(entry.offset + HEADER_BYTES, entry.length).asReadOnlyBuffer();
+        return new Derivative(entry.segment.file, entry.offset + HEADER_BYTES, entry.length, content);
+    }
+
+    /**
+     * Writes a record at the end of the active segment, starting a new one if it doesn't fit.
+     * Must hold the append lock.
+     */
+    private Entry append(Key key, byte[] content) throws IOException {
+        final var recordBytes = HEADER_BYTES + content.length;
+        if (active == null || active.end + recordBytes + Integer.BYTES > active.buffer.capacity()) {
+            if (active != null) active.buffer.force();
+            final var number = segments.isEmpty() ? 1 : segments.lastKey() + 1;
+            final var segment = map(new File(directory, "v%d-%06d.pack".formatted(VERSION, number)), number, segmentBytes);
+            synchronized (this) {
+                segments.put(number, segment);
+                diskBytes += segmentBytes;
+                active = segment;
+            }
+        }
+
+        final var buffer = active.buffer;
+        final var offset = active.end;
+
+        // The magic goes last, so a record is never seen before it's complete
+        buffer.putInt(offset + recordBytes, 0);
+        buffer.putLong(offset + 4, key.memeId());
+        buffer.putInt(offset + 12, key.size().ordinal());
+        buffer.putInt(offset + 16, content.length);
+        buffer.put(offset + HEADER_BYTES, content);
+        buffer.putInt(offset + 20, crc(buffer, offset, content.length));
+        buffer.putInt(offset, MAGIC);
+
+        synchronized (this) {
+            active.end = offset + recordBytes;
+        }
+        return new Entry(active, offset, content.length);
+    }
+
+    private static Key key(MappedByteBuffer buffer, int offset) {
+        return new Key(buffer.getLong(offset + 4), DerivativeSize.values()[buffer.getInt(offset + 12)]);
+    }
+
+    /**
+     * @return the CRC of a record, over its meme id, size, length and content
+     */
+    private static int crc(MappedByteBuffer buffer, int offset, int length) {
+        final var crc = new CRC32C();
+        crc.update(buffer.slice(offset + 4, 16));
+        crc.update(buffer.slice(offset + HEADER_BYTES, length));
+        return (int) crc.getValue();
+    }
+
+    private void release(Entry entry) {
+        entry.segment.liveBytes -= entry.recordBytes();
+        totalBytes -= entry.length;
+    }
+
+    /**
+     * Drops the least recently used derivatives until the cache fits the quota. The most
+     * recent one is always kept.
+     *
+     * @return the keys dropped, whose tombstones are to be appended
+     */
+    private List<Key> evict() {
+        final var evicted = new ArrayList<Key>();
+        var iterator = entries.entrySet().iterator();
+        while (totalBytes > quota && entries.size() > 1) {
+            final var entry = iterator.next();
+            release(entry.getValue());
+            evicted.add(entry.getKey());
+            iterator.remove();
+            evictions++;
+        }
+        return evicted;
+    }
+
+    private void compactInBackground() {
+        compactionQueued.set(false);
+        try {
+            compact();
+        } catch (IOException e) {
+            logger.warn("Could not compact the derivatives", e);
+        }
+    }
+
+    /**
+     * Compacts the full segments that are mostly dead, and the deadest ones while the dead space
+     * is over a quarter of the quota. Runs in the compaction thread, taking the append lock for
+     * each record moved, so appends go on meanwhile.
+     */
+    private void compact() throws IOException {
+        while (true) {
+            final Segment candidate;
+            final List<Map.Entry<Key, Entry>> live;
+            final List<Segment> older;
+            synchronized (this) {
+                candidate = segments.values().stream()
+                        .filter(segment -> segment != active)
+                        .max(Comparator.comparingLong(segment -> segment.end - segment.liveBytes))
+                        .orElse(null);
+                if (candidate == null) return;
+
+                final var dead = candidate.end - candidate.liveBytes;
+                final var totalDead = segments.values().stream().mapToLong(segment -> segment.end - segment.liveBytes).sum();
+                if (dead == 0 || dead * 2 < candidate.end && totalDead * 4 < quota) return;
+
+                live = entries.entrySet().stream()
+                        .filter(entry -> entry.getValue().segment == candidate)
+                        .map(entry -> Map.entry(entry.getKey(), entry.getValue()))
+                        .toList();
+                older = new ArrayList<>(segments.headMap(candidate.number).values());
+            }
+            older.addAll(retired);
+            final var tombstones = neededTombstones(candidate, older);
+
+            var moved = 0;
+            for (var entry : live) {
+                synchronized (appendLock) {
+                    final var current = entry.getValue();
+                    synchronized (this) {
+                        // Replaced or dropped since it was listed
+                        if (entries.get(entry.getKey()) != current || current.segment != candidate) continue;
+                    }
+                    final var copy = append(entry.getKey(), derivative(current).bytes());
+                    synchronized (this) {
+                        // The entry object stays in the map, so its recency doesn't change
+                        current.segment.liveBytes -= current.recordBytes();
+                        current.segment = copy.segment;
+                        current.offset = copy.offset;
+                        copy.segment.liveBytes += copy.recordBytes();
+                    }
+                    moved++;
+                }
+            }
+            for (var key : tombstones) {
+                synchronized (appendLock) {
+                    synchronized (this) {
+                        // Put again since it was listed
+                        if (entries.containsKey(key)) continue;
+                    }
+                    append(key, new byte[0]);
+                }
+            }
+
+            synchronized (this) {
+                segments.remove(candidate.number);
+                diskBytes -= candidate.buffer.capacity();
+                compactions++;
+            }
+            retired.add(candidate);
+            try {
+                compactor.schedule(() -> deleteRetiredSegment(candidate), retiredSegmentDelayMillis, TimeUnit.MILLISECONDS);
+            } catch (RejectedExecutionException e) {
+                // Shutting down, it's loaded again on the next startup as dead space
+            }
+            logger.debug("Compacted derivatives segment {}, {} records moved", candidate.file.getName(), moved);
+        }
+    }
+
+    /**
+     * @param older the segments before the compacted one, including those waiting to be deleted
+     * @return the keys of the tombstones of a segment that still drop records of an older one
+     */
+    private List<Key> neededTombstones(Segment segment, List<Segment> older) {
+        final var tombstones = new ArrayList<Key>();
+        forEachRecord(segment, (key, length) -> {
+            if (length == 0) tombstones.add(key);
+        });
+        if (tombstones.isEmpty()) return tombstones;
+
+        final var olderKeys = new HashSet<Key>();
+        for (var other : older) forEachRecord(other, (key, length) -> olderKeys.add(key));
+        tombstones.retainAll(olderKeys);
+        return tombstones;
+    }
+
+    @FunctionalInterface
+    private interface RecordConsumer {
+        void accept(Key key, int length);
+    }
+
+    /**
+     * Goes through the records of a segment that is no longer appended to.
+     */
+    private static void forEachRecord(Segment segment, RecordConsumer consumer) {
+        for (var offset = 0; offset < segment.end; offset += HEADER_BYTES + segment.buffer.getInt(offset + 16))
+            consumer.accept(key(segment.buffer, offset), segment.buffer.getInt(offset + 16));
+    }
+
+    /**
+     * Deletes a compacted segment once nothing should be sending from it anymore. Its mapping
+     * stays valid until it's garbage collected.
+     */
+    private void deleteRetiredSegment(Segment segment) {
+        retired.remove(segment);
+        // Deleted on the next startup otherwise, where it's only dead space
+        if (!segment.file.delete()) logger.warn("Could not delete compacted segment {}", segment.file);
+    }
+
+    private static Segment map(File file, int number, long bytes) throws IOException {
+        try (var raf = new RandomAccessFile(file, "rw")) {
+            if (raf.length() < bytes) raf.setLength(bytes);
+            final var buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, raf.length());
+            return new Segment(number, file, buffer);
+        }
+    }
+
+    private synchronized void load() throws IOException {
+        final var files = directory.listFiles(File::isFile);
+        if (files == null) return;
+
+        final var current = new TreeMap<Integer, File>();
+        for (var file : files) {
+            final var matcher = SEGMENT_NAME.matcher(file.getName());
+            if (matcher.matches() && Integer.parseInt(matcher.group(1)) == VERSION) {
+                current.put(Integer.parseInt(matcher.group(2)), file);
+            } else if (!file.delete()) {
+                // Derivatives of older versions, and of when each had its own file
+                logger.warn("Could not delete stale cached file {}", file);
+            }
+        }
+
+        for (var file : current.entrySet()) {
+            final var segment = map(file.getValue(), file.getKey(), file.getValue().length());
+            segments.put(segment.number, segment);
+            diskBytes += segment.buffer.capacity();
+            active = segment;
+            walk(segment, file.getKey().equals(current.lastKey()));
+        }
+        evict();
+    }
+
+    /**
+     * Indexes the records of a segment, up to the first one that isn't valid.
+     *
+     * @param checkContent whether to check the CRCs, for the segment that was being appended to
+     */
+    private void walk(Segment segment, boolean checkContent) {
+        final var buffer = segment.buffer;
+        final var sizes = DerivativeSize.values();
+        var offset = 0;
+        while (offset + HEADER_BYTES + Integer.BYTES <= buffer.capacity() && buffer.getInt(offset) == MAGIC) {
+            final var memeId = buffer.getLong(offset + 4);
+            final var size = buffer.getInt(offset + 12);
+            final var length = buffer.getInt(offset + 16);
+            if (size < 0 || size >= sizes.length || length < 0 || length > buffer.capacity() - offset - HEADER_BYTES - Integer.BYTES)
+                break;
+            if (checkContent && crc(buffer, offset, length) != buffer.getInt(offset + 20)) break;
+
+            final var key = new Key(memeId, sizes[size]);
+            final var entry = new Entry(segment, offset, length);
+            final var previous = length == 0 ? entries.remove(key) : entries.put(key, entry);
+            if (previous != null) release(previous);
+            if (length > 0) {
+                segment.liveBytes += entry.recordBytes();
+                totalBytes += length;
+            }
+            offset += entry.recordBytes();
+        }
+
+        if (offset + Integer.BYTES <= buffer.capacity() && buffer.getInt(offset) != 0) {
+            // A torn record, overwritten by the next append
+            logger.warn("Derivatives segment {} is damaged after {} bytes", segment.file.getName(), offset);
+            buffer.putInt(offset, 0);
+        }
+        segment.end = offset;
+    }
+
+    /**
+     * Thumbnails used to be stored without size or version.
+     */
+    private static void removeLegacyThumbnails(File legacyDirectory) {
+        var files = legacyDirectory.listFiles(File::isFile);
+        if (files == null) return;
+
+        for (var file : files) file.delete();
+        legacyDirectory.delete();
+    }
+}
@@ -0,0 +1,43 @@
+package com.systems.fele.memendex_server.thumbnail;
+
+/**
+ * Named sizes in which images are scaled down for the front end. A zero bound
+ * means the image isn't limited in that direction.
+ */
+public enum DerivativeSize {
+    /**
+     * Fixed height, as shown in the gallery. Small images are scaled up.
+     */
+    thumbnail(0, 100, true),
+    card(400, 400, false),
+    preview(800, 800, false);
+
+    private final int maxWidth;
+    private final int maxHeight;
+    private final boolean upscale;
+
+    DerivativeSize(int maxWidth, int maxHeight, boolean upscale) {
+        this.maxWidth = maxWidth;
+        this.maxHeight = maxHeight;
+        this.upscale = upscale;
+    }
+
+    /**
+     * @param width  width of the original image
+     * @param height height of the original image
+     * @return factor to scale the original image so it fits this size
+     */
+    public double scale(int width, int height) {
+        var scale = Double.MAX_VALUE;
+        if (maxWidth > 0) scale = Math.min(scale, (double) maxWidth / width);
+        if (maxHeight > 0) scale = Math.min(scale, (double) maxHeight / height);
+        return upscale ? scale : Math.min(scale, 1.0);
+    }
+
+    /**
+     * @return the bounds of this size, which change how its derivatives look
+     */
+    public String bounds() {
+        return "%dx%d%s".formatted(maxWidth, maxHeight, upscale ? "+" : "");
+    }
+}
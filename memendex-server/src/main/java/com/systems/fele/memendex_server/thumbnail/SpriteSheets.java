@@ -0,0 +1,177 @@
+package com.systems.fele.memendex_server.thumbnail;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.stereotype.Component;
+
+import javax.imageio.ImageIO;
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.List;
+
+/**
+ * Composes the thumbnails of a page of memes into a single JPEG (a sprite sheet), so a gallery
+ * page costs one request instead of one per meme.
+ * <p></p>
+ * Thumbnails are laid out in rows, in the order given, with a small gap so that scaled
+ * backgrounds don't bleed into their neighbours. A sheet is identified by a token derived from
+ * the ids and versions of the memes in it, and kept in memory under that token, so the same page
+ * is only composed again after one of its memes changes. The least recently used sheets are
+ * dropped once they take more than {@link #MAX_BYTES}.
+ */
+@Component
+public class SpriteSheets {
+    /**
+     * Maximum number of thumbnails in a sheet.
+     */
+    public static final int MAX_THUMBNAILS = 200;
+
+    private static final int MAX_ROW_WIDTH = 1600;
+    private static final int GAP = 2;
+    private static final long MAX_BYTES = 32L * 1024 * 1024;
+
+    private final ThumbnailRenderer thumbnailRenderer;
+    private final Map<String, Sheet> sheets = new LinkedHashMap<>(16, 0.75f, true);
+    private final Counter hits;
+    private final Counter misses;
+    private long bytes = 0;
+
+    /**
+     * A thumbnail to put in a sheet.
+     *
+     * @param memeId  id of the meme
+     * @param version version of the file of the meme
+     * @param jpeg    the thumbnail
+     */
+    public record Source(long memeId, String version, byte[] jpeg) {
+    }
+
+    /**
+     * Where the thumbnail of a meme is in a sheet, in pixels.
+     */
+    public record Cell(long id, int x, int y, int width, int height) {
+    }
+
+    /**
+     * @param token  identifies the contents of the sheet
+     * @param width  width of the image
+     * @param height height of the image
+     * @param cells  thumbnails in the sheet, in the order they were given
+     * @param jpeg   the image. Empty when there are no thumbnails
+     */
+    public record Sheet(String token, int width, int height, List<Cell> cells, byte[] jpeg) {
+    }
+
+    public SpriteSheets(ThumbnailRenderer thumbnailRenderer, MeterRegistry meterRegistry) {
+        this.thumbnailRenderer = thumbnailRenderer;
+        this.hits = Counter.builder("memendex.sprites.cache.requests").tag("result", "hit").register(meterRegistry);
+        this.misses = Counter.builder("memendex.sprites.cache.requests").tag("result", "miss").register(meterRegistry);
+    }
+
+    /**
+     * @param token the token of the sheet
+     * @return the sheet, if it's still in memory
+     */
+    public synchronized Optional<Sheet> get(String token) {
+        final var sheet = sheets.get(token);
+        (sheet == null ? misses : hits).increment();
+        return Optional.ofNullable(sheet);
+    }
+
+    /**
+     * Returns the sheet of some thumbnails, composing it unless it's in memory. Thumbnails that
+     * can't be decoded are left out.
+     *
+     * @param sources the thumbnails, at most {@link #MAX_THUMBNAILS}
+     * @return the sheet
+     * @throws IOException If it can't be encoded
+     */
+    public Sheet compose(List<Source> sources) throws IOException {
+        assert sources.size() <= MAX_THUMBNAILS;
+        final var cached = get(token(sources));
+        if (cached.isPresent()) return cached.get();
+
+        final var included = new ArrayList<Source>(sources.size());
+        final var images = new ArrayList<BufferedImage>(sources.size());
+        for (var source : sources) {
+            try {
+                final var image = ImageIO.read(new ByteArrayInputStream(source.jpeg()));
+                if (image == null) continue;
+                included.add(source);
+                images.add(image);
+            } catch (IOException e) {
+                // Left out, the meme will be shown on its own
+            }
+        }
+
+        final var token = token(included);
+        if (images.isEmpty()) return new Sheet(token, 0, 0, List.of(), new byte[0]);
+
+        final var cells = new ArrayList<Cell>(images.size());
+        int x = 0, y = 0, rowHeight = 0, width = 0;
+        for (int i = 0; i < images.size(); i++) {
+            final var image = images.get(i);
+            if (x > 0 && x + image.getWidth() > MAX_ROW_WIDTH) {
+                y += rowHeight + GAP;
+                x = 0;
+                rowHeight = 0;
+            }
+            cells.add(new Cell(included.get(i).memeId(), x, y, image.getWidth(), image.getHeight()));
+            width = Math.max(width, x + image.getWidth());
+            rowHeight = Math.max(rowHeight, image.getHeight());
+            x += image.getWidth() + GAP;
+        }
+        final var height = y + rowHeight;
+
+        final var canvas = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        final var g2d = canvas.createGraphics();
+        try {
+            g2d.setColor(Color.BLACK);
+            g2d.fillRect(0, 0, width, height);
+            for (int i = 0; i < images.size(); i++) g2d.drawImage(images.get(i), cells.get(i).x(), cells.get(i).y(), null);
+        } finally {
+            g2d.dispose();
+        }
+
+        final var output = new ByteArrayOutputStream();
+        thumbnailRenderer.encode(canvas, output);
+        final var sheet = new Sheet(token, width, height, List.copyOf(cells), output.toByteArray());
+        put(sheet);
+        return sheet;
+    }
+
+    private synchronized void put(Sheet sheet) {
+        final var previous = sheets.put(sheet.token(), sheet);
+        if (previous != null) bytes -= previous.jpeg().length;
+        bytes += sheet.jpeg().length;
+
+        final var iterator = sheets.values().iterator();
+        while (bytes > MAX_BYTES && iterator.hasNext()) {
+            bytes -= iterator.next().jpeg().length;
+            iterator.remove();
+        }
+    }
+
+    /**
+     * @return a hash of the ids and versions of the thumbnails, and of the rendering version
+     */
+    private static String token(List<Source> sources) {
+        final MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        digest.update(("v%d;".formatted(DerivativeCache.VERSION)).getBytes(StandardCharsets.US_ASCII));
+        for (var source : sources)
+            digest.update("%d:%s;".formatted(source.memeId(), source.version()).getBytes(StandardCharsets.US_ASCII));
+        return HexFormat.of().formatHex(digest.digest(), 0, 8);
+    }
+}
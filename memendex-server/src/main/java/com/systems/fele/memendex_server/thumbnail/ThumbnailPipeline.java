@@ -0,0 +1,119 @@
+package com.systems.fele.memendex_server.thumbnail;
+
+import com.systems.fele.memendex_server.MemendexProperties;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.stereotype.Component;
+
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Generates thumbnails (and anything else taken from decoding the images) in the
+ * background with a bounded pool of workers.
+ * <p></p>
+ * Jobs are single-flight: while a job for a key is queued or running, submitting
+ * the same key again returns the same future instead of generating it twice.
+ */
+@Component
+public class ThumbnailPipeline implements DisposableBean {
+    private final ThreadPoolExecutor executor;
+    private final ConcurrentHashMap<Object, CompletableFuture<?>> inFlight = new ConcurrentHashMap<>();
+
+    private final LongAdder completed = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder totalWaitNanos = new LongAdder();
+    private final LongAdder totalRunNanos = new LongAdder();
+    private final AtomicLong maxLatencyNanos = new AtomicLong();
+
+    /**
+     * Snapshot of the pipeline counters. Latencies are in milliseconds.
+     *
+     * @param queued          jobs waiting for a worker
+     * @param running         jobs being generated right now
+     * @param completed       jobs finished successfully
+     * @param failed          jobs that threw an error
+     * @param rejected        jobs refused because the queue was full
+     * @param averageWaitMs   average time jobs spent in the queue
+     * @param averageRunMs    average time spent generating
+     * @param maxLatencyMs    longest time between submission and completion
+     */
+    public record Stats(int queued, int running, long completed, long failed, long rejected,
+                        double averageWaitMs, double averageRunMs, double maxLatencyMs) {
+    }
+
+    public ThumbnailPipeline(MemendexProperties memendexProperties) {
+        final var settings = memendexProperties.thumbnails();
+        final var threadCount = new AtomicInteger();
+        this.executor = new ThreadPoolExecutor(settings.workers(), settings.workers(), 0, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<>(settings.queueCapacity()),
+                runnable -> {
+                    var thread = new Thread(runnable, "thumbnail-" + threadCount.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+    }
+
+    /**
+     * Queues a job, unless one with the same key is already queued or running.
+     *
+     * @param key identifies the job. Jobs with different result types must never share keys
+     * @param job generates the thumbnail (or other data taken from the image) and returns it
+     * @return future completed with the job result. Completed exceptionally if the
+     * job fails or is rejected because the queue is full
+     */
+    @SuppressWarnings("unchecked")
+    public <T> CompletableFuture<T> submit(Object key, Callable<T> job) {
+        var created = new CompletableFuture<T>();
+        var existing = inFlight.putIfAbsent(key, created);
+        if (existing != null) return (CompletableFuture<T>) existing;
+
+        final var submittedAt = System.nanoTime();
+        try {
+            executor.execute(() -> run(key, job, created, submittedAt));
+        } catch (RejectedExecutionException e) {
+            rejected.increment();
+            inFlight.remove(key, created);
+            created.completeExceptionally(e);
+        }
+        return created;
+    }
+
+    private <T> void run(Object key, Callable<T> job, CompletableFuture<T> future, long submittedAt) {
+        final var startedAt = System.nanoTime();
+        try {
+            var result = job.call();
+            completed.increment();
+            future.complete(result);
+        } catch (Exception e) {
+            failed.increment();
+            future.completeExceptionally(e);
+        } finally {
+            inFlight.remove(key, future);
+            final var finishedAt = System.nanoTime();
+            totalWaitNanos.add(startedAt - submittedAt);
+            totalRunNanos.add(finishedAt - startedAt);
+            maxLatencyNanos.accumulateAndGet(finishedAt - submittedAt, Math::max);
+        }
+    }
+
+    public Stats stats() {
+        final var finished = Math.max(1, completed.sum() + failed.sum());
+        return new Stats(
+                executor.getQueue().size(),
+                executor.getActiveCount(),
+                completed.sum(),
+                failed.sum(),
+                rejected.sum(),
+                totalWaitNanos.sum() / 1e6 / finished,
+                totalRunNanos.sum() / 1e6 / finished,
+                maxLatencyNanos.get() / 1e6);
+    }
+
+    @Override
+    public void destroy() {
+        executor.shutdownNow();
+    }
+}
@@ -0,0 +1,246 @@
+package com.systems.fele.memendex_server.thumbnail;
+
+import com.systems.fele.memendex_server.MemendexProperties;
+import com.systems.fele.memendex_server.similarity.PerceptualHash;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.springframework.stereotype.Component;
+
+import javax.imageio.*;
+import javax.imageio.spi.IIORegistry;
+import javax.imageio.spi.ImageReaderSpi;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.MemoryCacheImageOutputStream;
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Scales images down to a {@link DerivativeSize} and encodes them as JPEG without
+ * decoding the whole original.
+ * <p></p>
+ * Only the header is read to learn the dimensions, then the image is decoded with
+ * source subsampling, keeping about twice the resolution of the result so the final
+ * scaling can still smooth it. The subsampling is increased further until the decoded
+ * image fits in the configured pixel budget, so the heap used by a single job is bounded
+ * regardless of the size of the original.
+ * <p></p>
+ * Readers and writers are pooled, and every thread keeps the image it scales into, as
+ * the same few sizes are produced over and over.
+ * <p></p>
+ * Rendering, decoding and encoding are timed as memendex.thumbnails.render, .decode and .encode.
+ */
+@Component
+public class ThumbnailRenderer {
+    private static final float JPEG_QUALITY = 0.85f;
+
+    private final long maxDecodePixels;
+    private final Map<ImageReaderSpi, Queue<ImageReader>> readers = new ConcurrentHashMap<>();
+    private final Queue<ImageWriter> writers = new ConcurrentLinkedQueue<>();
+    private final ThreadLocal<BufferedImage> scratch = new ThreadLocal<>();
+    private final Map<DerivativeSize, Timer> renderTimers = new EnumMap<>(DerivativeSize.class);
+    private final Map<DerivativeSize, Timer> decodeTimers = new EnumMap<>(DerivativeSize.class);
+    private final Timer encodeTimer;
+
+    public ThumbnailRenderer(MemendexProperties memendexProperties, MeterRegistry meterRegistry) {
+        this.maxDecodePixels = memendexProperties.thumbnails().maxDecodePixels();
+        for (var size : DerivativeSize.values()) {
+            renderTimers.put(size, Timer.builder("memendex.thumbnails.render").tag("size", size.name()).register(meterRegistry));
+            decodeTimers.put(size, Timer.builder("memendex.thumbnails.decode").tag("size", size.name()).register(meterRegistry));
+        }
+        this.encodeTimer = Timer.builder("memendex.thumbnails.encode").register(meterRegistry);
+    }
+
+    /**
+     * Renders a derivative of an image as JPEG.
+     *
+     * @param source the original image
+     * @param size   size of the derivative
+     * @param target stream to write the JPEG to. It isn't closed
+     * @return the {@link PerceptualHash#dHash(BufferedImage)} of the image, computed from the same decode
+     * @throws IOException If the image can't be read or written
+     */
+    public long render(File source, DerivativeSize size, OutputStream target) throws IOException {
+        final var sample = Timer.start();
+        try {
+            return doRender(source, size, target);
+        } finally {
+            sample.stop(renderTimers.get(size));
+        }
+    }
+
+    private long doRender(File source, DerivativeSize size, OutputStream target) throws IOException {
+        final var decoded = decode(source, size);
+        final var width = decoded.originalWidth();
+        final var height = decoded.originalHeight();
+        final var scale = size.scale(width, height);
+        final var targetWidth = (int) Math.max(1, Math.round(width * scale));
+        final var targetHeight = (int) Math.max(1, Math.round(height * scale));
+        if ((long) targetWidth * targetHeight > maxDecodePixels)
+            throw new IOException("Derivative of %dx%d image is too large".formatted(width, height));
+
+        final var scaled = scratchImage(targetWidth, targetHeight);
+        final var g2d = scaled.createGraphics();
+        try {
+            g2d.setColor(Color.BLACK);
+            g2d.fillRect(0, 0, targetWidth, targetHeight);
+            g2d.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            g2d.drawImage(decoded.image(), 0, 0, targetWidth, targetHeight, null);
+        } finally {
+            g2d.dispose();
+        }
+
+        encodeTo(scaled, target);
+        return PerceptualHash.dHash(decoded.image());
+    }
+
+    /**
+     * Computes the {@link PerceptualHash#dHash(BufferedImage)} of an image, decoding it at thumbnail resolution.
+     *
+     * @param source the original image
+     * @return the hash
+     * @throws IOException If the image can't be read
+     */
+    public long perceptualHash(File source) throws IOException {
+        return PerceptualHash.dHash(decode(source, DerivativeSize.thumbnail).image());
+    }
+
+    /**
+     * @param image          the decoded, possibly subsampled, image
+     * @param originalWidth  width of the original image
+     * @param originalHeight height of the original image
+     */
+    private record Decoded(BufferedImage image, int originalWidth, int originalHeight) {
+    }
+
+    private Decoded decode(File source, DerivativeSize size) throws IOException {
+        final var sample = Timer.start();
+        try {
+            return doDecode(source, size);
+        } finally {
+            sample.stop(decodeTimers.get(size));
+        }
+    }
+
+    private Decoded doDecode(File source, DerivativeSize size) throws IOException {
+        try (var input = ImageIO.createImageInputStream(source)) {
+            if (input == null) throw new IOException("Cannot open image " + source);
+
+            final var spi = findReader(input);
+            final var reader = borrowReader(spi);
+            try {
+                reader.setInput(input, true, true);
+                final var width = reader.getWidth(0);
+                final var height = reader.getHeight(0);
+                final var subsampling = subsampling(width, height, size.scale(width, height), maxDecodePixels);
+
+                final var param = reader.getDefaultReadParam();
+                param.setSourceSubsampling(subsampling, subsampling, 0, 0);
+                return new Decoded(reader.read(0, param), width, height);
+            } finally {
+                reader.reset();
+                readers.get(spi).add(reader);
+            }
+        }
+    }
+
+    /**
+     * Chooses the source subsampling for decoding an image.
+     *
+     * @param width     width of the original image
+     * @param height    height of the original image
+     * @param scale     scale of the result
+     * @param maxPixels maximum number of pixels to decode
+     * @return the subsampling factor, in both directions
+     */
+    static int subsampling(int width, int height, double scale, long maxPixels) {
+        var factor = Math.max(1, (int) Math.floor(1 / (2 * scale)));
+        while ((long) ceilDiv(width, factor) * ceilDiv(height, factor) > maxPixels) factor++;
+        return factor;
+    }
+
+    private static int ceilDiv(int value, int divisor) {
+        return (value + divisor - 1) / divisor;
+    }
+
+    private ImageReaderSpi findReader(ImageInputStream input) throws IOException {
+        final var providers = IIORegistry.getDefaultInstance().getServiceProviders(ImageReaderSpi.class, true);
+        while (providers.hasNext()) {
+            var spi = providers.next();
+            if (spi.canDecodeInput(input)) return spi;
+        }
+        throw new IOException("Unknown image format");
+    }
+
+    private ImageReader borrowReader(ImageReaderSpi spi) throws IOException {
+        final var reader = readers.computeIfAbsent(spi, k -> new ConcurrentLinkedQueue<>()).poll();
+        return reader != null ? reader : spi.createReaderInstance();
+    }
+
+    /**
+     * Encodes an image as JPEG, with the same quality as the derivatives.
+     *
+     * @param image  the image
+     * @param output stream to write the JPEG to. It isn't closed
+     * @throws IOException If it can't be written
+     */
+    public void encode(BufferedImage image, OutputStream output) throws IOException {
+        encodeTo(image, output);
+    }
+
+    private void encodeTo(BufferedImage image, OutputStream target) throws IOException {
+        final var sample = Timer.start();
+        try {
+            doEncode(image, target);
+        } finally {
+            sample.stop(encodeTimer);
+        }
+    }
+
+    private void doEncode(BufferedImage image, OutputStream target) throws IOException {
+        var writer = writers.poll();
+        if (writer == null) {
+            var available = ImageIO.getImageWritersByFormatName("jpeg");
+            if (!available.hasNext()) throw new IOException("No JPEG writer available");
+            writer = available.next();
+        }
+
+        // Buffered in memory rather than in a temporary file, as ImageIO does by default
+        try (var output = new MemoryCacheImageOutputStream(target)) {
+            final var param = writer.getDefaultWriteParam();
+            param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+            param.setCompressionQuality(JPEG_QUALITY);
+
+            writer.setOutput(output);
+            writer.write(null, new IIOImage(image, null, null), param);
+        } finally {
+            writer.reset();
+            writers.add(writer);
+        }
+    }
+
+    /**
+     * Returns an image of the given size backed by this thread's scratch buffer, growing it when needed.
+     */
+    private BufferedImage scratchImage(int width, int height) {
+        var image = scratch.get();
+        if (image == null || image.getWidth() < width || image.getHeight() < height) {
+            var newWidth = Math.max(width, image == null ? 0 : image.getWidth());
+            var newHeight = Math.max(height, image == null ? 0 : image.getHeight());
+            if ((long) newWidth * newHeight > maxDecodePixels) {
+                newWidth = width;
+                newHeight = height;
+            }
+            image = new BufferedImage(newWidth, newHeight, BufferedImage.TYPE_INT_RGB);
+            scratch.set(image);
+        }
+        return image.getWidth() == width && image.getHeight() == height ? image : image.getSubimage(0, 0, width, height);
+    }
+}
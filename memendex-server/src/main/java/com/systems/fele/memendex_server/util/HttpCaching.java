@@ -0,0 +1,96 @@
+package com.systems.fele.memendex_server.util;
+
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import org.springframework.http.HttpHeaders;
+
+import java.time.ZonedDateTime;
+
+/**
+ * Validators and cache headers of files whose contents never change for a given ETag, like
+ * images and their derivatives.
+ * <p></p>
+ * Checking and setting the headers are separate steps, so a request can be answered with 304
+ * before any work, and the headers are only set once it's known what will be sent (e.g. not for
+ * a placeholder).
+ */
+public final class HttpCaching {
+    /**
+     * For URLs carrying the version of the contents: they can be cached for good.
+     */
+    public static final String IMMUTABLE = "public, max-age=31536000, immutable";
+
+    /**
+     * Cached, but checked with the server before every use.
+     */
+    public static final String REVALIDATE = "no-cache";
+
+    private HttpCaching() {
+    }
+
+    /**
+     * Tells whether the client's copy is current, from If-None-Match or, without it, If-Modified-Since.
+     *
+     * @param etag         the current ETag, quoted
+     * @param lastModified when the contents last changed. May be null
+     * @param request      the request
+     */
+    public static boolean isNotModified(String etag, ZonedDateTime lastModified, HttpServletRequest request) {
+        if (!"GET".equals(request.getMethod()) && !"HEAD".equals(request.getMethod())) return false;
+
+        final var ifNoneMatch = request.getHeaders(HttpHeaders.IF_NONE_MATCH);
+        if (ifNoneMatch.hasMoreElements()) {
+            final var current = opaque(etag);
+            while (ifNoneMatch.hasMoreElements()) {
+                for (var candidate : ifNoneMatch.nextElement().split(",")) {
+                    candidate = candidate.strip();
+                    if (candidate.equals("*") || opaque(candidate).equals(current)) return true;
+                }
+            }
+            return false;
+        }
+
+        if (lastModified == null) return false;
+        try {
+            final var ifModifiedSince = request.getDateHeader(HttpHeaders.IF_MODIFIED_SINCE);
+            return ifModifiedSince >= 0 && lastModified.toEpochSecond() * 1000 <= ifModifiedSince;
+        } catch (IllegalArgumentException e) {
+            // Invalid dates are ignored
+            return false;
+        }
+    }
+
+    /**
+     * Sets the validators and Cache-Control of what is about to be sent.
+     *
+     * @param etag         the ETag, quoted
+     * @param lastModified when the contents last changed. May be null
+     * @param cacheControl {@link #IMMUTABLE}, {@link #REVALIDATE} or any other Cache-Control
+     * @param response     the response
+     */
+    public static void setHeaders(String etag, ZonedDateTime lastModified, String cacheControl, HttpServletResponse response) {
+        response.setHeader(HttpHeaders.ETAG, etag);
+        if (lastModified != null) response.setDateHeader(HttpHeaders.LAST_MODIFIED, lastModified.toEpochSecond() * 1000);
+        response.setHeader(HttpHeaders.CACHE_CONTROL, cacheControl);
+    }
+
+    /**
+     * Answers with 304 Not Modified when the client's copy is current, see {@link #isNotModified}.
+     *
+     * @return whether the response was sent
+     */
+    public static boolean sendNotModified(String etag, ZonedDateTime lastModified, String cacheControl,
+                                          HttpServletRequest request, HttpServletResponse response) {
+        if (!isNotModified(etag, lastModified, request)) return false;
+        setHeaders(etag, lastModified, cacheControl, response);
+        response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+        return true;
+    }
+
+    /**
+     * @return the ETag without the weak indicator, as If-None-Match compares them weakly
+     */
+    private static String opaque(String etag) {
+        return etag.startsWith("W/") ? etag.substring(2) : etag;
+    }
+}
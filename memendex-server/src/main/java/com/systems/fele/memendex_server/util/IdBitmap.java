@@ -0,0 +1,554 @@
+package com.systems.fele.memendex_server.util;
+
+import java.util.Arrays;
+import java.util.function.IntConsumer;
+import java.util.function.LongConsumer;
+
+/**
+ * Compressed set of ids, laid out like a Roaring bitmap.
+ * <p></p>
+ * Ids are split in chunks of 65536 by their high 16 bits. Each chunk is stored as a sorted array
+ * of its low 16 bits while it has up to 4096 ids, and as a plain 8KB bitmap after that. Sparse
+ * sets stay small and dense ones are intersected a word at a time, so intersecting sets of hundreds
+ * of thousands of ids only touches a few dozen containers.
+ * <p></p>
+ * Ids must be between 0 and {@link Integer#MAX_VALUE}. Sets returned by {@link #and}, {@link #or}
+ * and {@link #andNot} share nothing with their operands. This class is not thread safe.
+ */
+public class IdBitmap {
+    private static final int ARRAY_MAX = 4096;
+    private static final int BITMAP_WORDS = 1024;
+
+    private char[] keys = new char[4];
+    private Container[] containers = new Container[4];
+    private int size = 0;
+
+    public static IdBitmap of(long... ids) {
+        var bitmap = new IdBitmap();
+        for (var id : ids) bitmap.add(id);
+        return bitmap;
+    }
+
+    public void add(long id) {
+        final var value = toInt(id);
+        final var key = (char) (value >>> 16);
+        var i = indexOf(key);
+        if (i < 0) {
+            i = -i - 1;
+            insertAt(i, key, new ArrayContainer(new char[4], 0));
+        }
+        containers[i] = containers[i].add((char) value);
+    }
+
+    public void remove(long id) {
+        if (id < 0 || id > Integer.MAX_VALUE) return;
+        final var value = (int) id;
+        final var i = indexOf((char) (value >>> 16));
+        if (i < 0) return;
+
+        var container = containers[i].remove((char) value);
+        if (container.cardinality() == 0) removeAt(i);
+        else containers[i] = container;
+    }
+
+    public boolean contains(long id) {
+        if (id < 0 || id > Integer.MAX_VALUE) return false;
+        final var value = (int) id;
+        final var i = indexOf((char) (value >>> 16));
+        return i >= 0 && containers[i].contains((char) value);
+    }
+
+    public long cardinality() {
+        long cardinality = 0;
+        for (int i = 0; i < size; i++) cardinality += containers[i].cardinality();
+        return cardinality;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * @return the ids in both sets
+     */
+    public IdBitmap and(IdBitmap other) {
+        var result = new IdBitmap();
+        int i = 0, j = 0;
+        while (i < size && j < other.size) {
+            if (keys[i] < other.keys[j]) i++;
+            else if (keys[i] > other.keys[j]) j++;
+            else {
+                var container = containers[i].and(other.containers[j]);
+                if (container.cardinality() > 0) result.append(keys[i], container);
+                i++;
+                j++;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return the ids in any of the sets
+     */
+    public IdBitmap or(IdBitmap other) {
+        var result = new IdBitmap();
+        int i = 0, j = 0;
+        while (i < size || j < other.size) {
+            if (j == other.size || (i < size && keys[i] < other.keys[j])) {
+                result.append(keys[i], containers[i].copy());
+                i++;
+            } else if (i == size || keys[i] > other.keys[j]) {
+                result.append(other.keys[j], other.containers[j].copy());
+                j++;
+            } else {
+                result.append(keys[i], containers[i].or(other.containers[j]));
+                i++;
+                j++;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return the ids in this set and not in the other
+     */
+    public IdBitmap andNot(IdBitmap other) {
+        var result = new IdBitmap();
+        int j = 0;
+        for (int i = 0; i < size; i++) {
+            while (j < other.size && other.keys[j] < keys[i]) j++;
+            if (j < other.size && other.keys[j] == keys[i]) {
+                var container = containers[i].andNot(other.containers[j]);
+                if (container.cardinality() > 0) result.append(keys[i], container);
+            } else {
+                result.append(keys[i], containers[i].copy());
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Same as {@code and(other).cardinality()}, without building the intersection.
+     */
+    public long andCardinality(IdBitmap other) {
+        long cardinality = 0;
+        int i = 0, j = 0;
+        while (i < size && j < other.size) {
+            if (keys[i] < other.keys[j]) i++;
+            else if (keys[i] > other.keys[j]) j++;
+            else cardinality += containers[i++].andCardinality(other.containers[j++]);
+        }
+        return cardinality;
+    }
+
+    /**
+     * @return the smallest id greater than or equal to from, or -1 if there's none
+     */
+    public long next(long from) {
+        if (from > Integer.MAX_VALUE) return -1;
+        final var value = (int) Math.max(from, 0);
+        final var key = (char) (value >>> 16);
+        var i = indexOf(key);
+        if (i >= 0) {
+            var low = containers[i].next((char) value);
+            if (low >= 0) return (long) key << 16 | low;
+            i++;
+        } else {
+            i = -i - 1;
+        }
+        return i < size ? (long) keys[i] << 16 | containers[i].next((char) 0) : -1;
+    }
+
+    /**
+     * @return the largest id less than or equal to from, or -1 if there's none
+     */
+    public long previous(long from) {
+        if (from < 0) return -1;
+        final var value = (int) Math.min(from, Integer.MAX_VALUE);
+        final var key = (char) (value >>> 16);
+        var i = indexOf(key);
+        if (i >= 0) {
+            var low = containers[i].previous((char) value);
+            if (low >= 0) return (long) key << 16 | low;
+            i--;
+        } else {
+            i = -i - 2;
+        }
+        return i >= 0 ? (long) keys[i] << 16 | containers[i].previous((char) 0xFFFF) : -1;
+    }
+
+    /**
+     * Calls the consumer with every id, in ascending order.
+     */
+    public void forEach(LongConsumer consumer) {
+        for (int i = 0; i < size; i++) {
+            final long high = (long) keys[i] << 16;
+            containers[i].forEach(low -> consumer.accept(high | low));
+        }
+    }
+
+    public IdBitmap copy() {
+        var copy = new IdBitmap();
+        for (int i = 0; i < size; i++) copy.append(keys[i], containers[i].copy());
+        return copy;
+    }
+
+    private static int toInt(long id) {
+        if (id < 0 || id > Integer.MAX_VALUE) throw new IllegalArgumentException("Id out of range: " + id);
+        return (int) id;
+    }
+
+    private int indexOf(char key) {
+        // Ids usually come in ascending order, so the last container is checked first
+        if (size > 0 && keys[size - 1] == key) return size - 1;
+        return Arrays.binarySearch(keys, 0, size, key);
+    }
+
+    private void append(char key, Container container) {
+        insertAt(size, key, container);
+    }
+
+    private void insertAt(int i, char key, Container container) {
+        if (size == keys.length) {
+            keys = Arrays.copyOf(keys, size * 2);
+            containers = Arrays.copyOf(containers, size * 2);
+        }
+        System.arraycopy(keys, i, keys, i + 1, size - i);
+        System.arraycopy(containers, i, containers, i + 1, size - i);
+        keys[i] = key;
+        containers[i] = container;
+        size++;
+    }
+
+    private void removeAt(int i) {
+        System.arraycopy(keys, i + 1, keys, i, size - i - 1);
+        System.arraycopy(containers, i + 1, containers, i, size - i - 1);
+        containers[--size] = null;
+    }
+
+    /**
+     * The low 16 bits of the ids of one chunk. Operations may return a different container
+     * (or kind of container) than the one they were called on.
+     */
+    private sealed interface Container permits ArrayContainer, BitmapContainer {
+        Container add(char value);
+
+        Container remove(char value);
+
+        boolean contains(char value);
+
+        int cardinality();
+
+        Container and(Container other);
+
+        Container or(Container other);
+
+        Container andNot(Container other);
+
+        int andCardinality(Container other);
+
+        /**
+         * @return the smallest value greater than or equal to from, or -1
+         */
+        int next(char from);
+
+        /**
+         * @return the largest value less than or equal to from, or -1
+         */
+        int previous(char from);
+
+        void forEach(IntConsumer consumer);
+
+        Container copy();
+    }
+
+    private static final class ArrayContainer implements Container {
+        private char[] values;
+        private int cardinality;
+
+        ArrayContainer(char[] values, int cardinality) {
+            this.values = values;
+            this.cardinality = cardinality;
+        }
+
+        @Override
+        public Container add(char value) {
+            // Appending is the common case
+            var i = cardinality > 0 && values[cardinality - 1] < value ? -cardinality - 1 : Arrays.binarySearch(values, 0, cardinality, value);
+            if (i >= 0) return this;
+            if (cardinality == ARRAY_MAX) return toBitmap().add(value);
+
+            i = -i - 1;
+            if (cardinality == values.length) values = Arrays.copyOf(values, Math.min(ARRAY_MAX, Math.max(4, cardinality * 2)));
+            System.arraycopy(values, i, values, i + 1, cardinality - i);
+            values[i] = value;
+            cardinality++;
+            return this;
+        }
+
+        @Override
+        public Container remove(char value) {
+            var i = Arrays.binarySearch(values, 0, cardinality, value);
+            if (i < 0) return this;
+            System.arraycopy(values, i + 1, values, i, cardinality - i - 1);
+            cardinality--;
+            return this;
+        }
+
+        @Override
+        public boolean contains(char value) {
+            return Arrays.binarySearch(values, 0, cardinality, value) >= 0;
+        }
+
+        @Override
+        public int cardinality() {
+            return cardinality;
+        }
+
+        @Override
+        public Container and(Container other) {
+            var result = new char[Math.min(cardinality, other.cardinality())];
+            int n = 0;
+            if (other instanceof ArrayContainer array) {
+                int i = 0, j = 0;
+                while (i < cardinality && j < array.cardinality) {
+                    if (values[i] < array.values[j]) i++;
+                    else if (values[i] > array.values[j]) j++;
+                    else {
+                        result[n++] = values[i++];
+                        j++;
+                    }
+                }
+            } else {
+                for (int i = 0; i < cardinality; i++) if (other.contains(values[i])) result[n++] = values[i];
+            }
+            return new ArrayContainer(result, n);
+        }
+
+        @Override
+        public Container or(Container other) {
+            if (other instanceof BitmapContainer bitmap) return bitmap.or(this);
+
+            var array = (ArrayContainer) other;
+            if (cardinality + array.cardinality > ARRAY_MAX) return toBitmap().or(other);
+
+            var result = new char[cardinality + array.cardinality];
+            int i = 0, j = 0, n = 0;
+            while (i < cardinality || j < array.cardinality) {
+                if (j == array.cardinality || (i < cardinality && values[i] < array.values[j])) result[n++] = values[i++];
+                else if (i == cardinality || values[i] > array.values[j]) result[n++] = array.values[j++];
+                else {
+                    result[n++] = values[i++];
+                    j++;
+                }
+            }
+            return new ArrayContainer(result, n);
+        }
+
+        @Override
+        public Container andNot(Container other) {
+            var result = new char[cardinality];
+            int n = 0;
+            for (int i = 0; i < cardinality; i++) if (!other.contains(values[i])) result[n++] = values[i];
+            return new ArrayContainer(result, n);
+        }
+
+        @Override
+        public int andCardinality(Container other) {
+            if (other instanceof BitmapContainer) {
+                int count = 0;
+                for (int i = 0; i < cardinality; i++) if (other.contains(values[i])) count++;
+                return count;
+            }
+
+            var array = (ArrayContainer) other;
+            int i = 0, j = 0, count = 0;
+            while (i < cardinality && j < array.cardinality) {
+                if (values[i] < array.values[j]) i++;
+                else if (values[i] > array.values[j]) j++;
+                else {
+                    count++;
+                    i++;
+                    j++;
+                }
+            }
+            return count;
+        }
+
+        @Override
+        public int next(char from) {
+            var i = Arrays.binarySearch(values, 0, cardinality, from);
+            if (i < 0) i = -i - 1;
+            return i < cardinality ? values[i] : -1;
+        }
+
+        @Override
+        public int previous(char from) {
+            var i = Arrays.binarySearch(values, 0, cardinality, from);
+            if (i < 0) i = -i - 2;
+            return i >= 0 ? values[i] : -1;
+        }
+
+        @Override
+        public void forEach(IntConsumer consumer) {
+            for (int i = 0; i < cardinality; i++) consumer.accept(values[i]);
+        }
+
+        @Override
+        public Container copy() {
+            return new ArrayContainer(Arrays.copyOf(values, Math.max(cardinality, 1)), cardinality);
+        }
+
+        BitmapContainer toBitmap() {
+            var words = new long[BITMAP_WORDS];
+            for (int i = 0; i < cardinality; i++) words[values[i] >>> 6] |= 1L << values[i];
+            return new BitmapContainer(words, cardinality);
+        }
+    }
+
+    private static final class BitmapContainer implements Container {
+        private final long[] words;
+        private int cardinality;
+
+        BitmapContainer(long[] words, int cardinality) {
+            this.words = words;
+            this.cardinality = cardinality;
+        }
+
+        static Container of(long[] words) {
+            int cardinality = 0;
+            for (var word : words) cardinality += Long.bitCount(word);
+            return new BitmapContainer(words, cardinality).shrink();
+        }
+
+        @Override
+        public Container add(char value) {
+            var word = words[value >>> 6];
+            var updated = word | 1L << value;
+            if (updated != word) {
+                words[value >>> 6] = updated;
+                cardinality++;
+            }
+            return this;
+        }
+
+        @Override
+        public Container remove(char value) {
+            var word = words[value >>> 6];
+            var updated = word & ~(1L << value);
+            if (updated == word) return this;
+            words[value >>> 6] = updated;
+            cardinality--;
+            return shrink();
+        }
+
+        @Override
+        public boolean contains(char value) {
+            return (words[value >>> 6] & 1L << value) != 0;
+        }
+
+        @Override
+        public int cardinality() {
+            return cardinality;
+        }
+
+        @Override
+        public Container and(Container other) {
+            if (other instanceof ArrayContainer) return other.and(this);
+
+            var bitmap = (BitmapContainer) other;
+            var result = new long[BITMAP_WORDS];
+            for (int i = 0; i < BITMAP_WORDS; i++) result[i] = words[i] & bitmap.words[i];
+            return of(result);
+        }
+
+        @Override
+        public Container or(Container other) {
+            var result = words.clone();
+            if (other instanceof ArrayContainer array) {
+                for (int i = 0; i < array.cardinality; i++) result[array.values[i] >>> 6] |= 1L << array.values[i];
+            } else {
+                var bitmap = (BitmapContainer) other;
+                for (int i = 0; i < BITMAP_WORDS; i++) result[i] |= bitmap.words[i];
+            }
+            return of(result);
+        }
+
+        @Override
+        public Container andNot(Container other) {
+            var result = words.clone();
+            if (other instanceof ArrayContainer array) {
+                for (int i = 0; i < array.cardinality; i++) result[array.values[i] >>> 6] &= ~(1L << array.values[i]);
+            } else {
+                var bitmap = (BitmapContainer) other;
+                for (int i = 0; i < BITMAP_WORDS; i++) result[i] &= ~bitmap.words[i];
+            }
+            return of(result);
+        }
+
+        @Override
+        public int andCardinality(Container other) {
+            if (other instanceof ArrayContainer) return other.andCardinality(this);
+
+            var bitmap = (BitmapContainer) other;
+            int count = 0;
+            for (int i = 0; i < BITMAP_WORDS; i++) count += Long.bitCount(words[i] & bitmap.words[i]);
+            return count;
+        }
+
+        @Override
+        public int next(char from) {
+            int i = from >>> 6;
+            var word = words[i] & -1L << from;
+            while (word == 0) {
+                if (++i == BITMAP_WORDS) return -1;
+                word = words[i];
+            }
+            return i << 6 | Long.numberOfTrailingZeros(word);
+        }
+
+        @Override
+        public int previous(char from) {
+            int i = from >>> 6;
+            var word = words[i] & -1L >>> 63 - (from & 63);
+            while (word == 0) {
+                if (--i < 0) return -1;
+                word = words[i];
+            }
+            return i << 6 | 63 - Long.numberOfLeadingZeros(word);
+        }
+
+        @Override
+        public void forEach(IntConsumer consumer) {
+            for (int i = 0; i < BITMAP_WORDS; i++) {
+                var word = words[i];
+                while (word != 0) {
+                    consumer.accept(i << 6 | Long.numberOfTrailingZeros(word));
+                    word &= word - 1;
+                }
+            }
+        }
+
+        @Override
+        public Container copy() {
+            return new BitmapContainer(words.clone(), cardinality);
+        }
+
+        /**
+         * @return an array container with the same values, if they fit in one
+         */
+        private Container shrink() {
+            if (cardinality > ARRAY_MAX) return this;
+            var values = new char[Math.max(cardinality, 1)];
+            int n = 0;
+            for (int i = 0; i < BITMAP_WORDS; i++) {
+                var word = words[i];
+                while (word != 0) {
+                    values[n++] = (char) (i << 6 | Long.numberOfTrailingZeros(word));
+                    word &= word - 1;
+                }
+            }
+            return new ArrayContainer(values, cardinality);
+        }
+    }
+}
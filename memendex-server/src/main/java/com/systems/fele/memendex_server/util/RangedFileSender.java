@@ -0,0 +1,155 @@
+package com.systems.fele.memendex_server.util;
+
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import org.apache.catalina.Globals;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpRange;
+import org.springframework.http.MediaType;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.UUID;
+
+/**
+ * Writes files to HTTP responses, honoring single and multiple byte ranges.
+ * <p></p>
+ * When the connector supports it, the file is handed over to Tomcat's sendfile, so the
+ * kernel copies it straight to the socket. Otherwise (e.g. multipart ranges or TLS) it is
+ * written with {@link FileChannel#transferTo(long, long, java.nio.channels.WritableByteChannel)}
+ * to the servlet stream, which still copies it through a small heap buffer.
+ */
+public class RangedFileSender {
+
+    private record Region(long start, long end) {
+        long length() {
+            return end - start;
+        }
+
+        String contentRange(long total) {
+            return "bytes %d-%d/%d".formatted(start, end - 1, total);
+        }
+    }
+
+    /**
+     * Sends a file, or the ranges asked by the Range header, with accurate Content-Length.
+     * Headers other than the content ones (e.g. Content-Disposition) must be set before calling this.
+     *
+     * @param file      the file to send
+     * @param mediaType media type of the file
+     * @param request   the request, used for the Range header
+     * @param response  the response
+     * @throws IOException If there`s any IO errors
+     */
+    public static void send(File file, MediaType mediaType, HttpServletRequest request, HttpServletResponse response) throws IOException {
+        send(file, 0, file.length(), mediaType, request, response);
+    }
+
+    /**
+     * Sends part of a file as if it were a whole file, e.g. one of the records packed in it.
+     *
+     * @param file      the file the part is in
+     * @param offset    where the part starts in the file
+     * @param total     size of the part
+     * @param mediaType media type of the part
+     * @param request   the request, used for the Range header
+     * @param response  the response
+     * @throws IOException If there`s any IO errors
+     */
+    public static void send(File file, long offset, long total, MediaType mediaType, HttpServletRequest request, HttpServletResponse response) throws IOException {
+        response.setHeader(HttpHeaders.ACCEPT_RANGES, "bytes");
+
+        final var rangeHeader = request.getHeader(HttpHeaders.RANGE);
+        if (rangeHeader == null || "HEAD".equals(request.getMethod())) {
+            response.setStatus(HttpServletResponse.SC_OK);
+            response.setContentType(mediaType.toString());
+            response.setContentLengthLong(total);
+            transfer(file, offset, new Region(0, total), request, response, true);
+            return;
+        }
+
+        // Unsatisfiable ranges are dropped, the rest are still sent
+        final var regions = new ArrayList<Region>();
+        try {
+            for (var range : HttpRange.parseRanges(rangeHeader)) {
+                try {
+                    final var region = new Region(range.getRangeStart(total), range.getRangeEnd(total) + 1);
+                    if (region.start() < total && region.length() > 0) regions.add(region);
+                } catch (IllegalArgumentException e) {
+                    // Starts past the end of the file
+                }
+            }
+        } catch (IllegalArgumentException e) {
+            regions.clear();
+        }
+
+        if (regions.isEmpty()) {
+            response.setStatus(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+            response.setHeader(HttpHeaders.CONTENT_RANGE, "bytes */" + total);
+            return;
+        }
+
+        response.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+
+        if (regions.size() == 1) {
+            final var region = regions.get(0);
+            response.setContentType(mediaType.toString());
+            response.setHeader(HttpHeaders.CONTENT_RANGE, region.contentRange(total));
+            response.setContentLengthLong(region.length());
+            transfer(file, offset, region, request, response, true);
+            return;
+        }
+
+        // multipart/byteranges: the part headers are small, so they're built upfront to compute the length
+        final var boundary = UUID.randomUUID().toString();
+        final var partHeaders = new ArrayList<byte[]>();
+        long length = 0;
+        for (var region : regions) {
+            var header = "\r\n--%s\r\n%s: %s\r\n%s: %s\r\n\r\n".formatted(boundary,
+                    HttpHeaders.CONTENT_TYPE, mediaType,
+                    HttpHeaders.CONTENT_RANGE, region.contentRange(total));
+            partHeaders.add(header.getBytes(StandardCharsets.US_ASCII));
+            length += partHeaders.get(partHeaders.size() - 1).length + region.length();
+        }
+        final var trailer = "\r\n--%s--\r\n".formatted(boundary).getBytes(StandardCharsets.US_ASCII);
+        length += trailer.length;
+
+        response.setContentType("multipart/byteranges; boundary=" + boundary);
+        response.setContentLengthLong(length);
+
+        final var out = response.getOutputStream();
+        for (int i = 0; i < regions.size(); i++) {
+            out.write(partHeaders.get(i));
+            transfer(file, offset, regions.get(i), request, response, false);
+        }
+        out.write(trailer);
+    }
+
+    private static void transfer(File file, long offset, Region region, HttpServletRequest request, HttpServletResponse response, boolean allowSendfile) throws IOException {
+        if ("HEAD".equals(request.getMethod()) || region.length() == 0) return;
+
+        if (allowSendfile && Boolean.TRUE.equals(request.getAttribute(Globals.SENDFILE_SUPPORTED_ATTR))) {
+            request.setAttribute(Globals.SENDFILE_FILENAME_ATTR, file.getAbsolutePath());
+            request.setAttribute(Globals.SENDFILE_FILE_START_ATTR, offset + region.start());
+            request.setAttribute(Globals.SENDFILE_FILE_END_ATTR, offset + region.end());
+            return;
+        }
+
+        final var out = Channels.newChannel(response.getOutputStream());
+        try (var channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            var position = offset + region.start();
+            final var end = offset + region.end();
+            while (position < end) {
+                var transferred = channel.transferTo(position, end - position, out);
+                if (transferred <= 0) throw new EOFException("File %s ended before the expected length".formatted(file));
+                position += transferred;
+            }
+        }
+    }
+}
@@ -0,0 +1,112 @@
+-- Baseline schema. Databases created before versioned migrations were introduced also go through
+-- it, so every statement is idempotent and brings older schemas up to date as well.
+-- New columns of memes go before created_at (see MemeUpdatedTrigger)
+
+
+CREATE TABLE IF NOT EXISTS meme_type (
+    id INT PRIMARY KEY,
+    name VARCHAR(10) UNIQUE
+);
+
+MERGE INTO meme_type (id, name) KEY (id) VALUES (1, 'file'), (2, 'link'), (3, 'note');
+
+CREATE TABLE IF NOT EXISTS memes (
+  id            LONG NOT NULL AUTO_INCREMENT,
+
+  -- type_id defines which fields have values
+  -- when file: filename, description and extension will have values
+  -- when link: filename will contain the URL, and description will have value
+  -- when note: filename will contain the note title, and description will have value
+  type_id       INT NOT NULL,
+
+  filename      VARCHAR(512) NULL,
+  description   VARCHAR(4096) NULL,
+  extension     VARCHAR(32) NULL,
+
+  -- SHA-256 of the file contents, in hex. Only for memes of type file
+  content_hash  CHAR(64) NULL,
+
+  -- These two should always be the last columns for making the trigger MemeUpdatedTrigger
+  -- work even after changes in the table definition
+  created_at TIMESTAMP(2) WITH TIME ZONE DEFAULT (CURRENT_TIMESTAMP(2)),
+  updated_at TIMESTAMP(2) WITH TIME ZONE,
+
+  PRIMARY KEY ( id ),
+  FOREIGN KEY ( type_id ) REFERENCES meme_type( id )
+);
+
+ALTER TABLE memes ADD COLUMN IF NOT EXISTS content_hash CHAR(64) NULL BEFORE created_at;
+
+-- The tag format is scope/value
+CREATE TABLE IF NOT EXISTS tags (
+  id    LONG NOT NULL AUTO_INCREMENT,
+  scope VARCHAR(255) NOT NULL,
+  name  VARCHAR(255) NULL,
+
+  -- Number of memes with this tag, kept up to date by TagUsageRepository
+  usage_count LONG NOT NULL DEFAULT 0,
+
+  PRIMARY KEY ( id )
+);
+
+ALTER TABLE tags ADD COLUMN IF NOT EXISTS usage_count LONG NOT NULL DEFAULT 0;
+
+-- Relation table between tags and memes. This is a NxN relationship
+CREATE TABLE IF NOT EXISTS tags_to_memes (
+  id long not null auto_increment,
+  meme_id LONG NOT NULL,
+  tag_id LONG NOT NULL,
+  FOREIGN KEY ( meme_id ) REFERENCES memes ( id ),
+  FOREIGN KEY ( tag_id ) REFERENCES tags( id )
+);
+
+-- Alias for fuzzy queries
+CREATE ALIAS IF NOT EXISTS TOKEN_SET_PARTIAL_RATIO FOR "me.xdrop.fuzzywuzzy.FuzzySearch.tokenSetPartialRatio";
+
+-- Trigger to update meme date
+CREATE TRIGGER IF NOT EXISTS trigger_meme_updated
+BEFORE UPDATE
+ON memes FOR EACH ROW
+CALL "com.systems.fele.memendex_server.meme.MemeUpdatedTrigger";
+
+-- Indexes backing the keyset pagination sort orders
+CREATE INDEX IF NOT EXISTS memes_created_at_idx ON memes ( created_at, id );
+CREATE INDEX IF NOT EXISTS memes_updated_at_idx ON memes ( updated_at, id );
+
+-- Lookup of uploads with the same content
+CREATE INDEX IF NOT EXISTS memes_content_hash_idx ON memes ( content_hash );
+
+-- Perceptual hashes of the images, for near duplicate detection. Kept apart from memes
+-- as they're computed in background and must not change memes.updated_at
+CREATE TABLE IF NOT EXISTS perceptual_hashes (
+  meme_id LONG NOT NULL,
+  hash    BIGINT NOT NULL,
+
+  PRIMARY KEY ( meme_id ),
+  FOREIGN KEY ( meme_id ) REFERENCES memes ( id )
+);
+
+-- Rollups of the tags of each scope, kept up to date by TagUsageRepository
+CREATE TABLE IF NOT EXISTS tag_scopes (
+  scope      VARCHAR(255) NOT NULL,
+  -- Number of tags in the scope
+  tag_count  INT NOT NULL DEFAULT 0,
+  -- Number of memes with at least one tag in the scope
+  meme_count LONG NOT NULL DEFAULT 0,
+
+  PRIMARY KEY ( scope )
+);
+
+-- Counters are computed once, when tag_scopes is still empty. From then on they're kept up to date
+UPDATE tags SET usage_count = (SELECT COUNT(*) FROM tags_to_memes WHERE tags_to_memes.tag_id = tags.id)
+WHERE NOT EXISTS (SELECT 1 FROM tag_scopes);
+
+INSERT INTO tag_scopes (scope, tag_count, meme_count)
+SELECT tags.scope, COUNT(DISTINCT tags.id), COUNT(DISTINCT tags_to_memes.meme_id)
+FROM tags LEFT JOIN tags_to_memes ON tags_to_memes.tag_id = tags.id
+WHERE NOT EXISTS (SELECT 1 FROM tag_scopes)
+GROUP BY tags.scope;
+
+-- Most used tags, overall and by scope
+CREATE INDEX IF NOT EXISTS tags_usage_count_idx ON tags ( usage_count );
+CREATE INDEX IF NOT EXISTS tags_scope_usage_count_idx ON tags ( scope, usage_count );
@@ -0,0 +1,10 @@
+-- Indexes for reading the tags of a page of memes and the memes of a tag. Each one also covers
+-- the other column, so neither needs to go back to the table.
+-- A meme can only have a tag once, so duplicated relations are dropped before the unique index
+
+DELETE FROM tags_to_memes
+WHERE EXISTS (SELECT 1 FROM tags_to_memes other
+              WHERE other.meme_id = tags_to_memes.meme_id AND other.tag_id = tags_to_memes.tag_id AND other.id < tags_to_memes.id);
+
+CREATE UNIQUE INDEX IF NOT EXISTS tags_to_memes_meme_id_tag_id_idx ON tags_to_memes ( meme_id, tag_id );
+CREATE INDEX IF NOT EXISTS tags_to_memes_tag_id_meme_id_idx ON tags_to_memes ( tag_id, meme_id );
@@ -0,0 +1,39 @@
+-- Tags are looked up by scope and name, and there can only be one of each. Duplicates left by
+-- concurrent uploads are merged into the oldest one before the unique index is created.
+-- NULLS NOT DISTINCT makes #scope (without name) unique too
+
+CREATE LOCAL TEMPORARY TABLE IF NOT EXISTS duplicated_tags AS
+SELECT tags.id AS tag_id, (SELECT MIN(kept.id) FROM tags kept
+                           WHERE kept.scope = tags.scope AND kept.name IS NOT DISTINCT FROM tags.name) AS kept_id
+FROM tags;
+
+DELETE FROM duplicated_tags WHERE tag_id = kept_id;
+
+-- Relations the kept tag already has are dropped, the others are moved to it
+DELETE FROM tags_to_memes
+WHERE EXISTS (SELECT 1 FROM duplicated_tags d INNER JOIN tags_to_memes kept ON kept.tag_id = d.kept_id
+              WHERE d.tag_id = tags_to_memes.tag_id AND kept.meme_id = tags_to_memes.meme_id);
+
+DELETE FROM tags_to_memes
+WHERE id IN (SELECT duplicate.id FROM duplicated_tags d INNER JOIN tags_to_memes duplicate ON duplicate.tag_id = d.tag_id
+             WHERE EXISTS (SELECT 1 FROM tags_to_memes other
+                           INNER JOIN duplicated_tags o ON o.tag_id = other.tag_id
+                           WHERE o.kept_id = d.kept_id AND other.meme_id = duplicate.meme_id AND other.id < duplicate.id));
+
+UPDATE tags_to_memes SET tag_id = (SELECT kept_id FROM duplicated_tags WHERE duplicated_tags.tag_id = tags_to_memes.tag_id)
+WHERE tag_id IN (SELECT tag_id FROM duplicated_tags);
+
+DELETE FROM tags WHERE id IN (SELECT tag_id FROM duplicated_tags);
+
+DROP TABLE duplicated_tags;
+
+CREATE UNIQUE NULLS NOT DISTINCT INDEX IF NOT EXISTS tags_scope_name_idx ON tags ( scope, name );
+
+-- Counters of the merged tags
+UPDATE tags SET usage_count = (SELECT COUNT(*) FROM tags_to_memes WHERE tags_to_memes.tag_id = tags.id);
+
+DELETE FROM tag_scopes;
+INSERT INTO tag_scopes (scope, tag_count, meme_count)
+SELECT tags.scope, COUNT(DISTINCT tags.id), COUNT(DISTINCT tags_to_memes.meme_id)
+FROM tags LEFT JOIN tags_to_memes ON tags_to_memes.tag_id = tags.id
+GROUP BY tags.scope;
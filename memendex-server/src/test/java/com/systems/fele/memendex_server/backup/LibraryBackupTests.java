@@ -0,0 +1,119 @@
+package com.systems.fele.memendex_server.backup;
+
+import com.systems.fele.memendex_server.MemendexProperties;
+import com.systems.fele.memendex_server.migration.SchemaMigrator;
+import com.systems.fele.memendex_server.storage.ContentStore;
+import com.systems.fele.memendex_server.tag.TagUsageRepository;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.boot.autoconfigure.web.servlet.MultipartProperties;
+import org.springframework.http.converter.json.Jackson2ObjectMapperBuilder;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.DataSourceTransactionManager;
+import org.springframework.jdbc.datasource.DriverManagerDataSource;
+import org.springframework.mock.env.MockEnvironment;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class LibraryBackupTests {
+    @TempDir
+    Path directory;
+
+    private record Library(JdbcTemplate jdbcTemplate, Path uploads, LibraryBackup backup) {
+    }
+
+    @Test
+    void restoresWhatWasExported() throws Exception {
+        var source = library("source");
+        var same = "same content".getBytes(StandardCharsets.UTF_8);
+        var other = "other content".getBytes(StandardCharsets.UTF_8);
+        insertFile(source, 1, same);
+        insertFile(source, 2, same);
+        insertFile(source, 3, other);
+        source.jdbcTemplate().update("INSERT INTO memes (id, type_id, filename, description) VALUES (4, 3, 'Note', 'text')");
+        source.jdbcTemplate().update("INSERT INTO tags (id, scope, name) VALUES (1, 'artist', 'someone'), (2, 'artist', 'other'), (3, 'funny', NULL)");
+        source.jdbcTemplate().update("INSERT INTO tags_to_memes (meme_id, tag_id) VALUES (1, 1), (2, 1), (2, 2), (3, 3), (4, 3)");
+        new TagUsageRepository(source.jdbcTemplate()).recount();
+
+        var zip = new ByteArrayOutputStream();
+        var exported = source.backup().export(zip);
+        assertEquals(new LibraryBackup.Summary(3, 4, 5, 2), exported);
+
+        var target = library("target");
+        var restored = target.backup().restore(new ByteArrayInputStream(zip.toByteArray()));
+        assertEquals(exported, restored);
+
+        for (var query : List.of(
+                "SELECT id, type_id, filename, description, extension, content_hash, created_at, updated_at FROM memes ORDER BY id",
+                "SELECT id, scope, name, usage_count FROM tags ORDER BY id",
+                "SELECT meme_id, tag_id FROM tags_to_memes ORDER BY meme_id, tag_id",
+                "SELECT scope, tag_count, meme_count FROM tag_scopes ORDER BY scope"))
+            assertEquals(rows(source, query), rows(target, query), query);
+
+        assertArrayEquals(same, Files.readAllBytes(target.uploads().resolve("1.png")));
+        assertArrayEquals(same, Files.readAllBytes(target.uploads().resolve("2.png")));
+        assertArrayEquals(other, Files.readAllBytes(target.uploads().resolve("3.png")));
+        assertTrue(Files.isSameFile(target.uploads().resolve("1.png"), target.uploads().resolve("2.png")));
+
+        // Identities continue after the restored rows
+        target.jdbcTemplate().update("INSERT INTO memes (type_id, filename, description) VALUES (3, 'New', 'text')");
+        target.jdbcTemplate().update("INSERT INTO tags (scope, name) VALUES ('new', NULL)");
+        target.jdbcTemplate().update("INSERT INTO tags_to_memes (meme_id, tag_id) VALUES (5, 4)");
+        assertEquals(5, target.jdbcTemplate().queryForObject("SELECT MAX(id) FROM memes", Long.class));
+        assertEquals(4, target.jdbcTemplate().queryForObject("SELECT MAX(id) FROM tags", Long.class));
+        assertEquals(6, target.jdbcTemplate().queryForObject("SELECT MAX(id) FROM tags_to_memes", Long.class));
+    }
+
+    @Test
+    void rejectsFilesNotMatchingTheirHash() throws Exception {
+        var source = library("source");
+        insertFile(source, 1, "content".getBytes(StandardCharsets.UTF_8));
+        Files.writeString(source.uploads().resolve("1.png"), "changed");
+
+        var zip = new ByteArrayOutputStream();
+        source.backup().export(zip);
+
+        var target = library("target");
+        var error = assertThrows(IOException.class, () -> target.backup().restore(new ByteArrayInputStream(zip.toByteArray())));
+        assertTrue(error.getMessage().contains("content hash"), error.getMessage());
+    }
+
+    private Library library(String name) throws IOException {
+        var uploads = Files.createDirectories(directory.resolve(name));
+        var dataSource = new DriverManagerDataSource("jdbc:h2:mem:%s-%s;DB_CLOSE_DELAY=-1".formatted(name, UUID.randomUUID()), "sa", "");
+        var jdbcTemplate = new JdbcTemplate(dataSource);
+        new SchemaMigrator(jdbcTemplate, new MockEnvironment()).afterSingletonsInstantiated();
+
+        var properties = new MemendexProperties(uploads.toString(), directory.resolve("cache").toString(), null, null,
+                new MemendexProperties.Ingest(null, null, 0, 2), null, null);
+        var contentStore = new ContentStore(properties, new MultipartProperties(), new SimpleMeterRegistry());
+        var backup = new LibraryBackup(properties, jdbcTemplate, new TagUsageRepository(jdbcTemplate), contentStore,
+                Jackson2ObjectMapperBuilder.json().build(), new DataSourceTransactionManager(dataSource));
+        return new Library(jdbcTemplate, uploads, backup);
+    }
+
+    private static void insertFile(Library library, long id, byte[] content) throws IOException, NoSuchAlgorithmException {
+        var hash = HexFormat.of().formatHex(MessageDigest.getInstance("SHA-256").digest(content));
+        library.jdbcTemplate().update("INSERT INTO memes (id, type_id, filename, description, extension, content_hash) VALUES (?, 1, ?, '', 'png', ?)",
+                id, "file%d.png".formatted(id), hash);
+        Files.write(library.uploads().resolve("%d.png".formatted(id)), content);
+    }
+
+    private static List<Map<String, Object>> rows(Library library, String query) {
+        return library.jdbcTemplate().queryForList(query);
+    }
+}
@@ -0,0 +1,143 @@
+package com.systems.fele.memendex_server.reconciliation;
+
+import com.systems.fele.memendex_server.MemendexProperties;
+import com.systems.fele.memendex_server.meme.MemeService;
+import com.systems.fele.memendex_server.migration.SchemaMigrator;
+import com.systems.fele.memendex_server.thumbnail.DerivativeCache;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.DriverManagerDataSource;
+import org.springframework.mock.env.MockEnvironment;
+import org.springframework.util.unit.DataSize;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class LibraryReconcilerTests {
+    private static final int WORKERS = 2;
+
+    @TempDir
+    Path directory;
+
+    private Path uploads;
+    private JdbcTemplate jdbcTemplate;
+    private FakeMemeService memeService;
+    private LibraryReconciler reconciler;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        uploads = Files.createDirectories(directory.resolve("uploads"));
+        jdbcTemplate = new JdbcTemplate(new DriverManagerDataSource("jdbc:h2:mem:%s;DB_CLOSE_DELAY=-1".formatted(UUID.randomUUID()), "sa", ""));
+        new SchemaMigrator(jdbcTemplate, new MockEnvironment()).afterSingletonsInstantiated();
+
+        var thumbnails = new MemendexProperties.Thumbnails(WORKERS, 100, null, DataSize.ofMegabytes(64), 16_000_000);
+        var properties = new MemendexProperties(uploads.toString(), directory.resolve("cache").toString(), thumbnails, null, null, null,
+                new MemendexProperties.Reconciliation(false, 3));
+        memeService = new FakeMemeService(properties);
+        reconciler = new LibraryReconciler(properties, jdbcTemplate, memeService, new DerivativeCache(properties));
+    }
+
+    @AfterEach
+    void tearDown() {
+        reconciler.destroy();
+        memeService.completions.shutdownNow();
+    }
+
+    @Test
+    void reportsMissingAndOrphanFiles() throws Exception {
+        insertMeme(1, 1, "png");
+        insertMeme(2, 1, "png");
+        insertMeme(3, 3, null);
+        insertMeme(4, 1, "txt");
+        Files.writeString(uploads.resolve("1.png"), "image");
+        Files.writeString(uploads.resolve("4.txt"), "text");
+        Files.writeString(uploads.resolve("9.png"), "orphan");
+        Files.writeString(uploads.resolve("notes.txt"), "unknown");
+
+        var report = run();
+        assertEquals(LibraryReconciler.Status.finished, report.status());
+        assertEquals(3, report.memes());
+        assertEquals(4, report.files());
+        assertEquals(1, report.missingFiles());
+        assertEquals(List.of(2L), report.missingFileIds());
+        assertEquals(2, report.orphanFiles());
+        assertEquals(Set.of("9.png", "notes.txt"), Set.copyOf(report.orphanFileNames()));
+        // Only the image whose file is there
+        assertEquals(1, report.missingThumbnails());
+        assertEquals(1, report.queuedThumbnails());
+        assertEquals(Set.of(1L), memeService.queued);
+    }
+
+    @Test
+    void queuesNoMoreThumbnailsThanWorkers() throws Exception {
+        for (int id = 1; id <= 10; id++) {
+            insertMeme(id, 1, "png");
+            Files.writeString(uploads.resolve("%d.png".formatted(id)), "image");
+        }
+
+        var report = run();
+        assertEquals(10, report.queuedThumbnails());
+        assertEquals(10, memeService.queued.size());
+        assertTrue(memeService.maxInFlight.get() <= WORKERS, "in flight: " + memeService.maxInFlight.get());
+    }
+
+    private LibraryReconciler.Report run() throws InterruptedException {
+        reconciler.start();
+        for (int i = 0; i < 500; i++) {
+            var report = reconciler.getLast().orElseThrow();
+            if (report.status() != LibraryReconciler.Status.running) return report;
+            TimeUnit.MILLISECONDS.sleep(10);
+        }
+        throw new AssertionError("The reconciliation didn't finish");
+    }
+
+    private void insertMeme(long id, int type, String extension) {
+        jdbcTemplate.update("INSERT INTO memes (id, type_id, filename, description, extension) VALUES (?, ?, ?, '', ?)",
+                id, type, "meme" + id, extension);
+    }
+
+    /**
+     * Completes the thumbnail jobs a little later instead of generating them, keeping track of how
+     * many were pending at once.
+     */
+    private static class FakeMemeService extends MemeService {
+        final ScheduledExecutorService completions = Executors.newSingleThreadScheduledExecutor();
+        final Set<Long> queued = ConcurrentHashMap.newKeySet();
+        final AtomicInteger inFlight = new AtomicInteger();
+        final AtomicInteger maxInFlight = new AtomicInteger();
+
+        FakeMemeService(MemendexProperties properties) {
+            super(properties, null, null, null, null, null, null, null, null, null, null, null, null, null, new SimpleMeterRegistry());
+        }
+
+        @Override
+        public Optional<CompletableFuture<DerivativeCache.Derivative>> queueThumbnail(long id, String extension) {
+            if (!isThumbnailable(extension)) return Optional.empty();
+            queued.add(id);
+            maxInFlight.accumulateAndGet(inFlight.incrementAndGet(), Math::max);
+            var job = new CompletableFuture<DerivativeCache.Derivative>();
+            completions.schedule(() -> {
+                inFlight.decrementAndGet();
+                job.complete(null);
+            }, 5, TimeUnit.MILLISECONDS);
+            return Optional.of(job);
+        }
+    }
+}
@@ -0,0 +1,155 @@
+package com.systems.fele.memendex_server.search;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.*;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class FullTextIndexTests {
+    private static final String[] WORDS = {
+            "bruh", "moment", "cat", "cats", "atomic", "bomb", "bombs", "peter", "parker", "excel",
+            "xaropinho", "deitar", "running", "run", "the", "of", "Ação", "acao", "jpg", "2024"
+    };
+
+    @Test
+    void analyzerFoldsAndStems() {
+        assertEquals(Arrays.asList("acao", "correndo", null, "gato"), TextAnalyzer.analyze("Ação correndo_com GATOS"));
+        assertEquals(Arrays.asList("run", "fall", "pony", "atomic", "bomb"), TextAnalyzer.analyze("running falling ponies atomic-bombs"));
+        assertEquals(Arrays.asList("source", "reddit"), TextAnalyzer.analyze("#source/reddit"));
+    }
+
+    @Test
+    void phrasesMustMatchInOrder() {
+        var index = new FullTextIndex();
+        index.put(1, "atomic_bomb.png", null, List.of());
+        index.put(2, "bomb_atomic.png", null, List.of());
+        index.put(3, null, "an atomic cat bomb", List.of());
+        index.put(4, null, null, List.of("#atomic", "#bomb"));
+
+        assertEquals(List.of(1L), ids(index.search(FullTextQuery.parse("\"atomic bombs\""), 10)));
+        assertEquals(4, index.search(FullTextQuery.parse("atomic bomb"), 10).total());
+        // Tags weigh more than the rest
+        assertEquals(4L, index.search(FullTextQuery.parse("atomic bomb"), 10).hits().get(0).memeId());
+    }
+
+    @Test
+    void searchMatchesBruteForce() {
+        var random = new Random(42);
+        var index = new FullTextIndex();
+        var docs = new HashMap<Long, String[]>();
+
+        for (long id = 1; id <= 4000; id++) put(index, docs, id, random);
+        // Replace and remove some memes so compaction kicks in
+        for (long id = 1; id <= 3000; id += 2) {
+            if (id % 3 == 0) {
+                docs.remove(id);
+                index.remove(id);
+            } else {
+                put(index, docs, id, random);
+            }
+        }
+
+        for (int i = 0; i < 300; i++) {
+            var query = randomQuery(random);
+            var parsed = FullTextQuery.parse(query);
+            var expected = bruteForce(docs, parsed);
+            var found = index.search(parsed, 20);
+
+            assertEquals(expected.size(), found.total(), "query: " + query);
+            var expectedScores = expected.values().stream().sorted(Comparator.reverseOrder()).limit(20).toList();
+            assertEquals(expectedScores.size(), found.hits().size(), "query: " + query);
+            for (int j = 0; j < expectedScores.size(); j++) {
+                var hit = found.hits().get(j);
+                assertEquals(expectedScores.get(j), hit.score(), 1e-9, "query: " + query);
+                assertEquals(expected.get(hit.memeId()), hit.score(), 1e-9, "query: " + query);
+            }
+        }
+    }
+
+    /**
+     * Scores every document directly from its texts.
+     */
+    private static Map<Long, Double> bruteForce(Map<Long, String[]> docs, FullTextQuery query) {
+        var fields = FullTextIndex.Field.values();
+        var analyzed = new HashMap<Long, List<List<String>>>();
+        var totals = new double[fields.length];
+        docs.forEach((id, texts) -> {
+            var doc = new ArrayList<List<String>>();
+            for (int f = 0; f < fields.length; f++) {
+                var terms = TextAnalyzer.analyze(texts[f]);
+                doc.add(terms);
+                totals[f] += terms.size();
+            }
+            analyzed.put(id, doc);
+        });
+
+        var documentFrequencies = new HashMap<String, Long>();
+        for (var term : query.scoredTerms()) {
+            documentFrequencies.put(term, analyzed.values().stream().filter(doc -> doc.stream().anyMatch(terms -> terms.contains(term))).count());
+        }
+
+        var scores = new HashMap<Long, Double>();
+        analyzed.forEach((id, doc) -> {
+            for (var phrase : query.phrases()) {
+                if (doc.stream().noneMatch(terms -> containsPhrase(terms, phrase))) return;
+            }
+
+            var score = 0.0;
+            var matches = false;
+            for (var term : query.scoredTerms()) {
+                var df = documentFrequencies.get(term);
+                if (df == 0) continue;
+                var idf = Math.log(1 + (docs.size() - df + 0.5) / (df + 0.5));
+                var tf = 0.0;
+                for (int f = 0; f < fields.length; f++) {
+                    var average = totals[f] / docs.size();
+                    var count = Collections.frequency(doc.get(f), term);
+                    tf += count * fields[f].weight / (1 - FullTextIndex.B + FullTextIndex.B * doc.get(f).size() / average);
+                }
+                if (tf == 0) continue;
+                matches = true;
+                score += idf * tf * (FullTextIndex.K1 + 1) / (tf + FullTextIndex.K1);
+            }
+            if (matches) scores.put(id, score);
+        });
+        return scores;
+    }
+
+    private static boolean containsPhrase(List<String> terms, List<String> phrase) {
+        for (int start = 0; start + phrase.size() <= terms.size(); start++) {
+            var found = true;
+            for (int i = 0; i < phrase.size() && found; i++) {
+                found = phrase.get(i) == null || phrase.get(i).equals(terms.get(start + i));
+            }
+            if (found) return true;
+        }
+        return false;
+    }
+
+    private static List<Long> ids(FullTextIndex.Hits hits) {
+        return hits.hits().stream().map(FullTextIndex.Hit::memeId).toList();
+    }
+
+    private static void put(FullTextIndex index, Map<Long, String[]> docs, long id, Random random) {
+        // A single tag, so there are no gaps between tags to account for
+        var texts = new String[] { randomText(random, 3) + ".png", random.nextBoolean() ? randomText(random, 8) : null, randomText(random, 2) };
+        docs.put(id, texts);
+        index.put(id, texts[0], texts[1], List.of(texts[2]));
+    }
+
+    private static String randomText(Random random, int maxWords) {
+        var builder = new StringBuilder();
+        var words = 1 + random.nextInt(maxWords);
+        for (int i = 0; i < words; i++) {
+            builder.append(WORDS[random.nextInt(WORDS.length)]);
+            builder.append(random.nextBoolean() ? " " : "_");
+        }
+        return builder.toString();
+    }
+
+    private static String randomQuery(Random random) {
+        var query = randomText(random, 3);
+        return random.nextInt(3) == 0 ? '"' + query + "\" " + WORDS[random.nextInt(WORDS.length)] : query;
+    }
+}
@@ -0,0 +1,83 @@
+package com.systems.fele.memendex_server.search;
+
+import me.xdrop.fuzzywuzzy.FuzzySearch;
+import org.junit.jupiter.api.Test;
+
+import java.util.*;
+import java.util.stream.LongStream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class FuzzyMatchIndexTests {
+    private static final String[] WORDS = {
+            "bruh", "moment", "cat", "cats", "atomic", "bomb", "peter", "parker", "excel", "fonte",
+            "xaropinho", "deitar", "watertrucks", "firetrucks", "babe", "wrong", "jpg", "png", "rdt",
+            "a", "ab", "aaaa", "hahahahaha", "2024", "0820221374383971190061168"
+    };
+
+    @Test
+    void searchMatchesFullScan() {
+        var random = new Random(42);
+        var index = new FuzzyMatchIndex();
+        var texts = new HashMap<Long, String[]>();
+
+        for (long id = 1; id <= 2000; id++) {
+            var memeTexts = new String[] { randomText(random), randomText(random) };
+            texts.put(id, memeTexts);
+            index.put(id, memeTexts);
+        }
+
+        // Replace and remove some memes so compaction kicks in
+        for (long id = 1; id <= 1500; id += 2) {
+            if (id % 3 == 0) {
+                texts.remove(id);
+                index.remove(id);
+            } else {
+                var memeTexts = new String[] { randomText(random), null };
+                texts.put(id, memeTexts);
+                index.put(id, memeTexts);
+            }
+        }
+
+        for (int i = 0; i < 300; i++) {
+            var query = randomQuery(random);
+            var expected = LongStream.rangeClosed(1, 2000)
+                    .filter(id -> texts.containsKey(id) && Arrays.stream(texts.get(id))
+                            .anyMatch(text -> text != null && FuzzySearch.tokenSetPartialRatio(text, query) > FuzzyMatchIndex.SCORE_THRESHOLD))
+                    .boxed()
+                    .toList();
+
+            assertEquals(expected, index.search(query, Integer.MAX_VALUE), "query: " + query);
+        }
+    }
+
+    private static String randomText(Random random) {
+        var builder = new StringBuilder();
+        var words = 1 + random.nextInt(6);
+        for (int i = 0; i < words; i++) {
+            var word = WORDS[random.nextInt(WORDS.length)];
+            builder.append(random.nextInt(4) == 0 ? mutate(word, random) : word);
+            builder.append(random.nextBoolean() ? " " : "_");
+        }
+        return builder.toString();
+    }
+
+    private static String randomQuery(Random random) {
+        var query = random.nextInt(3) == 0 ? randomText(random) : WORDS[random.nextInt(WORDS.length)];
+        return mutate(query, random);
+    }
+
+    private static String mutate(String word, Random random) {
+        var chars = new StringBuilder(word);
+        var edits = random.nextInt(3);
+        for (int i = 0; i < edits && !chars.isEmpty(); i++) {
+            var position = random.nextInt(chars.length());
+            switch (random.nextInt(3)) {
+                case 0 -> chars.deleteCharAt(position);
+                case 1 -> chars.insert(position, (char) ('a' + random.nextInt(26)));
+                default -> chars.setCharAt(position, (char) ('a' + random.nextInt(26)));
+            }
+        }
+        return chars.toString();
+    }
+}
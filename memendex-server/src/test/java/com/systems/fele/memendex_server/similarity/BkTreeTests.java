@@ -0,0 +1,50 @@
+package com.systems.fele.memendex_server.similarity;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.*;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class BkTreeTests {
+
+    @Test
+    void searchMatchesFullScan() {
+        var random = new Random(42);
+        var tree = new BkTree();
+        var hashes = new HashMap<Long, Long>();
+
+        // Clusters of near duplicates around a few base hashes, plus unrelated ones
+        var bases = random.longs(50).toArray();
+        for (long id = 1; id <= 5000; id++) {
+            var hash = id % 2 == 0 ? flipBits(random, bases[random.nextInt(bases.length)], random.nextInt(8)) : random.nextLong();
+            hashes.put(id, hash);
+            tree.add(id, hash);
+        }
+
+        for (long id = 1; id <= 5000; id += 7) {
+            tree.remove(id, hashes.remove(id));
+        }
+
+        for (int i = 0; i < 200; i++) {
+            var query = i % 2 == 0 ? flipBits(random, bases[random.nextInt(bases.length)], random.nextInt(8)) : random.nextLong();
+            var maxDistance = random.nextInt(16);
+
+            var expected = new TreeMap<Long, Integer>();
+            hashes.forEach((id, hash) -> {
+                var distance = PerceptualHash.distance(hash, query);
+                if (distance <= maxDistance) expected.put(id, distance);
+            });
+
+            var actual = new TreeMap<Long, Integer>();
+            for (var match : tree.search(query, maxDistance)) actual.put(match.memeId(), match.distance());
+
+            assertEquals(expected, actual, "query %x within %d".formatted(query, maxDistance));
+        }
+    }
+
+    private static long flipBits(Random random, long hash, int count) {
+        for (int i = 0; i < count; i++) hash ^= 1L << random.nextInt(Long.SIZE);
+        return hash;
+    }
+}
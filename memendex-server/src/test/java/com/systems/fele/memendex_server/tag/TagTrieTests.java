@@ -0,0 +1,78 @@
+package com.systems.fele.memendex_server.tag;
+
+import com.systems.fele.memendex_server.model.Tag;
+import org.junit.jupiter.api.Test;
+
+import java.util.*;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class TagTrieTests {
+    private static final String[] WORDS = { "cat", "cats", "car", "dog", "source", "reddit", "red", "meme", "my-dit", "artist", "a" };
+
+    @Test
+    void searchMatchesFullScan() {
+        var random = new Random(42);
+        var trie = new TagTrie();
+        var tags = new HashMap<Long, Tag>();
+        var counts = new HashMap<Long, Long>();
+
+        for (long id = 1; id <= 2000; id++) {
+            var scope = WORDS[random.nextInt(WORDS.length)] + (random.nextInt(3) == 0 ? "" : random.nextInt(50));
+            var value = random.nextBoolean() ? null : WORDS[random.nextInt(WORDS.length)] + random.nextInt(20);
+            var tag = new Tag(id, scope, value);
+            var count = (long) random.nextInt(30);
+            tags.put(id, tag);
+            counts.put(id, count);
+            trie.put(tag, count);
+        }
+
+        for (int i = 0; i < 3000; i++) {
+            long id = random.nextInt(2000) + 1;
+            if (!tags.containsKey(id)) continue;
+            if (random.nextInt(10) == 0) {
+                trie.remove(id);
+                tags.remove(id);
+                counts.remove(id);
+            } else {
+                var delta = (long) random.nextInt(11) - 5;
+                trie.addCount(id, delta);
+                counts.merge(id, delta, Long::sum);
+            }
+        }
+
+        for (int i = 0; i < 500; i++) {
+            var word = WORDS[random.nextInt(WORDS.length)];
+            var prefix = i % 10 == 0 ? "" : word.substring(0, 1 + random.nextInt(word.length()));
+            var limit = 1 + random.nextInt(20);
+            var minCount = (long) random.nextInt(3);
+
+            var expected = tags.values().stream()
+                    .filter(tag -> TagTrie.keys(tag).stream().anyMatch(key -> key.startsWith(prefix)))
+                    .filter(tag -> counts.get(tag.id()) >= minCount)
+                    .sorted(Comparator.comparingLong((Tag tag) -> -counts.get(tag.id())).thenComparing(Tag::toString).thenComparingLong(Tag::id))
+                    .limit(limit)
+                    .map(tag -> new TagTrie.Match(tag, counts.get(tag.id())))
+                    .toList();
+
+            assertEquals(expected, trie.search(prefix, limit, minCount), "prefix '%s' limit %d".formatted(prefix, limit));
+        }
+    }
+
+    @Test
+    void findsTagsByWords() {
+        var trie = new TagTrie();
+        trie.put(new Tag(1, "source", "reddit"), 3);
+        trie.put(new Tag(2, "source", "my-dit"), 1);
+        trie.put(new Tag(3, "cats", null), 2);
+
+        assertEquals(List.of(1L, 2L), ids(trie.search("#source/", 10, 0)));
+        assertEquals(List.of(1L), ids(trie.search("red", 10, 0)));
+        assertEquals(List.of(2L), ids(trie.search("dit", 10, 0)));
+        assertEquals(List.of(1L, 3L, 2L), ids(trie.search("", 10, 0)));
+    }
+
+    private static List<Long> ids(List<TagTrie.Match> matches) {
+        return matches.stream().map(match -> match.tag().id()).toList();
+    }
+}
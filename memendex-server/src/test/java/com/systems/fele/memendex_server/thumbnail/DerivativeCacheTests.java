@@ -0,0 +1,180 @@
+package com.systems.fele.memendex_server.thumbnail;
+
+import com.systems.fele.memendex_server.MemendexProperties;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.util.unit.DataSize;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class DerivativeCacheTests {
+    @TempDir
+    Path directory;
+
+    @Test
+    void keepsDerivativesAcrossRestarts() throws IOException {
+        var cache = cache(64);
+        var thumbnail = cache.put(key(1, DerivativeSize.thumbnail), content(1, 1000));
+        cache.put(key(1, DerivativeSize.preview), content(2, 5000));
+        cache.put(key(2, DerivativeSize.thumbnail), content(3, 700));
+
+        assertArrayEquals(content(1, 1000), thumbnail.bytes());
+        try (var file = new RandomAccessFile(thumbnail.file(), "r")) {
+            var bytes = new byte[thumbnail.length()];
+            file.seek(thumbnail.position());
+            file.readFully(bytes);
+            assertArrayEquals(content(1, 1000), bytes);
+        }
+
+        var reloaded = cache(64);
+        assertEquals(3, reloaded.stats().entries());
+        assertEquals(6700, reloaded.stats().bytes());
+        assertArrayEquals(content(2, 5000), reloaded.get(key(1, DerivativeSize.preview)).orElseThrow().bytes());
+        assertArrayEquals(content(3, 700), reloaded.get(key(2, DerivativeSize.thumbnail)).orElseThrow().bytes());
+        assertTrue(reloaded.get(key(2, DerivativeSize.preview)).isEmpty());
+    }
+
+    @Test
+    void compactsReplacedDerivatives() throws IOException, InterruptedException {
+        var cache = cache(64);
+        // Ten times the size of a segment, over the same few keys
+        for (int i = 0; i < 400; i++)
+            cache.put(key(i % 4, DerivativeSize.preview), content(i, 100_000));
+
+        // Compacted in the background
+        var stats = cache.stats();
+        for (int i = 0; i < 1000 && stats.segments() > 2; i++) {
+            TimeUnit.MILLISECONDS.sleep(10);
+            stats = cache.stats();
+        }
+        assertEquals(4, stats.entries());
+        assertTrue(stats.compactions() > 0);
+        assertTrue(stats.segments() <= 2, "segments: " + stats.segments());
+        for (int i = 396; i < 400; i++)
+            assertArrayEquals(content(i, 100_000), cache.get(key(i % 4, DerivativeSize.preview)).orElseThrow().bytes());
+        cache.destroy();
+
+        var reloaded = cache(64);
+        assertEquals(4, reloaded.stats().entries());
+        for (int i = 396; i < 400; i++)
+            assertArrayEquals(content(i, 100_000), reloaded.get(key(i % 4, DerivativeSize.preview)).orElseThrow().bytes());
+    }
+
+    @Test
+    void deletesCompactedSegmentsWithoutFurtherAppends() throws IOException, InterruptedException {
+        var cache = cache(64, 0);
+        for (int i = 0; i < 400; i++)
+            cache.put(key(i % 4, DerivativeSize.preview), content(i, 100_000));
+
+        var derivatives = directory.resolve("derivatives");
+        var files = fileCount(derivatives);
+        for (int i = 0; i < 1000 && files != cache.stats().segments(); i++) {
+            TimeUnit.MILLISECONDS.sleep(10);
+            files = fileCount(derivatives);
+        }
+        assertTrue(cache.stats().compactions() > 0);
+        assertEquals(cache.stats().segments(), files);
+        cache.destroy();
+    }
+
+    @Test
+    void keepsEvictedDerivativesOutAfterRestarts() throws IOException {
+        var cache = cache(4);
+        for (int i = 1; i <= 4; i++) cache.put(key(i, DerivativeSize.preview), content(i, 1024 * 1024));
+        // The first one becomes the most recently used, so the second one is dropped instead
+        assertTrue(cache.get(key(1, DerivativeSize.preview)).isPresent());
+        cache.put(key(5, DerivativeSize.preview), content(5, 1024 * 1024));
+        assertFalse(cache.contains(key(2, DerivativeSize.preview)));
+        cache.destroy();
+
+        var reloaded = cache(4);
+        assertEquals(4, reloaded.stats().entries());
+        assertFalse(reloaded.contains(key(2, DerivativeSize.preview)));
+        for (var memeId : new int[] { 1, 3, 4, 5 })
+            assertArrayEquals(content(memeId, 1024 * 1024), reloaded.get(key(memeId, DerivativeSize.preview)).orElseThrow().bytes());
+    }
+
+    @Test
+    void dropsTornRecordsAfterACrash() throws IOException {
+        var cache = cache(64);
+        cache.put(key(1, DerivativeSize.thumbnail), content(1, 1000));
+        var torn = cache.put(key(2, DerivativeSize.thumbnail), content(2, 1000));
+        try (var file = new RandomAccessFile(torn.file(), "rw")) {
+            file.seek(torn.position() + 500);
+            file.write(new byte[500]);
+        }
+
+        var reloaded = cache(64);
+        assertTrue(reloaded.contains(key(1, DerivativeSize.thumbnail)));
+        assertFalse(reloaded.contains(key(2, DerivativeSize.thumbnail)));
+
+        reloaded.put(key(3, DerivativeSize.thumbnail), content(3, 10));
+        var again = cache(64);
+        assertEquals(2, again.stats().entries());
+        assertArrayEquals(content(3, 10), again.get(key(3, DerivativeSize.thumbnail)).orElseThrow().bytes());
+    }
+
+    @Test
+    void dropsRecordsWhoseHeaderWasNotWritten() throws IOException {
+        var cache = cache(64);
+        cache.put(key(1, DerivativeSize.thumbnail), content(1, 1000));
+        var torn = cache.put(key(2, DerivativeSize.thumbnail), content(2, 1000));
+        // Only the page with the magic reached the disk
+        try (var file = new RandomAccessFile(torn.file(), "rw")) {
+            file.seek(torn.position() - 20);
+            file.write(new byte[20 + 1000]);
+        }
+
+        var reloaded = cache(64);
+        assertEquals(1, reloaded.stats().entries());
+        assertTrue(reloaded.contains(key(1, DerivativeSize.thumbnail)));
+        assertFalse(reloaded.contains(key(2, DerivativeSize.thumbnail)));
+    }
+
+    @Test
+    void removesDerivativesOfOtherVersions() throws IOException {
+        var derivatives = Files.createDirectories(directory.resolve("derivatives"));
+        Files.write(derivatives.resolve("1-thumbnail-v1.jpeg"), content(1, 10));
+        Files.write(derivatives.resolve("v%d-000001.pack".formatted(DerivativeCache.VERSION + 1)), content(1, 10));
+
+        var cache = cache(64);
+        assertEquals(0, cache.stats().entries());
+        try (var files = Files.list(derivatives)) {
+            assertEquals(0, files.count());
+        }
+    }
+
+    private DerivativeCache cache(long quotaMegabytes) {
+        var thumbnails = new MemendexProperties.Thumbnails(2, 100, null, DataSize.ofMegabytes(quotaMegabytes), 16_000_000);
+        return new DerivativeCache(new MemendexProperties(null, directory.toString(), thumbnails, null, null, null, null));
+    }
+
+    private DerivativeCache cache(long quotaMegabytes, long retiredSegmentDelayMillis) {
+        var thumbnails = new MemendexProperties.Thumbnails(2, 100, null, DataSize.ofMegabytes(quotaMegabytes), 16_000_000);
+        return new DerivativeCache(new MemendexProperties(null, directory.toString(), thumbnails, null, null, null, null), retiredSegmentDelayMillis);
+    }
+
+    private static long fileCount(Path directory) throws IOException {
+        try (var files = Files.list(directory)) {
+            return files.count();
+        }
+    }
+
+    private static DerivativeCache.Key key(long memeId, DerivativeSize size) {
+        return new DerivativeCache.Key(memeId, size);
+    }
+
+    private static byte[] content(int seed, int length) {
+        var bytes = new byte[length];
+        Arrays.fill(bytes, (byte) seed);
+        bytes[0] = (byte) (seed >> 8);
+        return bytes;
+    }
+}
@@ -0,0 +1,75 @@
+package com.systems.fele.memendex_server.thumbnail;
+
+import com.systems.fele.memendex_server.MemendexProperties;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class SpriteSheetsTests {
+    private SpriteSheets spriteSheets;
+
+    @BeforeEach
+    void setUp() {
+        var properties = new MemendexProperties(null, null, new MemendexProperties.Thumbnails(2, 100, null, null, 16_000_000),
+                null, null, null, null);
+        var registry = new SimpleMeterRegistry();
+        spriteSheets = new SpriteSheets(new ThumbnailRenderer(properties, registry), registry);
+    }
+
+    @Test
+    void laysThumbnailsOutInRows() throws IOException {
+        var sources = new ArrayList<SpriteSheets.Source>();
+        for (long id = 1; id <= 20; id++) sources.add(source(id, "a", 150, 100));
+
+        var sheet = spriteSheets.compose(sources);
+        assertEquals(20, sheet.cells().size());
+        assertEquals(new SpriteSheets.Cell(1, 0, 0, 150, 100), sheet.cells().get(0));
+        assertEquals(new SpriteSheets.Cell(2, 152, 0, 150, 100), sheet.cells().get(1));
+        // Ten fit in a row, the eleventh starts the next one
+        assertEquals(new SpriteSheets.Cell(11, 0, 102, 150, 100), sheet.cells().get(10));
+        assertEquals(202, sheet.height());
+
+        var image = ImageIO.read(new ByteArrayInputStream(sheet.jpeg()));
+        assertEquals(sheet.width(), image.getWidth());
+        assertEquals(sheet.height(), image.getHeight());
+    }
+
+    @Test
+    void isKeptUntilAVersionChanges() throws IOException {
+        var first = spriteSheets.compose(List.of(source(1, "a", 120, 100), source(2, "a", 80, 100)));
+        var again = spriteSheets.compose(List.of(source(1, "a", 120, 100), source(2, "a", 80, 100)));
+        assertSame(first, again);
+        assertSame(first, spriteSheets.get(first.token()).orElseThrow());
+
+        var changed = spriteSheets.compose(List.of(source(1, "a", 120, 100), source(2, "b", 80, 100)));
+        assertNotEquals(first.token(), changed.token());
+    }
+
+    @Test
+    void leavesOutUnreadableThumbnails() throws IOException {
+        var unreadable = new SpriteSheets.Source(2, "a", new byte[] { 1, 2, 3 });
+        var sheet = spriteSheets.compose(List.of(source(1, "a", 120, 100), unreadable));
+        assertEquals(List.of(1L), sheet.cells().stream().map(SpriteSheets.Cell::id).toList());
+        assertEquals(spriteSheets.compose(List.of(source(1, "a", 120, 100))).token(), sheet.token());
+
+        var empty = spriteSheets.compose(List.of(unreadable));
+        assertTrue(empty.cells().isEmpty());
+        assertEquals(0, empty.jpeg().length);
+    }
+
+    private static SpriteSheets.Source source(long id, String version, int width, int height) throws IOException {
+        var output = new ByteArrayOutputStream();
+        ImageIO.write(new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB), "jpeg", output);
+        return new SpriteSheets.Source(id, version, output.toByteArray());
+    }
+}
@@ -0,0 +1,59 @@
+package com.systems.fele.memendex_server.util;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class HttpCachingTests {
+    private static final String ETAG = "\"7-abc-thumbnail\"";
+    private static final ZonedDateTime MODIFIED = ZonedDateTime.of(2024, 5, 1, 12, 30, 15, 500_000_000, ZoneOffset.UTC);
+
+    @Test
+    void matchesAnyOfTheEtagsWeakly() {
+        assertTrue(HttpCaching.isNotModified(ETAG, MODIFIED, request("If-None-Match", "\"other\", W/\"7-abc-thumbnail\"")));
+        assertTrue(HttpCaching.isNotModified(ETAG, MODIFIED, request("If-None-Match", "*")));
+        assertFalse(HttpCaching.isNotModified(ETAG, MODIFIED, request("If-None-Match", "\"7-abc-preview\"")));
+    }
+
+    @Test
+    void ifNoneMatchTakesPrecedence() {
+        var request = request("If-None-Match", "\"other\"");
+        request.addHeader("If-Modified-Since", MODIFIED.plusDays(1).toInstant().toEpochMilli());
+        assertFalse(HttpCaching.isNotModified(ETAG, MODIFIED, request));
+    }
+
+    @Test
+    void comparesDatesBySecond() {
+        var request = new MockHttpServletRequest("GET", "/");
+        // HTTP dates have no milliseconds
+        request.addHeader("If-Modified-Since", MODIFIED.withNano(0).toInstant().toEpochMilli());
+        assertTrue(HttpCaching.isNotModified(ETAG, MODIFIED, request));
+        assertFalse(HttpCaching.isNotModified(ETAG, MODIFIED.plusSeconds(1), request));
+        assertFalse(HttpCaching.isNotModified(ETAG, null, request));
+    }
+
+    @Test
+    void sendsNotModifiedWithTheHeaders() {
+        var response = new MockHttpServletResponse();
+        assertTrue(HttpCaching.sendNotModified(ETAG, MODIFIED, HttpCaching.IMMUTABLE, request("If-None-Match", ETAG), response));
+        assertEquals(304, response.getStatus());
+        assertEquals(ETAG, response.getHeader("ETag"));
+        assertEquals(HttpCaching.IMMUTABLE, response.getHeader("Cache-Control"));
+        assertEquals(MODIFIED.withNano(0).toInstant().toEpochMilli(), response.getDateHeader("Last-Modified"));
+
+        var post = request("If-None-Match", ETAG);
+        post.setMethod("POST");
+        assertFalse(HttpCaching.sendNotModified(ETAG, MODIFIED, HttpCaching.IMMUTABLE, post, new MockHttpServletResponse()));
+    }
+
+    private static MockHttpServletRequest request(String header, String value) {
+        var request = new MockHttpServletRequest("GET", "/");
+        request.addHeader(header, value);
+        return request;
+    }
+}
@@ -0,0 +1,92 @@
+package com.systems.fele.memendex_server.util;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.*;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class IdBitmapTests {
+
+    @Test
+    void operationsMatchSets() {
+        var random = new Random(42);
+        for (int round = 0; round < 50; round++) {
+            // Mixes sparse and dense chunks, so both kinds of container are exercised
+            var a = randomSet(random);
+            var b = randomSet(random);
+            var bitmapA = toBitmap(a);
+            var bitmapB = toBitmap(b);
+
+            assertEquals(a, toSet(bitmapA));
+            assertEquals(a.size(), bitmapA.cardinality());
+
+            var and = new TreeSet<>(a);
+            and.retainAll(b);
+            assertEquals(and, toSet(bitmapA.and(bitmapB)));
+            assertEquals(and.size(), bitmapA.andCardinality(bitmapB));
+
+            var or = new TreeSet<>(a);
+            or.addAll(b);
+            assertEquals(or, toSet(bitmapA.or(bitmapB)));
+
+            var andNot = new TreeSet<>(a);
+            andNot.removeAll(b);
+            assertEquals(andNot, toSet(bitmapA.andNot(bitmapB)));
+
+            for (int i = 0; i < 200; i++) {
+                long from = random.nextInt(300_000);
+                assertEquals(Objects.requireNonNullElse(a.ceiling(from), -1L), bitmapA.next(from), "next " + from);
+                assertEquals(Objects.requireNonNullElse(a.floor(from), -1L), bitmapA.previous(from), "previous " + from);
+            }
+
+            // Removing drops containers back to arrays, and empty ones altogether
+            for (var id : List.copyOf(a)) {
+                if (random.nextInt(3) == 0) continue;
+                a.remove(id);
+                bitmapA.remove(id);
+            }
+            assertEquals(a, toSet(bitmapA));
+            assertEquals(a.size(), bitmapA.cardinality());
+        }
+    }
+
+    @Test
+    void operandsAreLeftUntouched() {
+        var a = IdBitmap.of(1, 2, 3, 70_000);
+        var b = IdBitmap.of(2, 70_000, 140_000);
+
+        var or = a.or(b);
+        or.add(5);
+        var andNot = a.andNot(b);
+        andNot.remove(1);
+
+        assertEquals(Set.of(1L, 2L, 3L, 70_000L), toSet(a));
+        assertEquals(Set.of(2L, 70_000L, 140_000L), toSet(b));
+        assertEquals(-1, IdBitmap.of().next(0));
+    }
+
+    private static TreeSet<Long> randomSet(Random random) {
+        var set = new TreeSet<Long>();
+        for (int chunk = 0; chunk < 4; chunk++) {
+            var base = (long) random.nextInt(5) << 16;
+            var count = random.nextBoolean() ? random.nextInt(100) : 3000 + random.nextInt(20_000);
+            for (int i = 0; i < count; i++) set.add(base + random.nextInt(65536));
+        }
+        return set;
+    }
+
+    private static IdBitmap toBitmap(Collection<Long> ids) {
+        var shuffled = new ArrayList<>(ids);
+        Collections.shuffle(shuffled, new Random(7));
+        var bitmap = new IdBitmap();
+        shuffled.forEach(bitmap::add);
+        return bitmap;
+    }
+
+    private static TreeSet<Long> toSet(IdBitmap bitmap) {
+        var set = new TreeSet<Long>();
+        bitmap.forEach(set::add);
+        return set;
+    }
+}
@@ -0,0 +1,60 @@
+package com.systems.fele.memendex_server.util;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.MediaType;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class RangedFileSenderTests {
+    @TempDir
+    Path directory;
+
+    @Test
+    void sendsSingleRange() throws IOException {
+        var response = send("bytes=2-4");
+        assertEquals(206, response.getStatus());
+        assertEquals("bytes 2-4/10", response.getHeader(HttpHeaders.CONTENT_RANGE));
+        assertEquals("234", response.getContentAsString());
+    }
+
+    @Test
+    void dropsUnsatisfiableRanges() throws IOException {
+        var response = send("bytes=20-30, 7-");
+        assertEquals(206, response.getStatus());
+        assertEquals("bytes 7-9/10", response.getHeader(HttpHeaders.CONTENT_RANGE));
+        assertEquals("789", response.getContentAsString());
+
+        var multipart = send("bytes=0-1, 20-30, 8-9");
+        assertEquals(206, multipart.getStatus());
+        assertTrue(multipart.getContentType().startsWith("multipart/byteranges"));
+        assertTrue(multipart.getContentAsString().contains("bytes 0-1/10"));
+        assertTrue(multipart.getContentAsString().contains("bytes 8-9/10"));
+        assertFalse(multipart.getContentAsString().contains("bytes 20-"));
+        assertEquals(multipart.getContentAsByteArray().length, multipart.getContentLengthLong());
+    }
+
+    @Test
+    void rejectsWhenNoRangeIsSatisfiable() throws IOException {
+        var response = send("bytes=20-30, 15-");
+        assertEquals(416, response.getStatus());
+        assertEquals("bytes */10", response.getHeader(HttpHeaders.CONTENT_RANGE));
+    }
+
+    private MockHttpServletResponse send(String range) throws IOException {
+        var file = directory.resolve("file.txt");
+        Files.writeString(file, "0123456789");
+        var request = new MockHttpServletRequest("GET", "/file.txt");
+        request.addHeader(HttpHeaders.RANGE, range);
+        var response = new MockHttpServletResponse();
+        RangedFileSender.send(file.toFile(), MediaType.TEXT_PLAIN, request, response);
+        return response;
+    }
+}